@@ -0,0 +1,224 @@
+package Distributed;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+
+import MNIST.IdxDataSource;
+import MNIST.IdxFile;
+
+import Network.Batch;
+import Network.DataLoader;
+import Network.DataSource;
+import Network.Evaluator;
+import Network.HyperParameter;
+import Network.Layer;
+import Network.Network;
+
+/**
+ * Data-parallel MNIST training in several processes.
+ *
+ * Run without --rank it starts one JVM per worker on this host and waits for
+ * them. Every worker holds a replica of the network, learns from its own shard
+ * of the training set, and sums its gradients with the other workers over a
+ * RingAllReduce before every update. To run across hosts, start one worker per
+ * host with --rank and --hosts instead.
+ *
+ * Usage: java Distributed.DistributedTrainer [options]
+ *
+ * <pre>
+ *   --workers n      number of worker processes (default 2)
+ *   --rank n         run as the worker with this rank instead of launching
+ *   --hosts a,b,..   host of every rank (default 127.0.0.1 for all)
+ *   --port n         port of rank 0, rank i listens on port + i (default 29500)
+ *   --epochs n       epochs to train (default 5)
+ *   --batch n        samples per batch on every worker (default 32)
+ *   --threads n      learning threads of every worker (default cores / workers)
+ * </pre>
+ */
+public class DistributedTrainer {
+    static final long TIMEOUT_MILLIS = 60_000;
+
+    int workers = 2;
+    int rank = -1;
+    String[] hosts;
+    int port = 29500;
+    int epochs = 5;
+    int batchSize = 32;
+    int threads;
+
+    public static void main(String[] args) throws Exception {
+        DistributedTrainer trainer = new DistributedTrainer();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--workers":
+                    trainer.workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--rank":
+                    trainer.rank = Integer.parseInt(args[++i]);
+                    break;
+                case "--hosts":
+                    trainer.hosts = args[++i].split(",");
+                    break;
+                case "--port":
+                    trainer.port = Integer.parseInt(args[++i]);
+                    break;
+                case "--epochs":
+                    trainer.epochs = Integer.parseInt(args[++i]);
+                    break;
+                case "--batch":
+                    trainer.batchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    trainer.threads = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (trainer.hosts != null) {
+            trainer.workers = trainer.hosts.length;
+        }
+        if (trainer.threads == 0) {
+            trainer.threads = Math.max(1, Runtime.getRuntime().availableProcessors() / trainer.workers);
+        }
+
+        if (trainer.rank < 0) {
+            trainer.launch(args);
+        } else {
+            trainer.train();
+        }
+    }
+
+    // Starts every worker as a child process with the same options
+    void launch(String[] args) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<Process> processes = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            // JVM options too, so the workers pick the same Matrix backend
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(DistributedTrainer.class.getName());
+            command.addAll(List.of(args));
+            command.add("--rank");
+            command.add(Integer.toString(i));
+            command.add("--threads");
+            command.add(Integer.toString(threads));
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+
+        int failed = 0;
+        for (Process process : processes) {
+            if (process.waitFor() != 0) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            throw new IllegalStateException(failed + " of " + workers + " workers failed");
+        }
+    }
+
+    void train() throws IOException {
+        String path = new File("").getAbsolutePath();
+
+        IdxFile image = new IdxFile(path + "/MNIST/train-images.idx3-ubyte");
+        IdxFile label = new IdxFile(path + "/MNIST/train-labels.idx1-ubyte");
+        IdxDataSource trainingData = new IdxDataSource(image, label, 10, 1 / 255.0);
+
+        int[] layers = { 784, 200, 10 };
+        HyperParameter data = new HyperParameter(
+                Activation.ActivationFunctionType.Sigmoid,
+                InitialWeights.InitialWeightsType.Xavier,
+                Cost.CostFunctionType.CrossEntropy,
+                Layer.initializeWeights(layers),
+                layers,
+                0.05,
+                0.075,
+                0.9,
+                0.1)
+                .setOutputActivation(Activation.ActivationFunctionType.Softmax);
+        Network network = new Network(data, threads);
+
+        List<InetSocketAddress> addresses = RingAllReduce.localhost(workers, port);
+        if (hosts != null) {
+            for (int i = 0; i < workers; i++) {
+                addresses.set(i, new InetSocketAddress(hosts[i], port + i));
+            }
+        }
+
+        try (RingAllReduce ring = new RingAllReduce(rank, addresses, TIMEOUT_MILLIS)) {
+            network.distribute(ring);
+
+            DataLoader loader = new DataLoader(new Shard(trainingData, rank, workers), batchSize, true, rank);
+            Evaluator evaluator = rank == 0 ? new Evaluator(network) : null;
+
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                long start = System.nanoTime();
+                for (Batch batch; (batch = loader.next()) != null;) {
+                    network.learn(batch);
+                }
+                network.endEpoch();
+
+                if (evaluator != null) {
+                    System.out.printf("Epoch %d: %.1f s, training accuracy %.2f%%%n", epoch,
+                            (System.nanoTime() - start) / 1e9, evaluator.evaluate(trainingData).accuracy() * 100);
+                }
+            }
+            loader.close();
+        } finally {
+            network.shutdown();
+            image.close();
+            label.close();
+        }
+    }
+
+    /**
+     * Every size-th sample of a data source, starting at rank. Every shard has
+     * the same number of samples, so every worker learns the same number of
+     * batches; the remainder of the source is left out.
+     */
+    static class Shard implements DataSource {
+        final DataSource source;
+        final int rank;
+        final int size;
+
+        Shard(DataSource source, int rank, int size) {
+            this.source = source;
+            this.rank = rank;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return source.size() / size;
+        }
+
+        @Override
+        public int inputSize() {
+            return source.inputSize();
+        }
+
+        @Override
+        public int outputSize() {
+            return source.outputSize();
+        }
+
+        @Override
+        public void read(int index, double[] inputs, int inputOffset, double[] expectedOutputs,
+                int expectedOffset) {
+            source.read(index * size + rank, inputs, inputOffset, expectedOutputs, expectedOffset);
+        }
+    }
+}
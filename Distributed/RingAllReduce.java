@@ -0,0 +1,290 @@
+package Distributed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import Network.AllReduce;
+
+/**
+ * Ring all-reduce over TCP.
+ *
+ * Every rank connects to the next rank and accepts a connection from the
+ * previous one. The values are split into one segment per rank. In the
+ * reduce-scatter phase every rank sends a segment to the next rank and adds
+ * the segment it receives from the previous rank, so after size - 1 steps
+ * every rank holds the full sum of one segment. In the all-gather phase the
+ * summed segments travel once more around the ring. Every rank sends and
+ * receives 2 * (size - 1) / size of the values, however many ranks there are.
+ *
+ * Segments are streamed in chunks of CHUNK_BYTES over non-blocking channels,
+ * so a rank writes the next chunk while it's still adding the previous one and
+ * a step never waits for a whole segment to arrive.
+ */
+public class RingAllReduce implements AllReduce, AutoCloseable {
+    // Bytes written or read in one go
+    static final int CHUNK_BYTES = 64 * 1024;
+
+    final int rank;
+    final int size;
+    final long timeoutMillis;
+
+    SocketChannel next;
+    SocketChannel previous;
+    Selector selector;
+    SelectionKey nextKey;
+    SelectionKey previousKey;
+
+    final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(CHUNK_BYTES);
+
+    // Kept in write mode between calls, it may hold the start of the previous
+    // rank's next step
+    final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(CHUNK_BYTES);
+
+    /**
+     * Connects to the neighbours in the ring. Blocks until both connections are
+     * open, so every rank has to be started within the timeout.
+     *
+     * @param rank          : index of this process in addresses
+     * @param addresses     : address every rank listens on
+     * @param timeoutMillis : how long to wait for the other ranks, when
+     *                      connecting and during every all-reduce
+     * @throws IOException
+     */
+    public RingAllReduce(int rank, List<InetSocketAddress> addresses, long timeoutMillis) throws IOException {
+        if (rank < 0 || rank >= addresses.size()) {
+            throw new IllegalArgumentException("Rank " + rank + " out of range for " + addresses.size() + " ranks");
+        }
+        this.rank = rank;
+        this.size = addresses.size();
+        this.timeoutMillis = timeoutMillis;
+
+        if (size == 1) {
+            return;
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(addresses.get(rank));
+
+            next = connect(addresses.get((rank + 1) % size));
+            next.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, rank));
+
+            previous = accept(server, (rank + size - 1) % size);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        for (SocketChannel channel : new SocketChannel[] { next, previous }) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+        }
+        selector = Selector.open();
+        nextKey = next.register(selector, 0);
+        previousKey = previous.register(selector, 0);
+    }
+
+    /**
+     * Addresses of size ranks on this host, listening on consecutive ports
+     *
+     * @param size
+     * @param basePort : port of rank 0
+     * @return
+     */
+    public static List<InetSocketAddress> localhost(int size, int basePort) {
+        List<InetSocketAddress> addresses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            addresses.add(new InetSocketAddress("127.0.0.1", basePort + i));
+        }
+        return addresses;
+    }
+
+    // Retries until the next rank is listening
+    SocketChannel connect(InetSocketAddress address) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.connect(address);
+                return channel;
+            } catch (IOException e) {
+                channel.close();
+                if (System.currentTimeMillis() > deadline) {
+                    throw new SocketTimeoutException("Rank " + rank + " couldn't connect to " + address + ": "
+                            + e.getMessage());
+                }
+            }
+
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while connecting to " + address, e);
+            }
+        }
+    }
+
+    // Waits for the previous rank to connect and checks which rank it is
+    SocketChannel accept(ServerSocketChannel server, int expected) throws IOException {
+        server.socket().setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeoutMillis));
+        SocketChannel channel = server.socket().accept().getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) {
+                channel.close();
+                throw new EOFException("Connection closed before the rank was sent");
+            }
+        }
+        int sender = header.getInt(0);
+        if (sender != expected) {
+            channel.close();
+            throw new IOException("Rank " + rank + " expected a connection from rank " + expected + ", got "
+                    + sender);
+        }
+        return channel;
+    }
+
+    @Override
+    public int rank() {
+        return rank;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void allReduce(double[] values, int length) throws IOException {
+        if (size == 1) {
+            return;
+        }
+
+        // Reduce-scatter: after step s the segment received holds the sum over s + 2
+        // ranks
+        for (int step = 0; step < size - 1; step++) {
+            int send = Math.floorMod(rank - step, size);
+            int receive = Math.floorMod(rank - step - 1, size);
+            exchange(values, segmentStart(send, length), segmentStart(send + 1, length),
+                    segmentStart(receive, length), segmentStart(receive + 1, length), true);
+        }
+
+        // All-gather: pass the summed segments on around the ring
+        for (int step = 0; step < size - 1; step++) {
+            int send = Math.floorMod(rank + 1 - step, size);
+            int receive = Math.floorMod(rank - step, size);
+            exchange(values, segmentStart(send, length), segmentStart(send + 1, length),
+                    segmentStart(receive, length), segmentStart(receive + 1, length), false);
+        }
+    }
+
+    int segmentStart(int segment, int length) {
+        return (int) ((long) segment * length / size);
+    }
+
+    /**
+     * Streams values[sendStart, sendEnd) to the next rank while receiving
+     * values[receiveStart, receiveEnd) from the previous rank
+     *
+     * @param values
+     * @param sendStart
+     * @param sendEnd
+     * @param receiveStart
+     * @param receiveEnd
+     * @param add          : whether the received values are added to the ones
+     *                     in values or replace them
+     * @throws IOException
+     */
+    void exchange(double[] values, int sendStart, int sendEnd, int receiveStart, int receiveEnd, boolean add)
+            throws IOException {
+        int sent = sendStart;
+        int received = receiveStart;
+        sendBuffer.clear().flip();
+
+        long lastProgress = System.currentTimeMillis();
+        while (sent < sendEnd || sendBuffer.hasRemaining() || received < receiveEnd) {
+            boolean progress = false;
+
+            if (!sendBuffer.hasRemaining() && sent < sendEnd) {
+                sendBuffer.clear();
+                int count = Math.min(sendEnd - sent, CHUNK_BYTES / Double.BYTES);
+                for (int i = 0; i < count; i++) {
+                    sendBuffer.putDouble(values[sent++]);
+                }
+                sendBuffer.flip();
+            }
+            if (sendBuffer.hasRemaining() && next.write(sendBuffer) > 0) {
+                progress = true;
+            }
+
+            if (received < receiveEnd) {
+                // The previous rank may have sent its last values and closed while
+                // they're still in the buffer, so the end of the stream is only an
+                // error once those are used up
+                boolean closed = previous.read(receiveBuffer) < 0;
+
+                receiveBuffer.flip();
+                int count = Math.min(receiveEnd - received, receiveBuffer.remaining() / Double.BYTES);
+                if (add) {
+                    for (int i = 0; i < count; i++) {
+                        values[received++] += receiveBuffer.getDouble();
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        values[received++] = receiveBuffer.getDouble();
+                    }
+                }
+                receiveBuffer.compact();
+                progress |= count > 0;
+
+                if (closed && received < receiveEnd) {
+                    throw new EOFException("Rank " + Math.floorMod(rank - 1, size) + " closed the connection");
+                }
+            }
+
+            if (progress) {
+                lastProgress = System.currentTimeMillis();
+            } else {
+                long waited = System.currentTimeMillis() - lastProgress;
+                if (waited > timeoutMillis) {
+                    throw new SocketTimeoutException("Rank " + rank + " made no progress for " + waited + " ms");
+                }
+
+                nextKey.interestOps(sendBuffer.hasRemaining() ? SelectionKey.OP_WRITE : 0);
+                previousKey.interestOps(received < receiveEnd ? SelectionKey.OP_READ : 0);
+                selector.select(timeoutMillis - waited + 1);
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (AutoCloseable resource : new AutoCloseable[] { selector, next, previous }) {
+            try {
+                if (resource != null) {
+                    resource.close();
+                }
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
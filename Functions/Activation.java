@@ -1,28 +1,256 @@
 package Functions;
 
+import Kernels.Elementwise;
+
 public class Activation {
     public enum ActivationFunctionType {
-        Sigmoid
+        Sigmoid,
+        ReLU,
+        LeakyReLU,
+        Tanh,
+        Softmax,
+        Linear
     }
 
     public static ActivationFunction getActivationFunction(ActivationFunctionType activationFunction) {
         switch (activationFunction) {
             case Sigmoid:
                 return new Sigmoid();
+            case ReLU:
+                return new ReLU();
+            case LeakyReLU:
+                return new LeakyReLU();
+            case Tanh:
+                return new Tanh();
+            case Softmax:
+                return new Softmax();
+            case Linear:
+                return new Linear();
             default:
                 return new Sigmoid();
         }
     }
 
     static class Sigmoid implements ActivationFunction {
-        public <T extends Number> double activationFunction(T[] inputs, int index) {
-            return 1 / (1 + Math.exp(-inputs[index].doubleValue()));
+        public void apply(double[] z, double[] a, int offset, int n) {
+            Elementwise.sigmoid(z, a, offset, n);
+        }
+
+        public void apply(float[] z, float[] a, int offset, int n) {
+            Elementwise.sigmoid(z, a, offset, n);
+        }
+
+        @Override
+        public void derivative(double[] a, double[] z, double[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = a[i] * (1 - a[i]);
+            }
+        }
+
+        @Override
+        public void derivative(float[] a, float[] z, float[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = a[i] * (1 - a[i]);
+            }
+        }
+    }
+
+    static class ReLU implements ActivationFunction {
+        public void apply(double[] z, double[] a, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                a[i] = Math.max(0, z[i]);
+            }
+        }
+
+        public void apply(float[] z, float[] a, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                a[i] = Math.max(0, z[i]);
+            }
+        }
+
+        @Override
+        public void derivative(double[] a, double[] z, double[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = z[i] > 0 ? 1 : 0;
+            }
+        }
+
+        @Override
+        public void derivative(float[] a, float[] z, float[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = z[i] > 0 ? 1 : 0;
+            }
+        }
+    }
+
+    static class LeakyReLU implements ActivationFunction {
+        // Slope for negative inputs
+        static final double ALPHA = 0.01;
+
+        public void apply(double[] z, double[] a, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                a[i] = z[i] > 0 ? z[i] : ALPHA * z[i];
+            }
+        }
+
+        public void apply(float[] z, float[] a, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                a[i] = z[i] > 0 ? z[i] : (float) ALPHA * z[i];
+            }
+        }
+
+        @Override
+        public void derivative(double[] a, double[] z, double[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = z[i] > 0 ? 1 : ALPHA;
+            }
+        }
+
+        @Override
+        public void derivative(float[] a, float[] z, float[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = z[i] > 0 ? 1 : (float) ALPHA;
+            }
+        }
+    }
+
+    static class Tanh implements ActivationFunction {
+        public void apply(double[] z, double[] a, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                a[i] = Math.tanh(z[i]);
+            }
+        }
+
+        public void apply(float[] z, float[] a, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                a[i] = (float) Math.tanh(z[i]);
+            }
+        }
+
+        @Override
+        public void derivative(double[] a, double[] z, double[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = 1 - a[i] * a[i];
+            }
+        }
+
+        @Override
+        public void derivative(float[] a, float[] z, float[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = 1 - a[i] * a[i];
+            }
+        }
+    }
+
+    static class Softmax implements ActivationFunction {
+        public void apply(double[] z, double[] a, int offset, int n) {
+            // Subtract the largest input so exp can't overflow
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + n; i++) {
+                max = Math.max(max, z[i]);
+            }
+
+            double sum = 0;
+            for (int i = offset; i < offset + n; i++) {
+                double e = Math.exp(z[i] - max);
+                a[i] = e;
+                sum += e;
+            }
+
+            double scale = 1 / sum;
+            for (int i = offset; i < offset + n; i++) {
+                a[i] *= scale;
+            }
+        }
+
+        // Sums the exponentials in double, so only the probabilities are rounded
+        public void apply(float[] z, float[] a, int offset, int n) {
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + n; i++) {
+                max = Math.max(max, z[i]);
+            }
+
+            double sum = 0;
+            for (int i = offset; i < offset + n; i++) {
+                double e = Math.exp(z[i] - max);
+                a[i] = (float) e;
+                sum += e;
+            }
+
+            float scale = (float) (1 / sum);
+            for (int i = offset; i < offset + n; i++) {
+                a[i] *= scale;
+            }
+        }
+
+        // Diagonal of the Jacobian only, backward applies the cross terms
+        @Override
+        public void derivative(double[] a, double[] z, double[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = a[i] * (1 - a[i]);
+            }
+        }
+
+        @Override
+        public void derivative(float[] a, float[] z, float[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = a[i] * (1 - a[i]);
+            }
+        }
+
+        // The Jacobian is diag(a) - a a^T, so its product with the gradients is
+        // a[i] * (gradients[i] - sum of gradients[j] * a[j])
+        @Override
+        public void backward(double[] a, double[] z, double[] gradients, double[] derivatives, double[] out,
+                int offset, int n) {
+            double dot = 0;
+            for (int i = offset; i < offset + n; i++) {
+                dot += gradients[i] * a[i];
+            }
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = a[i] * (gradients[i] - dot);
+            }
+        }
+
+        @Override
+        public void backward(float[] a, float[] z, float[] gradients, float[] derivatives, float[] out,
+                int offset, int n) {
+            float dot = 0;
+            for (int i = offset; i < offset + n; i++) {
+                dot += gradients[i] * a[i];
+            }
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = a[i] * (gradients[i] - dot);
+            }
+        }
+    }
+
+    // Identity, for layers whose outputs are normalized before an activation
+    static class Linear implements ActivationFunction {
+        public void apply(double[] z, double[] a, int offset, int n) {
+            if (z != a) {
+                System.arraycopy(z, offset, a, offset, n);
+            }
+        }
+
+        public void apply(float[] z, float[] a, int offset, int n) {
+            if (z != a) {
+                System.arraycopy(z, offset, a, offset, n);
+            }
+        }
+
+        @Override
+        public void derivative(double[] a, double[] z, double[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = 1;
+            }
         }
 
         @Override
-        public <T extends Number> double activationDerivative(T[] inputs, int index) {
-            double a = activationFunction(inputs, index);
-            return a * (1 - a);
+        public void derivative(float[] a, float[] z, float[] out, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                out[i] = 1;
+            }
         }
     }
 }
@@ -1,6 +1,99 @@
 package Functions;
 public interface ActivationFunction {
-    public <T extends Number> double activationFunction(T[] inputs, int index);
+    /**
+     * Applies the function to n weighted inputs: a[i] = f(z[i]) for i in
+     * [offset, offset + n). z and a may be the same array.
+     * 
+     * @param z      : weighted inputs
+     * @param a      : receives the activations
+     * @param offset : index of the first value
+     * @param n      : number of values, one layer's worth for functions that
+     *               normalize over the layer like Softmax
+     */
+    public void apply(double[] z, double[] a, int offset, int n);
 
-    public <T extends Number> double activationDerivative(T[] inputs, int index);
+    /**
+     * Derivative of the function with respect to its weighted inputs, reusing the
+     * activations computed by apply: out[i] = f'(z[i]) for i in
+     * [offset, offset + n)
+     * 
+     * @param a      : activations computed by apply
+     * @param z      : weighted inputs
+     * @param out    : receives the derivatives
+     * @param offset : index of the first value
+     * @param n      : number of values
+     */
+    public void derivative(double[] a, double[] z, double[] out, int offset, int n);
+
+    /**
+     * Backpropagates gradients with respect to the activations to gradients with
+     * respect to the weighted inputs, the product of the gradients and the
+     * function's Jacobian over [offset, offset + n). Element-wise functions only
+     * have a diagonal Jacobian, out[i] = gradients[i] * f'(z[i]), functions that
+     * normalize over the layer override this with their full Jacobian.
+     * 
+     * @param a           : activations computed by apply
+     * @param z           : weighted inputs
+     * @param gradients   : gradients of the cost with respect to the activations
+     * @param derivatives : scratch space for the derivatives
+     * @param out         : receives the gradients with respect to the weighted
+     *                    inputs, may be the same array as gradients
+     * @param offset      : index of the first value
+     * @param n           : number of values
+     */
+    public default void backward(double[] a, double[] z, double[] gradients, double[] derivatives, double[] out,
+            int offset, int n) {
+        derivative(a, z, derivatives, offset, n);
+        for (int i = offset; i < offset + n; i++) {
+            out[i] = gradients[i] * derivatives[i];
+        }
+    }
+
+    /**
+     * Float version of apply, for layers training in 32-bit precision
+     * 
+     * @param z
+     * @param a
+     * @param offset
+     * @param n
+     */
+    public void apply(float[] z, float[] a, int offset, int n);
+
+    /**
+     * Float version of derivative
+     * 
+     * @param a
+     * @param z
+     * @param out
+     * @param offset
+     * @param n
+     */
+    public void derivative(float[] a, float[] z, float[] out, int offset, int n);
+
+    /**
+     * Float version of backward
+     * 
+     * @param a
+     * @param z
+     * @param gradients
+     * @param derivatives
+     * @param out
+     * @param offset
+     * @param n
+     */
+    public default void backward(float[] a, float[] z, float[] gradients, float[] derivatives, float[] out,
+            int offset, int n) {
+        derivative(a, z, derivatives, offset, n);
+        for (int i = offset; i < offset + n; i++) {
+            out[i] = gradients[i] * derivatives[i];
+        }
+    }
+
+    public default void apply(double[] z, double[] a, int n) {
+        apply(z, a, 0, n);
+    }
+
+    public default void derivative(double[] a, double[] z, double[] out, int n) {
+        derivative(a, z, out, 0, n);
+    }
 }
\ No newline at end of file
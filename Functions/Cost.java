@@ -2,24 +2,94 @@ package Functions;
 
 public class Cost {
     public enum CostFunctionType {
-        MeanSquaredError
+        MeanSquaredError,
+        CrossEntropy
     }
 
     public static CostFunction getCostFunction(CostFunctionType costFunctionType) {
         switch (costFunctionType) {
             case MeanSquaredError:
                 return new MeanSquaredError();
+            case CrossEntropy:
+                return new CrossEntropy();
             default:
                 return null;
         }
     }
 
+    /**
+     * Cross-entropy of softmax(z) computed straight from the weighted inputs with
+     * the log-sum-exp trick, so no probability is ever rounded to 0 before its
+     * log is taken: sum of y[i] * (log(sum of exp(z[j])) - z[i])
+     * 
+     * @param z      : weighted inputs of the softmax layer
+     * @param y      : expected outputs
+     * @param offset : index of the first value
+     * @param n      : number of values
+     * @return cost
+     */
+    public static double softmaxCrossEntropy(double[] z, double[] y, int offset, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = offset; i < offset + n; i++) {
+            max = Math.max(max, z[i]);
+        }
+
+        double sum = 0;
+        for (int i = offset; i < offset + n; i++) {
+            sum += Math.exp(z[i] - max);
+        }
+        double logSumExp = max + Math.log(sum);
+
+        double cost = 0;
+        for (int i = offset; i < offset + n; i++) {
+            cost += y[i] * (logSumExp - z[i]);
+        }
+        return cost;
+    }
+
+    /**
+     * Float version of softmaxCrossEntropy
+     * 
+     * @param z
+     * @param y
+     * @param offset
+     * @param n
+     * @return cost
+     */
+    public static double softmaxCrossEntropy(float[] z, double[] y, int offset, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = offset; i < offset + n; i++) {
+            max = Math.max(max, z[i]);
+        }
+
+        double sum = 0;
+        for (int i = offset; i < offset + n; i++) {
+            sum += Math.exp(z[i] - max);
+        }
+        double logSumExp = max + Math.log(sum);
+
+        double cost = 0;
+        for (int i = offset; i < offset + n; i++) {
+            cost += y[i] * (logSumExp - z[i]);
+        }
+        return cost;
+    }
+
     static class MeanSquaredError implements CostFunction {
 
-        public double cost(double[] predictedOutputs, double[] expectedOutputs) {
+        public double cost(double[] predictedOutputs, double[] expectedOutputs, int offset, int n) {
             // cost is sum (for all x,y pairs) of: 0.5 * (x-y)^2
             double cost = 0;
-            for (int i = 0; i < predictedOutputs.length; i++) {
+            for (int i = offset; i < offset + n; i++) {
+                double error = predictedOutputs[i] - expectedOutputs[i];
+                cost += error * error;
+            }
+            return 0.5 * cost;
+        }
+
+        public double cost(float[] predictedOutputs, double[] expectedOutputs, int offset, int n) {
+            double cost = 0;
+            for (int i = offset; i < offset + n; i++) {
                 double error = predictedOutputs[i] - expectedOutputs[i];
                 cost += error * error;
             }
@@ -30,4 +100,34 @@ public class Cost {
             return predictedOutput - expectedOutput;
         }
     }
+
+    static class CrossEntropy implements CostFunction {
+        // Smallest probability a log is taken of
+        static final double EPSILON = 1e-12;
+
+        public double cost(double[] predictedOutputs, double[] expectedOutputs, int offset, int n) {
+            // cost is sum (for all x,y pairs) of: -y * ln(x)
+            double cost = 0;
+            for (int i = offset; i < offset + n; i++) {
+                if (expectedOutputs[i] != 0) {
+                    cost -= expectedOutputs[i] * Math.log(Math.max(predictedOutputs[i], EPSILON));
+                }
+            }
+            return cost;
+        }
+
+        public double cost(float[] predictedOutputs, double[] expectedOutputs, int offset, int n) {
+            double cost = 0;
+            for (int i = offset; i < offset + n; i++) {
+                if (expectedOutputs[i] != 0) {
+                    cost -= expectedOutputs[i] * Math.log(Math.max(predictedOutputs[i], EPSILON));
+                }
+            }
+            return cost;
+        }
+
+        public double costDerivative(double predictedOutput, double expectedOutput) {
+            return -expectedOutput / Math.max(predictedOutput, EPSILON);
+        }
+    }
 }
@@ -1,7 +1,31 @@
 package Functions;
 
 public interface CostFunction {
-    public double cost(double[] predictedOutputs, double[] expectedOutputs);
+    /**
+     * Cost of n outputs of one sample, the outputs in [offset, offset + n)
+     * 
+     * @param predictedOutputs
+     * @param expectedOutputs
+     * @param offset           : index of the first output
+     * @param n                : number of outputs
+     * @return cost
+     */
+    public double cost(double[] predictedOutputs, double[] expectedOutputs, int offset, int n);
+
+    /**
+     * Float version of cost, for output layers training in 32-bit precision
+     * 
+     * @param predictedOutputs
+     * @param expectedOutputs
+     * @param offset
+     * @param n
+     * @return cost
+     */
+    public double cost(float[] predictedOutputs, double[] expectedOutputs, int offset, int n);
 
     public double costDerivative(double predictedOutput, double expectedOutput);
+
+    public default double cost(double[] predictedOutputs, double[] expectedOutputs) {
+        return cost(predictedOutputs, expectedOutputs, 0, predictedOutputs.length);
+    }
 }
\ No newline at end of file
@@ -1,43 +1,154 @@
 package Functions;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.function.ObjIntConsumer;
+import java.util.random.RandomGenerator;
+import java.util.stream.IntStream;
 
 public class InitialWeights {
     public enum InitialWeightsType {
-        Xavier
+        Xavier,
+        XavierNormal,
+        He,
+        HeUniform
     }
 
+    // Weights drawn by one generator, the unit of parallel work
+    static final int CHUNK_SIZE = 1 << 16;
+
     public static InitialWeightsFunction getInitialWeightsFunction(InitialWeightsType initialWeightsType) {
         switch (initialWeightsType) {
             case Xavier:
                 return new Xavier();
+            case XavierNormal:
+                return new XavierNormal();
+            case He:
+                return new He();
+            case HeUniform:
+                return new HeUniform();
             default:
                 return new Xavier();
         }
     }
 
+    /**
+     * Fills a whole weight array, in parallel for large arrays. Every chunk of
+     * CHUNK_SIZE weights gets its own generator split off from random in order,
+     * so the weights only depend on random's seed and not on the threads.
+     * 
+     * Called from a ForkJoinPool's task, the chunks run in that pool, and in the
+     * common pool otherwise.
+     * 
+     * @param function : distribution of the weights
+     * @param weights  : receives the weights
+     * @param fanIn    : the number of incoming network connections
+     * @param fanOut   : the number of outgoing network connections from that
+     *                 layer
+     * @param random   : split for every chunk
+     */
+    public static void initialize(InitialWeightsFunction function, double[] weights, int fanIn, int fanOut,
+            SplittableRandom random) {
+        int chunks = (weights.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunks <= 1) {
+            function.initialize(weights, 0, weights.length, fanIn, fanOut, random);
+            return;
+        }
+
+        SplittableRandom[] generators = new SplittableRandom[chunks];
+        for (int i = 0; i < chunks; i++) {
+            generators[i] = random.split();
+        }
+        IntStream.range(0, chunks).parallel().forEach(i -> {
+            int start = i * CHUNK_SIZE;
+            function.initialize(weights, start, Math.min(CHUNK_SIZE, weights.length - start), fanIn, fanOut,
+                    generators[i]);
+        });
+    }
+
+    /**
+     * Draws the same weights as initialize does for an array of the given length,
+     * but hands every chunk to sink in its own array instead of filling one
+     * array, for weights that are kept outside the heap
+     * 
+     * @param function : distribution of the weights
+     * @param length   : number of weights
+     * @param fanIn
+     * @param fanOut
+     * @param random   : split for every chunk
+     * @param sink     : receives every chunk and the index of its first weight,
+     *                 on several threads for large arrays
+     */
+    public static void initialize(InitialWeightsFunction function, int length, int fanIn, int fanOut,
+            SplittableRandom random, ObjIntConsumer<double[]> sink) {
+        int chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunks <= 1) {
+            double[] weights = new double[length];
+            function.initialize(weights, 0, length, fanIn, fanOut, random);
+            sink.accept(weights, 0);
+            return;
+        }
+
+        SplittableRandom[] generators = new SplittableRandom[chunks];
+        for (int i = 0; i < chunks; i++) {
+            generators[i] = random.split();
+        }
+        IntStream.range(0, chunks).parallel().forEach(i -> {
+            int start = i * CHUNK_SIZE;
+            double[] weights = new double[Math.min(CHUNK_SIZE, length - start)];
+            function.initialize(weights, 0, weights.length, fanIn, fanOut, generators[i]);
+            sink.accept(weights, start);
+        });
+    }
+
+    // Values drawn uniformly from [-bound, bound)
+    static void uniform(double[] weights, int offset, int n, double bound, RandomGenerator random) {
+        for (int i = offset; i < offset + n; i++) {
+            weights[i] = random.nextDouble(-bound, bound);
+        }
+    }
+
+    // Values drawn from a normal distribution with mean 0
+    static void normal(double[] weights, int offset, int n, double deviation, RandomGenerator random) {
+        for (int i = offset; i < offset + n; i++) {
+            weights[i] = random.nextGaussian() * deviation;
+        }
+    }
+
+    /**
+     * Glorot uniform, for sigmoid and tanh layers: values in [ -√6/√(fanIn +
+     * fanOut), √6/√(fanIn + fanOut) )
+     */
     static class Xavier implements InitialWeightsFunction {
-        /**
-         * @param values :
-         *               [0] -> the number of incoming network connections
-         *               [1] -> the number of outgoing network connections from that
-         *               layer
-         * @return double value in the range
-         *         [ -√6/(value[0] + value[1]), √6/(value[0] + value[1]) )
-         */
-        public double getInitialWeight(double... values) {
-            // Upperbound for distribution
-            double upperBound = Math.sqrt(6) / (Math.sqrt(values[0] + values[1]));
-
-            Random rng = new Random();
-
-            // Get integer to decide sign of value
-            int sign = rng.nextInt(2);
-
-            // Value to be scaled by the upper bound [0, 1)
-            double value = rng.nextDouble();
-
-            return sign == 1 ? upperBound * value : -upperBound * value;
+        public void initialize(double[] weights, int offset, int n, int fanIn, int fanOut, RandomGenerator random) {
+            uniform(weights, offset, n, Math.sqrt(6) / Math.sqrt(fanIn + fanOut), random);
+        }
+    }
+
+    /**
+     * Glorot normal: standard deviation √2/√(fanIn + fanOut)
+     */
+    static class XavierNormal implements InitialWeightsFunction {
+        public void initialize(double[] weights, int offset, int n, int fanIn, int fanOut, RandomGenerator random) {
+            normal(weights, offset, n, Math.sqrt(2) / Math.sqrt(fanIn + fanOut), random);
+        }
+    }
+
+    /**
+     * He (Kaiming) normal, for ReLU layers, which zero half their inputs:
+     * standard deviation √2/√fanIn
+     */
+    static class He implements InitialWeightsFunction {
+        public void initialize(double[] weights, int offset, int n, int fanIn, int fanOut, RandomGenerator random) {
+            normal(weights, offset, n, Math.sqrt(2) / Math.sqrt(fanIn), random);
+        }
+    }
+
+    /**
+     * He (Kaiming) uniform: values in [ -√6/√fanIn, √6/√fanIn )
+     */
+    static class HeUniform implements InitialWeightsFunction {
+        public void initialize(double[] weights, int offset, int n, int fanIn, int fanOut, RandomGenerator random) {
+            uniform(weights, offset, n, Math.sqrt(6) / Math.sqrt(fanIn), random);
         }
     }
 }
@@ -1,4 +1,36 @@
 package Functions;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
 public interface InitialWeightsFunction {
-    public double getInitialWeight(double... values);
+    /**
+     * Fills n weights with random values: weights[i] for i in [offset, offset +
+     * n)
+     * 
+     * @param weights : receives the weights
+     * @param offset  : index of the first weight
+     * @param n       : number of weights
+     * @param fanIn   : the number of incoming network connections
+     * @param fanOut  : the number of outgoing network connections from that
+     *                layer
+     * @param random  : source of the values, which decides if they can be
+     *                reproduced
+     */
+    public void initialize(double[] weights, int offset, int n, int fanIn, int fanOut, RandomGenerator random);
+
+    /**
+     * A single weight from an unseeded generator, prefer initialize
+     * 
+     * @param values :
+     *               [0] -> the number of incoming network connections
+     *               [1] -> the number of outgoing network connections from that
+     *               layer
+     * @return the weight
+     */
+    public default double getInitialWeight(double... values) {
+        double[] weight = new double[1];
+        initialize(weight, 0, 1, (int) values[0], (int) values[1], ThreadLocalRandom.current());
+        return weight[0];
+    }
 }
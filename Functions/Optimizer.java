@@ -0,0 +1,168 @@
+package Functions;
+
+public class Optimizer {
+    public enum OptimizerType {
+        SGD,
+        Momentum,
+        Nesterov,
+        RMSProp,
+        Adam,
+        AdamW
+    }
+
+    /**
+     * @param optimizerType
+     * @param beta2         : decay rate of the mean of squared gradients
+     *                      (RMSProp, Adam, AdamW)
+     * @param epsilon       : added to the root mean square to avoid dividing by
+     *                      zero (RMSProp, Adam, AdamW)
+     * @return
+     */
+    public static OptimizerFunction getOptimizerFunction(OptimizerType optimizerType, double beta2,
+            double epsilon) {
+        switch (optimizerType) {
+            case SGD:
+                return new SGD();
+            case Momentum:
+                return new Momentum();
+            case Nesterov:
+                return new Nesterov();
+            case RMSProp:
+                return new RMSProp(beta2, epsilon);
+            case Adam:
+                return new Adam(beta2, epsilon, false);
+            case AdamW:
+                return new Adam(beta2, epsilon, true);
+            default:
+                return new Momentum();
+        }
+    }
+
+    static class SGD implements OptimizerFunction {
+        public boolean usesSquares() {
+            return false;
+        }
+
+        public void update(double[] params, double[] gradients, double[] velocities, double[] squares,
+                double learnRate, double gradientScale, double weightDecay, double momentum, long step) {
+            double decay = 1 - weightDecay * learnRate;
+            double rate = learnRate * gradientScale;
+
+            for (int i = 0; i < params.length; i++) {
+                params[i] = params[i] * decay - gradients[i] * rate;
+                gradients[i] = 0;
+            }
+        }
+    }
+
+    static class Momentum implements OptimizerFunction {
+        public boolean usesSquares() {
+            return false;
+        }
+
+        public void update(double[] params, double[] gradients, double[] velocities, double[] squares,
+                double learnRate, double gradientScale, double weightDecay, double momentum, long step) {
+            double decay = 1 - weightDecay * learnRate;
+            double rate = learnRate * gradientScale;
+
+            for (int i = 0; i < params.length; i++) {
+                double velocity = velocities[i] * momentum - gradients[i] * rate;
+                velocities[i] = velocity;
+                params[i] = params[i] * decay + velocity;
+                gradients[i] = 0;
+            }
+        }
+    }
+
+    static class Nesterov implements OptimizerFunction {
+        public boolean usesSquares() {
+            return false;
+        }
+
+        public void update(double[] params, double[] gradients, double[] velocities, double[] squares,
+                double learnRate, double gradientScale, double weightDecay, double momentum, long step) {
+            double decay = 1 - weightDecay * learnRate;
+            double rate = learnRate * gradientScale;
+
+            for (int i = 0; i < params.length; i++) {
+                // Step from the look-ahead position params + momentum * velocity
+                double previous = velocities[i];
+                double velocity = previous * momentum - gradients[i] * rate;
+                velocities[i] = velocity;
+                params[i] = params[i] * decay - momentum * previous + (1 + momentum) * velocity;
+                gradients[i] = 0;
+            }
+        }
+    }
+
+    static class RMSProp implements OptimizerFunction {
+        final double beta2, epsilon;
+
+        RMSProp(double beta2, double epsilon) {
+            this.beta2 = beta2;
+            this.epsilon = epsilon;
+        }
+
+        public boolean usesSquares() {
+            return true;
+        }
+
+        public void update(double[] params, double[] gradients, double[] velocities, double[] squares,
+                double learnRate, double gradientScale, double weightDecay, double momentum, long step) {
+            double decay = 1 - weightDecay * learnRate;
+
+            for (int i = 0; i < params.length; i++) {
+                double gradient = gradients[i] * gradientScale;
+                double square = beta2 * squares[i] + (1 - beta2) * gradient * gradient;
+                squares[i] = square;
+
+                double velocity = velocities[i] * momentum - learnRate * gradient / (Math.sqrt(square) + epsilon);
+                velocities[i] = velocity;
+                params[i] = params[i] * decay + velocity;
+                gradients[i] = 0;
+            }
+        }
+    }
+
+    static class Adam implements OptimizerFunction {
+        final double beta2, epsilon;
+        // AdamW decays the weights directly instead of adding the decay to the
+        // gradient
+        final boolean decoupled;
+
+        Adam(double beta2, double epsilon, boolean decoupled) {
+            this.beta2 = beta2;
+            this.epsilon = epsilon;
+            this.decoupled = decoupled;
+        }
+
+        public boolean usesSquares() {
+            return true;
+        }
+
+        public void update(double[] params, double[] gradients, double[] velocities, double[] squares,
+                double learnRate, double gradientScale, double weightDecay, double momentum, long step) {
+            // Bias correction for the moments starting at zero, folded into the step size
+            double correction1 = 1 - Math.pow(momentum, step);
+            double correction2 = 1 - Math.pow(beta2, step);
+            double rate = learnRate * Math.sqrt(correction2) / correction1;
+            double epsilonHat = epsilon * Math.sqrt(correction2);
+
+            double decay = decoupled ? 1 - weightDecay * learnRate : 1;
+            double l2 = decoupled ? 0 : weightDecay;
+
+            for (int i = 0; i < params.length; i++) {
+                double param = params[i];
+                double gradient = gradients[i] * gradientScale + l2 * param;
+
+                double velocity = momentum * velocities[i] + (1 - momentum) * gradient;
+                double square = beta2 * squares[i] + (1 - beta2) * gradient * gradient;
+                velocities[i] = velocity;
+                squares[i] = square;
+
+                params[i] = param * decay - rate * velocity / (Math.sqrt(square) + epsilonHat);
+                gradients[i] = 0;
+            }
+        }
+    }
+}
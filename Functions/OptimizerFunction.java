@@ -0,0 +1,27 @@
+package Functions;
+
+public interface OptimizerFunction {
+    /**
+     * @return whether the optimizer keeps a running mean of squared gradients
+     *         for every parameter
+     */
+    public boolean usesSquares();
+
+    /**
+     * Updates the parameters in place from their summed gradients in a single
+     * pass, and clears the gradients
+     * 
+     * @param params         : parameters to update
+     * @param gradients      : gradients summed over the batch
+     * @param velocities     : running first moment / velocity of every parameter
+     * @param squares        : running second moment of every parameter, null
+     *                       unless usesSquares
+     * @param learnRate
+     * @param gradientScale  : turns the summed gradients into the batch average
+     * @param weightDecay    : L2 regularization strength, 0 for biases
+     * @param momentum       : momentum / first moment decay rate
+     * @param step           : number of updates including this one
+     */
+    public void update(double[] params, double[] gradients, double[] velocities, double[] squares,
+            double learnRate, double gradientScale, double weightDecay, double momentum, long step);
+}
\ No newline at end of file
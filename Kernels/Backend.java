@@ -0,0 +1,48 @@
+package Kernels;
+
+import jdk.incubator.vector.DoubleVector;
+
+/**
+ * Picks the backend of the SIMD kernels once at startup.
+ *
+ * When the JVM runs with --add-modules jdk.incubator.vector, the kernels use
+ * the Vector API in the widest SIMD registers the CPU has (SSE, AVX2 or
+ * AVX-512). Otherwise, or with -Dnetwork.vector=false, they fall back to scalar
+ * loops. Both Network.Matrix and the activation functions ask this class, so
+ * every kernel runs on the same backend.
+ */
+public final class Backend {
+    // Whether the kernels run on the Vector API backend, fixed at startup so the
+    // JIT drops the branch not taken
+    public static final boolean VECTOR = vectorAvailable();
+
+    private Backend() {
+    }
+
+    static boolean vectorAvailable() {
+        if (!Boolean.parseBoolean(System.getProperty("network.vector", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            // Vectors of a single lane would only add overhead
+            return Species.bits() >= 128;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the backend the kernels run on, e.g. "vector 512-bit" or "scalar"
+     */
+    public static String name() {
+        return VECTOR ? "vector " + Species.bits() + "-bit" : "scalar";
+    }
+
+    // Only loaded once the module is known to be there
+    static final class Species {
+        static int bits() {
+            return DoubleVector.SPECIES_PREFERRED.vectorBitSize();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package Kernels;
+
+/**
+ * Element-wise kernels of the activation functions, on the backend Backend
+ * picked.
+ */
+public final class Elementwise {
+    private Elementwise() {
+    }
+
+    /**
+     * Logistic function of n values: a[i] = 1 / (1 + e^-z[i]) for i in
+     * [offset, offset + n). z and a may be the same array.
+     *
+     * @param z
+     * @param a
+     * @param offset : index of the first value
+     * @param n      : number of values
+     */
+    public static void sigmoid(double[] z, double[] a, int offset, int n) {
+        if (Backend.VECTOR) {
+            VectorElementwise.sigmoid(z, a, offset, n);
+            return;
+        }
+        for (int i = offset; i < offset + n; i++) {
+            a[i] = 1 / (1 + Math.exp(-z[i]));
+        }
+    }
+
+    public static void sigmoid(float[] z, float[] a, int offset, int n) {
+        if (Backend.VECTOR) {
+            VectorElementwise.sigmoid(z, a, offset, n);
+            return;
+        }
+        for (int i = offset; i < offset + n; i++) {
+            a[i] = (float) (1 / (1 + Math.exp(-z[i])));
+        }
+    }
+}
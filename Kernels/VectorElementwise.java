@@ -0,0 +1,42 @@
+package Kernels;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The Elementwise kernels written against the Vector API, only loaded when
+ * Backend selects it
+ */
+final class VectorElementwise {
+    static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    private VectorElementwise() {
+    }
+
+    static void sigmoid(double[] z, double[] a, int offset, int n) {
+        DoubleVector one = DoubleVector.broadcast(DOUBLES, 1);
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(n); i < bound; i += DOUBLES.length()) {
+            DoubleVector e = DoubleVector.fromArray(DOUBLES, z, offset + i).neg().lanewise(VectorOperators.EXP);
+            one.div(e.add(one)).intoArray(a, offset + i);
+        }
+        for (; i < n; i++) {
+            a[offset + i] = 1 / (1 + Math.exp(-z[offset + i]));
+        }
+    }
+
+    static void sigmoid(float[] z, float[] a, int offset, int n) {
+        FloatVector one = FloatVector.broadcast(FLOATS, 1);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(n); i < bound; i += FLOATS.length()) {
+            FloatVector e = FloatVector.fromArray(FLOATS, z, offset + i).neg().lanewise(VectorOperators.EXP);
+            one.div(e.add(one)).intoArray(a, offset + i);
+        }
+        for (; i < n; i++) {
+            a[offset + i] = (float) (1 / (1 + Math.exp(-z[offset + i])));
+        }
+    }
+}
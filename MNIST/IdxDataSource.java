@@ -0,0 +1,54 @@
+package MNIST;
+
+import java.util.Arrays;
+
+import Network.DataSource;
+
+/**
+ *
+ * Data source reading samples straight out of a pair of memory-mapped IDX
+ * files: one holding the inputs and one holding the labels, which are turned
+ * into one-hot expected outputs.
+ *
+ */
+public class IdxDataSource implements DataSource {
+    private final IdxFile inputs;
+    private final IdxFile labels;
+    private final int numLabels;
+    private final double scale;
+
+    /**
+     * @param inputs    : input file, e.g. MNIST images
+     * @param labels    : label file with one label per input entry
+     * @param numLabels : number of distinct labels
+     * @param scale     : factor every input value is multiplied by, e.g. 1 / 255.0
+     */
+    public IdxDataSource(IdxFile inputs, IdxFile labels, int numLabels, double scale) {
+        if (inputs.getCount() != labels.getCount()) {
+            throw new IllegalArgumentException(inputs.getCount() + " inputs but " + labels.getCount() + " labels");
+        }
+        this.inputs = inputs;
+        this.labels = labels;
+        this.numLabels = numLabels;
+        this.scale = scale;
+    }
+
+    public int size() {
+        return inputs.getCount();
+    }
+
+    public int inputSize() {
+        return inputs.getEntryLength();
+    }
+
+    public int outputSize() {
+        return numLabels;
+    }
+
+    public void read(int index, double[] inputValues, int inputOffset, double[] expectedOutputs, int expectedOffset) {
+        inputs.get(index, inputValues, inputOffset, scale);
+
+        Arrays.fill(expectedOutputs, expectedOffset, expectedOffset + numLabels, 0);
+        expectedOutputs[expectedOffset + labels.getInt(index)] = 1;
+    }
+}
@@ -0,0 +1,308 @@
+package MNIST;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * Memory-mapped IDX file. The header is parsed for the value type and any
+ * number of dimensions, the first dimension being the number of entries. The
+ * entries are read straight out of the mapping, so any entry can be accessed
+ * in O(1) without a system call or copying the file onto the heap.
+ *
+ */
+public class IdxFile implements Closeable {
+    public enum DataType {
+        UnsignedByte(0x08, 1),
+        Byte(0x09, 1),
+        Short(0x0B, 2),
+        Int(0x0C, 4),
+        Float(0x0D, 4),
+        Double(0x0E, 8);
+
+        public final int code;
+        public final int size;
+
+        DataType(int code, int size) {
+            this.code = code;
+            this.size = size;
+        }
+
+        static DataType fromCode(int code) {
+            for (DataType type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown IDX data type 0x" + Integer.toHexString(code));
+        }
+    }
+
+    private final FileChannel channel;
+    private final DataType type;
+    private final int[] dimensions;
+
+    // Number of values in one entry and their size in bytes
+    private final int entryLength;
+    private final int entryBytes;
+
+    // A single mapping can't exceed 2GB, so larger files are split into regions
+    // holding a whole number of entries
+    private final MappedByteBuffer[] regions;
+    private final int entriesPerRegion;
+
+    /**
+     * Maps the file and reads the header information.
+     *
+     * @param name
+     *             the system-dependent filename
+     * @throws IOException
+     */
+    public IdxFile(String name) throws IOException {
+        channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ);
+
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            readFully(magic, 0);
+            if (magic.get(0) != 0 || magic.get(1) != 0) {
+                throw new IOException("The IDX file " + name + " should start with two zero bytes.");
+            }
+            type = DataType.fromCode(magic.get(2) & 0xFF);
+
+            dimensions = new int[magic.get(3) & 0xFF];
+            if (dimensions.length == 0) {
+                throw new IOException("The IDX file " + name + " has no dimensions.");
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(4 * dimensions.length);
+            readFully(header, 4);
+            int length = 1;
+            for (int i = 0; i < dimensions.length; i++) {
+                dimensions[i] = header.getInt(4 * i);
+                if (i > 0) {
+                    length = Math.multiplyExact(length, dimensions[i]);
+                }
+            }
+            entryLength = length;
+            entryBytes = Math.multiplyExact(entryLength, type.size);
+
+            long headerSize = getHeaderSize();
+            long dataSize = (long) getCount() * entryBytes;
+            if (channel.size() < headerSize + dataSize) {
+                throw new IOException("The IDX file " + name + " is truncated: expected " + (headerSize + dataSize)
+                        + " bytes, found " + channel.size() + ".");
+            }
+
+            entriesPerRegion = Math.max(1, Integer.MAX_VALUE / Math.max(1, entryBytes));
+            int regionCount = Math.max(1, (getCount() + entriesPerRegion - 1) / entriesPerRegion);
+            regions = new MappedByteBuffer[regionCount];
+            for (int r = 0; r < regionCount; r++) {
+                long first = (long) r * entriesPerRegion;
+                long entries = Math.min(entriesPerRegion, getCount() - first);
+                regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, headerSize + first * entryBytes,
+                        entries * entryBytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of IDX header.");
+            }
+        }
+    }
+
+    /**
+     * Copies the raw bytes of an entry.
+     *
+     * @param index  : entry index, starting at 0
+     * @param dst    : destination array
+     * @param offset : index in dst of the first byte
+     */
+    public void get(int index, byte[] dst, int offset) {
+        region(index).get(position(index), dst, offset, entryBytes);
+    }
+
+    /**
+     * Copies the raw bytes of an entry into a new array.
+     *
+     * @param index : entry index, starting at 0
+     * @return the bytes of the entry
+     */
+    public byte[] get(int index) {
+        byte[] entry = new byte[entryBytes];
+        get(index, entry, 0);
+        return entry;
+    }
+
+    /**
+     * Copies the values of an entry, multiplied by scale.
+     *
+     * @param index  : entry index, starting at 0
+     * @param dst    : destination array
+     * @param offset : index in dst of the first value
+     * @param scale  : factor every value is multiplied by, e.g. 1 / 255f to
+     *               normalize pixels
+     */
+    public void get(int index, float[] dst, int offset, float scale) {
+        ByteBuffer region = region(index);
+        int position = position(index);
+
+        switch (type) {
+            case UnsignedByte:
+                for (int i = 0; i < entryLength; i++) {
+                    dst[offset + i] = (region.get(position + i) & 0xFF) * scale;
+                }
+                break;
+            case Byte:
+                for (int i = 0; i < entryLength; i++) {
+                    dst[offset + i] = region.get(position + i) * scale;
+                }
+                break;
+            default:
+                for (int i = 0; i < entryLength; i++) {
+                    dst[offset + i] = (float) (value(region, position, i) * scale);
+                }
+        }
+    }
+
+    /**
+     * Copies the values of an entry, multiplied by scale.
+     *
+     * @param index  : entry index, starting at 0
+     * @param dst    : destination array
+     * @param offset : index in dst of the first value
+     * @param scale  : factor every value is multiplied by
+     */
+    public void get(int index, double[] dst, int offset, double scale) {
+        ByteBuffer region = region(index);
+        int position = position(index);
+
+        if (type == DataType.UnsignedByte) {
+            for (int i = 0; i < entryLength; i++) {
+                dst[offset + i] = (region.get(position + i) & 0xFF) * scale;
+            }
+        } else {
+            for (int i = 0; i < entryLength; i++) {
+                dst[offset + i] = value(region, position, i) * scale;
+            }
+        }
+    }
+
+    /**
+     * Copies count consecutive entries into a batch buffer, entry after entry.
+     *
+     * @param start : index of the first entry
+     * @param count : number of entries
+     * @param dst   : destination array holding at least count * getEntryLength()
+     *              values
+     * @param scale : factor every value is multiplied by
+     */
+    public void getBatch(int start, int count, float[] dst, float scale) {
+        for (int i = 0; i < count; i++) {
+            get(start + i, dst, i * entryLength, scale);
+        }
+    }
+
+    /**
+     * Reads the first value of an entry as an integer, e.g. a label.
+     *
+     * @param index : entry index, starting at 0
+     * @return integer value
+     */
+    public int getInt(int index) {
+        ByteBuffer region = region(index);
+        int position = position(index);
+
+        switch (type) {
+            case UnsignedByte:
+                return region.get(position) & 0xFF;
+            case Byte:
+                return region.get(position);
+            case Short:
+                return region.getShort(position);
+            case Int:
+                return region.getInt(position);
+            default:
+                return (int) value(region, position, 0);
+        }
+    }
+
+    // Value i of the entry starting at position
+    private double value(ByteBuffer region, int position, int i) {
+        switch (type) {
+            case UnsignedByte:
+                return region.get(position + i) & 0xFF;
+            case Byte:
+                return region.get(position + i);
+            case Short:
+                return region.getShort(position + 2 * i);
+            case Int:
+                return region.getInt(position + 4 * i);
+            case Float:
+                return region.getFloat(position + 4 * i);
+            default:
+                return region.getDouble(position + 8 * i);
+        }
+    }
+
+    private ByteBuffer region(int index) {
+        if (index < 0 || index >= getCount()) {
+            throw new IndexOutOfBoundsException(index + " is not in the range 0 to " + (getCount() - 1));
+        }
+        return regions[index / entriesPerRegion];
+    }
+
+    private int position(int index) {
+        return (index % entriesPerRegion) * entryBytes;
+    }
+
+    /**
+     * Number of entries, the size of the first dimension.
+     *
+     * @return int
+     */
+    public int getCount() {
+        return dimensions[0];
+    }
+
+    /**
+     * Size of every dimension, the first one being the number of entries.
+     *
+     * @return int[]
+     */
+    public int[] getDimensions() {
+        return dimensions.clone();
+    }
+
+    /**
+     * Number of values per entry, e.g. rows * columns for an image file.
+     *
+     * @return int
+     */
+    public int getEntryLength() {
+        return entryLength;
+    }
+
+    public DataType getDataType() {
+        return type;
+    }
+
+    public long getHeaderSize() {
+        return 4 + 4L * dimensions.length; // magic number and one integer per dimension
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
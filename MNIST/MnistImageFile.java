@@ -39,10 +39,14 @@ public class MnistImageFile extends MnistDbFile {
      * @throws IOException
      */
     public int[][] readImage() throws IOException {
+        // Read the whole image with one call instead of one call per pixel
+        byte[] bytes = new byte[getEntryLength()];
+        super.readFully(bytes);
+
         int[][] dat = new int[getRows()][getCols()];
-        for (int i = 0; i < getCols(); i++) {
-            for (int j = 0; j < getRows(); j++) {
-                dat[i][j] = super.readUnsignedByte();
+        for (int i = 0; i < getRows(); i++) {
+            for (int j = 0; j < getCols(); j++) {
+                dat[i][j] = bytes[i * getCols() + j] & 0xFF;
             }
         }
         return dat;
@@ -36,9 +36,12 @@ public class MnistLabelFile extends MnistDbFile {
 
     /** Read the specified number of labels from the current position */
     public int[] readLabels(int num) throws IOException {
+        byte[] bytes = new byte[num];
+        super.readFully(bytes);
+
         int[] out = new int[num];
         for (int i = 0; i < num; i++)
-            out[i] = readLabel();
+            out[i] = bytes[i] & 0xFF;
         return out;
     }
 
@@ -0,0 +1,450 @@
+package MNIST;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+import Network.DataSource;
+
+/**
+ *
+ * Preprocessed, memory-mapped copy of a data source: the inputs of every
+ * sample already normalized and stored contiguously, followed by an index of
+ * one label per sample. Reading a sample is a copy out of the mapping, so
+ * nothing has to be parsed or normalized again after the shard is written.
+ *
+ * Inputs are stored as Float32, the normalized values themselves, or as
+ * UnsignedByte, the raw values with the scale that normalizes them, a quarter
+ * of the size for sources like images whose raw values are bytes.
+ *
+ * Layout (little-endian):
+ *
+ * <pre>
+ *   int    magic number "NNSH"
+ *   int    format version
+ *   int    encoding, 0 for Float32 and 1 for UnsignedByte
+ *   int    number of samples
+ *   int    input values per sample
+ *   int    number of labels
+ *   double scale of the raw input values
+ *   long   checksum of the source files, 0 if unknown
+ *   padding to 64 bytes
+ *   inputs of every sample, padded to 64 bytes
+ *   label of every sample as an int
+ * </pre>
+ *
+ */
+public class ShardFile implements DataSource, Closeable {
+    public enum Encoding {
+        Float32(4),
+        UnsignedByte(1);
+
+        public final int size;
+
+        Encoding(int size) {
+            this.size = size;
+        }
+    }
+
+    static final int MAGIC = 0x4E4E5348;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    // Bytes written to the file at once while converting
+    static final int WRITE_BUFFER = 1 << 20;
+
+    private final FileChannel channel;
+    private final Encoding encoding;
+    private final int count;
+    private final int inputSize;
+    private final int numLabels;
+    private final double scale;
+    private final long checksum;
+
+    // A single mapping can't exceed 2GB, so the inputs are split into regions
+    // holding a whole number of samples
+    private final ByteBuffer[] regions;
+    private final FloatBuffer[] floatRegions;
+    private final int samplesPerRegion;
+    private final ByteBuffer labels;
+
+    /**
+     * Maps a shard written by write or cache
+     *
+     * @param path
+     * @throws IOException if the file isn't a shard or is truncated
+     */
+    public ShardFile(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("The shard " + path + " is truncated.");
+                }
+            }
+            header.flip();
+
+            if (header.getInt() != MAGIC) {
+                throw new IOException(path + " isn't a shard.");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("The shard " + path + " has version " + version + ", expected " + VERSION
+                        + ".");
+            }
+            int code = header.getInt();
+            if (code < 0 || code >= Encoding.values().length) {
+                throw new IOException("Unknown encoding " + code + " in the shard " + path + ".");
+            }
+            encoding = Encoding.values()[code];
+            count = header.getInt();
+            inputSize = header.getInt();
+            numLabels = header.getInt();
+            scale = header.getDouble();
+            checksum = header.getLong();
+            if (count < 0 || inputSize < 1 || numLabels < 1) {
+                throw new IOException("Malformed shard " + path + ".");
+            }
+
+            long sampleBytes = (long) inputSize * encoding.size;
+            long labelsStart = align(HEADER_SIZE + count * sampleBytes);
+            long size = labelsStart + 4L * count;
+            if (channel.size() < size) {
+                throw new IOException("The shard " + path + " is truncated: expected " + size + " bytes, found "
+                        + channel.size() + ".");
+            }
+
+            samplesPerRegion = (int) Math.max(1, Integer.MAX_VALUE / sampleBytes);
+            int regionCount = Math.max(1, (count + samplesPerRegion - 1) / samplesPerRegion);
+            regions = new ByteBuffer[regionCount];
+            floatRegions = new FloatBuffer[regionCount];
+            for (int r = 0; r < regionCount; r++) {
+                long first = (long) r * samplesPerRegion;
+                long samples = Math.min(samplesPerRegion, count - first);
+                regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * sampleBytes,
+                        samples * sampleBytes).order(ByteOrder.LITTLE_ENDIAN);
+                floatRegions[r] = regions[r].asFloatBuffer();
+            }
+            labels = channel.map(FileChannel.MapMode.READ_ONLY, labelsStart, 4L * count)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Converts a data source into a shard. The source's expected outputs are
+     * stored as the index of their largest value.
+     *
+     * @param source   : samples with raw input values
+     * @param scale    : factor normalizing the raw values, e.g. 1 / 255.0
+     * @param encoding : Float32 to store the normalized values, UnsignedByte to
+     *                 store the raw values, which must be integers in [0, 255]
+     * @param path     : written through a temporary file, so a crash never
+     *                 leaves a partial shard behind
+     * @throws IOException
+     */
+    public static void write(DataSource source, double scale, Encoding encoding, Path path) throws IOException {
+        write(source, scale, encoding, 0, path);
+    }
+
+    static void write(DataSource source, double scale, Encoding encoding, long checksum, Path path)
+            throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int count = source.size();
+            int inputSize = source.inputSize();
+            int numLabels = source.outputSize();
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER, inputSize * encoding.size))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(encoding.ordinal()).putInt(count).putInt(inputSize)
+                    .putInt(numLabels).putDouble(scale).putLong(checksum);
+            buffer.position(HEADER_SIZE);
+
+            double[] inputs = new double[inputSize];
+            double[] expected = new double[numLabels];
+            int[] labels = new int[count];
+            long written = HEADER_SIZE;
+
+            for (int i = 0; i < count; i++) {
+                source.read(i, inputs, 0, expected, 0);
+                labels[i] = argmax(expected);
+
+                if (buffer.remaining() < inputSize * encoding.size) {
+                    written += flush(out, buffer);
+                }
+                if (encoding == Encoding.Float32) {
+                    for (double value : inputs) {
+                        buffer.putFloat((float) (value * scale));
+                    }
+                } else {
+                    for (double value : inputs) {
+                        if (value != (int) value || value < 0 || value > 255) {
+                            throw new IllegalArgumentException("Sample " + i + " has the value " + value
+                                    + ", which isn't an unsigned byte");
+                        }
+                        buffer.put((byte) value);
+                    }
+                }
+                written += inputSize * encoding.size;
+            }
+
+            // Pad to the label index
+            long padding = align(written) - written;
+            for (int i = 0; i < padding; i++) {
+                if (!buffer.hasRemaining()) {
+                    flush(out, buffer);
+                }
+                buffer.put((byte) 0);
+            }
+
+            for (int label : labels) {
+                if (buffer.remaining() < 4) {
+                    flush(out, buffer);
+                }
+                buffer.putInt(label);
+            }
+            flush(out, buffer);
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps the shard of the source files from the cache directory, converting
+     * the source first if the directory has no shard of the files' current
+     * contents. Shards are named after the files' checksum, the encoding and the
+     * scale, and older shards of the same name are removed.
+     *
+     * Checksumming reads every source file, so name.stamp records the files'
+     * paths, sizes and modification times next to the checksum they had. As
+     * long as those match, the shard is mapped without reading the sources.
+     *
+     * @param directory : cache directory, created if missing
+     * @param name      : prefix of the shard's file name, e.g. "train"
+     * @param source    : samples read out of the files, only read on a miss
+     * @param scale     : factor normalizing the raw values
+     * @param encoding
+     * @param files     : files the source reads, e.g. an IDX image and label
+     *                  file
+     * @return the mapped shard
+     * @throws IOException
+     */
+    public static ShardFile cache(Path directory, String name, DataSource source, double scale, Encoding encoding,
+            Path... files) throws IOException {
+        Files.createDirectories(directory);
+
+        byte[] stamp = stamp(scale, encoding, files);
+        Path stampPath = directory.resolve(name + ".stamp");
+        Long stamped = readStamp(stampPath, stamp);
+        if (stamped != null) {
+            Path path = shardPath(directory, name, stamped);
+            if (Files.exists(path)) {
+                return new ShardFile(path);
+            }
+        }
+
+        CRC32C crc = new CRC32C();
+        for (Path file : files) {
+            update(crc, file);
+        }
+        ByteBuffer parameters = ByteBuffer.allocate(16).putInt(VERSION).putInt(encoding.ordinal()).putDouble(scale);
+        crc.update(parameters.flip());
+        long checksum = crc.getValue();
+
+        Path path = shardPath(directory, name, checksum);
+        if (!Files.exists(path)) {
+            write(source, scale, encoding, checksum, path);
+
+            // Only this data set's shards, not those of names sharing the prefix
+            Pattern shard = Pattern.compile(Pattern.quote(name) + "-[0-9a-f]{8}\\.shard");
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory,
+                    file -> shard.matcher(file.getFileName().toString()).matches())) {
+                for (Path old : stale) {
+                    if (!old.equals(path)) {
+                        Files.deleteIfExists(old);
+                    }
+                }
+            }
+        }
+        writeStamp(stampPath, stamp, checksum);
+        return new ShardFile(path);
+    }
+
+    static Path shardPath(Path directory, String name, long checksum) {
+        return directory.resolve(String.format("%s-%08x.shard", name, checksum));
+    }
+
+    // The files' paths, sizes and modification times and the shard parameters,
+    // which change whenever the checksum would, short of a file rewritten within
+    // the file system's timestamp resolution
+    static byte[] stamp(double scale, Encoding encoding, Path... files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeInt(encoding.ordinal());
+        out.writeDouble(scale);
+        for (Path file : files) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            out.writeUTF(file.toAbsolutePath().normalize().toString());
+            out.writeLong(attributes.size());
+            out.writeLong(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Checksum recorded with the stamp, null if the stamp file is missing,
+    // unreadable or was recorded for different files
+    static Long readStamp(Path path, byte[] stamp) {
+        try {
+            ByteBuffer recorded = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (recorded.remaining() != stamp.length + 8
+                    || !recorded.slice(0, stamp.length).equals(ByteBuffer.wrap(stamp))) {
+                return null;
+            }
+            return recorded.getLong(stamp.length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Written through a temporary file like the shards
+    static void writeStamp(Path path, byte[] stamp, long checksum) throws IOException {
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, ByteBuffer.allocate(stamp.length + 8).put(stamp).putLong(checksum).array());
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // Adds a file's contents to the checksum, mapping it a window at a time
+    static void update(CRC32C crc, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(Integer.MAX_VALUE, size - position)));
+            }
+        }
+    }
+
+    static long flush(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        long bytes = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return bytes;
+    }
+
+    static long align(long bytes) {
+        return (bytes + HEADER_SIZE - 1) / HEADER_SIZE * HEADER_SIZE;
+    }
+
+    static int argmax(double[] values) {
+        int max = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[max]) {
+                max = i;
+            }
+        }
+        return max;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int inputSize() {
+        return inputSize;
+    }
+
+    public int outputSize() {
+        return numLabels;
+    }
+
+    public void read(int index, double[] inputValues, int inputOffset, double[] expectedOutputs, int expectedOffset) {
+        int region = region(index);
+        int sample = index % samplesPerRegion;
+
+        if (encoding == Encoding.Float32) {
+            FloatBuffer values = floatRegions[region];
+            int position = sample * inputSize;
+            for (int i = 0; i < inputSize; i++) {
+                inputValues[inputOffset + i] = values.get(position + i);
+            }
+        } else {
+            ByteBuffer values = regions[region];
+            int position = sample * inputSize;
+            for (int i = 0; i < inputSize; i++) {
+                inputValues[inputOffset + i] = (values.get(position + i) & 0xFF) * scale;
+            }
+        }
+
+        Arrays.fill(expectedOutputs, expectedOffset, expectedOffset + numLabels, 0);
+        expectedOutputs[expectedOffset + getLabel(index)] = 1;
+    }
+
+    /**
+     * @param index : sample index, starting at 0
+     * @return label of the sample
+     */
+    public int getLabel(int index) {
+        region(index);
+        return labels.getInt(4 * index);
+    }
+
+    private int region(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(index + " is not in the range 0 to " + (count - 1));
+        }
+        return index / samplesPerRegion;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return checksum of the files the shard was converted from, 0 if unknown
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
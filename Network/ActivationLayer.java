@@ -0,0 +1,109 @@
+package Network;
+
+import Functions.Activation;
+import Functions.ActivationFunction;
+
+/**
+ * Applies an activation function on its own, for networks that normalize the
+ * weighted inputs of a fully-connected layer before activating them
+ */
+public class ActivationLayer implements NetworkLayer {
+    final int size;
+    final Activation.ActivationFunctionType activationType;
+    final ActivationFunction activation;
+    Precision precision = Precision.Double;
+
+    /**
+     * @param size     : number of values per sample
+     * @param activate
+     */
+    public ActivationLayer(int size, Activation.ActivationFunctionType activate) {
+        this.size = size;
+        activationType = activate;
+        activation = Activation.getActivationFunction(activate);
+    }
+
+    @Override
+    public int inputSize() {
+        return size;
+    }
+
+    @Override
+    public int outputSize() {
+        return size;
+    }
+
+    @Override
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+    }
+
+    @Override
+    public LayerData createData(int batchSize, boolean propagate, BlockBuffers buffers) {
+        return new LayerData(size, batchSize, precision, buffers);
+    }
+
+    @Override
+    public LayerData createInferenceData(int batchSize) {
+        return LayerData.inference(size, batchSize);
+    }
+
+    @Override
+    public double[] outputs(double[] inputs) {
+        double[] outputs = new double[size];
+        activation.apply(inputs, outputs, 0, size);
+        return outputs;
+    }
+
+    @Override
+    public double[] forward(double[] inputs, LayerData data, int count, boolean training) {
+        data.inputs = inputs;
+        for (int sample = 0; sample < count; sample++) {
+            activation.apply(inputs, data.activations, sample * size, size);
+        }
+        return data.activations;
+    }
+
+    @Override
+    public double[] backward(double[] outputGradients, LayerData data, int count) {
+        double[] nodeValues = data.nodeValues;
+        double[] derivatives = data.derivatives;
+        for (int sample = 0; sample < count; sample++) {
+            activation.backward(data.activations, data.inputs, outputGradients, derivatives, nodeValues,
+                    sample * size, size);
+        }
+        return nodeValues;
+    }
+
+    @Override
+    public float[] forward(float[] inputs, LayerData data, int count, boolean training) {
+        data.inputsSingle = inputs;
+        for (int sample = 0; sample < count; sample++) {
+            activation.apply(inputs, data.activationsSingle, sample * size, size);
+        }
+        return data.activationsSingle;
+    }
+
+    @Override
+    public float[] backward(float[] outputGradients, LayerData data, int count) {
+        float[] nodeValues = data.nodeValuesSingle;
+        float[] derivatives = data.derivativesSingle;
+        for (int sample = 0; sample < count; sample++) {
+            activation.backward(data.activationsSingle, data.inputsSingle, outputGradients, derivatives,
+                    nodeValues, sample * size, size);
+        }
+        return nodeValues;
+    }
+
+    /**
+     * Moves the activation into a layer that has none
+     */
+    @Override
+    public Layer fold(Layer previous) {
+        if (previous.activationType != Activation.ActivationFunctionType.Linear) {
+            throw new UnsupportedOperationException("Can't apply " + activationType + " after "
+                    + previous.activationType);
+        }
+        return new Layer(previous.inNodes, previous.outNodes, previous.weights, previous.biases, activationType);
+    }
+}
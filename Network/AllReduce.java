@@ -0,0 +1,29 @@
+package Network;
+
+import java.io.IOException;
+
+/**
+ * Collective sum over the replicas of a network in data-parallel training.
+ * Every replica calls allReduce with the same length in the same order.
+ */
+public interface AllReduce {
+    /**
+     * @return index of this replica
+     */
+    public int rank();
+
+    /**
+     * @return number of replicas
+     */
+    public int size();
+
+    /**
+     * Replaces the first length values with their sum over every replica. Every
+     * replica ends up with the same values, bit for bit.
+     *
+     * @param values
+     * @param length
+     * @throws IOException
+     */
+    public void allReduce(double[] values, int length) throws IOException;
+}
@@ -0,0 +1,46 @@
+package Network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Native memory with an explicit lifetime, which off-heap layers keep their
+ * weights, optimizer state and gradient accumulators in.
+ *
+ * Every array is a segment of one shared resource scope, so the workers can
+ * use them from any thread, and close frees all of them at once instead of
+ * leaving them to the garbage collector. An array used after close throws
+ * IllegalStateException rather than reading freed memory. Arrays start on a
+ * 64-byte boundary, the width of a cache line and of the widest vector
+ * registers, and are zeroed when they're allocated.
+ */
+final class Arena implements AutoCloseable {
+    static final long ALIGNMENT = 64;
+
+    final ResourceScope scope = ResourceScope.newSharedScope();
+
+    // Bytes of the arrays allocated, the layers allocate theirs in parallel
+    final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param length : number of doubles
+     * @return zeroed array that lives until the arena is closed
+     */
+    OffHeapArray allocate(int length) {
+        long size = length * 8L;
+        bytes.addAndGet(size);
+        return new OffHeapArray(MemorySegment.allocateNative(size, ALIGNMENT, scope));
+    }
+
+    /**
+     * Frees every array. Nothing may be using them on another thread.
+     */
+    @Override
+    public synchronized void close() {
+        if (scope.isAlive()) {
+            scope.close();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package Network;
+
+/**
+ * Mini-batch of samples packed into primitive blocks
+ */
+public class Batch {
+    // [size x input size] block of inputs
+    public double[] inputs;
+    // [size x output size] block of expected outputs
+    public double[] expectedOutputs;
+    // Number of samples in the batch
+    public int size;
+
+    public Batch(int capacity, int inputSize, int outputSize) {
+        inputs = new double[capacity * inputSize];
+        expectedOutputs = new double[capacity * outputSize];
+    }
+}
\ No newline at end of file
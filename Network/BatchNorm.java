@@ -0,0 +1,434 @@
+package Network;
+
+import java.util.Arrays;
+
+import Functions.Activation;
+import Functions.OptimizerFunction;
+
+/**
+ * Batch normalization: y = gamma * (x - mean) / sqrt(variance + EPSILON) +
+ * beta, with a learned scale gamma and shift beta for every value.
+ *
+ * While learning, the mean and variance are those of a ghost batch: the batch
+ * is normalized GHOST_BATCH_SIZE consecutive samples at a time, so the
+ * statistics don't depend on how many workers split it. Running averages of
+ * them are kept for inference. At inference the normalization is an affine
+ * function of its inputs, so fold merges it into the weights of the
+ * fully-connected layer before it and it costs nothing.
+ */
+public class BatchNorm implements NetworkLayer {
+    static final double EPSILON = 1e-5;
+
+    // Weight of the old value in the running averages
+    static final double STATISTICS_MOMENTUM = 0.9;
+
+    // Samples normalized together while learning. Network.BLOCK_SIZE is a
+    // multiple of it, and the workers split a batch on ghost batch boundaries.
+    static final int GHOST_BATCH_SIZE = 32;
+
+    final int size;
+
+    double[] gamma, gammaGradient, gammaVelocities;
+    double[] beta, betaGradient, betaVelocities;
+
+    // Running means of the squared gradients, only kept for optimizers that use
+    // them
+    double[] gammaSquares, betaSquares;
+
+    // Averages used at inference
+    double[] runningMean, runningVariance;
+
+    // Ghost batch statistics summed since the last step, and the number of ghost
+    // batches summed in an array so replicas can sum it along with them
+    double[] meanSum, varianceSum;
+    final double[] ghostBatches = new double[1];
+
+    // Number of gradient descent steps taken
+    long step;
+
+    OptimizerFunction optimizer;
+    Precision precision = Precision.Double;
+
+    /**
+     * Layer data with the statistics of a worker's last block
+     */
+    static class Data extends LayerData {
+        // Of every ghost batch of the last block, for every value
+        final double[] mean;
+        final double[] inverseDeviation;
+
+        // Sums over a ghost batch's samples in backward
+        final double[] gradientSum;
+        final double[] normalizedGradientSum;
+
+        // Ghost batch statistics summed since they were last accumulated
+        final double[] meanSum;
+        final double[] varianceSum;
+        long ghostBatches;
+
+        Data(int size, int batchSize, boolean propagate, BlockBuffers buffers) {
+            super(size, batchSize, buffers);
+            weightedInputs = buffers.doubles(batchSize * size);
+            weightGradient = new double[size];
+            biasesGradient = new double[size];
+            if (propagate) {
+                inputGradients = buffers.doubles(batchSize * size);
+            }
+
+            int groups = (batchSize + GHOST_BATCH_SIZE - 1) / GHOST_BATCH_SIZE;
+            mean = new double[groups * size];
+            inverseDeviation = new double[groups * size];
+            gradientSum = new double[size];
+            normalizedGradientSum = new double[size];
+            meanSum = new double[size];
+            varianceSum = new double[size];
+        }
+
+        // Buffers of blocks fed forward for inference, which only needs the
+        // running statistics folded with gamma and beta
+        Data(int size, int batchSize) {
+            activations = new double[batchSize * size];
+            mean = new double[size];
+            inverseDeviation = new double[size];
+            gradientSum = null;
+            normalizedGradientSum = null;
+            meanSum = null;
+            varianceSum = null;
+        }
+    }
+
+    /**
+     * @param size      : number of values per sample
+     * @param optimizer : optimizer of gamma and beta
+     */
+    public BatchNorm(int size, OptimizerFunction optimizer) {
+        this.size = size;
+        this.optimizer = optimizer;
+
+        gamma = new double[size];
+        Arrays.fill(gamma, 1);
+        beta = new double[size];
+        gammaGradient = new double[size];
+        betaGradient = new double[size];
+        gammaVelocities = new double[size];
+        betaVelocities = new double[size];
+        if (optimizer.usesSquares()) {
+            gammaSquares = new double[size];
+            betaSquares = new double[size];
+        }
+
+        runningMean = new double[size];
+        runningVariance = new double[size];
+        Arrays.fill(runningVariance, 1);
+        meanSum = new double[size];
+        varianceSum = new double[size];
+    }
+
+    @Override
+    public int inputSize() {
+        return size;
+    }
+
+    @Override
+    public int outputSize() {
+        return size;
+    }
+
+    /**
+     * Rounds the parameters and running averages to float in Single precision.
+     * The passes run on doubles in every precision.
+     */
+    @Override
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+        precision.round(gamma, beta, runningMean, runningVariance);
+    }
+
+    @Override
+    public LayerData createData(int batchSize, boolean propagate, BlockBuffers buffers) {
+        Data data = new Data(size, batchSize, propagate, buffers);
+        if (precision != Precision.Double) {
+            data.convert(this, batchSize, propagate, buffers);
+        }
+        return data;
+    }
+
+    @Override
+    public LayerData createInferenceData(int batchSize) {
+        return new Data(size, batchSize);
+    }
+
+    @Override
+    public double[] outputs(double[] inputs) {
+        double[] outputs = new double[size];
+        for (int i = 0; i < size; i++) {
+            double scale = gamma[i] / Math.sqrt(runningVariance[i] + EPSILON);
+            outputs[i] = (inputs[i] - runningMean[i]) * scale + beta[i];
+        }
+        return outputs;
+    }
+
+    @Override
+    public double[] forward(double[] inputs, LayerData layerData, int count, boolean training) {
+        Data data = (Data) layerData;
+        double[] mean = data.mean;
+        double[] inverseDeviation = data.inverseDeviation;
+        double[] outputs = data.activations;
+
+        if (!training) {
+            // Normalize with the running averages, scale and shift folded together
+            for (int i = 0; i < size; i++) {
+                inverseDeviation[i] = gamma[i] / Math.sqrt(runningVariance[i] + EPSILON);
+                mean[i] = beta[i] - runningMean[i] * inverseDeviation[i];
+            }
+            for (int sample = 0; sample < count; sample++) {
+                int row = sample * size;
+                for (int i = 0; i < size; i++) {
+                    outputs[row + i] = inputs[row + i] * inverseDeviation[i] + mean[i];
+                }
+            }
+            return outputs;
+        }
+
+        return normalize(inputs, data, count, true);
+    }
+
+    /**
+     * Normalizes the block again without collecting its statistics a second time
+     */
+    @Override
+    public double[] recompute(double[] inputs, LayerData layerData, int count) {
+        return normalize(inputs, (Data) layerData, count, false);
+    }
+
+    // Normalizes a block a ghost batch at a time, adding the statistics of every
+    // ghost batch to the sums when collecting
+    double[] normalize(double[] inputs, Data data, int count, boolean collect) {
+        data.inputs = inputs;
+        for (int first = 0; first < count; first += GHOST_BATCH_SIZE) {
+            normalize(inputs, data, first, Math.min(GHOST_BATCH_SIZE, count - first), collect);
+        }
+        return data.activations;
+    }
+
+    // Normalizes count samples from first with their own mean and variance
+    void normalize(double[] inputs, Data data, int first, int count, boolean collect) {
+        double[] mean = data.mean;
+        double[] inverseDeviation = data.inverseDeviation;
+        double[] outputs = data.activations;
+        double[] normalized = data.weightedInputs;
+        int stats = first / GHOST_BATCH_SIZE * size;
+
+        Arrays.fill(mean, stats, stats + size, 0);
+        for (int sample = first; sample < first + count; sample++) {
+            Matrix.axpy(1, inputs, sample * size, mean, stats, size);
+        }
+        for (int i = stats; i < stats + size; i++) {
+            mean[i] /= count;
+        }
+
+        // Variance of the ghost batch, kept in inverseDeviation until it's inverted
+        double[] variance = inverseDeviation;
+        Arrays.fill(variance, stats, stats + size, 0);
+        for (int sample = first; sample < first + count; sample++) {
+            int row = sample * size;
+            for (int i = 0; i < size; i++) {
+                double deviation = inputs[row + i] - mean[stats + i];
+                variance[stats + i] += deviation * deviation;
+            }
+        }
+
+        // The running variance estimates the population's, so it's unbiased
+        double correction = count > 1 ? count / (double) (count - 1) : 1;
+        for (int i = 0; i < size; i++) {
+            variance[stats + i] /= count;
+            if (collect) {
+                data.meanSum[i] += mean[stats + i];
+                data.varianceSum[i] += variance[stats + i] * correction;
+            }
+            inverseDeviation[stats + i] = 1 / Math.sqrt(variance[stats + i] + EPSILON);
+        }
+        if (collect) {
+            data.ghostBatches++;
+        }
+
+        for (int sample = first; sample < first + count; sample++) {
+            int row = sample * size;
+            for (int i = 0; i < size; i++) {
+                double x = (inputs[row + i] - mean[stats + i]) * inverseDeviation[stats + i];
+                normalized[row + i] = x;
+                outputs[row + i] = gamma[i] * x + beta[i];
+            }
+        }
+    }
+
+    /**
+     * The gradient with respect to the inputs accounts for every input changing
+     * its ghost batch's mean and variance: dx = gamma / sigma * (dy - mean(dy) -
+     * x^ * mean(dy * x^))
+     */
+    @Override
+    public double[] backward(double[] outputGradients, LayerData layerData, int count) {
+        Data data = (Data) layerData;
+        for (int first = 0; first < count; first += GHOST_BATCH_SIZE) {
+            backward(outputGradients, data, first, Math.min(GHOST_BATCH_SIZE, count - first));
+        }
+        return data.inputGradients;
+    }
+
+    // Backpropagates count samples from first through their ghost batch's
+    // normalization
+    void backward(double[] outputGradients, Data data, int first, int count) {
+        double[] normalized = data.weightedInputs;
+        double[] gradientSum = data.gradientSum;
+        double[] normalizedGradientSum = data.normalizedGradientSum;
+        int stats = first / GHOST_BATCH_SIZE * size;
+
+        Arrays.fill(gradientSum, 0);
+        Arrays.fill(normalizedGradientSum, 0);
+        for (int sample = first; sample < first + count; sample++) {
+            int row = sample * size;
+            for (int i = 0; i < size; i++) {
+                double gradient = outputGradients[row + i];
+                gradientSum[i] += gradient;
+                normalizedGradientSum[i] += gradient * normalized[row + i];
+            }
+        }
+
+        // Partial derivatives of the cost with respect to gamma and beta
+        Matrix.axpy(1, normalizedGradientSum, 0, data.weightGradient, 0, size);
+        Matrix.axpy(1, gradientSum, 0, data.biasesGradient, 0, size);
+
+        double[] inputGradients = data.inputGradients;
+        if (inputGradients == null) {
+            return;
+        }
+
+        for (int sample = first; sample < first + count; sample++) {
+            int row = sample * size;
+            for (int i = 0; i < size; i++) {
+                inputGradients[row + i] = gamma[i] * data.inverseDeviation[stats + i]
+                        * (outputGradients[row + i] - (gradientSum[i]
+                                + normalized[row + i] * normalizedGradientSum[i]) / count);
+            }
+        }
+    }
+
+    @Override
+    public void accumulateGradients(LayerData layerData) {
+        Data data = (Data) layerData;
+
+        Matrix.axpy(1, data.weightGradient, 0, gammaGradient, 0, size);
+        Matrix.axpy(1, data.biasesGradient, 0, betaGradient, 0, size);
+        Matrix.axpy(1, data.meanSum, 0, meanSum, 0, size);
+        Matrix.axpy(1, data.varianceSum, 0, varianceSum, 0, size);
+        ghostBatches[0] += data.ghostBatches;
+
+        clear(data);
+    }
+
+    @Override
+    public void gradient(double learnRate, double regularization, double momentum, double gradientScale) {
+        step++;
+
+        // The scale and shift aren't regularized
+        optimizer.update(gamma, gammaGradient, gammaVelocities, gammaSquares,
+                learnRate, gradientScale, 0, momentum, step);
+        optimizer.update(beta, betaGradient, betaVelocities, betaSquares,
+                learnRate, gradientScale, 0, momentum, step);
+
+        updateStatistics(meanSum, varianceSum, (long) ghostBatches[0]);
+        Arrays.fill(meanSum, 0);
+        Arrays.fill(varianceSum, 0);
+        ghostBatches[0] = 0;
+        precision.round(gamma, beta, runningMean, runningVariance);
+    }
+
+    /**
+     * Applies a worker's gradients and statistics without locking
+     */
+    @Override
+    public void applyGradients(LayerData layerData, double learnRate, double regularization, double momentum,
+            double gradientScale, long step) {
+        Data data = (Data) layerData;
+        this.step = step;
+
+        optimizer.update(gamma, data.weightGradient, gammaVelocities, gammaSquares,
+                learnRate, gradientScale, 0, momentum, step);
+        optimizer.update(beta, data.biasesGradient, betaVelocities, betaSquares,
+                learnRate, gradientScale, 0, momentum, step);
+
+        updateStatistics(data.meanSum, data.varianceSum, data.ghostBatches);
+        clear(data);
+        precision.round(gamma, beta, runningMean, runningVariance);
+    }
+
+    // Moves the running averages towards the mean of the summed statistics
+    void updateStatistics(double[] meanSum, double[] varianceSum, long ghostBatches) {
+        if (ghostBatches == 0) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            runningMean[i] = STATISTICS_MOMENTUM * runningMean[i]
+                    + (1 - STATISTICS_MOMENTUM) * meanSum[i] / ghostBatches;
+            runningVariance[i] = STATISTICS_MOMENTUM * runningVariance[i]
+                    + (1 - STATISTICS_MOMENTUM) * varianceSum[i] / ghostBatches;
+        }
+    }
+
+    static void clear(Data data) {
+        Arrays.fill(data.weightGradient, 0);
+        Arrays.fill(data.biasesGradient, 0);
+        Arrays.fill(data.meanSum, 0);
+        Arrays.fill(data.varianceSum, 0);
+        data.ghostBatches = 0;
+    }
+
+    @Override
+    public double[][] parameters() {
+        return new double[][] { gamma, beta };
+    }
+
+    @Override
+    public double[][] gradients() {
+        return new double[][] { gammaGradient, betaGradient };
+    }
+
+    /**
+     * Replicas sum their ghost batch statistics, so they all move the running
+     * averages by the mean over every replica's ghost batches
+     */
+    @Override
+    public double[][] statistics() {
+        return new double[][] { meanSum, varianceSum, ghostBatches };
+    }
+
+    @Override
+    public double[][] state() {
+        return new double[][] { runningMean, runningVariance };
+    }
+
+    /**
+     * Scales every row of the layer's weights and shifts its biases, which
+     * needs the layer to have no activation of its own
+     */
+    @Override
+    public Layer fold(Layer previous) {
+        if (previous.activationType != Activation.ActivationFunctionType.Linear) {
+            throw new UnsupportedOperationException("Can't fold batch normalization after "
+                    + previous.activationType);
+        }
+
+        int inNodes = previous.inNodes;
+        double[] weights = new double[previous.weights.length];
+        double[] biases = new double[size];
+        for (int out = 0; out < size; out++) {
+            double scale = gamma[out] / Math.sqrt(runningVariance[out] + EPSILON);
+            for (int in = 0; in < inNodes; in++) {
+                weights[out * inNodes + in] = previous.weights[out * inNodes + in] * scale;
+            }
+            biases[out] = (previous.biases[out] - runningMean[out]) * scale + beta[out];
+        }
+        return new Layer(inNodes, size, weights, biases, previous.activationType);
+    }
+}
@@ -0,0 +1,144 @@
+package Network;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Allocates the buffers layer data keeps for a block of samples, the arrays
+ * that grow with the block size.
+ *
+ * By default every request gets a new array. With gradient checkpointing the
+ * layers at the same position of different segments are never live at once,
+ * so they take their buffers from the same slot: the n-th double buffer any
+ * layer of a slot asks for is one shared array, as long as the longest
+ * request. The longest requests are found by a sizing pass that creates the
+ * layer data once against buffers that only record the lengths.
+ *
+ * Layers must ask for the same buffers in the same order every time their
+ * data is created with the same arguments.
+ */
+public final class BlockBuffers {
+    static final double[] NO_DOUBLES = new double[0];
+    static final float[] NO_FLOATS = new float[0];
+    static final int[] NO_INTS = new int[0];
+
+    // Longest request of every slot's buffers, null when every request gets its
+    // own array
+    final Map<String, Integer> lengths;
+    final boolean sizing;
+
+    // Shared arrays handed out so far
+    final Map<String, Object> arrays = new HashMap<>();
+
+    int slot;
+    int doubles, floats, ints;
+
+    // Bytes of the arrays allocated
+    long bytes;
+
+    /**
+     * Buffers that give every request its own array
+     */
+    BlockBuffers() {
+        this(null, false);
+    }
+
+    private BlockBuffers(Map<String, Integer> lengths, boolean sizing) {
+        this.lengths = lengths;
+        this.sizing = sizing;
+    }
+
+    /**
+     * @return buffers that record the lengths requested of every slot and hand
+     *         out empty arrays
+     */
+    static BlockBuffers sizing() {
+        return new BlockBuffers(new HashMap<>(), true);
+    }
+
+    /**
+     * @param sizes : buffers a sizing pass ran against
+     * @return buffers sharing one array per slot and request
+     */
+    static BlockBuffers shared(BlockBuffers sizes) {
+        return new BlockBuffers(sizes.lengths, false);
+    }
+
+    /**
+     * Takes the following requests from the given slot, starting at its first
+     * buffer of every type
+     *
+     * @param slot
+     * @return this
+     */
+    BlockBuffers select(int slot) {
+        this.slot = slot;
+        doubles = 0;
+        floats = 0;
+        ints = 0;
+        return this;
+    }
+
+    /**
+     * @param length : values needed
+     * @return a buffer of at least length values, zeroed unless it's shared
+     */
+    public double[] doubles(int length) {
+        String key = key('d', doubles++);
+        if (sizing) {
+            record(key, length);
+            return NO_DOUBLES;
+        }
+        if (lengths == null) {
+            bytes += 8L * length;
+            return new double[length];
+        }
+        return (double[]) arrays.computeIfAbsent(key, k -> {
+            int size = Math.max(length, lengths.getOrDefault(k, 0));
+            bytes += 8L * size;
+            return new double[size];
+        });
+    }
+
+    public float[] floats(int length) {
+        String key = key('f', floats++);
+        if (sizing) {
+            record(key, length);
+            return NO_FLOATS;
+        }
+        if (lengths == null) {
+            bytes += 4L * length;
+            return new float[length];
+        }
+        return (float[]) arrays.computeIfAbsent(key, k -> {
+            int size = Math.max(length, lengths.getOrDefault(k, 0));
+            bytes += 4L * size;
+            return new float[size];
+        });
+    }
+
+    public int[] ints(int length) {
+        String key = key('i', ints++);
+        if (sizing) {
+            record(key, length);
+            return NO_INTS;
+        }
+        if (lengths == null) {
+            bytes += 4L * length;
+            return new int[length];
+        }
+        return (int[]) arrays.computeIfAbsent(key, k -> {
+            int size = Math.max(length, lengths.getOrDefault(k, 0));
+            bytes += 4L * size;
+            return new int[size];
+        });
+    }
+
+    String key(char type, int index) {
+        return type + "" + slot + "/" + index;
+    }
+
+    void record(String key, int length) {
+        lengths.merge(key, length, Math::max);
+    }
+}
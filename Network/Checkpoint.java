@@ -0,0 +1,685 @@
+package Network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+import Functions.Optimizer;
+
+/**
+ * Binary checkpoint format for a trained network.
+ *
+ * Layout (big-endian):
+ *
+ * <pre>
+ *   int    magic number "NNCK"
+ *   int    format version
+ *   long   payload length in bytes
+ *   int    CRC32 of the payload
+ *   payload:
+ *     hyper parameters: activation, output activation, weight initialization
+ *     and cost function names, layer sizes, weight initialization values,
+ *     learn parameters, learn rate, learn rate decay, momentum,
+ *     regularization, optimizer name, beta2, epsilon, precision name, batch
+ *     normalization flag, dropout rate, input shape (empty without image
+ *     layers), and for every image layer its pooling name (empty for a
+ *     convolution), filters, kernel size, stride and padding, checkpointed
+ *     segment length
+ *     completed epochs
+ *     for every layer: step count, weights, biases, weight velocities, bias
+ *     velocities, and the squared gradient means if the optimizer keeps them
+ *     for every convolution: the same as for a layer
+ *     for every batch normalization: step count, gamma, beta, their
+ *     velocities and squared gradient means, running mean, running variance
+ * </pre>
+ *
+ * Versions 1 to 6 are the same layout without the fields added after them:
+ * version 2 added the learn values, optimizer, epoch, step counts and squared
+ * gradient means, 3 the output activation, 4 the precision, 5 batch
+ * normalization and dropout, 6 the image layers and 7 the checkpointed
+ * segment length. Load reads all of them.
+ *
+ * The file is written to a temporary file that is moved over the target once
+ * it's complete, and the checksum is verified before anything is loaded, so a
+ * torn or truncated write is reported instead of producing a broken network.
+ * Every length and layer size is checked against the bytes left in the file
+ * before anything is allocated for it, and the loaded network skips drawing
+ * initial weights it would overwrite.
+ * Parameter arrays are copied with bulk buffer operations and loaded straight
+ * out of a memory mapping of the file, off-heap layers' straight into their
+ * native memory.
+ */
+public final class Checkpoint {
+    static final int MAGIC = 0x4E4E434B;
+    static final int VERSION = 7;
+    // Oldest version load still reads
+    static final int OLDEST_VERSION = 1;
+    static final int HEADER_SIZE = 20;
+
+    // Largest part of the file mapped at once
+    static final int WINDOW_SIZE = 1 << 30;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Writes the network's hyper parameters and layer parameters to a file
+     *
+     * @param network
+     * @param path
+     * @throws IOException
+     */
+    public static void save(Network network, String path) throws IOException {
+        Path target = Paths.get(path);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        try (Output out = new Output(FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            HyperParameter params = network.params;
+
+            out.putString(params.activation.name());
+            out.putString(params.outputActivation.name());
+            out.putString(params.initialWeights.name());
+            out.putString(params.costFunction.name());
+            out.putInts(params.layerSizes);
+
+            out.putInt(params.initialWeightsValues.length);
+            for (double[] values : params.initialWeightsValues) {
+                out.putInt(values.length);
+                out.putDoubles(values);
+            }
+
+            out.putInt(params.learnParams.length);
+            for (Double value : params.learnParams) {
+                out.putDouble(value);
+            }
+
+            out.putDouble(params.initialLearningRate);
+            out.putDouble(params.learnRateDecay);
+            out.putDouble(params.momentum);
+            out.putDouble(params.regularization);
+            out.putString(params.optimizer.name());
+            out.putDouble(params.beta2);
+            out.putDouble(params.epsilon);
+            out.putString(params.precision.name());
+            out.putInt(params.batchNorm ? 1 : 0);
+            out.putDouble(params.dropout);
+            out.putInts(params.inputShape != null ? params.inputShape : new int[0]);
+            out.putInt(params.imageLayers.size());
+            for (HyperParameter.ImageLayer image : params.imageLayers) {
+                out.putString(image.pooling != null ? image.pooling.name() : "");
+                out.putInts(new int[] { image.filters, image.kernelSize, image.stride, image.padding });
+            }
+            out.putInt(params.checkpointSegment);
+
+            out.putInt(network.epoch);
+
+            for (Layer layer : network.layers) {
+                out.putLong(layer.step);
+                if (layer instanceof OffHeapLayer) {
+                    // Streamed out of native memory without a heap copy
+                    OffHeapLayer offHeap = (OffHeapLayer) layer;
+                    out.putDoubles(offHeap.offHeapWeights);
+                    out.putDoubles(layer.biases);
+                    out.putDoubles(offHeap.offHeapVelocities);
+                    out.putDoubles(layer.biasesVelocities);
+                    if (layer.optimizer.usesSquares()) {
+                        out.putDoubles(offHeap.offHeapSquares);
+                        out.putDoubles(layer.biasesSquares);
+                    }
+                    continue;
+                }
+                out.putDoubles(layer.weights);
+                out.putDoubles(layer.biases);
+                out.putDoubles(layer.weightVelocities);
+                out.putDoubles(layer.biasesVelocities);
+                if (layer.optimizer.usesSquares()) {
+                    out.putDoubles(layer.weightSquares);
+                    out.putDoubles(layer.biasesSquares);
+                }
+            }
+
+            for (NetworkLayer layer : network.stack) {
+                if (layer instanceof Conv2D) {
+                    Conv2D convolution = (Conv2D) layer;
+                    out.putLong(convolution.step);
+                    out.putDoubles(convolution.weights);
+                    out.putDoubles(convolution.biases);
+                    out.putDoubles(convolution.weightVelocities);
+                    out.putDoubles(convolution.biasesVelocities);
+                    if (convolution.optimizer.usesSquares()) {
+                        out.putDoubles(convolution.weightSquares);
+                        out.putDoubles(convolution.biasesSquares);
+                    }
+                }
+            }
+
+            for (NetworkLayer layer : network.stack) {
+                if (layer instanceof BatchNorm) {
+                    BatchNorm norm = (BatchNorm) layer;
+                    out.putLong(norm.step);
+                    out.putDoubles(norm.gamma);
+                    out.putDoubles(norm.beta);
+                    out.putDoubles(norm.gammaVelocities);
+                    out.putDoubles(norm.betaVelocities);
+                    if (norm.optimizer.usesSquares()) {
+                        out.putDoubles(norm.gammaSquares);
+                        out.putDoubles(norm.betaSquares);
+                    }
+                    out.putDoubles(norm.runningMean);
+                    out.putDoubles(norm.runningVariance);
+                }
+            }
+
+            out.finish();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static Network load(String path) throws IOException {
+        return load(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads a network written by save
+     *
+     * @param path
+     * @param threads : number of worker threads used when learning
+     * @return the network
+     * @throws IOException if the file isn't a checkpoint, fails its checksum or
+     *                     describes arrays the file can't hold
+     */
+    public static Network load(String path, int threads) throws IOException {
+        return load(path, threads, false);
+    }
+
+    /**
+     * Reads a network written by save, optionally into off-heap layers. The
+     * storage isn't part of the checkpoint, so either kind of network can load
+     * what the other saved.
+     *
+     * @param path
+     * @param threads : number of worker threads used when learning
+     * @param offHeap : see HyperParameter.setOffHeap
+     * @return the network
+     * @throws IOException if the file isn't a checkpoint, fails its checksum or
+     *                     describes arrays the file can't hold
+     */
+    public static Network load(String path, int threads, boolean offHeap) throws IOException {
+        try (Input in = new Input(FileChannel.open(Paths.get(path), StandardOpenOption.READ), path)) {
+            // Every version appended fields to the previous one, so older files are
+            // read by skipping the fields they don't have and keeping the defaults
+            int version = in.version;
+
+            Activation.ActivationFunctionType activation = Activation.ActivationFunctionType
+                    .valueOf(in.getString());
+            Activation.ActivationFunctionType outputActivation = version >= 3
+                    ? Activation.ActivationFunctionType.valueOf(in.getString())
+                    : activation;
+            InitialWeights.InitialWeightsType initialWeights = InitialWeights.InitialWeightsType
+                    .valueOf(in.getString());
+            Cost.CostFunctionType costFunction = Cost.CostFunctionType.valueOf(in.getString());
+            int[] layerSizes = in.getInts();
+
+            double[][] initialWeightsValues = new double[in.getLength(4)][];
+            for (int i = 0; i < initialWeightsValues.length; i++) {
+                initialWeightsValues[i] = new double[in.getLength(8)];
+                in.getDoubles(initialWeightsValues[i]);
+            }
+
+            Double[] learnParams = new Double[in.getLength(8)];
+            for (int i = 0; i < learnParams.length; i++) {
+                learnParams[i] = in.getDouble();
+            }
+
+            HyperParameter params;
+            if (version >= 2) {
+                double initialLearningRate = in.getDouble();
+                double learnRateDecay = in.getDouble();
+                double momentum = in.getDouble();
+                double regularization = in.getDouble();
+                Optimizer.OptimizerType optimizer = Optimizer.OptimizerType.valueOf(in.getString());
+                double beta2 = in.getDouble();
+                double epsilon = in.getDouble();
+
+                params = new HyperParameter(activation, initialWeights, costFunction, initialWeightsValues,
+                        layerSizes, initialLearningRate, learnRateDecay, momentum, regularization, learnParams);
+                params.setOptimizer(optimizer, beta2, epsilon);
+            } else {
+                // Version 1 only kept the learn values in the learn parameters
+                params = new HyperParameter(activation, initialWeights, costFunction, initialWeightsValues,
+                        layerSizes, learnParams[0], learnParams[1], learnParams[2], learnParams[3], learnParams);
+            }
+            params.setOutputActivation(outputActivation);
+
+            if (version >= 4) {
+                params.setPrecision(Precision.valueOf(in.getString()));
+            }
+            if (version >= 5) {
+                params.setBatchNorm(in.getInt() != 0);
+                params.setDropout(in.getDouble());
+            }
+            if (version >= 6) {
+                int[] inputShape = in.getInts();
+                HyperParameter.ImageLayer[] imageLayers = new HyperParameter.ImageLayer[in.getLength(4)];
+                for (int i = 0; i < imageLayers.length; i++) {
+                    String pooling = in.getString();
+                    int[] shape = in.getInts();
+                    imageLayers[i] = new HyperParameter.ImageLayer(
+                            pooling.isEmpty() ? null : Pooling.PoolingType.valueOf(pooling),
+                            shape[0], shape[1], shape[2], shape[3]);
+                }
+                if (inputShape.length > 0) {
+                    params.setInputShape(inputShape[0], inputShape[1], inputShape[2]);
+                }
+                params.imageLayers.addAll(Arrays.asList(imageLayers));
+            }
+            if (version >= 7) {
+                params.setCheckpointing(in.getInt());
+            }
+            params.setOffHeap(offHeap);
+
+            checkSizes(in, params);
+
+            // The weights are read from the file, so they aren't drawn first
+            Network network = new Network(params, threads, false);
+            try {
+                loadParameters(in, network);
+                in.finish();
+            } catch (IOException | RuntimeException e) {
+                // Nothing else holds the network, so its workers would never stop
+                network.shutdown();
+                throw e;
+            }
+            return network;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed checkpoint " + path, e);
+        }
+    }
+
+    // Checks every layer the hyper parameters describe has positive sizes and
+    // that its parameters and velocities fit in the rest of the file, so a
+    // corrupt size is reported before the network allocates anything for it
+    static void checkSizes(Input in, HyperParameter params) throws IOException {
+        long values = 0;
+
+        int[] sizes = params.layerSizes;
+        if (sizes.length < 2) {
+            throw new IOException("Checkpoint has " + sizes.length + " layer sizes, expected at least 2.");
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] < 1) {
+                throw new IOException("Checkpoint layer " + i + " has " + sizes[i] + " nodes.");
+            }
+        }
+        if (params.initialWeightsValues.length < sizes.length - 1) {
+            throw new IOException("Checkpoint has " + params.initialWeightsValues.length
+                    + " weight initialization values for " + (sizes.length - 1) + " layers.");
+        }
+        for (int i = 0; i < sizes.length - 1; i++) {
+            values += checkLength((long) sizes[i] * sizes[i + 1]) + sizes[i + 1];
+        }
+
+        if (!params.imageLayers.isEmpty()) {
+            int[] shape = params.inputShape;
+            if (shape == null || shape[0] < 1 || shape[1] < 1 || shape[2] < 1) {
+                throw new IOException("Checkpoint has image layers without a valid input shape.");
+            }
+            checkLength((long) shape[0] * shape[1] * shape[2]);
+
+            int channels = shape[2];
+            for (HyperParameter.ImageLayer image : params.imageLayers) {
+                if (image.filters < 1 || image.kernelSize < 1) {
+                    throw new IOException("Checkpoint image layer has " + image.filters + " filters and kernel "
+                            + image.kernelSize + ".");
+                }
+                if (image.pooling == null) {
+                    values += checkLength((long) image.filters * image.kernelSize * image.kernelSize * channels)
+                            + image.filters;
+                    channels = image.filters;
+                }
+            }
+        }
+
+        // Every parameter is stored at least twice, once as itself and once as its
+        // velocity
+        if (values * 16 > in.remaining()) {
+            throw new IOException("Checkpoint layer sizes need " + values * 16 + " bytes of parameters, only "
+                    + in.remaining() + " are left.");
+        }
+    }
+
+    // Rejects arrays longer than Java can allocate
+    static long checkLength(long length) throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Checkpoint layer of " + length + " values is too large.");
+        }
+        return length;
+    }
+
+    // Reads the epoch and the parameters of every layer into a network built from
+    // the checkpoint's hyper parameters
+    static void loadParameters(Input in, Network network) throws IOException {
+        int version = in.version;
+        if (version >= 2) {
+            network.epoch = in.getInt();
+        }
+
+        for (Layer layer : network.layers) {
+            if (version >= 2) {
+                layer.step = in.getLong();
+            }
+            if (layer instanceof OffHeapLayer) {
+                OffHeapLayer offHeap = (OffHeapLayer) layer;
+                in.getDoubles(offHeap.offHeapWeights);
+                in.getDoubles(layer.biases);
+                in.getDoubles(offHeap.offHeapVelocities);
+                in.getDoubles(layer.biasesVelocities);
+                if (version >= 2 && layer.optimizer.usesSquares()) {
+                    in.getDoubles(offHeap.offHeapSquares);
+                    in.getDoubles(layer.biasesSquares);
+                }
+                continue;
+            }
+            in.getDoubles(layer.weights);
+            in.getDoubles(layer.biases);
+            in.getDoubles(layer.weightVelocities);
+            in.getDoubles(layer.biasesVelocities);
+            if (version >= 2 && layer.optimizer.usesSquares()) {
+                in.getDoubles(layer.weightSquares);
+                in.getDoubles(layer.biasesSquares);
+            }
+            layer.syncWeights();
+        }
+
+        for (NetworkLayer layer : network.stack) {
+            if (layer instanceof Conv2D) {
+                Conv2D convolution = (Conv2D) layer;
+                convolution.step = in.getLong();
+                in.getDoubles(convolution.weights);
+                in.getDoubles(convolution.biases);
+                in.getDoubles(convolution.weightVelocities);
+                in.getDoubles(convolution.biasesVelocities);
+                if (convolution.optimizer.usesSquares()) {
+                    in.getDoubles(convolution.weightSquares);
+                    in.getDoubles(convolution.biasesSquares);
+                }
+            }
+        }
+
+        for (NetworkLayer layer : network.stack) {
+            if (layer instanceof BatchNorm) {
+                BatchNorm norm = (BatchNorm) layer;
+                norm.step = in.getLong();
+                in.getDoubles(norm.gamma);
+                in.getDoubles(norm.beta);
+                in.getDoubles(norm.gammaVelocities);
+                in.getDoubles(norm.betaVelocities);
+                if (norm.optimizer.usesSquares()) {
+                    in.getDoubles(norm.gammaSquares);
+                    in.getDoubles(norm.betaSquares);
+                }
+                in.getDoubles(norm.runningMean);
+                in.getDoubles(norm.runningVariance);
+            }
+        }
+    }
+
+    /**
+     * Buffered writer that checksums everything it writes after the header
+     */
+    static class Output implements Closeable {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        final CRC32 crc = new CRC32();
+        long length;
+
+        Output(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(HEADER_SIZE);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(8);
+            buffer.putDouble(value);
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            for (int i = 0; i < bytes.length;) {
+                ensure(1);
+                int n = Math.min(bytes.length - i, buffer.remaining());
+                buffer.put(bytes, i, n);
+                i += n;
+            }
+        }
+
+        void putInts(int[] values) throws IOException {
+            putInt(values.length);
+            for (int value : values) {
+                putInt(value);
+            }
+        }
+
+        void putDoubles(double[] values) throws IOException {
+            for (int i = 0; i < values.length;) {
+                ensure(8);
+                int n = Math.min(values.length - i, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(values, i, n);
+                buffer.position(buffer.position() + n * 8);
+                i += n;
+            }
+        }
+
+        void putDoubles(OffHeapArray values) throws IOException {
+            for (int i = 0; i < values.length;) {
+                ensure(8);
+                int n = Math.min(values.length - i, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(values.buffer(i, n));
+                buffer.position(buffer.position() + n * 8);
+                i += n;
+            }
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            length += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // Writes the header once the payload is complete and syncs the file
+        void finish() throws IOException {
+            flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(length).putInt((int) crc.getValue()).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reader over a memory mapping of the file, mapped one window at a time
+     */
+    static class Input implements Closeable {
+        final FileChannel channel;
+        final long end;
+        final int version;
+        ByteBuffer window;
+        long windowStart;
+        long position = HEADER_SIZE;
+
+        Input(FileChannel channel, String path) throws IOException {
+            this.channel = channel;
+
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining()) {
+                    if (channel.read(header, header.position()) < 0) {
+                        throw new IOException("Checkpoint " + path + " is truncated.");
+                    }
+                }
+                header.flip();
+
+                if (header.getInt() != MAGIC) {
+                    throw new IOException(path + " is not a network checkpoint.");
+                }
+                version = header.getInt();
+                if (version < OLDEST_VERSION || version > VERSION) {
+                    throw new IOException("Checkpoint " + path + " has version " + version + ", expected "
+                            + OLDEST_VERSION + " to " + VERSION + ".");
+                }
+                long length = header.getLong();
+                int crc = header.getInt();
+
+                end = HEADER_SIZE + length;
+                if (channel.size() != end) {
+                    throw new IOException("Checkpoint " + path + " is truncated: expected " + end
+                            + " bytes, found " + channel.size() + ".");
+                }
+
+                CRC32 actual = new CRC32();
+                for (long start = HEADER_SIZE; start < end; start += WINDOW_SIZE) {
+                    actual.update(channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(WINDOW_SIZE, end - start)));
+                }
+                if ((int) actual.getValue() != crc) {
+                    throw new IOException("Checkpoint " + path + " failed its checksum.");
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // Maps the window holding the next bytes when they're outside the current one
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (position + bytes > end) {
+                throw new IOException("Unexpected end of checkpoint.");
+            }
+            if (window == null || position + bytes > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, end - position));
+            }
+            window.position((int) (position - windowStart));
+            position += bytes;
+            return window;
+        }
+
+        int getInt() throws IOException {
+            return ensure(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return ensure(8).getLong();
+        }
+
+        double getDouble() throws IOException {
+            return ensure(8).getDouble();
+        }
+
+        // Reads the length of an array whose elements take at least the given
+        // number of bytes each, and checks they're in the file before the array is
+        // allocated
+        int getLength(int elementBytes) throws IOException {
+            int length = getInt();
+            if (length < 0 || (long) length * elementBytes > remaining()) {
+                throw new IOException("Checkpoint length " + length + " is out of range, " + remaining()
+                        + " bytes are left.");
+            }
+            return length;
+        }
+
+        long remaining() {
+            return end - position;
+        }
+
+        String getString() throws IOException {
+            byte[] bytes = new byte[getLength(1)];
+            ensure(bytes.length).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int[] getInts() throws IOException {
+            int[] values = new int[getLength(4)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = getInt();
+            }
+            return values;
+        }
+
+        void getDoubles(double[] values) throws IOException {
+            for (int i = 0; i < values.length;) {
+                // Read as many values as the current window holds, or remap for the next one
+                long available = window == null ? 0 : windowStart + window.limit() - position;
+                int n = (int) Math.min(values.length - i, Math.max(1, available / 8));
+                ensure(n * 8).asDoubleBuffer().get(values, i, n);
+                i += n;
+            }
+        }
+
+        void getDoubles(OffHeapArray values) throws IOException {
+            for (int i = 0; i < values.length;) {
+                long available = window == null ? 0 : windowStart + window.limit() - position;
+                int n = (int) Math.min(values.length - i, Math.max(1, available / 8));
+                values.buffer(i, n).put(ensure(n * 8).asDoubleBuffer().limit(n));
+                i += n;
+            }
+        }
+
+        void finish() throws IOException {
+            if (position != end) {
+                throw new IOException("Checkpoint has " + (end - position) + " unread bytes.");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
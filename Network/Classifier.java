@@ -0,0 +1,72 @@
+package Network;
+
+/**
+ * Model that maps float inputs to class scores, e.g. a compiled or quantized
+ * copy of a network
+ */
+public interface Classifier {
+    /**
+     * Classifies the input based on the output
+     * 
+     * @param inputs  : inputSize() values
+     * @param outputs : receives the outputSize() output values
+     * @return index of the largest output
+     */
+    public int classify(float[] inputs, float[] outputs);
+
+    /**
+     * Feeds a block of samples through the model, one sample at a time unless
+     * the model can do better
+     *
+     * @param inputs  : [count x inputSize()] block of inputs
+     * @param outputs : receives the [count x outputSize()] block of outputs
+     * @param count   : number of samples
+     */
+    public default void predict(float[] inputs, float[] outputs, int count) {
+        float[] in = new float[inputSize()];
+        float[] out = new float[outputSize()];
+        for (int sample = 0; sample < count; sample++) {
+            System.arraycopy(inputs, sample * in.length, in, 0, in.length);
+            classify(in, out);
+            System.arraycopy(out, 0, outputs, sample * out.length, out.length);
+        }
+    }
+
+    public int inputSize();
+
+    public int outputSize();
+
+    /**
+     * Fraction of the samples whose largest output matches the largest expected
+     * output
+     * 
+     * @param data
+     * @return accuracy between 0 and 1
+     */
+    public default double accuracy(DataSource data) {
+        double[] inputs = new double[inputSize()];
+        double[] expected = new double[outputSize()];
+        float[] floatInputs = new float[inputSize()];
+        float[] outputs = new float[outputSize()];
+
+        int correct = 0;
+        for (int i = 0; i < data.size(); i++) {
+            data.read(i, inputs, 0, expected, 0);
+            for (int j = 0; j < inputs.length; j++) {
+                floatInputs[j] = (float) inputs[j];
+            }
+
+            int label = 0;
+            for (int j = 1; j < expected.length; j++) {
+                if (expected[j] > expected[label]) {
+                    label = j;
+                }
+            }
+
+            if (classify(floatInputs, outputs) == label) {
+                correct++;
+            }
+        }
+        return data.size() == 0 ? 0 : correct / (double) data.size();
+    }
+}
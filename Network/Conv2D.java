@@ -0,0 +1,398 @@
+package Network;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import Functions.Activation;
+import Functions.ActivationFunction;
+import Functions.InitialWeights;
+import Functions.OptimizerFunction;
+
+/**
+ * 2D convolution over channel-last images: the value of channel c at pixel
+ * (y, x) of a sample is at (y * width + x) * channels + c.
+ *
+ * The convolution is lowered to a matrix multiply. im2col copies the
+ * kernelSize x kernelSize x channels patch under every output pixel into one
+ * row of a [count * outHeight * outWidth x patchSize] block, so the weighted
+ * inputs are that block times the [filters x patchSize] weights transposed,
+ * computed by the same blocked kernel as a fully-connected layer. Every row of
+ * the result holds one output pixel's filters, which is the channel-last
+ * layout of the next layer's input. Channel-last also makes every kernel row
+ * of a patch one contiguous copy.
+ */
+public class Conv2D implements NetworkLayer {
+    // Input and output images
+    final int height, width, channels;
+    final int outHeight, outWidth, filters;
+
+    final int kernelSize, stride, padding;
+
+    // Values in one patch, the length of a filter
+    final int patchSize;
+
+    // [filters x patchSize] weights, and one bias per filter
+    double[] weights, weightGradient, weightVelocities;
+    double[] biases, biasesGradient, biasesVelocities;
+
+    // Running means of the squared gradients, only kept for optimizers that use
+    // them
+    double[] weightSquares, biasesSquares;
+
+    // Number of gradient descent steps taken
+    long step;
+
+    ActivationFunction activation;
+    OptimizerFunction optimizer;
+    Precision precision = Precision.Double;
+
+    /**
+     * Layer data with a worker's patch blocks
+     */
+    static class Data extends LayerData {
+        // [count * outHeight * outWidth x patchSize] patches and their gradients
+        final double[] columns;
+        final double[] columnGradients;
+
+        Data(Conv2D layer, int batchSize, boolean propagate, BlockBuffers buffers) {
+            super(layer.outputSize(), batchSize, buffers);
+            int rows = batchSize * layer.outHeight * layer.outWidth;
+
+            weightedInputs = buffers.doubles(batchSize * layer.outputSize());
+            weightGradient = new double[layer.weights.length];
+            biasesGradient = new double[layer.filters];
+            columns = buffers.doubles(rows * layer.patchSize);
+            if (propagate) {
+                inputGradients = buffers.doubles(batchSize * layer.inputSize());
+                columnGradients = buffers.doubles(rows * layer.patchSize);
+            } else {
+                columnGradients = null;
+            }
+        }
+
+        // Buffers of blocks fed forward for inference, without any gradients. The
+        // activation is applied in place.
+        Data(Conv2D layer, int batchSize) {
+            weightedInputs = new double[batchSize * layer.outputSize()];
+            activations = weightedInputs;
+            columns = new double[batchSize * layer.outHeight * layer.outWidth * layer.patchSize];
+            columnGradients = null;
+        }
+    }
+
+    /**
+     * @param height         : of the input images
+     * @param width
+     * @param channels
+     * @param filters        : number of output channels
+     * @param kernelSize     : width and height of the filters
+     * @param stride         : distance between the patches
+     * @param padding        : zeros around the input images
+     * @param activate
+     * @param initialWeights
+     * @param optimizer
+     */
+    public Conv2D(int height, int width, int channels, int filters, int kernelSize, int stride, int padding,
+            Activation.ActivationFunctionType activate, InitialWeights.InitialWeightsType initialWeights,
+            OptimizerFunction optimizer) {
+        this(height, width, channels, filters, kernelSize, stride, padding, activate, initialWeights, optimizer,
+                new SplittableRandom());
+    }
+
+    /**
+     * Convolution with weights drawn from the given generator
+     *
+     * @param height
+     * @param width
+     * @param channels
+     * @param filters
+     * @param kernelSize
+     * @param stride
+     * @param padding
+     * @param activate
+     * @param initialWeights
+     * @param optimizer
+     * @param random         : source of the initial weights, null to leave them
+     *                       zero for weights loaded afterwards
+     */
+    Conv2D(int height, int width, int channels, int filters, int kernelSize, int stride, int padding,
+            Activation.ActivationFunctionType activate, InitialWeights.InitialWeightsType initialWeights,
+            OptimizerFunction optimizer, SplittableRandom random) {
+        if (kernelSize < 1 || stride < 1 || padding < 0 || filters < 1) {
+            throw new IllegalArgumentException("Invalid convolution: " + filters + " filters, kernel " + kernelSize
+                    + ", stride " + stride + ", padding " + padding);
+        }
+        if (height + 2 * padding < kernelSize || width + 2 * padding < kernelSize) {
+            throw new IllegalArgumentException("Kernel " + kernelSize + " is larger than the " + height + "x"
+                    + width + " input");
+        }
+
+        this.height = height;
+        this.width = width;
+        this.channels = channels;
+        this.filters = filters;
+        this.kernelSize = kernelSize;
+        this.stride = stride;
+        this.padding = padding;
+        outHeight = (height + 2 * padding - kernelSize) / stride + 1;
+        outWidth = (width + 2 * padding - kernelSize) / stride + 1;
+        patchSize = kernelSize * kernelSize * channels;
+
+        weights = new double[filters * patchSize];
+        weightGradient = new double[filters * patchSize];
+        weightVelocities = new double[filters * patchSize];
+        biases = new double[filters];
+        biasesGradient = new double[filters];
+        biasesVelocities = new double[filters];
+
+        activation = Activation.getActivationFunction(activate);
+        this.optimizer = optimizer;
+        if (optimizer.usesSquares()) {
+            weightSquares = new double[filters * patchSize];
+            biasesSquares = new double[filters];
+        }
+
+        // Every output sees patchSize inputs, every input feeds
+        // kernelSize^2 * filters outputs
+        if (random != null) {
+            InitialWeights.initialize(InitialWeights.getInitialWeightsFunction(initialWeights), weights, patchSize,
+                    kernelSize * kernelSize * filters, random);
+        }
+    }
+
+    public int getOutputHeight() {
+        return outHeight;
+    }
+
+    public int getOutputWidth() {
+        return outWidth;
+    }
+
+    public int getFilters() {
+        return filters;
+    }
+
+    @Override
+    public int inputSize() {
+        return height * width * channels;
+    }
+
+    @Override
+    public int outputSize() {
+        return outHeight * outWidth * filters;
+    }
+
+    /**
+     * Rounds the parameters to float in Single precision. The passes run on
+     * doubles in every precision.
+     */
+    @Override
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+        precision.round(weights, biases);
+    }
+
+    @Override
+    public LayerData createData(int batchSize, boolean propagate, BlockBuffers buffers) {
+        Data data = new Data(this, batchSize, propagate, buffers);
+        if (precision != Precision.Double) {
+            data.convert(this, batchSize, propagate, buffers);
+        }
+        return data;
+    }
+
+    @Override
+    public LayerData createInferenceData(int batchSize) {
+        return new Data(this, batchSize);
+    }
+
+    @Override
+    public double[] outputs(double[] inputs) {
+        return forward(inputs, new Data(this, 1), 1, false);
+    }
+
+    @Override
+    public double[] forward(double[] inputs, LayerData layerData, int count, boolean training) {
+        Data data = (Data) layerData;
+        int rows = count * outHeight * outWidth;
+        double[] weightedInputs = data.weightedInputs;
+
+        im2col(inputs, data.columns, count);
+
+        // weightedInputs = biases + columns * weights^T
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(biases, 0, weightedInputs, row * filters, filters);
+        }
+        Matrix.multiplyTransposed(data.columns, weights, weightedInputs, rows, filters, patchSize);
+
+        int size = outputSize();
+        for (int sample = 0; sample < count; sample++) {
+            activation.apply(weightedInputs, data.activations, sample * size, size);
+        }
+        return data.activations;
+    }
+
+    @Override
+    public double[] backward(double[] outputGradients, LayerData layerData, int count) {
+        Data data = (Data) layerData;
+        int rows = count * outHeight * outWidth;
+        int size = outputSize();
+
+        double[] nodeValues = data.nodeValues;
+        double[] derivatives = data.derivatives;
+        for (int sample = 0; sample < count; sample++) {
+            activation.backward(data.activations, data.weightedInputs, outputGradients, derivatives, nodeValues,
+                    sample * size, size);
+        }
+
+        // weightGradient += nodeValues^T * columns
+        Matrix.multiplyAdd(nodeValues, 1, filters, data.columns, data.weightGradient, filters, patchSize, rows);
+        for (int row = 0; row < rows; row++) {
+            Matrix.axpy(1, nodeValues, row * filters, data.biasesGradient, 0, filters);
+        }
+
+        double[] inputGradients = data.inputGradients;
+        if (inputGradients == null) {
+            return null;
+        }
+
+        // columnGradients = nodeValues * weights, scattered back onto the pixels
+        // every patch came from
+        Arrays.fill(data.columnGradients, 0, rows * patchSize, 0);
+        Matrix.multiplyAdd(nodeValues, filters, 1, weights, data.columnGradients, rows, patchSize, filters);
+        col2im(data.columnGradients, inputGradients, count);
+        return inputGradients;
+    }
+
+    /**
+     * Copies the patch under every output pixel of every sample into a row of
+     * columns, with zeros where the patch hangs over the padding
+     *
+     * @param inputs  : [count x height * width * channels] block
+     * @param columns : receives [count * outHeight * outWidth x patchSize]
+     * @param count
+     */
+    void im2col(double[] inputs, double[] columns, int count) {
+        int kernelRow = kernelSize * channels;
+        int column = 0;
+
+        for (int sample = 0; sample < count; sample++) {
+            int image = sample * inputSize();
+
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int x0 = ox * stride - padding;
+                    boolean inside = x0 >= 0 && x0 + kernelSize <= width;
+
+                    for (int ky = 0; ky < kernelSize; ky++) {
+                        int y = oy * stride - padding + ky;
+                        if (y < 0 || y >= height) {
+                            Arrays.fill(columns, column, column + kernelRow, 0);
+                        } else if (inside) {
+                            System.arraycopy(inputs, image + (y * width + x0) * channels, columns, column,
+                                    kernelRow);
+                        } else {
+                            for (int kx = 0; kx < kernelSize; kx++) {
+                                int x = x0 + kx;
+                                int offset = column + kx * channels;
+                                if (x < 0 || x >= width) {
+                                    Arrays.fill(columns, offset, offset + channels, 0);
+                                } else {
+                                    System.arraycopy(inputs, image + (y * width + x) * channels, columns, offset,
+                                            channels);
+                                }
+                            }
+                        }
+                        column += kernelRow;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds every row of patch gradients onto the pixels the patch was copied
+     * from, the reverse of im2col
+     *
+     * @param columnGradients : [count * outHeight * outWidth x patchSize]
+     * @param inputGradients  : receives [count x height * width * channels]
+     * @param count
+     */
+    void col2im(double[] columnGradients, double[] inputGradients, int count) {
+        Arrays.fill(inputGradients, 0, count * inputSize(), 0);
+        int kernelRow = kernelSize * channels;
+        int column = 0;
+
+        for (int sample = 0; sample < count; sample++) {
+            int image = sample * inputSize();
+
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int x0 = ox * stride - padding;
+                    boolean inside = x0 >= 0 && x0 + kernelSize <= width;
+
+                    for (int ky = 0; ky < kernelSize; ky++) {
+                        int y = oy * stride - padding + ky;
+                        if (y >= 0 && y < height) {
+                            if (inside) {
+                                Matrix.axpy(1, columnGradients, column, inputGradients,
+                                        image + (y * width + x0) * channels, kernelRow);
+                            } else {
+                                for (int kx = 0; kx < kernelSize; kx++) {
+                                    int x = x0 + kx;
+                                    if (x >= 0 && x < width) {
+                                        Matrix.axpy(1, columnGradients, column + kx * channels, inputGradients,
+                                                image + (y * width + x) * channels, channels);
+                                    }
+                                }
+                            }
+                        }
+                        column += kernelRow;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void accumulateGradients(LayerData layerData) {
+        Matrix.axpy(1, layerData.weightGradient, 0, weightGradient, 0, weightGradient.length);
+        Matrix.axpy(1, layerData.biasesGradient, 0, biasesGradient, 0, filters);
+
+        Arrays.fill(layerData.weightGradient, 0);
+        Arrays.fill(layerData.biasesGradient, 0);
+    }
+
+    @Override
+    public void gradient(double learnRate, double regularization, double momentum, double gradientScale) {
+        step++;
+
+        optimizer.update(weights, weightGradient, weightVelocities, weightSquares,
+                learnRate, gradientScale, regularization * gradientScale, momentum, step);
+        optimizer.update(biases, biasesGradient, biasesVelocities, biasesSquares,
+                learnRate, gradientScale, 0, momentum, step);
+        precision.round(weights, biases);
+    }
+
+    @Override
+    public void applyGradients(LayerData layerData, double learnRate, double regularization, double momentum,
+            double gradientScale, long step) {
+        this.step = step;
+
+        optimizer.update(weights, layerData.weightGradient, weightVelocities, weightSquares,
+                learnRate, gradientScale, regularization * gradientScale, momentum, step);
+        optimizer.update(biases, layerData.biasesGradient, biasesVelocities, biasesSquares,
+                learnRate, gradientScale, 0, momentum, step);
+        precision.round(weights, biases);
+    }
+
+    @Override
+    public double[][] parameters() {
+        return new double[][] { weights, biases };
+    }
+
+    @Override
+    public double[][] gradients() {
+        return new double[][] { weightGradient, biasesGradient };
+    }
+}
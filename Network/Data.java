@@ -1,6 +1,6 @@
 package Network;
 
-public class Data {
+public class Data implements DataSource {
     public double[][] trainedData;
     public double[][] expectedData;
 
@@ -8,4 +8,21 @@ public class Data {
         this.trainedData = trainedData;
         this.expectedData = expectedData;
     }
+
+    public int size() {
+        return trainedData.length;
+    }
+
+    public int inputSize() {
+        return trainedData[0].length;
+    }
+
+    public int outputSize() {
+        return expectedData[0].length;
+    }
+
+    public void read(int index, double[] inputs, int inputOffset, double[] expectedOutputs, int expectedOffset) {
+        System.arraycopy(trainedData[index], 0, inputs, inputOffset, inputSize());
+        System.arraycopy(expectedData[index], 0, expectedOutputs, expectedOffset, outputSize());
+    }
 }
@@ -0,0 +1,203 @@
+package Network;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams mini-batches from a data source.
+ *
+ * A background thread shuffles the sample order at the start of every epoch
+ * and packs the samples into a small pool of reusable batches, so the next
+ * batch is already assembled while the current one is being learned. Samples
+ * are read from the source one batch at a time, so sources backed by files
+ * (e.g. a memory-mapped IDX file) never have to fit in the heap.
+ *
+ * Usage:
+ *
+ * <pre>
+ * for (Batch batch; (batch = loader.next()) != null;) {
+ *     network.learn(batch);
+ * }
+ * network.endEpoch();
+ * </pre>
+ */
+public class DataLoader implements Closeable {
+    // Number of batches cycled between the loader thread and the trainer
+    static final int BUFFERS = 2;
+
+    // Marks the end of an epoch in the ready queue
+    static final Batch END_OF_EPOCH = new Batch(0, 0, 0);
+
+    // Wakes a next call waiting when the loader is closed
+    static final Batch CLOSED = new Batch(0, 0, 0);
+
+    final DataSource source;
+    final int batchSize;
+    final boolean shuffle;
+    final Random rng;
+
+    final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(BUFFERS);
+    final BlockingQueue<Batch> ready = new ArrayBlockingQueue<>(BUFFERS + 1);
+    final Thread loader;
+
+    // Batch handed out by the last call to next, recycled on the following call
+    Batch current;
+
+    // Time next has spent waiting for the loader thread
+    long waitNanos;
+
+    volatile boolean closed;
+    volatile Throwable failure;
+
+    /**
+     * @param source
+     * @param batchSize : most samples per batch, the last batch of an epoch holds
+     *                  the remainder
+     * @param shuffle   : whether to visit the samples in a new random order every
+     *                  epoch
+     * @param seed      : seed of the shuffle order
+     */
+    public DataLoader(DataSource source, int batchSize, boolean shuffle, long seed) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+
+        this.source = source;
+        this.batchSize = batchSize;
+        this.shuffle = shuffle;
+        this.rng = new Random(seed);
+
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new Batch(batchSize, source.inputSize(), source.outputSize()));
+        }
+
+        loader = new Thread(this::load, "DataLoader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Hands out the next batch of the current epoch. The batch stays valid until
+     * the next call, when it's given back to the loader to be refilled.
+     *
+     * @return the next batch, or null at the end of the epoch, after which the
+     *         following call starts the next epoch
+     * @throws IllegalStateException if the loader is closed
+     */
+    public Batch next() {
+        if (closed) {
+            throw new IllegalStateException("The data loader is closed");
+        }
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+
+        Batch batch;
+        long start = System.nanoTime();
+        try {
+            batch = ready.take();
+            waitNanos += System.nanoTime() - start;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        if (batch == CLOSED) {
+            throw new IllegalStateException("The data loader is closed");
+        }
+        if (failure != null) {
+            throw new RuntimeException("Loading a batch failed", failure);
+        }
+        if (batch == END_OF_EPOCH) {
+            return null;
+        }
+
+        current = batch;
+        return batch;
+    }
+
+    /**
+     * @return number of batches per epoch
+     */
+    public int batchCount() {
+        return (source.size() + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * Time spent waiting for batches to be loaded, more than a small fraction of
+     * the learning time means training is bound by reading the data
+     * 
+     * @return nanoseconds next has spent blocked since the loader was created
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    // Fills batches in a new order every epoch until closed
+    void load() {
+        int[] order = new int[source.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        int inputSize = source.inputSize();
+        int outputSize = source.outputSize();
+
+        try {
+            while (!closed) {
+                if (shuffle) {
+                    // Fisher-Yates shuffle
+                    for (int i = order.length - 1; i > 0; i--) {
+                        int j = rng.nextInt(i + 1);
+                        int swap = order[i];
+                        order[i] = order[j];
+                        order[j] = swap;
+                    }
+                }
+
+                for (int start = 0; start < order.length; start += batchSize) {
+                    Batch batch = free.take();
+                    batch.size = Math.min(batchSize, order.length - start);
+                    for (int i = 0; i < batch.size; i++) {
+                        source.read(order[start + i], batch.inputs, i * inputSize, batch.expectedOutputs,
+                                i * outputSize);
+                    }
+                    ready.put(batch);
+                }
+
+                ready.put(END_OF_EPOCH);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (Throwable e) {
+            failure = e;
+            try {
+                ready.put(END_OF_EPOCH);
+            } catch (InterruptedException interrupted) {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * Stops the loader thread. A next call waiting for a batch, and every later
+     * one, throws IllegalStateException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        loader.interrupt();
+        try {
+            loader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The loader has stopped putting batches, so there's room for the marker
+        ready.clear();
+        ready.offer(CLOSED);
+    }
+}
@@ -1,18 +1,18 @@
 package Network;
 
 public class DataPoint {
-    public Double[] inputs;
-    public Double[] expectedOutputs;
+    public double[] inputs;
+    public double[] expectedOutputs;
     public int label;
 
-    public DataPoint(Double[] inputs, int label, int numLabels) {
+    public DataPoint(double[] inputs, int label, int numLabels) {
         this.inputs = inputs;
         this.label = label;
         expectedOutputs = CreateOneHot(label, numLabels);
     }
 
-    public static Double[] CreateOneHot(int index, int num) {
-        Double[] oneHot = new Double[num];
+    public static double[] CreateOneHot(int index, int num) {
+        double[] oneHot = new double[num];
         oneHot[index] = 1.0;
         return oneHot;
     }
@@ -0,0 +1,33 @@
+package Network;
+
+/**
+ * Random access source of training samples
+ */
+public interface DataSource {
+    /**
+     * @return number of samples
+     */
+    public int size();
+
+    /**
+     * @return number of input values per sample
+     */
+    public int inputSize();
+
+    /**
+     * @return number of expected output values per sample
+     */
+    public int outputSize();
+
+    /**
+     * Copies a sample's inputs and expected outputs. Called from the loader's
+     * background thread.
+     * 
+     * @param index           : sample index
+     * @param inputs          : receives inputSize() values at inputOffset
+     * @param inputOffset
+     * @param expectedOutputs : receives outputSize() values at expectedOffset
+     * @param expectedOffset
+     */
+    public void read(int index, double[] inputs, int inputOffset, double[] expectedOutputs, int expectedOffset);
+}
\ No newline at end of file
@@ -0,0 +1,232 @@
+package Network;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Inverted dropout. While learning, every value is zeroed with probability
+ * rate and the rest are scaled by 1 / (1 - rate), so the expected outputs are
+ * the inputs and inference passes the inputs through unchanged.
+ *
+ * The mask comes from a xorshift64* generator kept in every worker's layer
+ * data, which yields two mask values per 64-bit step without locking or
+ * allocating.
+ */
+public class Dropout implements NetworkLayer {
+    final int size;
+    final double rate;
+
+    // Seeds the generator of every worker's layer data
+    final Random seeds;
+
+    Precision precision = Precision.Double;
+
+    /**
+     * @param size : number of values per sample
+     * @param rate : probability of dropping a value, in [0, 1)
+     */
+    public Dropout(int size, double rate) {
+        this(size, rate, new Random());
+    }
+
+    /**
+     * @param size
+     * @param rate
+     * @param seed : seed of the masks, for reproducible runs
+     */
+    public Dropout(int size, double rate, long seed) {
+        this(size, rate, new Random(seed));
+    }
+
+    Dropout(int size, double rate, Random seeds) {
+        if (!(rate >= 0 && rate < 1)) {
+            throw new IllegalArgumentException("Dropout rate must be in [0, 1), got " + rate);
+        }
+        this.size = size;
+        this.rate = rate;
+        this.seeds = seeds;
+    }
+
+    /**
+     * Layer data holding the state of a worker's mask generator
+     */
+    static class Data extends LayerData {
+        long state;
+
+        // State before the mask of the last block was drawn
+        long blockState;
+
+        Data(int size, int batchSize, long seed, Precision precision, BlockBuffers buffers) {
+            super(size, batchSize, precision, buffers);
+            // xorshift gets stuck at zero
+            state = seed != 0 ? seed : 0x9E3779B97F4A7C15L;
+        }
+    }
+
+    @Override
+    public int inputSize() {
+        return size;
+    }
+
+    @Override
+    public int outputSize() {
+        return size;
+    }
+
+    @Override
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+    }
+
+    @Override
+    public LayerData createData(int batchSize, boolean propagate, BlockBuffers buffers) {
+        // The sizing pass for checkpointing mustn't draw a seed, or the workers'
+        // masks would differ from a run without checkpointing
+        return new Data(size, batchSize, buffers.sizing ? 0 : seeds.nextLong(), precision, buffers);
+    }
+
+    // Inference passes the inputs through
+    @Override
+    public LayerData createInferenceData(int batchSize) {
+        return new LayerData();
+    }
+
+    @Override
+    public double[] outputs(double[] inputs) {
+        return Arrays.copyOf(inputs, size);
+    }
+
+    @Override
+    public double[] forward(double[] inputs, LayerData data, int count, boolean training) {
+        if (!training || rate == 0) {
+            return inputs;
+        }
+
+        // mask holds 0 for dropped values and the scale for kept ones
+        double[] mask = data.derivatives;
+        double keep = 1 - rate;
+        double scale = 1 / keep;
+        long threshold = (long) (keep * 0x1p32);
+
+        Data generator = (Data) data;
+        long state = generator.state;
+        generator.blockState = state;
+        int n = count * size;
+        for (int i = 0; i < n; i += 2) {
+            state = next(state);
+            long bits = state * 0x2545F4914F6CDD1DL;
+
+            mask[i] = (bits & 0xFFFFFFFFL) < threshold ? scale : 0;
+            if (i + 1 < n) {
+                mask[i + 1] = (bits >>> 32) < threshold ? scale : 0;
+            }
+        }
+        generator.state = state;
+
+        double[] activations = data.activations;
+        for (int i = 0; i < n; i++) {
+            activations[i] = inputs[i] * mask[i];
+        }
+        return activations;
+    }
+
+    /**
+     * Same masks as forward, drawn into a float mask
+     */
+    @Override
+    public float[] forward(float[] inputs, LayerData data, int count, boolean training) {
+        if (!training || rate == 0) {
+            return inputs;
+        }
+
+        float[] mask = data.derivativesSingle;
+        double keep = 1 - rate;
+        float scale = (float) (1 / keep);
+        long threshold = (long) (keep * 0x1p32);
+
+        Data generator = (Data) data;
+        long state = generator.state;
+        generator.blockState = state;
+        int n = count * size;
+        for (int i = 0; i < n; i += 2) {
+            state = next(state);
+            long bits = state * 0x2545F4914F6CDD1DL;
+
+            mask[i] = (bits & 0xFFFFFFFFL) < threshold ? scale : 0;
+            if (i + 1 < n) {
+                mask[i + 1] = (bits >>> 32) < threshold ? scale : 0;
+            }
+        }
+        generator.state = state;
+
+        float[] activations = data.activationsSingle;
+        for (int i = 0; i < n; i++) {
+            activations[i] = inputs[i] * mask[i];
+        }
+        return activations;
+    }
+
+    // One xorshift64 step of the generator state
+    static long next(long state) {
+        state ^= state >>> 12;
+        state ^= state << 25;
+        return state ^ state >>> 27;
+    }
+
+    @Override
+    public double[] backward(double[] outputGradients, LayerData data, int count) {
+        if (rate == 0) {
+            return outputGradients;
+        }
+
+        double[] nodeValues = data.nodeValues;
+        double[] mask = data.derivatives;
+        for (int i = 0; i < count * size; i++) {
+            nodeValues[i] = outputGradients[i] * mask[i];
+        }
+        return nodeValues;
+    }
+
+    @Override
+    public float[] backward(float[] outputGradients, LayerData data, int count) {
+        if (rate == 0) {
+            return outputGradients;
+        }
+
+        float[] nodeValues = data.nodeValuesSingle;
+        float[] mask = data.derivativesSingle;
+        for (int i = 0; i < count * size; i++) {
+            nodeValues[i] = outputGradients[i] * mask[i];
+        }
+        return nodeValues;
+    }
+
+    /**
+     * Draws the same mask as the last block again
+     */
+    @Override
+    public double[] recompute(double[] inputs, LayerData data, int count) {
+        if (rate > 0) {
+            Data generator = (Data) data;
+            generator.state = generator.blockState;
+        }
+        return forward(inputs, data, count, true);
+    }
+
+    @Override
+    public float[] recompute(float[] inputs, LayerData data, int count) {
+        if (rate > 0) {
+            Data generator = (Data) data;
+            generator.state = generator.blockState;
+        }
+        return forward(inputs, data, count, true);
+    }
+
+    /**
+     * Dropout does nothing at inference
+     */
+    @Override
+    public Layer fold(Layer previous) {
+        return previous;
+    }
+}
@@ -0,0 +1,95 @@
+package Network;
+
+/**
+ * Scores of a network over a data set, computed by an Evaluator
+ */
+public class Evaluation {
+    public long samples;
+
+    // Cost summed over the samples
+    public double totalCost;
+
+    // Samples whose largest output is the expected label, and samples whose
+    // expected label is among the k largest outputs
+    public long correct;
+    public long topKCorrect;
+    public final int k;
+
+    // confusion[expected][predicted] counts the samples of every expected label
+    // classified as every label
+    public final long[][] confusion;
+
+    public Evaluation(int labels, int k) {
+        this.k = k;
+        confusion = new long[labels][labels];
+    }
+
+    void add(Evaluation other) {
+        samples += other.samples;
+        totalCost += other.totalCost;
+        correct += other.correct;
+        topKCorrect += other.topKCorrect;
+        for (int i = 0; i < confusion.length; i++) {
+            for (int j = 0; j < confusion.length; j++) {
+                confusion[i][j] += other.confusion[i][j];
+            }
+        }
+    }
+
+    /**
+     * @return mean cost per sample
+     */
+    public double cost() {
+        return samples == 0 ? 0 : totalCost / samples;
+    }
+
+    public double accuracy() {
+        return samples == 0 ? 0 : correct / (double) samples;
+    }
+
+    public double topKAccuracy() {
+        return samples == 0 ? 0 : topKCorrect / (double) samples;
+    }
+
+    /**
+     * @param label
+     * @return fraction of the samples classified as label that are label
+     */
+    public double precision(int label) {
+        long predicted = 0;
+        for (long[] row : confusion) {
+            predicted += row[label];
+        }
+        return predicted == 0 ? 0 : confusion[label][label] / (double) predicted;
+    }
+
+    /**
+     * @param label
+     * @return fraction of the samples of label classified as label
+     */
+    public double recall(int label) {
+        long expected = 0;
+        for (long count : confusion[label]) {
+            expected += count;
+        }
+        return expected == 0 ? 0 : confusion[label][label] / (double) expected;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(String.format("%d samples, cost %.4f, accuracy %.2f%%, top-%d %.2f%%%n",
+                samples, cost(), accuracy() * 100, k, topKAccuracy() * 100));
+
+        s.append("expected \\ predicted");
+        for (int j = 0; j < confusion.length; j++) {
+            s.append(String.format("%8d", j));
+        }
+        for (int i = 0; i < confusion.length; i++) {
+            s.append(String.format("%n%20d", i));
+            for (int j = 0; j < confusion.length; j++) {
+                s.append(String.format("%8d", confusion[i][j]));
+            }
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package Network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Scores a network over a whole data set in one pass.
+ *
+ * The samples are split into contiguous ranges, one per worker of the
+ * network's pool, and every worker feeds its range through the layers in
+ * blocks of Network.BLOCK_SIZE samples using its own preallocated buffers.
+ * The workers' counts are summed in worker order, so the result doesn't
+ * depend on thread scheduling. The data source is read from several threads
+ * at once, and the network shouldn't learn while it's being evaluated.
+ */
+public class Evaluator {
+    final Network network;
+
+    // One set of block buffers per worker, holding only what inference writes
+    final Scratch[] workerData;
+
+    /**
+     * A worker's input and expected output blocks and the inference buffers of
+     * every layer
+     */
+    static class Scratch {
+        final LayerData[] layerData;
+        final double[] inputs;
+        final double[] expectedOutputs;
+
+        Scratch(NetworkLayer[] layers) {
+            layerData = new LayerData[layers.length];
+            for (int i = 0; i < layers.length; i++) {
+                layerData[i] = layers[i].createInferenceData(Network.BLOCK_SIZE);
+            }
+            inputs = new double[Network.BLOCK_SIZE * layers[0].inputSize()];
+            expectedOutputs = new double[Network.BLOCK_SIZE * layers[layers.length - 1].outputSize()];
+        }
+    }
+
+    public Evaluator(Network network) {
+        this.network = network;
+        workerData = new Scratch[network.workerLearnData.length];
+        for (int i = 0; i < workerData.length; i++) {
+            workerData[i] = new Scratch(network.stack);
+        }
+    }
+
+    public Evaluation evaluate(DataSource data) {
+        return evaluate(data, 1);
+    }
+
+    /**
+     * Computes the cost, accuracy, top-k accuracy and confusion matrix
+     *
+     * @param data
+     * @param k    : a sample counts towards the top-k accuracy if its expected
+     *             label is among the k largest outputs
+     * @return the scores
+     */
+    public Evaluation evaluate(DataSource data, int k) {
+        int labels = network.layers[network.layers.length - 1].outNodes;
+        int count = data.size();
+        int workers = Math.max(1, Math.min(workerData.length, count));
+
+        Evaluation[] partial = new Evaluation[workers];
+        List<Callable<Void>> tasks = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            int start = w * count / workers;
+            int end = (w + 1) * count / workers;
+            Scratch scratch = workerData[w];
+            Evaluation result = partial[w] = new Evaluation(labels, k);
+
+            tasks.add(() -> {
+                evaluate(data, start, end, scratch, result);
+                return null;
+            });
+        }
+        network.invokeAll(tasks);
+
+        Evaluation total = new Evaluation(labels, k);
+        for (Evaluation result : partial) {
+            total.add(result);
+        }
+        return total;
+    }
+
+    // Scores the samples in [start, end) a block at a time
+    void evaluate(DataSource data, int start, int end, Scratch scratch, Evaluation result) {
+        NetworkLayer[] layers = network.stack;
+        Layer outputLayer = network.layers[network.layers.length - 1];
+        LayerData outputData = scratch.layerData[layers.length - 1];
+        int inputSize = layers[0].inputSize();
+        int outputSize = outputLayer.outNodes;
+
+        for (int block = start; block < end; block += Network.BLOCK_SIZE) {
+            int count = Math.min(Network.BLOCK_SIZE, end - block);
+
+            for (int sample = 0; sample < count; sample++) {
+                data.read(block + sample, scratch.inputs, sample * inputSize, scratch.expectedOutputs,
+                        sample * outputSize);
+            }
+
+            double[] outputs = scratch.inputs;
+            for (int i = 0; i < layers.length; i++) {
+                outputs = layers[i].forward(outputs, scratch.layerData[i], count, false);
+            }
+
+            result.totalCost += outputLayer.cost(outputData, scratch.expectedOutputs, count);
+            result.samples += count;
+
+            for (int sample = 0; sample < count; sample++) {
+                int row = sample * outputSize;
+
+                int label = 0;
+                int predicted = 0;
+                for (int i = 1; i < outputSize; i++) {
+                    if (scratch.expectedOutputs[row + i] > scratch.expectedOutputs[row + label]) {
+                        label = i;
+                    }
+                    if (outputs[row + i] > outputs[row + predicted]) {
+                        predicted = i;
+                    }
+                }
+
+                // Rank of the expected label among the outputs
+                int rank = 0;
+                for (int i = 0; i < outputSize; i++) {
+                    if (outputs[row + i] > outputs[row + label]) {
+                        rank++;
+                    }
+                }
+
+                result.confusion[label][predicted]++;
+                if (predicted == label) {
+                    result.correct++;
+                }
+                if (rank < result.k) {
+                    result.topKCorrect++;
+                }
+            }
+        }
+    }
+}
@@ -1,17 +1,71 @@
 package Network;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import Functions.Activation;
 import Functions.Cost;
 import Functions.InitialWeights;
+import Functions.Optimizer;
 
 public class HyperParameter {
     Activation.ActivationFunctionType activation;
+    Activation.ActivationFunctionType outputActivation;
     InitialWeights.InitialWeightsType initialWeights;
     Cost.CostFunctionType costFunction;
     double[][] initialWeightsValues;
     int[] layerSizes;
     Double[] learnParams;
 
+    double initialLearningRate;
+    double learnRateDecay;
+    double momentum;
+    double regularization;
+
+    Optimizer.OptimizerType optimizer = Optimizer.OptimizerType.Momentum;
+    double beta2 = 0.999;
+    double epsilon = 1e-8;
+
+    Precision precision = Precision.Double;
+
+    // Seed of the initial weights and dropout masks, random when null
+    Long seed;
+
+    // Layers added after every hidden fully-connected layer
+    boolean batchNorm;
+    double dropout;
+
+    // Height, width and channels of the input images, and the convolution and
+    // pooling layers fed before the fully-connected layers
+    int[] inputShape;
+    List<ImageLayer> imageLayers = new ArrayList<>();
+
+    // Layers per checkpointed segment, 0 keeps the outputs of every layer
+    int checkpointSegment;
+
+    // Whether the fully-connected layers keep their weight-sized arrays in
+    // native memory
+    boolean offHeap;
+
+    /**
+     * A convolution, or a pooling when pooling isn't null
+     */
+    static class ImageLayer {
+        final Pooling.PoolingType pooling;
+        final int filters;
+        final int kernelSize;
+        final int stride;
+        final int padding;
+
+        ImageLayer(Pooling.PoolingType pooling, int filters, int kernelSize, int stride, int padding) {
+            this.pooling = pooling;
+            this.filters = filters;
+            this.kernelSize = kernelSize;
+            this.stride = stride;
+            this.padding = padding;
+        }
+    }
+
     public HyperParameter(Activation.ActivationFunctionType activation,
             InitialWeights.InitialWeightsType initialWeights, Cost.CostFunctionType costFunction,
             double[][] initialWeightsValues, int[] layerSizes,
@@ -21,10 +75,199 @@ public class HyperParameter {
             Double regularization,
             Double... learnParams) {
         this.activation = activation;
+        this.outputActivation = activation;
         this.initialWeights = initialWeights;
         this.costFunction = costFunction;
         this.initialWeightsValues = initialWeightsValues;
         this.layerSizes = layerSizes;
         this.learnParams = learnParams.length != 4 ? new Double[] { 0.05, 0.075, 0.9, 0.1 } : learnParams;
+
+        // Missing learn values fall back to the learn params
+        this.initialLearningRate = initialLearningRate != null ? initialLearningRate : this.learnParams[0];
+        this.learnRateDecay = learnRateDecay != null ? learnRateDecay : this.learnParams[1];
+        this.momentum = momentum != null ? momentum : this.learnParams[2];
+        this.regularization = regularization != null ? regularization : this.learnParams[3];
+    }
+
+    /**
+     * Sets the activation function of the output layer, the same as the hidden
+     * layers' by default
+     * 
+     * @param outputActivation
+     * @return this
+     */
+    public HyperParameter setOutputActivation(Activation.ActivationFunctionType outputActivation) {
+        this.outputActivation = outputActivation;
+        return this;
+    }
+
+    /**
+     * Sets the optimizer used for gradient descent, Momentum by default
+     * 
+     * @param optimizer
+     * @return this
+     */
+    public HyperParameter setOptimizer(Optimizer.OptimizerType optimizer) {
+        this.optimizer = optimizer;
+        return this;
+    }
+
+    /**
+     * Sets the optimizer used for gradient descent
+     * 
+     * @param optimizer
+     * @param beta2     : decay rate of the mean of squared gradients (RMSProp,
+     *                  Adam, AdamW), 0.999 by default
+     * @param epsilon   : keeps the root mean square away from zero (RMSProp,
+     *                  Adam, AdamW), 1e-8 by default
+     * @return this
+     */
+    public HyperParameter setOptimizer(Optimizer.OptimizerType optimizer, double beta2, double epsilon) {
+        this.optimizer = optimizer;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+        return this;
+    }
+
+    /**
+     * Sets the precision the training passes run in, Double by default
+     * 
+     * @param precision
+     * @return this
+     */
+    public HyperParameter setPrecision(Precision precision) {
+        this.precision = precision;
+        return this;
+    }
+
+    /**
+     * Seeds the initial weights and the dropout masks, so networks built from
+     * these hyper parameters start out the same. Unseeded by default.
+     * 
+     * @param seed
+     * @return this
+     */
+    public HyperParameter setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Normalizes the weighted inputs of every hidden layer before its activation,
+     * off by default. The normalization is folded into the weights when the
+     * network is compiled.
+     * 
+     * @param batchNorm
+     * @return this
+     */
+    public HyperParameter setBatchNorm(boolean batchNorm) {
+        this.batchNorm = batchNorm;
+        return this;
+    }
+
+    /**
+     * Drops the activations of every hidden layer with the given probability
+     * while learning, 0 (off) by default
+     * 
+     * @param dropout : in [0, 1)
+     * @return this
+     */
+    public HyperParameter setDropout(double dropout) {
+        if (!(dropout >= 0 && dropout < 1)) {
+            throw new IllegalArgumentException("Dropout rate must be in [0, 1), got " + dropout);
+        }
+        this.dropout = dropout;
+        return this;
+    }
+
+    /**
+     * Trades compute for memory while learning: the layers are split into
+     * segments of the given length, only the outputs of every segment are kept
+     * through the forward pass, and every segment is fed forward again right
+     * before it's backpropagated. Layers in the same position of different
+     * segments share their buffers, so the buffers take about segment +
+     * layers / segment layers' worth instead of one per layer, least around the
+     * square root of the number of layers. Off (0) by default.
+     * 
+     * Every layer counts, including batch normalization, activation and dropout
+     * layers.
+     * 
+     * @param segment : layers per segment, 0 to turn checkpointing off
+     * @return this
+     */
+    public HyperParameter setCheckpointing(int segment) {
+        if (segment < 0) {
+            throw new IllegalArgumentException("Segment length can't be negative, got " + segment);
+        }
+        this.checkpointSegment = segment;
+        return this;
+    }
+
+    /**
+     * Keeps the weights of the fully-connected layers, their gradients and
+     * optimizer state, and the weight gradients of every worker in 64-byte
+     * aligned native memory instead of heap arrays, off by default. The memory
+     * is freed when the network is shut down. Off-heap networks train in Double
+     * precision and can't be distributed.
+     * 
+     * @param offHeap
+     * @return this
+     */
+    public HyperParameter setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    /**
+     * Treats the inputs as channel-last images, the value of channel c at pixel
+     * (y, x) at index (y * width + x) * channels + c, for the convolution and
+     * pooling layers
+     * 
+     * @param height
+     * @param width
+     * @param channels
+     * @return this
+     */
+    public HyperParameter setInputShape(int height, int width, int channels) {
+        inputShape = new int[] { height, width, channels };
+        return this;
+    }
+
+    /**
+     * Adds a convolution with the hidden activation after the image layers added
+     * so far. The first fully-connected layer size has to match the flattened
+     * output of the last image layer.
+     * 
+     * @param filters    : number of output channels
+     * @param kernelSize : width and height of the filters
+     * @param stride
+     * @param padding    : zeros around the input images
+     * @return this
+     */
+    public HyperParameter addConvolution(int filters, int kernelSize, int stride, int padding) {
+        imageLayers.add(new ImageLayer(null, filters, kernelSize, stride, padding));
+        return this;
+    }
+
+    /**
+     * Adds a pooling of size x size windows after the image layers added so far
+     * 
+     * @param pooling
+     * @param size
+     * @return this
+     */
+    public HyperParameter addPooling(Pooling.PoolingType pooling, int size) {
+        imageLayers.add(new ImageLayer(pooling, 0, size, size, 0));
+        return this;
+    }
+
+    /**
+     * Learn rate for an epoch: initialLearningRate / (1 + learnRateDecay * epoch)
+     * 
+     * @param epoch
+     * @return
+     */
+    public double learnRate(int epoch) {
+        return initialLearningRate / (1 + learnRateDecay * epoch);
     }
 }
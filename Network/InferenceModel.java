@@ -0,0 +1,216 @@
+package Network;
+
+import Functions.ActivationFunction;
+
+/**
+ * Frozen, read-only copy of a trained network for inference.
+ *
+ * The weights of every layer are flattened into one contiguous float array
+ * and every thread gets its own preallocated scratch buffers, so classify
+ * doesn't allocate. The model is immutable and can be shared between threads.
+ */
+public final class InferenceModel implements Classifier {
+    final int[] layerSizes;
+
+    // Layer l has layerSizes[l + 1] rows of layerSizes[l] weights starting at
+    // weightOffsets[l], and its biases start at biasOffsets[l]
+    final float[] weights;
+    final float[] biases;
+    final int[] weightOffsets;
+    final int[] biasOffsets;
+
+    final ActivationFunction[] activations;
+
+    final ThreadLocal<Scratch> scratch;
+
+    InferenceModel(Network network) {
+        Layer[] layers = network.foldedLayers();
+
+        layerSizes = new int[layers.length + 1];
+        weightOffsets = new int[layers.length];
+        biasOffsets = new int[layers.length];
+
+        int weightCount = 0;
+        int biasCount = 0;
+        int width = layers[0].inNodes;
+        layerSizes[0] = layers[0].inNodes;
+        for (int l = 0; l < layers.length; l++) {
+            layerSizes[l + 1] = layers[l].outNodes;
+            weightOffsets[l] = weightCount;
+            biasOffsets[l] = biasCount;
+            weightCount += layers[l].weights.length;
+            biasCount += layers[l].outNodes;
+            width = Math.max(width, layers[l].outNodes);
+        }
+
+        weights = new float[weightCount];
+        biases = new float[biasCount];
+        for (int l = 0; l < layers.length; l++) {
+            for (int i = 0; i < layers[l].weights.length; i++) {
+                weights[weightOffsets[l] + i] = (float) layers[l].weights[i];
+            }
+            for (int i = 0; i < layers[l].outNodes; i++) {
+                biases[biasOffsets[l] + i] = (float) layers[l].biases[i];
+            }
+        }
+
+        activations = new ActivationFunction[layers.length];
+        for (int l = 0; l < layers.length; l++) {
+            activations[l] = layers[l].activation;
+        }
+
+        int scratchSize = width;
+        scratch = ThreadLocal.withInitial(() -> new Scratch(scratchSize));
+    }
+
+    /**
+     * Compiles a frozen copy of the network's current parameters
+     *
+     * @param network
+     * @return the inference model
+     */
+    public static InferenceModel compile(Network network) {
+        return new InferenceModel(network);
+    }
+
+    /**
+     * Feeds the inputs through the network
+     *
+     * @param inputs  : inputSize() values
+     * @param outputs : receives the outputSize() output values
+     */
+    public void predict(float[] inputs, float[] outputs) {
+        Scratch buffers = scratch.get();
+        float[] in = inputs;
+        float[] out = buffers.activations[0];
+        double[] weightedInputs = buffers.weightedInputs;
+
+        for (int l = 0; l < weightOffsets.length; l++) {
+            int inNodes = layerSizes[l];
+            int outNodes = layerSizes[l + 1];
+
+            for (int node = 0; node < outNodes; node++) {
+                weightedInputs[node] = biases[biasOffsets[l] + node]
+                        + Matrix.dot(weights, weightOffsets[l] + node * inNodes, in, 0, inNodes);
+            }
+
+            // Apply activation function, writing the last layer straight to the outputs
+            activations[l].apply(weightedInputs, weightedInputs, 0, outNodes);
+            if (l == weightOffsets.length - 1) {
+                out = outputs;
+            }
+            for (int node = 0; node < outNodes; node++) {
+                out[node] = (float) weightedInputs[node];
+            }
+
+            in = out;
+            out = out == buffers.activations[0] ? buffers.activations[1] : buffers.activations[0];
+        }
+    }
+
+    /**
+     * Feeds a block of samples through the network, one matrix multiply per
+     * layer
+     *
+     * @param inputs  : [count x inputSize()] block of inputs
+     * @param outputs : receives the [count x outputSize()] block of outputs
+     * @param count   : number of samples
+     */
+    @Override
+    public void predict(float[] inputs, float[] outputs, int count) {
+        Scratch buffers = scratch.get();
+        buffers.ensureBlock(count);
+        float[] in = inputs;
+        float[] out = buffers.blocks[0];
+        float[] sums = buffers.sums;
+        double[] weightedInputs = buffers.weightedInputBlock;
+
+        for (int l = 0; l < weightOffsets.length; l++) {
+            int inNodes = layerSizes[l];
+            int outNodes = layerSizes[l + 1];
+
+            for (int sample = 0; sample < count; sample++) {
+                System.arraycopy(biases, biasOffsets[l], sums, sample * outNodes, outNodes);
+            }
+            Matrix.multiplyTransposed(in, weights, weightOffsets[l], sums, count, outNodes, inNodes);
+
+            for (int i = 0; i < count * outNodes; i++) {
+                weightedInputs[i] = sums[i];
+            }
+            for (int sample = 0; sample < count; sample++) {
+                activations[l].apply(weightedInputs, weightedInputs, sample * outNodes, outNodes);
+            }
+
+            if (l == weightOffsets.length - 1) {
+                out = outputs;
+            }
+            for (int i = 0; i < count * outNodes; i++) {
+                out[i] = (float) weightedInputs[i];
+            }
+
+            in = out;
+            out = out == buffers.blocks[0] ? buffers.blocks[1] : buffers.blocks[0];
+        }
+    }
+
+    @Override
+    public int classify(float[] inputs, float[] outputs) {
+        predict(inputs, outputs);
+
+        int max = 0;
+        for (int i = 1; i < outputSize(); i++) {
+            if (outputs[i] > outputs[max]) {
+                max = i;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Per-thread buffers as wide as the widest layer
+     */
+    static class Scratch {
+        final int width;
+
+        // One activation buffer is read while the other is written
+        final float[][] activations;
+        final double[] weightedInputs;
+
+        // Buffers for blocks of samples, grown to the largest block seen
+        float[][] blocks = new float[2][0];
+        float[] sums = new float[0];
+        double[] weightedInputBlock = new double[0];
+
+        Scratch(int width) {
+            this.width = width;
+            activations = new float[][] { new float[width], new float[width] };
+            weightedInputs = new double[width];
+        }
+
+        void ensureBlock(int count) {
+            int size = count * width;
+            if (sums.length < size) {
+                blocks = new float[][] { new float[size], new float[size] };
+                sums = new float[size];
+                weightedInputBlock = new double[size];
+            }
+        }
+    }
+
+    /**
+     * @return size of the weights and biases in bytes
+     */
+    public long parameterBytes() {
+        return 4L * (weights.length + biases.length);
+    }
+
+    @Override
+    public int inputSize() {
+        return layerSizes[0];
+    }
+
+    @Override
+    public int outputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+}
@@ -1,14 +1,37 @@
 package Network;
 
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
 import Functions.*;
 
-public class Layer {
-    Double[] weights, weightGradient, weightVelocities;
-    Double[] biases, biasesGradient, biasesVelocities;
+public class Layer implements NetworkLayer {
+    // The weight-sized arrays are null in an OffHeapLayer, which keeps them in
+    // native memory
+    double[] weights, weightGradient, weightVelocities;
+    double[] biases, biasesGradient, biasesVelocities;
+
+    // Running means of the squared gradients, only kept for optimizers that use
+    // them
+    double[] weightSquares, biasesSquares;
+
+    // Number of gradient descent steps taken
+    long step;
+
+    // Precision of the training passes, and the float copy of the weights they
+    // use when it isn't Double
+    Precision precision = Precision.Double;
+    float[] weightsSingle;
 
     InitialWeightsFunction init;
+    Activation.ActivationFunctionType activationType;
     ActivationFunction activation;
     CostFunction cost;
+    OptimizerFunction optimizer;
+
+    // Softmax output layer trained with cross-entropy, whose node values reduce
+    // to the activations minus the expected outputs
+    boolean softmaxCrossEntropy;
 
     // Number of input nodes and output nodes respectively
     public int inNodes, outNodes;
@@ -25,17 +48,76 @@ public class Layer {
      */
     public Layer(int inputNodes, int outputNodes, double[] weightsInit, Activation.ActivationFunctionType activate,
             InitialWeights.InitialWeightsType initialWeights, Cost.CostFunctionType costFunc) {
-        // Initialize weights and biases arrays
-        weights = new Double[inputNodes * outputNodes];
-        biases = new Double[outputNodes];
+        this(inputNodes, outputNodes, weightsInit, activate, initialWeights, costFunc,
+                Optimizer.getOptimizerFunction(Optimizer.OptimizerType.Momentum, 0.999, 1e-8));
+    }
 
-        // Initialize gradient arrays
-        weightGradient = new Double[inputNodes * outputNodes];
-        biasesGradient = new Double[outputNodes];
+    /**
+     * Initializes a layer in a neural network
+     * 
+     * @param inputNodes
+     * @param outputNodes
+     * @param weightsInit
+     * @param activate
+     * @param initialWeights
+     * @param costFunc
+     * @param optimizerFunc
+     */
+    public Layer(int inputNodes, int outputNodes, double[] weightsInit, Activation.ActivationFunctionType activate,
+            InitialWeights.InitialWeightsType initialWeights, Cost.CostFunctionType costFunc,
+            OptimizerFunction optimizerFunc) {
+        this(inputNodes, outputNodes, weightsInit, activate, initialWeights, costFunc, optimizerFunc,
+                new SplittableRandom());
+    }
+
+    /**
+     * Initializes a layer in a neural network with weights drawn from the given
+     * generator
+     * 
+     * @param inputNodes
+     * @param outputNodes
+     * @param weightsInit
+     * @param activate
+     * @param initialWeights
+     * @param costFunc
+     * @param optimizerFunc
+     * @param random         : source of the initial weights, null to leave them
+     *                       zero for weights loaded afterwards
+     */
+    Layer(int inputNodes, int outputNodes, double[] weightsInit, Activation.ActivationFunctionType activate,
+            InitialWeights.InitialWeightsType initialWeights, Cost.CostFunctionType costFunc,
+            OptimizerFunction optimizerFunc, SplittableRandom random) {
+        this(inputNodes, outputNodes, activate, initialWeights, costFunc, optimizerFunc);
+
+        // Initialize weight, gradient and velocity arrays
+        weights = new double[inputNodes * outputNodes];
+        weightGradient = new double[inputNodes * outputNodes];
+        weightVelocities = new double[inputNodes * outputNodes];
+        if (optimizer.usesSquares()) {
+            weightSquares = new double[inputNodes * outputNodes];
+        }
+
+        if (random != null) {
+            initializeWeights(weightsInit, random);
+        }
+    }
 
-        // Initialize velocity arrays
-        weightVelocities = new Double[inputNodes * outputNodes];
-        biasesVelocities = new Double[outputNodes];
+    /**
+     * Everything but the weight-sized arrays, which a subclass keeps elsewhere
+     * 
+     * @param inputNodes
+     * @param outputNodes
+     * @param activate
+     * @param initialWeights
+     * @param costFunc
+     * @param optimizerFunc
+     */
+    Layer(int inputNodes, int outputNodes, Activation.ActivationFunctionType activate,
+            InitialWeights.InitialWeightsType initialWeights, Cost.CostFunctionType costFunc,
+            OptimizerFunction optimizerFunc) {
+        biases = new double[outputNodes];
+        biasesGradient = new double[outputNodes];
+        biasesVelocities = new double[outputNodes];
 
         inNodes = inputNodes;
         outNodes = outputNodes;
@@ -44,11 +126,36 @@ public class Layer {
         init = InitialWeights.getInitialWeightsFunction(initialWeights);
 
         // If no activation function given, use sigmoid activation function as default
+        activationType = activate;
         activation = Activation.getActivationFunction(activate);
 
         cost = Cost.getCostFunction(costFunc);
+        softmaxCrossEntropy = activate == Activation.ActivationFunctionType.Softmax
+                && costFunc == Cost.CostFunctionType.CrossEntropy;
 
-        initializeWeights(weightsInit);
+        optimizer = optimizerFunc;
+        if (optimizer.usesSquares()) {
+            biasesSquares = new double[outputNodes];
+        }
+    }
+
+    /**
+     * Frozen layer for inference, without gradients or optimizer state
+     * 
+     * @param inputNodes
+     * @param outputNodes
+     * @param weights     : [outputNodes x inputNodes] weights, kept by the layer
+     * @param biases      : kept by the layer
+     * @param activate
+     */
+    Layer(int inputNodes, int outputNodes, double[] weights, double[] biases,
+            Activation.ActivationFunctionType activate) {
+        this.weights = weights;
+        this.biases = biases;
+        inNodes = inputNodes;
+        outNodes = outputNodes;
+        activationType = activate;
+        activation = Activation.getActivationFunction(activate);
     }
 
     /**
@@ -59,122 +166,595 @@ public class Layer {
      * @param momentum
      */
     public void gradient(double learnRate, double regularization, double momentum) {
-        double weightDecay = 1 - regularization * learnRate;
+        gradient(learnRate, regularization, momentum, 1);
+    }
 
+    /**
+     * Handles gradient descent with the layer's optimizer
+     * 
+     * @param learnRate
+     * @param regularization
+     * @param momentum
+     * @param gradientScale  : factor turning the summed gradients into the
+     *                       average over the batch
+     */
+    @Override
+    public void gradient(double learnRate, double regularization, double momentum, double gradientScale) {
+        step++;
+
+        optimizer.update(weights, weightGradient, weightVelocities, weightSquares,
+                learnRate, gradientScale, regularization * gradientScale, momentum, step);
+        optimizer.update(biases, biasesGradient, biasesVelocities, biasesSquares,
+                learnRate, gradientScale, 0, momentum, step);
+
+        syncWeights();
+    }
+
+    /**
+     * Applies the gradients accumulated in a worker's layer data straight to the
+     * parameters and clears them. Takes no locks: workers applying their updates
+     * at the same time may overwrite some of each other's changes, which
+     * asynchronous SGD tolerates.
+     * 
+     * @param layerLearnData
+     * @param learnRate
+     * @param regularization
+     * @param momentum
+     * @param gradientScale  : factor turning the summed gradients into their
+     *                       average
+     * @param step           : number of updates including this one
+     */
+    @Override
+    public void applyGradients(LayerData layerLearnData, double learnRate, double regularization, double momentum,
+            double gradientScale, long step) {
+        if (layerLearnData.weightGradientSingle != null) {
+            // The optimizer works on doubles, so a worker training in 32-bit precision
+            // gets a double copy of its gradients the first time it applies them
+            if (layerLearnData.weightGradient == null) {
+                layerLearnData.weightGradient = new double[weights.length];
+            }
+            float[] weightGradientSingle = layerLearnData.weightGradientSingle;
+            for (int i = 0; i < weightGradientSingle.length; i++) {
+                layerLearnData.weightGradient[i] = weightGradientSingle[i];
+            }
+            Arrays.fill(weightGradientSingle, 0);
+        }
+
+        optimizer.update(weights, layerLearnData.weightGradient, weightVelocities, weightSquares,
+                learnRate, gradientScale, regularization * gradientScale, momentum, step);
+        optimizer.update(biases, layerLearnData.biasesGradient, biasesVelocities, biasesSquares,
+                learnRate, gradientScale, 0, momentum, step);
+
+        syncWeights();
+    }
+
+    /**
+     * Replaces the activation function, before the layer is trained
+     * 
+     * @param activate
+     */
+    void setActivation(Activation.ActivationFunctionType activate) {
+        activationType = activate;
+        activation = Activation.getActivationFunction(activate);
+        softmaxCrossEntropy = false;
+    }
+
+    /**
+     * Sets the precision the training passes run in
+     * 
+     * @param precision
+     */
+    @Override
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+        weightsSingle = precision == Precision.Double ? null : new float[weights.length];
+        syncWeights();
+    }
+
+    // Copies the weights into their float copy, rounding the parameters to float
+    // in Single precision
+    void syncWeights() {
+        if (weightsSingle == null) {
+            return;
+        }
+
+        boolean round = precision == Precision.Single;
         for (int i = 0; i < weights.length; i++) {
-            double weight = weights[i];
-            double velocity = weightVelocities[i] * momentum - weightGradient[i] * learnRate;
-            weightVelocities[i] = velocity;
-            weights[i] = weight * weightDecay + velocity;
-            weightGradient[i] = 0.0;
+            float weight = (float) weights[i];
+            weightsSingle[i] = weight;
+            if (round) {
+                weights[i] = weight;
+            }
         }
+        precision.round(biases);
+    }
 
-        for (int i = 0; i < outNodes; i++) {
-            double velocity = biasesVelocities[i] * momentum - biasesGradient[i] * learnRate;
-            biasesVelocities[i] = velocity;
-            biases[i] += velocity;
-            biasesGradient[i] = 0.0;
+    // Stores one weight and its float copy, rounded to float in Single precision
+    private void storeWeight(int index, double value) {
+        if (weightsSingle == null) {
+            weights[index] = value;
+            return;
         }
+
+        float weight = (float) value;
+        weightsSingle[index] = weight;
+        weights[index] = precision == Precision.Single ? weight : value;
     }
 
     // Initializes the weights of the layer based on the given initialization
     // function
-    private void initializeWeights(double[] initVals) {
-        for (int i = 0; i < inNodes; i++) {
-            for (int j = 0; j < outNodes; j++) {
-                setWeight(i, j, init.getInitialWeight(initVals));
-            }
-        }
+    private void initializeWeights(double[] initVals, SplittableRandom random) {
+        InitialWeights.initialize(init, weights, (int) initVals[0], (int) initVals[1], random);
     }
 
     // Calculates the output values fed through the current layer
-    public <T extends Number> Double[] outputs(T[] inputs) {
-        Double[] output = new Double[outNodes];
+    public double[] outputs(double[] inputs) {
+        double[] output = weightedInputs(inputs);
+
+        // Apply activation function
+        activation.apply(output, output, 0, outNodes);
 
+        return output;
+    }
+
+    /**
+     * Cost of one sample fed through this layer as the output layer, computed
+     * straight from its outputs without any layer data
+     * 
+     * @param inputs          : input values of the layer
+     * @param expectedOutputs
+     * @return cost
+     */
+    public double cost(double[] inputs, double[] expectedOutputs) {
+        double[] output = weightedInputs(inputs);
+        if (softmaxCrossEntropy) {
+            return Cost.softmaxCrossEntropy(output, expectedOutputs, 0, outNodes);
+        }
+
+        activation.apply(output, output, 0, outNodes);
+        return cost.cost(output, expectedOutputs, 0, outNodes);
+    }
+
+    double[] weightedInputs(double[] inputs) {
+        double[] weightedInputs = new double[outNodes];
         for (int out = 0; out < outNodes; out++) {
-            double weightedInput = biases[out];
+            weightedInputs[out] = biases[out] + Matrix.dot(inputs, 0, weights, out * inNodes, inNodes);
+        }
+        return weightedInputs;
+    }
 
-            for (int in = 0; in < inNodes; in++) {
-                weightedInput += (Double) inputs[in] * getWeight(in, out);
-            }
+    @Override
+    public int inputSize() {
+        return inNodes;
+    }
+
+    @Override
+    public int outputSize() {
+        return outNodes;
+    }
 
-            output[out] = weightedInput;
+    @Override
+    public LayerData createData(int batchSize, boolean propagate, BlockBuffers buffers) {
+        LayerData data = new LayerData(this, batchSize, buffers);
+        if (propagate && weightsSingle == null) {
+            data.inputGradients = buffers.doubles(batchSize * inNodes);
+        } else if (propagate) {
+            data.inputGradientsSingle = buffers.floats(batchSize * inNodes);
         }
+        return data;
+    }
 
-        // Apply activation function
-        for (int outNode = 0; outNode < outNodes; outNode++) {
-            output[outNode] = activation.activationFunction(output, outNode);
+    /**
+     * Keeps the weighted inputs, which the cost of a softmax output is taken
+     * from, and the activations. Inference runs on the double weights in every
+     * precision.
+     */
+    @Override
+    public LayerData createInferenceData(int batchSize) {
+        LayerData data = new LayerData();
+        data.weightedInputs = new double[batchSize * outNodes];
+        data.activations = new double[batchSize * outNodes];
+        return data;
+    }
+
+    @Override
+    public double[] forward(double[] inputs, LayerData learnData, int count, boolean training) {
+        return outputs(inputs, learnData, count);
+    }
+
+    /**
+     * Feeds a float block through the float copy of the weights
+     */
+    @Override
+    public float[] forward(float[] inputs, LayerData learnData, int count, boolean training) {
+        return outputs(inputs, learnData, count);
+    }
+
+    /**
+     * Turns the gradients with respect to the activations into node values,
+     * accumulates the weight and bias gradients and propagates the gradients
+     * to the inputs
+     */
+    @Override
+    public double[] backward(double[] outputGradients, LayerData layerLearnData, int count) {
+        multiplyDerivatives(layerLearnData, outputGradients, count);
+        updateGradients(layerLearnData, count);
+        return inputGradients(layerLearnData, count);
+    }
+
+    @Override
+    public float[] backward(float[] outputGradients, LayerData layerLearnData, int count) {
+        multiplyDerivatives(layerLearnData, outputGradients, count);
+        updateGradients(layerLearnData, count);
+        return inputGradientsSingle(layerLearnData, count);
+    }
+
+    /**
+     * Gradient of the cost with respect to the inputs of a block whose gradients
+     * were just accumulated by updateGradients: inputGradients = nodeValues *
+     * weights
+     * 
+     * @param layerLearnData
+     * @param count          : number of samples in the block
+     * @return [count x inNodes] block, or null if the data doesn't propagate
+     */
+    public double[] inputGradients(LayerData layerLearnData, int count) {
+        double[] inputGradients = layerLearnData.inputGradients;
+        if (inputGradients == null) {
+            return null;
         }
 
-        return output;
+        Arrays.fill(inputGradients, 0, count * inNodes, 0);
+        addInputGradients(layerLearnData.nodeValues, inputGradients, count);
+        return inputGradients;
     }
 
-    public <T extends Number> Double[] outputs(T[] inputs, LayerData learnData) {
-        learnData.inputs = (Double[]) inputs;
+    /**
+     * weightedInputs += inputs * weights^T
+     * 
+     * @param inputs         : [count x inNodes] block
+     * @param weightedInputs : [count x outNodes] block
+     * @param count
+     */
+    void addWeightedInputs(double[] inputs, double[] weightedInputs, int count) {
+        Matrix.multiplyTransposed(inputs, weights, weightedInputs, count, outNodes, inNodes);
+    }
 
-        for (int nodeOut = 0; nodeOut < outNodes; nodeOut++) {
-            double weightedInput = biases[nodeOut];
+    /**
+     * inputGradients += nodeValues * weights
+     * 
+     * @param nodeValues     : [count x outNodes] block
+     * @param inputGradients : [count x inNodes] block
+     * @param count
+     */
+    void addInputGradients(double[] nodeValues, double[] inputGradients, int count) {
+        Matrix.multiplyAdd(nodeValues, outNodes, 1, weights, inputGradients, count, inNodes, outNodes);
+    }
 
-            for (int nodeIn = 0; nodeIn < inNodes; nodeIn++) {
-                weightedInput += (Double) inputs[nodeIn] * getWeight(nodeIn, nodeOut);
-            }
+    /**
+     * Accumulates the weight gradients of a block: weightGradient += nodeValues^T
+     * * inputs
+     * 
+     * @param layerLearnData : data of the block's last passes
+     * @param count
+     */
+    void addWeightGradients(LayerData layerLearnData, int count) {
+        Matrix.multiplyAdd(layerLearnData.nodeValues, 1, outNodes, layerLearnData.inputs,
+                layerLearnData.weightGradient, outNodes, inNodes, count);
+    }
 
-            learnData.weightedInputs[nodeOut] = weightedInput;
+    /**
+     * Gives a worker's data its own weight gradient accumulator
+     * 
+     * @param layerLearnData
+     * @param buffers        : source of the data's block buffers
+     */
+    void allocateWeightGradient(LayerData layerLearnData, BlockBuffers buffers) {
+        layerLearnData.weightGradient = new double[inNodes * outNodes];
+    }
+
+    /**
+     * @return this layer, whose parameters are heap arrays
+     */
+    Layer onHeap() {
+        return this;
+    }
+
+    /**
+     * Float version of inputGradients, multiplying with the float weights
+     * 
+     * @param layerLearnData
+     * @param count
+     * @return [count x inNodes] block, or null if the data doesn't propagate
+     */
+    public float[] inputGradientsSingle(LayerData layerLearnData, int count) {
+        float[] inputGradientsSingle = layerLearnData.inputGradientsSingle;
+        if (inputGradientsSingle == null) {
+            return null;
         }
 
-        // Apply activation function
-        for (int i = 0; i < learnData.activations.length; i++) {
-            learnData.activations[i] = activation.activationFunction(learnData.weightedInputs, i);
+        Arrays.fill(inputGradientsSingle, 0, count * inNodes, 0);
+        Matrix.multiplyAdd(layerLearnData.nodeValuesSingle, outNodes, 1, weightsSingle, inputGradientsSingle,
+                count, inNodes, outNodes);
+        return inputGradientsSingle;
+    }
+
+    @Override
+    public double[][] parameters() {
+        return new double[][] { weights, biases };
+    }
+
+    @Override
+    public double[][] gradients() {
+        return new double[][] { weightGradient, biasesGradient };
+    }
+
+    public double[] outputs(double[] inputs, LayerData learnData) {
+        return outputs(inputs, learnData, 1);
+    }
+
+    /**
+     * Feeds a block of samples through the layer in one matrix multiply
+     * 
+     * @param inputs    : [count x inNodes] block of input values
+     * @param learnData : data sized for at least count samples
+     * @param count     : number of samples in the block
+     * @return [count x outNodes] block of activations
+     */
+    public double[] outputs(double[] inputs, LayerData learnData, int count) {
+        learnData.inputs = inputs;
+        double[] weightedInputs = learnData.weightedInputs;
+
+        // Start every sample's weighted inputs at the biases
+        for (int sample = 0; sample < count; sample++) {
+            System.arraycopy(biases, 0, weightedInputs, sample * outNodes, outNodes);
+        }
+
+        addWeightedInputs(inputs, weightedInputs, count);
+
+        // Apply activation function to every sample
+        for (int sample = 0; sample < count; sample++) {
+            activation.apply(weightedInputs, learnData.activations, sample * outNodes, outNodes);
         }
 
         return learnData.activations;
     }
 
-    public void calculateOutputLayerNodeValues(LayerData layerLearnData, Double[] expectedOutputs) {
-        for (int i = 0; i < layerLearnData.nodeValues.length; i++) {
-            // Evaluate partial derivatives for current node: cost/activation &
-            // activation/weightedInput
-            double costDerivative = cost.costDerivative(layerLearnData.activations[i], expectedOutputs[i]);
-            double activationDerivative = activation.activationDerivative(layerLearnData.weightedInputs, i);
-            layerLearnData.nodeValues[i] = costDerivative * activationDerivative;
+    /**
+     * Feeds a block of float samples through the layer using the float copy of
+     * the weights
+     * 
+     * @param inputs    : [count x inNodes] block of input values
+     * @param learnData : data sized for at least count samples
+     * @param count     : number of samples in the block
+     * @return [count x outNodes] block of float activations
+     */
+    public float[] outputs(float[] inputs, LayerData learnData, int count) {
+        learnData.inputsSingle = inputs;
+        float[] weightedInputsSingle = learnData.weightedInputsSingle;
+
+        for (int sample = 0; sample < count; sample++) {
+            for (int i = 0; i < outNodes; i++) {
+                weightedInputsSingle[sample * outNodes + i] = (float) biases[i];
+            }
+        }
+
+        Matrix.multiplyTransposed(inputs, weightsSingle, weightedInputsSingle, count, outNodes, inNodes);
+
+        for (int sample = 0; sample < count; sample++) {
+            activation.apply(weightedInputsSingle, learnData.activationsSingle, sample * outNodes, outNodes);
+        }
+
+        return learnData.activationsSingle;
+    }
+
+    public void calculateOutputLayerNodeValues(LayerData layerLearnData, double[] expectedOutputs) {
+        calculateOutputLayerNodeValues(layerLearnData, expectedOutputs, 1);
+    }
+
+    /**
+     * @param layerLearnData
+     * @param expectedOutputs : [count x outNodes] block of expected outputs
+     * @param count           : number of samples in the block
+     */
+    public void calculateOutputLayerNodeValues(LayerData layerLearnData, double[] expectedOutputs, int count) {
+        if (weightsSingle != null) {
+            calculateOutputLayerNodeValuesSingle(layerLearnData, expectedOutputs, count);
+            return;
+        }
+
+        double[] nodeValues = layerLearnData.nodeValues;
+        double[] activations = layerLearnData.activations;
+
+        // The softmax Jacobian and the cross-entropy derivative cancel out, leaving
+        // a single pass over the outputs
+        if (softmaxCrossEntropy) {
+            for (int i = 0; i < count * outNodes; i++) {
+                nodeValues[i] = activations[i] - expectedOutputs[i];
+            }
+            return;
+        }
+
+        // Partial derivatives of the cost with respect to the activations
+        for (int i = 0; i < count * outNodes; i++) {
+            nodeValues[i] = cost.costDerivative(activations[i], expectedOutputs[i]);
         }
+
+        // Times the partial derivatives of the activations with respect to the
+        // weighted inputs
+        multiplyDerivatives(layerLearnData, nodeValues, count);
     }
 
-    public void calculateHiddenLayerNodeValues(LayerData layerLearnData, Layer oldLayer, Double[] oldNodeValues) {
-        for (int newNodeIndex = 0; newNodeIndex < outNodes; newNodeIndex++) {
-            double newNodeValue = 0;
-            for (int oldNodeIndex = 0; oldNodeIndex < oldNodeValues.length; oldNodeIndex++) {
-                // Partial derivative of the weighted input with respect to the input
-                double weightedInputDerivative = oldLayer.getWeight(newNodeIndex, oldNodeIndex);
-                newNodeValue += weightedInputDerivative * oldNodeValues[oldNodeIndex];
+    // Float version for layers training in 32-bit precision
+    private void calculateOutputLayerNodeValuesSingle(LayerData layerLearnData, double[] expectedOutputs,
+            int count) {
+        float[] nodeValues = layerLearnData.nodeValuesSingle;
+        float[] activations = layerLearnData.activationsSingle;
+
+        if (softmaxCrossEntropy) {
+            for (int i = 0; i < count * outNodes; i++) {
+                nodeValues[i] = (float) (activations[i] - expectedOutputs[i]);
             }
-            newNodeValue *= activation.activationDerivative(layerLearnData.weightedInputs, newNodeIndex);
-            layerLearnData.nodeValues[newNodeIndex] = newNodeValue;
+            return;
+        }
+
+        for (int i = 0; i < count * outNodes; i++) {
+            nodeValues[i] = (float) cost.costDerivative(activations[i], expectedOutputs[i]);
+        }
+        multiplyDerivatives(layerLearnData, nodeValues, count);
+    }
+
+    /**
+     * Total cost of a block of samples fed through this layer as the output layer
+     * 
+     * @param layerLearnData  : data of the last forward pass
+     * @param expectedOutputs : [count x outNodes] block of expected outputs
+     * @param count           : number of samples in the block
+     * @return cost summed over the block
+     */
+    public double cost(LayerData layerLearnData, double[] expectedOutputs, int count) {
+        // Inference data holds doubles in every precision
+        boolean single = layerLearnData.activationsSingle != null;
+        double total = 0;
+        for (int sample = 0; sample < count; sample++) {
+            if (single && softmaxCrossEntropy) {
+                total += Cost.softmaxCrossEntropy(layerLearnData.weightedInputsSingle, expectedOutputs,
+                        sample * outNodes, outNodes);
+            } else if (single) {
+                total += cost.cost(layerLearnData.activationsSingle, expectedOutputs, sample * outNodes, outNodes);
+            } else if (softmaxCrossEntropy) {
+                total += Cost.softmaxCrossEntropy(layerLearnData.weightedInputs, expectedOutputs,
+                        sample * outNodes, outNodes);
+            } else {
+                total += cost.cost(layerLearnData.activations, expectedOutputs, sample * outNodes, outNodes);
+            }
+        }
+        return total;
+    }
+
+    public void calculateHiddenLayerNodeValues(LayerData layerLearnData, Layer oldLayer, double[] oldNodeValues) {
+        calculateHiddenLayerNodeValues(layerLearnData, oldLayer, oldNodeValues, 1);
+    }
+
+    /**
+     * @param layerLearnData
+     * @param oldLayer      : the layer after this one
+     * @param oldNodeValues : [count x oldLayer.outNodes] block of node values
+     * @param count         : number of samples in the block
+     */
+    public void calculateHiddenLayerNodeValues(LayerData layerLearnData, Layer oldLayer, double[] oldNodeValues,
+            int count) {
+        double[] nodeValues = layerLearnData.nodeValues;
+        Arrays.fill(nodeValues, 0, count * outNodes, 0);
+
+        // Partial derivative of the next layer's weighted inputs with respect to this
+        // layer's activations: nodeValues = oldNodeValues * oldLayer.weights
+        oldLayer.addInputGradients(oldNodeValues, nodeValues, count);
+
+        multiplyDerivatives(layerLearnData, nodeValues, count);
+    }
+
+    /**
+     * Float version for layers training in 32-bit precision
+     * 
+     * @param layerLearnData
+     * @param oldLayer      : the layer after this one
+     * @param oldNodeValues : [count x oldLayer.outNodes] block of float node
+     *                      values of the old layer
+     * @param count         : number of samples in the block
+     */
+    public void calculateHiddenLayerNodeValues(LayerData layerLearnData, Layer oldLayer, float[] oldNodeValues,
+            int count) {
+        float[] nodeValuesSingle = layerLearnData.nodeValuesSingle;
+        Arrays.fill(nodeValuesSingle, 0, count * outNodes, 0);
+
+        Matrix.multiplyAdd(oldNodeValues, oldLayer.outNodes, 1, oldLayer.weightsSingle, nodeValuesSingle,
+                count, outNodes, oldLayer.outNodes);
+
+        multiplyDerivatives(layerLearnData, nodeValuesSingle, count);
+    }
+
+    // Sets the node values to the gradients with respect to the activations
+    // times the Jacobian of the activation function
+    private void multiplyDerivatives(LayerData layerLearnData, double[] gradients, int count) {
+        for (int sample = 0; sample < count; sample++) {
+            activation.backward(layerLearnData.activations, layerLearnData.weightedInputs, gradients,
+                    layerLearnData.derivatives, layerLearnData.nodeValues, sample * outNodes, outNodes);
+        }
+    }
+
+    private void multiplyDerivatives(LayerData layerLearnData, float[] gradients, int count) {
+        for (int sample = 0; sample < count; sample++) {
+            activation.backward(layerLearnData.activationsSingle, layerLearnData.weightedInputsSingle, gradients,
+                    layerLearnData.derivativesSingle, layerLearnData.nodeValuesSingle, sample * outNodes,
+                    outNodes);
         }
     }
 
     public void updateGradients(LayerData layerLearnData) {
-        for (int nodeOut = 0; nodeOut < outNodes; nodeOut++) {
-            double nodeValue = layerLearnData.nodeValues[nodeOut];
-            for (int nodeIn = 0; nodeIn < inNodes; nodeIn++) {
-                // Evaluate the partial derivative: cost / weight of current connection
-                double derivativeCostWrtWeight = layerLearnData.inputs[nodeIn] * nodeValue;
-                // The costGradientW array stores these partial derivatives for each weight.
-                // Note: the derivative is being added to the array here because ultimately we
-                // want
-                // to calculate the average gradient across all the data in the training batch
-                weightGradient[getIndex(nodeIn, nodeOut)] += derivativeCostWrtWeight;
+        updateGradients(layerLearnData, 1);
+    }
+
+    /**
+     * Accumulates the gradients of a block of samples into the layer data
+     * 
+     * @param layerLearnData
+     * @param count          : number of samples in the block
+     */
+    public void updateGradients(LayerData layerLearnData, int count) {
+        // Partial derivative of the cost with respect to every weight, summed over the
+        // block: weightGradient += nodeValues^T * inputs
+        // The gradients are added together because ultimately we want to calculate
+        // the average gradient across all the data in the training batch
+        if (weightsSingle != null) {
+            float[] nodeValuesSingle = layerLearnData.nodeValuesSingle;
+            Matrix.multiplyAdd(nodeValuesSingle, 1, outNodes, layerLearnData.inputsSingle,
+                    layerLearnData.weightGradientSingle, outNodes, inNodes, count);
+
+            for (int sample = 0; sample < count; sample++) {
+                int row = sample * outNodes;
+                for (int nodeOut = 0; nodeOut < outNodes; nodeOut++) {
+                    layerLearnData.biasesGradient[nodeOut] += nodeValuesSingle[row + nodeOut];
+                }
             }
+            return;
         }
 
-        // Update cost gradient with respect to biases (lock for multithreading)
-        for (int nodeOut = 0; nodeOut < outNodes; nodeOut++) {
-            // Evaluate partial derivative: cost / bias
-            double derivativeCostWrtBias = 1 * layerLearnData.nodeValues[nodeOut];
-            biasesGradient[nodeOut] += derivativeCostWrtBias;
+        addWeightGradients(layerLearnData, count);
+
+        // Update cost gradient with respect to biases
+        for (int sample = 0; sample < count; sample++) {
+            int row = sample * outNodes;
+            for (int nodeOut = 0; nodeOut < outNodes; nodeOut++) {
+                // Evaluate partial derivative: cost / bias
+                layerLearnData.biasesGradient[nodeOut] += layerLearnData.nodeValues[row + nodeOut];
+            }
         }
     }
 
+    /**
+     * Adds the gradients accumulated by a worker into this layer's gradients and
+     * clears the worker's accumulators
+     * 
+     * @param layerLearnData
+     */
+    @Override
+    public void accumulateGradients(LayerData layerLearnData) {
+        if (layerLearnData.weightGradientSingle != null) {
+            float[] weightGradientSingle = layerLearnData.weightGradientSingle;
+            for (int i = 0; i < weightGradient.length; i++) {
+                weightGradient[i] += weightGradientSingle[i];
+            }
+            Arrays.fill(weightGradientSingle, 0);
+        } else {
+            Matrix.axpy(1, layerLearnData.weightGradient, 0, weightGradient, 0, weightGradient.length);
+            Arrays.fill(layerLearnData.weightGradient, 0);
+        }
+
+        Matrix.axpy(1, layerLearnData.biasesGradient, 0, biasesGradient, 0, outNodes);
+        Arrays.fill(layerLearnData.biasesGradient, 0);
+    }
+
     public int getIndex(int inputNeuronIndex, int outputNeuronIndex) {
         return outputNeuronIndex * inNodes + inputNeuronIndex;
     }
@@ -188,8 +768,8 @@ public class Layer {
      * @param output : index of weight in the layer
      * @return value in array at index
      */
-    public Double getWeight(int input, int output) {
-        return weights[input * output];
+    public double getWeight(int input, int output) {
+        return weights[getIndex(input, output)];
     }
 
     /**
@@ -202,7 +782,7 @@ public class Layer {
      * @return value in array at index
      */
     public double getWeightGradient(int input, int output) {
-        return weightGradient[input * output];
+        return weightGradient[getIndex(input, output)];
     }
 
     /**
@@ -215,7 +795,7 @@ public class Layer {
      * @return value in array at index
      */
     public double getWeightVelocity(int input, int output) {
-        return weightVelocities[input * output];
+        return weightVelocities[getIndex(input, output)];
     }
 
     /**
@@ -229,7 +809,7 @@ public class Layer {
      * @return value in array at index
      */
     public void setWeight(int input, int output, double value) {
-        weights[input * output] = value;
+        storeWeight(getIndex(input, output), value);
     }
 
     /**
@@ -243,7 +823,7 @@ public class Layer {
      * @return value in array at index
      */
     public void setWeightGradient(int input, int output, double value) {
-        weightGradient[input * output] = value;
+        weightGradient[getIndex(input, output)] = value;
     }
 
     /**
@@ -257,7 +837,7 @@ public class Layer {
      * @return value in array at index
      */
     public void setWeightVelocity(int input, int output, double value) {
-        weightVelocities[input * output] = value;
+        weightVelocities[getIndex(input, output)] = value;
     }
 
     /**
@@ -271,7 +851,8 @@ public class Layer {
      * @return value in array at index
      */
     public void addWeight(int input, int output, double value) {
-        weights[input * output] += value;
+        int index = getIndex(input, output);
+        storeWeight(index, weights[index] + value);
     }
 
     /**
@@ -285,7 +866,7 @@ public class Layer {
      * @return value in array at index
      */
     public void addWeightGradient(int input, int output, double value) {
-        weightGradient[input * output] += value;
+        weightGradient[getIndex(input, output)] += value;
     }
 
     /**
@@ -299,7 +880,7 @@ public class Layer {
      * @return value in array at index
      */
     public void addWeightVelocity(int input, int output, double value) {
-        weightVelocities[input * output] += value;
+        weightVelocities[getIndex(input, output)] += value;
     }
 
     /**
@@ -313,7 +894,8 @@ public class Layer {
      * @return value in array at index
      */
     public void multiplyWeight(int input, int output, double value) {
-        weights[input * output] *= value;
+        int index = getIndex(input, output);
+        storeWeight(index, weights[index] * value);
     }
 
     /**
@@ -327,7 +909,7 @@ public class Layer {
      * @return value in array at index
      */
     public void multiplyWeightGradient(int input, int output, double value) {
-        weightGradient[input * output] *= value;
+        weightGradient[getIndex(input, output)] *= value;
     }
 
     /**
@@ -341,7 +923,7 @@ public class Layer {
      * @return value in array at index
      */
     public void multiplyWeightVelocity(int input, int output, double value) {
-        weightVelocities[input * output] *= value;
+        weightVelocities[getIndex(input, output)] *= value;
     }
 
     /**
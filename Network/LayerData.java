@@ -1,14 +1,154 @@
 package Network;
 
 public class LayerData {
-    public Double[] inputs;
-    public Double[] weightedInputs;
-    public Double[] activations;
-    public Double[] nodeValues;
+    public double[] inputs;
+    public double[] weightedInputs;
+    public double[] activations;
+    public double[] nodeValues;
+
+    // Derivatives of the activations with respect to the weighted inputs
+    public double[] derivatives;
+
+    // Gradient of the cost with respect to the inputs, null when the layer
+    // doesn't propagate it
+    public double[] inputGradients;
+
+    // Gradients accumulated by the worker that owns this data. Layers training in
+    // 32-bit precision accumulate their weight gradients in weightGradientSingle
+    // and leave weightGradient null.
+    public double[] weightGradient;
+    public double[] biasesGradient;
+
+    // Weight gradients of an off-heap layer, which leaves weightGradient null
+    OffHeapArray offHeapGradient;
+
+    // Buffers of the float passes of layers training in 32-bit precision, which
+    // leave the double buffers above null. inputsSingle refers to the inputs
+    // block the last pass used.
+    public float[] inputsSingle;
+    public float[] weightedInputsSingle;
+    public float[] activationsSingle;
+    public float[] derivativesSingle;
+    public float[] nodeValuesSingle;
+    public float[] weightGradientSingle;
+    public float[] inputGradientsSingle;
+
+    // Double copies of the float blocks a layer without float passes converts
+    // its inputs and output gradients into, see convert
+    double[] convertedInputs;
+    double[] convertedGradients;
+
+    // Buffers allocated by a subclass
+    LayerData() {
+    }
+
+    /**
+     * Buffers of a layer without weights
+     *
+     * @param size      : number of outputs per sample
+     * @param batchSize : the most samples that are fed through the layer at once
+     */
+    public LayerData(int size, int batchSize) {
+        this(size, batchSize, new BlockBuffers());
+    }
+
+    /**
+     * @param size
+     * @param batchSize
+     * @param buffers   : source of the block buffers
+     */
+    LayerData(int size, int batchSize, BlockBuffers buffers) {
+        this(size, batchSize, Precision.Double, buffers);
+    }
+
+    /**
+     * Buffers of a layer without weights whose passes run in the given precision
+     *
+     * @param size
+     * @param batchSize
+     * @param precision : float buffers in place of the double ones unless
+     *                  Double
+     * @param buffers
+     */
+    LayerData(int size, int batchSize, Precision precision, BlockBuffers buffers) {
+        if (precision == Precision.Double) {
+            activations = buffers.doubles(batchSize * size);
+            nodeValues = buffers.doubles(batchSize * size);
+            derivatives = buffers.doubles(batchSize * size);
+        } else {
+            activationsSingle = buffers.floats(batchSize * size);
+            nodeValuesSingle = buffers.floats(batchSize * size);
+            derivativesSingle = buffers.floats(batchSize * size);
+        }
+    }
+
+    /**
+     * Buffers of a layer without weights that's only fed forward for inference
+     *
+     * @param size      : number of outputs per sample
+     * @param batchSize : the most samples that are fed through the layer at once
+     * @return layer data with only the activations
+     */
+    static LayerData inference(int size, int batchSize) {
+        LayerData data = new LayerData();
+        data.activations = new double[batchSize * size];
+        return data;
+    }
 
     public LayerData(Layer layer) {
-        weightedInputs = new Double[layer.outNodes];
-        activations = new Double[layer.outNodes];
-        nodeValues = new Double[layer.outNodes];
+        this(layer, 1);
+    }
+
+    /**
+     * @param layer
+     * @param batchSize : the most samples that are fed through the layer at once
+     */
+    public LayerData(Layer layer, int batchSize) {
+        this(layer, batchSize, new BlockBuffers());
+    }
+
+    /**
+     * @param layer
+     * @param batchSize
+     * @param buffers   : source of the block buffers, the gradients are the
+     *                  layer data's own
+     */
+    LayerData(Layer layer, int batchSize, BlockBuffers buffers) {
+        biasesGradient = new double[layer.outNodes];
+
+        // The buffers and weight gradients are kept in the precision of the
+        // weights the passes multiply with
+        if (layer.weightsSingle == null) {
+            weightedInputs = buffers.doubles(batchSize * layer.outNodes);
+            activations = buffers.doubles(batchSize * layer.outNodes);
+            nodeValues = buffers.doubles(batchSize * layer.outNodes);
+            derivatives = buffers.doubles(batchSize * layer.outNodes);
+            layer.allocateWeightGradient(this, buffers);
+        } else {
+            weightedInputsSingle = buffers.floats(batchSize * layer.outNodes);
+            activationsSingle = buffers.floats(batchSize * layer.outNodes);
+            nodeValuesSingle = buffers.floats(batchSize * layer.outNodes);
+            derivativesSingle = buffers.floats(batchSize * layer.outNodes);
+            weightGradientSingle = new float[layer.inNodes * layer.outNodes];
+        }
+    }
+
+    /**
+     * Adds the buffers the float passes of a layer without its own convert
+     * through: double copies of the inputs and output gradients, and float
+     * copies of the outputs and input gradients
+     *
+     * @param layer
+     * @param batchSize
+     * @param propagate : whether backward computes the input gradients
+     * @param buffers
+     */
+    void convert(NetworkLayer layer, int batchSize, boolean propagate, BlockBuffers buffers) {
+        convertedInputs = buffers.doubles(batchSize * layer.inputSize());
+        convertedGradients = buffers.doubles(batchSize * layer.outputSize());
+        activationsSingle = buffers.floats(batchSize * layer.outputSize());
+        if (propagate) {
+            inputGradientsSingle = buffers.floats(batchSize * layer.inputSize());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,411 @@
+package Network;
+
+import Kernels.Backend;
+
+/**
+ * Dense vector and matrix kernels used by the forward and backward passes.
+ *
+ * All matrices are stored row-major in flat arrays. The loops are blocked so
+ * the panel of the right hand matrix that is being reused stays in cache while
+ * every row of the left hand matrix streams past it.
+ *
+ * Two backends implement the floating point kernels, picked by
+ * Kernels.Backend. On the Vector API backend VectorKernels computes them in
+ * the widest SIMD registers the CPU has. Otherwise the scalar loops below are
+ * used: the JIT vectorizes axpy, but not the floating point reductions in dot
+ * and multiplyTransposed, since that would change the order of the additions.
+ */
+public final class Matrix {
+    // Number of shared-dimension entries processed per block
+    static final int K_BLOCK = 128;
+    // Number of output columns processed per block
+    static final int N_BLOCK = 256;
+
+    // Most byte values whose products an int sums without overflowing: 2^17
+    // products of at most 127 * 127 stay below 2^31
+    public static final int MAX_BYTE_DOT = 1 << 17;
+
+    // Whether the kernels run on the Vector API backend
+    static final boolean VECTOR = Backend.VECTOR;
+
+    private Matrix() {
+    }
+
+    /**
+     * @return the backend the kernels run on, e.g. "vector 512-bit" or "scalar"
+     */
+    public static String backend() {
+        return Backend.name();
+    }
+
+    /**
+     * Dot product of n values of a and b
+     *
+     * The scalar version uses four independent partial sums so consecutive
+     * multiply-adds don't wait on each other's results.
+     *
+     * @param a
+     * @param aOffset : index of the first value of a
+     * @param b
+     * @param bOffset : index of the first value of b
+     * @param n       : number of values
+     * @return sum of a[aOffset + i] * b[bOffset + i]
+     */
+    public static double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+        if (VECTOR) {
+            return VectorKernels.dot(a, aOffset, b, bOffset, n);
+        }
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+        int i = 0;
+        for (; i + 4 <= n; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product of n float values of a and b
+     *
+     * @param a
+     * @param aOffset : index of the first value of a
+     * @param b
+     * @param bOffset : index of the first value of b
+     * @param n       : number of values
+     * @return sum of a[aOffset + i] * b[bOffset + i]
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        if (VECTOR) {
+            return VectorKernels.dot(a, aOffset, b, bOffset, n);
+        }
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+        int i = 0;
+        for (; i + 4 <= n; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product of n byte values of a and b, accumulated in 32-bit integers
+     *
+     * Integer addition is associative, so the JIT vectorizes this reduction on
+     * either backend.
+     *
+     * @param a
+     * @param aOffset : index of the first value of a
+     * @param b
+     * @param bOffset : index of the first value of b
+     * @param n       : number of values, at most MAX_BYTE_DOT so the sum of
+     *                products of values in [-127, 127] can't overflow
+     * @return sum of a[aOffset + i] * b[bOffset + i]
+     */
+    public static int dot(byte[] a, int aOffset, byte[] b, int bOffset, int n) {
+        if (n > MAX_BYTE_DOT) {
+            throw new IllegalArgumentException("A byte dot product of " + n + " values can overflow, at most "
+                    + MAX_BYTE_DOT + " are summed at once");
+        }
+        int sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * y += alpha * x over n values
+     *
+     * @param alpha
+     * @param x
+     * @param xOffset : index of the first value of x
+     * @param y
+     * @param yOffset : index of the first value of y
+     * @param n       : number of values
+     */
+    public static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int n) {
+        if (VECTOR) {
+            VectorKernels.axpy(alpha, x, xOffset, y, yOffset, n);
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    /**
+     * y += alpha * x over n float values
+     *
+     * @param alpha
+     * @param x
+     * @param xOffset : index of the first value of x
+     * @param y
+     * @param yOffset : index of the first value of y
+     * @param n       : number of values
+     */
+    public static void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int n) {
+        if (VECTOR) {
+            VectorKernels.axpy(alpha, x, xOffset, y, yOffset, n);
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    /**
+     * c[m x n] += a[m x k] * b[n x k]^T
+     *
+     * Every entry of c is a dot product of a row of a with a row of b, so both
+     * operands are read with unit stride. Entries are computed in 2x4 register
+     * tiles to reuse every loaded value several times.
+     *
+     * @param a : left matrix, m rows of k values
+     * @param b : right matrix, n rows of k values
+     * @param c : result matrix, m rows of n values
+     * @param m
+     * @param n
+     * @param k
+     */
+    public static void multiplyTransposed(double[] a, double[] b, double[] c, int m, int n, int k) {
+        if (VECTOR) {
+            VectorKernels.multiplyTransposed(a, b, c, m, n, k);
+            return;
+        }
+        for (int kk = 0; kk < k; kk += K_BLOCK) {
+            int kEnd = Math.min(kk + K_BLOCK, k);
+
+            for (int jj = 0; jj < n; jj += N_BLOCK) {
+                int jEnd = Math.min(jj + N_BLOCK, n);
+
+                int i = 0;
+                for (; i + 2 <= m; i += 2) {
+                    int a0 = i * k, a1 = a0 + k;
+                    int c0 = i * n, c1 = c0 + n;
+
+                    int j = jj;
+                    for (; j + 4 <= jEnd; j += 4) {
+                        int b0 = j * k, b1 = b0 + k, b2 = b1 + k, b3 = b2 + k;
+                        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+                        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+
+                        for (int p = kk; p < kEnd; p++) {
+                            double x0 = a[a0 + p], x1 = a[a1 + p];
+                            double y0 = b[b0 + p], y1 = b[b1 + p], y2 = b[b2 + p], y3 = b[b3 + p];
+                            c00 += x0 * y0;
+                            c01 += x0 * y1;
+                            c02 += x0 * y2;
+                            c03 += x0 * y3;
+                            c10 += x1 * y0;
+                            c11 += x1 * y1;
+                            c12 += x1 * y2;
+                            c13 += x1 * y3;
+                        }
+
+                        c[c0 + j] += c00;
+                        c[c0 + j + 1] += c01;
+                        c[c0 + j + 2] += c02;
+                        c[c0 + j + 3] += c03;
+                        c[c1 + j] += c10;
+                        c[c1 + j + 1] += c11;
+                        c[c1 + j + 2] += c12;
+                        c[c1 + j + 3] += c13;
+                    }
+
+                    for (; j < jEnd; j++) {
+                        int b0 = j * k;
+                        double c00 = 0, c10 = 0;
+                        for (int p = kk; p < kEnd; p++) {
+                            double y = b[b0 + p];
+                            c00 += a[a0 + p] * y;
+                            c10 += a[a1 + p] * y;
+                        }
+                        c[c0 + j] += c00;
+                        c[c1 + j] += c10;
+                    }
+                }
+
+                // Remaining odd row
+                for (; i < m; i++) {
+                    int a0 = i * k;
+                    for (int j = jj; j < jEnd; j++) {
+                        c[i * n + j] += dot(a, a0 + kk, b, j * k + kk, kEnd - kk);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * c[m x n] += a[m x k] * b[n x k]^T on float matrices
+     *
+     * @param a : left matrix, m rows of k values
+     * @param b : right matrix, n rows of k values
+     * @param c : result matrix, m rows of n values
+     * @param m
+     * @param n
+     * @param k
+     */
+    public static void multiplyTransposed(float[] a, float[] b, float[] c, int m, int n, int k) {
+        multiplyTransposed(a, b, 0, c, m, n, k);
+    }
+
+    /**
+     * c[m x n] += a[m x k] * b[n x k]^T on float matrices, b starting at bOffset
+     *
+     * @param a       : left matrix, m rows of k values
+     * @param b       : right matrix, n rows of k values
+     * @param bOffset : index of the first value of b
+     * @param c       : result matrix, m rows of n values
+     * @param m
+     * @param n
+     * @param k
+     */
+    public static void multiplyTransposed(float[] a, float[] b, int bOffset, float[] c, int m, int n, int k) {
+        if (VECTOR) {
+            VectorKernels.multiplyTransposed(a, b, bOffset, c, m, n, k);
+            return;
+        }
+        for (int kk = 0; kk < k; kk += K_BLOCK) {
+            int kEnd = Math.min(kk + K_BLOCK, k);
+
+            for (int jj = 0; jj < n; jj += N_BLOCK) {
+                int jEnd = Math.min(jj + N_BLOCK, n);
+
+                int i = 0;
+                for (; i + 2 <= m; i += 2) {
+                    int a0 = i * k, a1 = a0 + k;
+                    int c0 = i * n, c1 = c0 + n;
+
+                    int j = jj;
+                    for (; j + 4 <= jEnd; j += 4) {
+                        int b0 = bOffset + j * k, b1 = b0 + k, b2 = b1 + k, b3 = b2 + k;
+                        float c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+                        float c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+
+                        for (int p = kk; p < kEnd; p++) {
+                            float x0 = a[a0 + p], x1 = a[a1 + p];
+                            float y0 = b[b0 + p], y1 = b[b1 + p], y2 = b[b2 + p], y3 = b[b3 + p];
+                            c00 += x0 * y0;
+                            c01 += x0 * y1;
+                            c02 += x0 * y2;
+                            c03 += x0 * y3;
+                            c10 += x1 * y0;
+                            c11 += x1 * y1;
+                            c12 += x1 * y2;
+                            c13 += x1 * y3;
+                        }
+
+                        c[c0 + j] += c00;
+                        c[c0 + j + 1] += c01;
+                        c[c0 + j + 2] += c02;
+                        c[c0 + j + 3] += c03;
+                        c[c1 + j] += c10;
+                        c[c1 + j + 1] += c11;
+                        c[c1 + j + 2] += c12;
+                        c[c1 + j + 3] += c13;
+                    }
+
+                    for (; j < jEnd; j++) {
+                        int b0 = bOffset + j * k;
+                        float c00 = 0, c10 = 0;
+                        for (int p = kk; p < kEnd; p++) {
+                            float y = b[b0 + p];
+                            c00 += a[a0 + p] * y;
+                            c10 += a[a1 + p] * y;
+                        }
+                        c[c0 + j] += c00;
+                        c[c1 + j] += c10;
+                    }
+                }
+
+                // Remaining odd row
+                for (; i < m; i++) {
+                    int a0 = i * k;
+                    for (int j = jj; j < jEnd; j++) {
+                        c[i * n + j] += dot(a, a0 + kk, b, bOffset + j * k + kk, kEnd - kk);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * c[m x n] += A * b[k x n], where A[i][p] = a[i * rowStride + p * colStride]
+     *
+     * Passing (k, 1) as the strides multiplies by a itself, passing (1, m)
+     * multiplies by the transpose of a stored as k rows of m values. The inner
+     * loop scales a row of b into a row of c, which is unit stride for both.
+     *
+     * @param a         : left matrix
+     * @param rowStride : distance between rows of A in a
+     * @param colStride : distance between columns of A in a
+     * @param b         : right matrix, k rows of n values
+     * @param c         : result matrix, m rows of n values
+     * @param m
+     * @param n
+     * @param k
+     */
+    public static void multiplyAdd(double[] a, int rowStride, int colStride, double[] b, double[] c,
+            int m, int n, int k) {
+        for (int jj = 0; jj < n; jj += N_BLOCK) {
+            int jEnd = Math.min(jj + N_BLOCK, n);
+
+            for (int pp = 0; pp < k; pp += K_BLOCK) {
+                int pEnd = Math.min(pp + K_BLOCK, k);
+
+                for (int i = 0; i < m; i++) {
+                    int cRow = i * n;
+                    for (int p = pp; p < pEnd; p++) {
+                        axpy(a[i * rowStride + p * colStride], b, p * n + jj, c, cRow + jj, jEnd - jj);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * c[m x n] += A * b[k x n] on float matrices, where
+     * A[i][p] = a[i * rowStride + p * colStride]
+     *
+     * @param a         : left matrix
+     * @param rowStride : distance between rows of A in a
+     * @param colStride : distance between columns of A in a
+     * @param b         : right matrix, k rows of n values
+     * @param c         : result matrix, m rows of n values
+     * @param m
+     * @param n
+     * @param k
+     */
+    public static void multiplyAdd(float[] a, int rowStride, int colStride, float[] b, float[] c,
+            int m, int n, int k) {
+        for (int jj = 0; jj < n; jj += N_BLOCK) {
+            int jEnd = Math.min(jj + N_BLOCK, n);
+
+            for (int pp = 0; pp < k; pp += K_BLOCK) {
+                int pEnd = Math.min(pp + K_BLOCK, k);
+
+                for (int i = 0; i < m; i++) {
+                    int cRow = i * n;
+                    for (int p = pp; p < pEnd; p++) {
+                        axpy(a[i * rowStride + p * colStride], b, p * n + jj, c, cRow + jj, jEnd - jj);
+                    }
+                }
+            }
+        }
+    }
+}
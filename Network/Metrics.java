@@ -0,0 +1,232 @@
+package Network;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters collected while learning, for one batch or summed over an epoch.
+ *
+ * The forward and backward times are summed over the worker threads, so with
+ * several workers they can add up to more than the wall time. Loss and
+ * accuracy are accumulated from the forward pass of every training sample, so
+ * they reflect the weights before each batch's update rather than a separate
+ * pass over the data.
+ */
+public class Metrics {
+    static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+    static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    // Nanoseconds spent in every layer's forward pass, backward pass and
+    // optimizer step
+    public final long[] forwardNanos;
+    public final long[] backwardNanos;
+    public final long[] stepNanos;
+
+    public long batches;
+    public long samples;
+
+    // Wall time spent in learn
+    public long nanos;
+
+    // Bytes allocated by the learning threads
+    public long allocatedBytes;
+
+    // Time the JVM spent collecting garbage, only set for an epoch
+    public long gcMillis;
+
+    // Most heap in use, sampled when every batch's passes have finished and at
+    // the end of the epoch, so a spike between two samples isn't seen
+    public long peakHeapBytes;
+
+    // Summed cost and number of correctly classified samples
+    public double loss;
+    public long correct;
+
+    public Metrics(int layers) {
+        forwardNanos = new long[layers];
+        backwardNanos = new long[layers];
+        stepNanos = new long[layers];
+    }
+
+    void add(Metrics other) {
+        for (int i = 0; i < forwardNanos.length; i++) {
+            forwardNanos[i] += other.forwardNanos[i];
+            backwardNanos[i] += other.backwardNanos[i];
+            stepNanos[i] += other.stepNanos[i];
+        }
+        batches += other.batches;
+        samples += other.samples;
+        nanos += other.nanos;
+        allocatedBytes += other.allocatedBytes;
+        gcMillis += other.gcMillis;
+        peakHeapBytes = Math.max(peakHeapBytes, other.peakHeapBytes);
+        loss += other.loss;
+        correct += other.correct;
+    }
+
+    void reset() {
+        for (int i = 0; i < forwardNanos.length; i++) {
+            forwardNanos[i] = 0;
+            backwardNanos[i] = 0;
+            stepNanos[i] = 0;
+        }
+        batches = 0;
+        samples = 0;
+        nanos = 0;
+        allocatedBytes = 0;
+        gcMillis = 0;
+        peakHeapBytes = 0;
+        loss = 0;
+        correct = 0;
+    }
+
+    public double samplesPerSecond() {
+        return nanos == 0 ? 0 : samples / (nanos / 1e9);
+    }
+
+    public double meanLoss() {
+        return samples == 0 ? 0 : loss / samples;
+    }
+
+    public double accuracy() {
+        return samples == 0 ? 0 : correct / (double) samples;
+    }
+
+    public double allocatedBytesPerBatch() {
+        return batches == 0 ? 0 : allocatedBytes / (double) batches;
+    }
+
+    public long totalForwardNanos() {
+        return sum(forwardNanos);
+    }
+
+    public long totalBackwardNanos() {
+        return sum(backwardNanos);
+    }
+
+    public long totalStepNanos() {
+        return sum(stepNanos);
+    }
+
+    static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    // Bytes allocated so far by the calling thread
+    static long allocatedBytes() {
+        return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    // Milliseconds the JVM has spent collecting garbage so far
+    static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    // Heap in use right now. The peaks are sampled rather than read from the
+    // memory pools, whose peaks are shared by the whole JVM and can only be reset
+    // for everyone at once.
+    static long heapUsedBytes() {
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%d samples, %.1f samples/s, loss %.4f, accuracy %.2f%%, forward %.1f ms, backward %.1f ms, "
+                        + "step %.1f ms, %.1f KB allocated/batch, gc %d ms, peak heap %.1f MB",
+                samples, samplesPerSecond(), meanLoss(), accuracy() * 100, totalForwardNanos() / 1e6,
+                totalBackwardNanos() / 1e6, totalStepNanos() / 1e6, allocatedBytesPerBatch() / 1024, gcMillis,
+                peakHeapBytes / (1024.0 * 1024));
+    }
+
+    /**
+     * JFR event committed for every batch while recording
+     */
+    @Name("NeuralNetwork.Batch")
+    @Label("Batch")
+    @Category("Neural Network")
+    @Description("One mini-batch learned by a network")
+    static class BatchEvent extends Event {
+        @Label("Epoch")
+        int epoch;
+
+        @Label("Samples")
+        int samples;
+
+        @Label("Mean Loss")
+        double loss;
+
+        @Label("Accuracy")
+        double accuracy;
+
+        @Label("Forward Time")
+        @Timespan
+        long forwardNanos;
+
+        @Label("Backward Time")
+        @Timespan
+        long backwardNanos;
+
+        @Label("Step Time")
+        @Timespan
+        long stepNanos;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    /**
+     * JFR event committed at the end of every epoch while recording
+     */
+    @Name("NeuralNetwork.Epoch")
+    @Label("Epoch")
+    @Category("Neural Network")
+    @Description("Totals of one epoch of learning")
+    static class EpochEvent extends Event {
+        @Label("Epoch")
+        int epoch;
+
+        @Label("Samples")
+        long samples;
+
+        @Label("Samples Per Second")
+        double samplesPerSecond;
+
+        @Label("Mean Loss")
+        double loss;
+
+        @Label("Accuracy")
+        double accuracy;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+
+        @Label("GC Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long gcMillis;
+
+        @Label("Peak Heap")
+        @DataAmount
+        long peakHeapBytes;
+    }
+}
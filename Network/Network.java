@@ -1,31 +1,474 @@
 package Network;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+import Functions.Activation;
+import Functions.Optimizer;
+import Functions.OptimizerFunction;
+
 public class Network {
+    // Most samples a worker feeds through the layers in one matrix multiply, a
+    // multiple of BatchNorm.GHOST_BATCH_SIZE
+    static final int BLOCK_SIZE = 64;
+
+    // Fully-connected layers, and every layer in the order samples are fed
+    // through them
     Layer[] layers;
+    NetworkLayer[] stack;
     HyperParameter params;
-    NetworkData[] batchLearnData;
+
+    // Number of completed epochs, drives the learn rate schedule
+    int epoch;
+
+    // One set of learn data (and gradient accumulators) per worker
+    NetworkData[] workerLearnData;
+    ForkJoinPool pool;
+
+    // Native memory of the off-heap layers, null unless the hyper parameters
+    // put them off-heap
+    Arena arena;
+
+    // Instrumentation, only collected while a listener is registered or JFR is
+    // recording the network's events
+    final List<TrainingListener> listeners = new CopyOnWriteArrayList<>();
+    Metrics batchMetrics;
+    Metrics epochMetrics;
+    long epochStartGcMillis;
+
+    // Whether the batch being learned is instrumented
+    boolean instrument;
+
+    // Sums the gradients of the replicas in data-parallel training, null when
+    // training alone. The buffer holds every layer's gradients and statistics
+    // followed by the sample count.
+    AllReduce allReduce;
+    double[] reduceBuffer;
+
+    // Evaluator behind cost and evaluate, created the first time either is called
+    Evaluator evaluator;
 
     public Network(HyperParameter network) {
+        this(network, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param network
+     * @param threads : number of worker threads used when learning
+     */
+    public Network(HyperParameter network, int threads) {
+        this(network, threads, true);
+    }
+
+    /**
+     * @param network
+     * @param threads    : number of worker threads used when learning
+     * @param initialize : whether to draw the initial weights, false when they're
+     *                   about to be loaded
+     */
+    Network(HyperParameter network, int threads, boolean initialize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1, got " + threads);
+        }
+        if (network.offHeap && network.precision != Precision.Double) {
+            throw new IllegalArgumentException("Off-heap layers train in Double precision, not " + network.precision);
+        }
+
         // Initialize number of layers to be one less than the
         // number of given layers
         // Input layer isn't considered as a layer for this model
         this.layers = new Layer[network.layerSizes.length - 1];
 
-        // Initialize the layers in the network
-        // Each value in the layers array corresponds
-        // to the number of nodes in that layer of the network
-        for (int i = 0; i < network.layerSizes.length - 1; i++) {
-            this.layers[i] = new Layer(network.layerSizes[i], network.layerSizes[i + 1],
-                    network.initialWeightsValues[i],
-                    network.activation,
-                    network.initialWeights,
-                    network.costFunction);
+        // Every layer gets its own generator, split off in order so the initial
+        // weights don't depend on which thread draws them
+        SplittableRandom random = network.seed != null ? new SplittableRandom(network.seed)
+                : new SplittableRandom();
+        SplittableRandom[] generators = new SplittableRandom[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            generators[i] = random.split();
+        }
+
+        pool = new ForkJoinPool(threads);
+        arena = network.offHeap ? new Arena() : null;
+        try {
+            // Initialize the layers in the network in parallel
+            // Each value in the layers array corresponds
+            // to the number of nodes in that layer of the network
+            pool.submit(() -> IntStream.range(0, layers.length).parallel().forEach(i -> {
+                Activation.ActivationFunctionType activation = i == network.layerSizes.length - 2
+                        ? network.outputActivation
+                        : network.activation;
+                OptimizerFunction optimizer = Optimizer.getOptimizerFunction(network.optimizer, network.beta2,
+                        network.epsilon);
+                SplittableRandom generator = initialize ? generators[i] : null;
+                layers[i] = arena != null
+                        ? new OffHeapLayer(network.layerSizes[i], network.layerSizes[i + 1],
+                                network.initialWeightsValues[i], activation, network.initialWeights,
+                                network.costFunction, optimizer, generator, arena)
+                        : new Layer(network.layerSizes[i], network.layerSizes[i + 1],
+                                network.initialWeightsValues[i], activation, network.initialWeights,
+                                network.costFunction, optimizer, generator);
+            })).join();
+
+            params = network;
+            stack = pool.submit(() -> buildStack(network, random, initialize)).join();
+            pool.submit(() -> Arrays.stream(stack).parallel()
+                    .forEach(layer -> layer.setPrecision(network.precision))).join();
+
+            // With checkpointing, the buffers every worker shares between segments
+            // are as long as the longest request of any layer sharing them
+            BlockBuffers sizes = null;
+            if (network.checkpointSegment > 0) {
+                sizes = BlockBuffers.sizing();
+                new NetworkData(stack, network.checkpointSegment, sizes);
+            }
+            workerLearnData = new NetworkData[threads];
+            for (int i = 0; i < threads; i++) {
+                workerLearnData[i] = sizes == null ? new NetworkData(stack)
+                        : new NetworkData(stack, network.checkpointSegment, BlockBuffers.shared(sizes));
+            }
+        } catch (RuntimeException e) {
+            shutdown();
+            throw e;
         }
 
-        params = network;
+        batchMetrics = new Metrics(stack.length);
+        epochMetrics = new Metrics(stack.length);
+        epochStartGcMillis = Metrics.gcMillis();
     }
 
     /**
+     * Puts the layers the hyper parameters ask for after every hidden
+     * fully-connected layer. With batch normalization the fully-connected layer
+     * only computes the weighted inputs, which are normalized and then
+     * activated: dense, batch norm, activation, dropout.
+     * 
+     * @param network
+     * @param random     : source of the convolution weights and dropout seeds
+     * @param initialize : whether to draw the convolution weights
+     * @return
+     */
+    NetworkLayer[] buildStack(HyperParameter network, SplittableRandom random, boolean initialize) {
+        if (!network.batchNorm && network.dropout == 0 && network.imageLayers.isEmpty()) {
+            return layers;
+        }
+
+        List<NetworkLayer> stack = new ArrayList<>();
+        if (!network.imageLayers.isEmpty()) {
+            addImageLayers(network, stack, random, initialize);
+        }
+
+        for (int i = 0; i < layers.length; i++) {
+            stack.add(layers[i]);
+            if (i == layers.length - 1) {
+                break;
+            }
+
+            int size = layers[i].outNodes;
+            if (network.batchNorm) {
+                layers[i].setActivation(Activation.ActivationFunctionType.Linear);
+                stack.add(new BatchNorm(size,
+                        Optimizer.getOptimizerFunction(network.optimizer, network.beta2, network.epsilon)));
+                stack.add(new ActivationLayer(size, network.activation));
+            }
+            if (network.dropout > 0) {
+                stack.add(new Dropout(size, network.dropout, random.nextLong()));
+            }
+        }
+        return stack.toArray(new NetworkLayer[0]);
+    }
+
+    // Adds the convolution and pooling layers, which take the network's inputs
+    // and feed the first fully-connected layer
+    void addImageLayers(HyperParameter network, List<NetworkLayer> stack, SplittableRandom random,
+            boolean initialize) {
+        if (network.inputShape == null) {
+            throw new IllegalArgumentException("Convolution and pooling layers need an input shape");
+        }
+
+        int height = network.inputShape[0];
+        int width = network.inputShape[1];
+        int channels = network.inputShape[2];
+
+        for (HyperParameter.ImageLayer image : network.imageLayers) {
+            if (image.pooling == null) {
+                // Split off even when the weights are loaded, so the dropout seeds
+                // drawn after it stay the same
+                SplittableRandom generator = random.split();
+                Conv2D convolution = new Conv2D(height, width, channels, image.filters, image.kernelSize,
+                        image.stride, image.padding, network.activation, network.initialWeights,
+                        Optimizer.getOptimizerFunction(network.optimizer, network.beta2, network.epsilon),
+                        initialize ? generator : null);
+                stack.add(convolution);
+                height = convolution.outHeight;
+                width = convolution.outWidth;
+                channels = convolution.filters;
+            } else {
+                Pooling pooling = new Pooling(height, width, channels, image.kernelSize, image.pooling);
+                stack.add(pooling);
+                height = pooling.outHeight;
+                width = pooling.outWidth;
+            }
+        }
+
+        if (height * width * channels != layers[0].inNodes) {
+            throw new IllegalArgumentException("The first layer takes " + layers[0].inNodes
+                    + " inputs but the image layers output " + height + "x" + width + "x" + channels);
+        }
+    }
+
+    /**
+     * Merges every layer that isn't fully-connected into the fully-connected
+     * layer before it, which is what inference computes
+     * 
+     * @return the network's fully-connected layers if there's nothing to merge
+     * @throws UnsupportedOperationException if the network starts with image
+     *                                       layers
+     */
+    Layer[] foldedLayers() {
+        if (stack == layers && arena == null) {
+            return layers;
+        }
+        if (!(stack[0] instanceof Layer)) {
+            throw new UnsupportedOperationException("Only fully-connected networks can be compiled");
+        }
+
+        // Off-heap layers are copied onto the heap first
+        Layer[] folded = new Layer[layers.length];
+        int count = 0;
+        for (NetworkLayer layer : stack) {
+            if (layer instanceof Layer) {
+                folded[count++] = ((Layer) layer).onHeap();
+            } else {
+                folded[count - 1] = layer.fold(folded[count - 1]);
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * Registers a listener for the metrics collected while learning, which turns
+     * the instrumentation on
+     * 
+     * @param listener
+     */
+    public void addListener(TrainingListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(TrainingListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Metrics summed over the batches of the current epoch so far, only collected
+     * while instrumented
+     * 
+     * @return
+     */
+    public Metrics getEpochMetrics() {
+        return epochMetrics;
+    }
+
+    /**
+     * Memory the workers keep for the blocks they feed through the layers: the
+     * outputs, gradients and scratch of every layer, and the checkpoints when
+     * checkpointing. Parameter gradients aren't included.
+     * 
+     * @return size in bytes, summed over the workers
+     */
+    public long blockBufferBytes() {
+        long bytes = 0;
+        for (NetworkData data : workerLearnData) {
+            bytes += data.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Runs one mini-batch with the learn rate scheduled for the current epoch and
+     * the momentum and regularization from the hyper parameters
+     * 
+     * @param trainingData
+     */
+    public void learn(DataPoint[] trainingData) {
+        learn(trainingData, params.learnRate(epoch), params.regularization, params.momentum);
+    }
+
+    /**
+     * Marks the end of an epoch, decaying the learn rate used by learn
+     */
+    public void endEpoch() {
+        Metrics.EpochEvent event = new Metrics.EpochEvent();
+        if (!listeners.isEmpty() || event.shouldCommit()) {
+            epochMetrics.gcMillis = Metrics.gcMillis() - epochStartGcMillis;
+            epochMetrics.peakHeapBytes = Math.max(epochMetrics.peakHeapBytes, Metrics.heapUsedBytes());
+
+            for (TrainingListener listener : listeners) {
+                listener.epochCompleted(this, epoch, epochMetrics);
+            }
+
+            if (event.shouldCommit()) {
+                event.epoch = epoch;
+                event.samples = epochMetrics.samples;
+                event.samplesPerSecond = epochMetrics.samplesPerSecond();
+                event.loss = epochMetrics.meanLoss();
+                event.accuracy = epochMetrics.accuracy();
+                event.allocatedBytes = epochMetrics.allocatedBytes;
+                event.gcMillis = epochMetrics.gcMillis;
+                event.peakHeapBytes = epochMetrics.peakHeapBytes;
+                event.commit();
+            }
+        }
+
+        epochMetrics.reset();
+        epochStartGcMillis = Metrics.gcMillis();
+        epoch++;
+    }
+
+    /**
+     * Makes this network one replica in data-parallel training. Every replica
+     * learns from its own shard of the data, and learn sums the gradients of all
+     * replicas before updating, so the replicas take the same steps as one
+     * network learning the combined batch. Every replica must learn the same
+     * number of batches.
+     * 
+     * Copies the parameters and the inference state, such as batch
+     * normalization's running averages, of replica 0 to every replica, so all
+     * replicas have to call this before learning. The batch statistics are
+     * summed with the gradients, so the replicas keep the same state.
+     * 
+     * @param allReduce
+     * @throws IOException
+     * @throws UnsupportedOperationException if the network is off-heap
+     */
+    public void distribute(AllReduce allReduce) throws IOException {
+        if (arena != null) {
+            throw new UnsupportedOperationException("Off-heap networks can't be distributed");
+        }
+
+        int parameters = 0;
+        int gradients = 0;
+        for (NetworkLayer layer : stack) {
+            for (double[] values : shared(layer, true)) {
+                parameters += values.length;
+            }
+            for (double[] values : shared(layer, false)) {
+                gradients += values.length;
+            }
+        }
+        double[] buffer = new double[Math.max(parameters, gradients + 1)];
+
+        // The other replicas contribute zeros, which leaves replica 0's values
+        // exact
+        if (allReduce.rank() == 0) {
+            pack(buffer, true);
+        }
+        allReduce.allReduce(buffer, parameters);
+        unpack(buffer, true);
+        for (Layer layer : layers) {
+            layer.syncWeights();
+        }
+
+        this.allReduce = allReduce;
+        reduceBuffer = buffer;
+    }
+
+    /**
+     * Sums the accumulated gradients, the batch statistics and the sample counts
+     * of every replica
+     * 
+     * @param count : number of samples learned by this replica
+     * @return number of samples learned by all replicas
+     */
+    long allReduceGradients(int count) {
+        int length = pack(reduceBuffer, false);
+        reduceBuffer[length] = count;
+        try {
+            allReduce.allReduce(reduceBuffer, length + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        unpack(reduceBuffer, false);
+        return (long) reduceBuffer[length];
+    }
+
+    // Arrays the replicas keep the same: the parameters and inference state
+    // copied from replica 0, or the gradients and statistics every step sums
+    static double[][] shared(NetworkLayer layer, boolean parameters) {
+        double[][] first = parameters ? layer.parameters() : layer.gradients();
+        double[][] second = parameters ? layer.state() : layer.statistics();
+        double[][] arrays = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, arrays, first.length, second.length);
+        return arrays;
+    }
+
+    // Copies every layer's shared arrays into buffer and returns the number of
+    // values copied
+    int pack(double[] buffer, boolean parameters) {
+        int offset = 0;
+        for (NetworkLayer layer : stack) {
+            for (double[] values : shared(layer, parameters)) {
+                System.arraycopy(values, 0, buffer, offset, values.length);
+                offset += values.length;
+            }
+        }
+        return offset;
+    }
+
+    void unpack(double[] buffer, boolean parameters) {
+        int offset = 0;
+        for (NetworkLayer layer : stack) {
+            for (double[] values : shared(layer, parameters)) {
+                System.arraycopy(buffer, offset, values, 0, values.length);
+                offset += values.length;
+            }
+        }
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Runs one mini-batch with the learn rate scheduled for the current epoch and
+     * the momentum and regularization from the hyper parameters
+     * 
+     * @param batch
+     */
+    public void learn(Batch batch) {
+        learn(batch, params.learnRate(epoch), params.regularization, params.momentum);
+    }
+
+    /**
+     * Runs one mini-batch of packed samples
+     * 
+     * @param batch
+     * @param learnRate
+     * @param regularization
+     * @param momentum
+     */
+    public void learn(Batch batch, double learnRate, double regularization, double momentum) {
+        learn(batch.size, (start, end, learnData) -> updateGradients(batch, start, end, learnData),
+                learnRate, regularization, momentum);
+    }
+
+    /**
+     * Runs one mini-batch
      * 
      * @param trainingData
      * @param learnRate
@@ -33,122 +476,658 @@ public class Network {
      * @param momentum
      */
     public void learn(DataPoint[] trainingData, double learnRate, double regularization, double momentum) {
-        if (batchLearnData == null || batchLearnData.length != trainingData.length) {
-            batchLearnData = new NetworkData[trainingData.length];
-            for (int i = 0; i < batchLearnData.length; i++) {
-                batchLearnData[i] = new NetworkData(layers);
+        learn(trainingData.length, (start, end, learnData) -> updateGradients(trainingData, start, end, learnData),
+                learnRate, regularization, momentum);
+    }
+
+    /**
+     * Runs one mini-batch. The batch is split into contiguous chunks, one per
+     * worker, and each worker accumulates gradients into its own buffers. The
+     * buffers are summed in worker order once every worker has finished, so the
+     * result doesn't depend on thread scheduling. In data-parallel training the
+     * summed gradients of every replica are all-reduced before the update.
+     * 
+     * @param count          : number of samples in the batch
+     * @param chunk          : accumulates the gradients of a range of samples
+     * @param learnRate
+     * @param regularization
+     * @param momentum
+     */
+    void learn(int count, Chunk chunk, double learnRate, double regularization, double momentum) {
+        Metrics.BatchEvent event = new Metrics.BatchEvent();
+        instrument = !listeners.isEmpty() || event.isEnabled();
+        long startNanos = 0;
+        long startAllocated = 0;
+        if (instrument) {
+            event.begin();
+            batchMetrics.reset();
+            startNanos = System.nanoTime();
+            startAllocated = Metrics.allocatedBytes();
+        }
+
+        // Chunks of a batch-normalized network hold whole ghost batches, so the
+        // normalization doesn't depend on the number of workers
+        int grain = params.batchNorm ? BatchNorm.GHOST_BATCH_SIZE : 1;
+        int grains = (count + grain - 1) / grain;
+        int workers = Math.min(workerLearnData.length, grains);
+
+        List<Callable<Void>> tasks = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            int start = Math.min(count, w * grains / workers * grain);
+            int end = Math.min(count, (w + 1) * grains / workers * grain);
+            NetworkData learnData = workerLearnData[w];
+
+            tasks.add(() -> {
+                long allocated = instrument ? Metrics.allocatedBytes() : 0;
+                chunk.updateGradients(start, end, learnData);
+                if (instrument) {
+                    learnData.metrics.allocatedBytes += Metrics.allocatedBytes() - allocated;
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+
+        // Reduce the worker gradients and update weights and biases, one task per
+        // layer
+        boolean distributed = allReduce != null;
+        tasks.clear();
+        for (NetworkLayer layer : stack) {
+            int index = tasks.size();
+            tasks.add(() -> {
+                long stepStart = instrument ? System.nanoTime() : 0;
+                for (int w = 0; w < workers; w++) {
+                    layer.accumulateGradients(workerLearnData[w].layerData[index]);
+                }
+                if (!distributed) {
+                    layer.gradient(learnRate, regularization, momentum, 1.0 / count);
+                }
+                if (instrument) {
+                    batchMetrics.stepNanos[index] = System.nanoTime() - stepStart;
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+
+        if (distributed) {
+            // Every replica updates with the average gradient over all replicas'
+            // samples
+            double gradientScale = 1.0 / allReduceGradients(count);
+
+            tasks.clear();
+            for (NetworkLayer layer : stack) {
+                int index = tasks.size();
+                tasks.add(() -> {
+                    long stepStart = instrument ? System.nanoTime() : 0;
+                    layer.gradient(learnRate, regularization, momentum, gradientScale);
+                    if (instrument) {
+                        batchMetrics.stepNanos[index] += System.nanoTime() - stepStart;
+                    }
+                    return null;
+                });
             }
+            invokeAll(tasks);
         }
 
-        for (int i = 0; i < trainingData.length; i++) {
-            DataPoint point = trainingData[i];
-            NetworkData batch = batchLearnData[i];
-            new Thread(() -> updateGradients(point, batch)).start();
+        if (instrument) {
+            for (int w = 0; w < workers; w++) {
+                batchMetrics.add(workerLearnData[w].metrics);
+                workerLearnData[w].metrics.reset();
+            }
+            batchMetrics.batches = 1;
+            batchMetrics.samples = count;
+            batchMetrics.nanos = System.nanoTime() - startNanos;
+            batchMetrics.allocatedBytes += Metrics.allocatedBytes() - startAllocated;
+            batchMetrics.peakHeapBytes = Metrics.heapUsedBytes();
+            epochMetrics.add(batchMetrics);
+
+            for (TrainingListener listener : listeners) {
+                listener.batchCompleted(this, batchMetrics);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.epoch = epoch;
+                event.samples = count;
+                event.loss = batchMetrics.meanLoss();
+                event.accuracy = batchMetrics.accuracy();
+                event.forwardNanos = batchMetrics.totalForwardNanos();
+                event.backwardNanos = batchMetrics.totalBackwardNanos();
+                event.stepNanos = batchMetrics.totalStepNanos();
+                event.allocatedBytes = batchMetrics.allocatedBytes;
+                event.commit();
+            }
         }
+    }
 
-        // Update weights and biases based on the calculated gradients
-        for (int i = 0; i < layers.length; i++) {
-            layers[i].gradient(learnRate / trainingData.length, regularization, momentum);
+    /**
+     * Runs one epoch of asynchronous (Hogwild) SGD with the learn rate scheduled
+     * for the current epoch.
+     * 
+     * Every worker claims batches of samples in a shuffled order and applies
+     * its gradients straight to the shared parameters as soon as it has them,
+     * without waiting for the other workers and without locks. A worker that's
+     * more than staleness updates ahead of the slowest worker waits for it to
+     * catch up. The result depends on thread scheduling.
+     * 
+     * @param data      : samples, read from every worker at once
+     * @param batchSize : samples per update
+     * @param staleness : most updates a worker may be ahead of the slowest one,
+     *                  Integer.MAX_VALUE for no bound
+     */
+    public void learnAsync(DataSource data, int batchSize, int staleness) {
+        learnAsync(data, batchSize, staleness, params.learnRate(epoch), params.regularization, params.momentum);
+    }
+
+    /**
+     * Runs one epoch of asynchronous (Hogwild) SGD
+     * 
+     * @param data
+     * @param batchSize      : samples per update
+     * @param staleness      : most updates a worker may be ahead of the slowest
+     *                       one, Integer.MAX_VALUE for no bound
+     * @param learnRate
+     * @param regularization
+     * @param momentum
+     */
+    public void learnAsync(DataSource data, int batchSize, int staleness, double learnRate,
+            double regularization, double momentum) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        if (staleness < 0) {
+            throw new IllegalArgumentException("Staleness must be at least 0, got " + staleness);
+        }
+        if (allReduce != null) {
+            throw new IllegalStateException("Asynchronous training can't be distributed");
+        }
+
+        int[] order = new int[data.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // A seeded network shuffles every epoch differently, but the same way every
+        // run: the epoch is spread over the seed's bits by the golden ratio
+        Random rng = params.seed != null ? new Random(params.seed ^ epoch * 0x9E3779B97F4A7C15L) : new Random();
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        int workers = workerLearnData.length;
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong updates = new AtomicLong(layers[0].step);
+
+        // Updates applied by every worker, Long.MAX_VALUE once it's done
+        AtomicLongArray progress = new AtomicLongArray(workers);
+
+        // Metrics are summed per batch, which doesn't apply here
+        instrument = false;
+
+        List<Callable<Void>> tasks = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            NetworkData learnData = workerLearnData[w];
+
+            tasks.add(() -> {
+                try {
+                    for (long applied = 0;; applied++) {
+                        int start = next.getAndAdd(batchSize);
+                        if (start >= order.length) {
+                            break;
+                        }
+                        int end = Math.min(start + batchSize, order.length);
+
+                        updateGradients(data, order, start, end, learnData);
+
+                        // Bound how far ahead of the slowest worker this one gets
+                        while (applied - min(progress) > staleness) {
+                            Thread.yield();
+                        }
+
+                        long step = updates.incrementAndGet();
+                        for (int l = 0; l < stack.length; l++) {
+                            stack[l].applyGradients(learnData.layerData[l], learnRate, regularization, momentum,
+                                    1.0 / (end - start), step);
+                        }
+                        progress.lazySet(worker, applied + 1);
+                    }
+                } finally {
+                    progress.set(worker, Long.MAX_VALUE);
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+
+        for (Layer layer : layers) {
+            layer.step = updates.get();
+        }
+    }
+
+    static long min(AtomicLongArray values) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < values.length(); i++) {
+            min = Math.min(min, values.get(i));
+        }
+        return min;
+    }
+
+    /**
+     * Reads the samples order[start] to order[end - 1] into blocks of at most
+     * BLOCK_SIZE samples and accumulates the gradients of every block
+     * 
+     * @param data
+     * @param order     : sample indices
+     * @param start     : index in order of the first sample
+     * @param end       : index in order after the last sample
+     * @param learnData
+     */
+    void updateGradients(DataSource data, int[] order, int start, int end, NetworkData learnData) {
+        int inputSize = stack[0].inputSize();
+        int outputSize = layers[layers.length - 1].outNodes;
+
+        for (int block = start; block < end; block += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, end - block);
+
+            for (int sample = 0; sample < count; sample++) {
+                data.read(order[block + sample], learnData.inputs, sample * inputSize, learnData.expectedOutputs,
+                        sample * outputSize);
+            }
+
+            updateGradients(learnData.inputs, learnData.expectedOutputs, count, learnData);
+        }
+    }
+
+    interface Chunk {
+        void updateGradients(int start, int end, NetworkData learnData);
+    }
+
+    /**
+     * Runs the tasks on the worker pool and waits for all of them to finish
+     * 
+     * @param tasks
+     */
+    void invokeAll(List<Callable<Void>> tasks) {
+        for (Future<Void> task : pool.invokeAll(tasks)) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
         }
     }
 
     /**
+     * Stops the worker threads used for learning, and frees the native memory of
+     * an off-heap network, which can't be used afterwards
+     */
+    public void shutdown() {
+        pool.shutdown();
+        if (arena != null) {
+            arena.close();
+        }
+    }
+
+    /**
+     * Native memory of the off-heap layers: their weights, gradients and
+     * optimizer state, and every worker's weight gradients
+     * 
+     * @return size in bytes, 0 unless the network is off-heap
+     */
+    public long offHeapBytes() {
+        return arena != null ? arena.bytes.get() : 0;
+    }
+
+    /**
+     * Packs the data points into blocks of at most BLOCK_SIZE samples and
+     * accumulates the gradients of every block
      * 
      * @param data
+     * @param start     : index of the first data point
+     * @param end       : index after the last data point
      * @param learnData
      */
-    void updateGradients(DataPoint data, NetworkData learnData) {
+    void updateGradients(DataPoint[] data, int start, int end, NetworkData learnData) {
+        int inputSize = stack[0].inputSize();
+        int outputSize = layers[layers.length - 1].outNodes;
+
+        for (int block = start; block < end; block += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, end - block);
+
+            for (int sample = 0; sample < count; sample++) {
+                DataPoint point = data[block + sample];
+                System.arraycopy(point.inputs, 0, learnData.inputs, sample * inputSize, inputSize);
+                System.arraycopy(point.expectedOutputs, 0, learnData.expectedOutputs, sample * outputSize,
+                        outputSize);
+            }
+
+            updateGradients(learnData.inputs, learnData.expectedOutputs, count, learnData);
+        }
+    }
+
+    /**
+     * Copies the samples of a batch into blocks of at most BLOCK_SIZE samples and
+     * accumulates the gradients of every block
+     * 
+     * @param batch
+     * @param start     : index of the first sample
+     * @param end       : index after the last sample
+     * @param learnData
+     */
+    void updateGradients(Batch batch, int start, int end, NetworkData learnData) {
+        int inputSize = stack[0].inputSize();
+        int outputSize = layers[layers.length - 1].outNodes;
+
+        for (int block = start; block < end; block += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, end - block);
+
+            System.arraycopy(batch.inputs, block * inputSize, learnData.inputs, 0, count * inputSize);
+            System.arraycopy(batch.expectedOutputs, block * outputSize, learnData.expectedOutputs, 0,
+                    count * outputSize);
+
+            updateGradients(learnData.inputs, learnData.expectedOutputs, count, learnData);
+        }
+    }
+
+    /**
+     * 
+     * @param inputs          : [count x input size] block of inputs
+     * @param expectedOutputs : [count x output size] block of expected outputs
+     * @param count           : number of samples in the block
+     * @param learnData
+     */
+    void updateGradients(double[] inputs, double[] expectedOutputs, int count, NetworkData learnData) {
+        // In 32-bit precision only the float copy of the inputs is fed through
+        if (learnData.inputsSingle != null) {
+            float[] inputsSingle = learnData.inputsSingle;
+            for (int i = 0; i < count * stack[0].inputSize(); i++) {
+                inputsSingle[i] = (float) inputs[i];
+            }
+            updateGradients(inputsSingle, expectedOutputs, count, learnData);
+            return;
+        }
+
         // Feed data through the network to calculate outputs.
         // Save all inputs/weightedinputs/activations along the way to use for
         // backpropagation.
-        Double[] inputsToNextLayer = data.inputs;
+        Metrics metrics = instrument ? learnData.metrics : null;
+        long time = metrics != null ? System.nanoTime() : 0;
 
-        for (int i = 0; i < layers.length; i++) {
-            inputsToNextLayer = layers[i].outputs(inputsToNextLayer, learnData.layerData[i]);
+        // When checkpointing, only the outputs of every segment are kept once
+        // the next segment has run
+        int segment = learnData.segment;
+        double[] inputsToNextLayer = inputs;
+        for (int i = 0; i < stack.length; i++) {
+            inputsToNextLayer = stack[i].forward(inputsToNextLayer, learnData.layerData[i], count, true);
+            if (segment > 0 && (i + 1) % segment == 0 && i + 1 < stack.length) {
+                double[] checkpoint = learnData.checkpoints[i / segment];
+                System.arraycopy(inputsToNextLayer, 0, checkpoint, 0, count * stack[i].outputSize());
+                inputsToNextLayer = checkpoint;
+            }
+            if (metrics != null) {
+                time = lap(metrics.forwardNanos, i, time);
+            }
         }
 
         // -- Backpropagation --
-        int outputLayerIndex = layers.length - 1;
-        Layer outputLayer = layers[outputLayerIndex];
+        int outputLayerIndex = stack.length - 1;
+        Layer outputLayer = layers[layers.length - 1];
         LayerData outputLearnData = learnData.layerData[outputLayerIndex];
 
+        // Running loss and accuracy come from the forward pass that was just done
+        if (metrics != null) {
+            metrics.loss += outputLayer.cost(outputLearnData, expectedOutputs, count);
+            metrics.correct += countCorrect(outputLearnData.activations, expectedOutputs, count,
+                    outputLayer.outNodes);
+            time = System.nanoTime();
+        }
+
         // Update output layer gradients
-        outputLayer.calculateOutputLayerNodeValues(outputLearnData, data.expectedOutputs);
-        outputLayer.updateGradients(outputLearnData);
+        outputLayer.calculateOutputLayerNodeValues(outputLearnData, expectedOutputs, count);
+        outputLayer.updateGradients(outputLearnData, count);
+        double[] gradients = outputLayer.inputGradients(outputLearnData, count);
+        if (metrics != null) {
+            time = lap(metrics.backwardNanos, outputLayerIndex, time);
+        }
 
-        // Update all hidden layer gradients
+        // Feed the gradients back through the other layers
         for (int i = outputLayerIndex - 1; i >= 0; i--) {
-            LayerData layerLearnData = learnData.layerData[i];
-            Layer hiddenLayer = layers[i];
+            if (segment > 0 && (i + 1) % segment == 0) {
+                gradients = recompute(i, gradients, inputs, count, learnData);
+                if (metrics != null) {
+                    time = System.nanoTime();
+                }
+            }
+            gradients = stack[i].backward(gradients, learnData.layerData[i], count);
+            if (metrics != null) {
+                time = lap(metrics.backwardNanos, i, time);
+            }
+        }
+    }
+
+    /**
+     * Float version of updateGradients, for networks training in 32-bit
+     * precision
+     * 
+     * @param inputs          : [count x input size] block of float inputs
+     * @param expectedOutputs
+     * @param count
+     * @param learnData
+     */
+    void updateGradients(float[] inputs, double[] expectedOutputs, int count, NetworkData learnData) {
+        Metrics metrics = instrument ? learnData.metrics : null;
+        long time = metrics != null ? System.nanoTime() : 0;
 
-            hiddenLayer.calculateHiddenLayerNodeValues(layerLearnData, layers[i + 1],
-                    learnData.layerData[i + 1].nodeValues);
-            hiddenLayer.updateGradients(layerLearnData);
+        int segment = learnData.segment;
+        float[] inputsToNextLayer = inputs;
+        for (int i = 0; i < stack.length; i++) {
+            inputsToNextLayer = stack[i].forward(inputsToNextLayer, learnData.layerData[i], count, true);
+            if (segment > 0 && (i + 1) % segment == 0 && i + 1 < stack.length) {
+                float[] checkpoint = learnData.checkpointsSingle[i / segment];
+                System.arraycopy(inputsToNextLayer, 0, checkpoint, 0, count * stack[i].outputSize());
+                inputsToNextLayer = checkpoint;
+            }
+            if (metrics != null) {
+                time = lap(metrics.forwardNanos, i, time);
+            }
+        }
+
+        int outputLayerIndex = stack.length - 1;
+        Layer outputLayer = layers[layers.length - 1];
+        LayerData outputLearnData = learnData.layerData[outputLayerIndex];
+
+        if (metrics != null) {
+            metrics.loss += outputLayer.cost(outputLearnData, expectedOutputs, count);
+            metrics.correct += countCorrect(outputLearnData.activationsSingle, expectedOutputs, count,
+                    outputLayer.outNodes);
+            time = System.nanoTime();
         }
 
+        outputLayer.calculateOutputLayerNodeValues(outputLearnData, expectedOutputs, count);
+        outputLayer.updateGradients(outputLearnData, count);
+        float[] gradients = outputLayer.inputGradientsSingle(outputLearnData, count);
+        if (metrics != null) {
+            time = lap(metrics.backwardNanos, outputLayerIndex, time);
+        }
+
+        for (int i = outputLayerIndex - 1; i >= 0; i--) {
+            if (segment > 0 && (i + 1) % segment == 0) {
+                gradients = recompute(i, gradients, inputs, count, learnData);
+                if (metrics != null) {
+                    time = System.nanoTime();
+                }
+            }
+            gradients = stack[i].backward(gradients, learnData.layerData[i], count);
+            if (metrics != null) {
+                time = lap(metrics.backwardNanos, i, time);
+            }
+        }
     }
 
     /**
-     * Gets the total cost of the currect network
+     * Feeds the inputs of a segment through it again so its layer data holds
+     * what backward needs, after the segments behind it overwrote the buffers
+     * it shares with them
      * 
-     * @param inputs
-     * @param expected
-     * @return
+     * @param last      : index of the segment's last layer
+     * @param gradients : [count x outputs] gradient with respect to the
+     *                  segment's outputs
+     * @param inputs    : the network's inputs
+     * @param count
+     * @param learnData
+     * @return the gradients, copied out of the shared buffers
      */
-    public double cost(Double[][] inputs, double[][] expected) {
-        double totalCost = 0;
+    double[] recompute(int last, double[] gradients, double[] inputs, int count, NetworkData learnData) {
+        int segment = learnData.segment;
+        double[] carry = learnData.carry;
+        System.arraycopy(gradients, 0, carry, 0, count * stack[last].outputSize());
 
-        for (int i = 0; i < inputs.length; i++) {
-            totalCost += loss(inputs[i], expected[i]);
+        Metrics metrics = instrument ? learnData.metrics : null;
+        long time = metrics != null ? System.nanoTime() : 0;
+
+        int first = last + 1 - segment;
+        double[] in = first == 0 ? inputs : learnData.checkpoints[first / segment - 1];
+        for (int i = first; i <= last; i++) {
+            in = stack[i].recompute(in, learnData.layerData[i], count);
+            if (metrics != null) {
+                time = lap(metrics.forwardNanos, i, time);
+            }
+        }
+        return carry;
+    }
+
+    // Float version of recompute
+    float[] recompute(int last, float[] gradients, float[] inputs, int count, NetworkData learnData) {
+        int segment = learnData.segment;
+        float[] carry = learnData.carrySingle;
+        System.arraycopy(gradients, 0, carry, 0, count * stack[last].outputSize());
+
+        Metrics metrics = instrument ? learnData.metrics : null;
+        long time = metrics != null ? System.nanoTime() : 0;
+
+        int first = last + 1 - segment;
+        float[] in = first == 0 ? inputs : learnData.checkpointsSingle[first / segment - 1];
+        for (int i = first; i <= last; i++) {
+            in = stack[i].recompute(in, learnData.layerData[i], count);
+            if (metrics != null) {
+                time = lap(metrics.forwardNanos, i, time);
+            }
+        }
+        return carry;
+    }
+
+    // Adds the time since the given time to nanos[index] and returns the current
+    // time
+    static long lap(long[] nanos, int index, long since) {
+        long now = System.nanoTime();
+        nanos[index] += now - since;
+        return now;
+    }
+
+    // Number of samples in a block whose largest output is the largest expected
+    // output
+    static int countCorrect(double[] outputs, double[] expectedOutputs, int count, int size) {
+        int correct = 0;
+        for (int sample = 0; sample < count; sample++) {
+            int row = sample * size;
+            int predicted = 0;
+            int expected = 0;
+            for (int i = 1; i < size; i++) {
+                if (outputs[row + i] > outputs[row + predicted]) {
+                    predicted = i;
+                }
+                if (expectedOutputs[row + i] > expectedOutputs[row + expected]) {
+                    expected = i;
+                }
+            }
+            if (predicted == expected) {
+                correct++;
+            }
         }
+        return correct;
+    }
 
-        return totalCost / inputs.length;
+    static int countCorrect(float[] outputs, double[] expectedOutputs, int count, int size) {
+        int correct = 0;
+        for (int sample = 0; sample < count; sample++) {
+            int row = sample * size;
+            int predicted = 0;
+            int expected = 0;
+            for (int i = 1; i < size; i++) {
+                if (outputs[row + i] > outputs[row + predicted]) {
+                    predicted = i;
+                }
+                if (expectedOutputs[row + i] > expectedOutputs[row + expected]) {
+                    expected = i;
+                }
+            }
+            if (predicted == expected) {
+                correct++;
+            }
+        }
+        return correct;
     }
 
     /**
-     * Calculates the loss of the given input
+     * Gets the mean cost of the currect network, evaluated in parallel blocks
      * 
-     * @param <T>
      * @param inputs
      * @param expected
      * @return
      */
-    public <T extends Number> Double loss(T[] inputs, double[] expected) {
-        Double[] outputs = forwardPropogation(inputs);
-        double cost = 0;
+    public double cost(double[][] inputs, double[][] expected) {
+        return evaluate(new Data(inputs, expected)).cost();
+    }
 
-        for (int out = 0; out < outputs.length; out++) {
-            cost += outCost(outputs[out], expected[out]);
+    /**
+     * Scores the network over a data set, see Evaluator. Every call reuses the
+     * same evaluator, so calls are serialized.
+     * 
+     * @param data
+     * @return cost, accuracy and confusion matrix
+     */
+    public synchronized Evaluation evaluate(DataSource data) {
+        if (evaluator == null) {
+            evaluator = new Evaluator(this);
         }
-
-        return cost;
+        return evaluator.evaluate(data);
     }
 
     /**
-     * Loops over every layer and returns the output layer's values
+     * Calculates the loss of the given input
      * 
-     * @param <T>
      * @param inputs
+     * @param expected
      * @return
      */
-    @SuppressWarnings("unchecked")
-    public <T extends Number> Double[] forwardPropogation(T[] inputs) {
-        for (Layer l : layers) {
-            inputs = (T[]) l.outputs(inputs);
+    public double loss(double[] inputs, double[] expected) {
+        for (int l = 0; l < stack.length - 1; l++) {
+            inputs = stack[l].outputs(inputs);
         }
-        return (Double[]) inputs;
+
+        // The output layer computes the cost from its weighted inputs, so a softmax
+        // cross-entropy cost is taken before the softmax
+        return layers[layers.length - 1].cost(inputs, expected);
     }
 
     /**
-     * Error cost calculation
+     * Loops over every layer and returns the output layer's values
      * 
-     * @param actual
-     * @param expected
+     * @param inputs
      * @return
      */
-    public double outCost(double actual, double expected) {
-        double error = actual - expected;
-        return error * error;
+    public double[] forwardPropogation(double[] inputs) {
+        for (NetworkLayer l : stack) {
+            inputs = l.outputs(inputs);
+        }
+        return inputs;
     }
 
     /**
@@ -157,19 +1136,39 @@ public class Network {
      * @param inputs
      * @return
      */
-    public Object[] classify(Double[] inputs) {
-        Double[] outputs = forwardPropogation(inputs);
+    public Object[] classify(double[] inputs) {
+        double[] outputs = forwardPropogation(inputs);
         int id = arrayMax(outputs);
         return new Object[] { id, outputs };
     }
 
+    /**
+     * Compiles a frozen copy of the network for allocation-free inference
+     * 
+     * @return
+     */
+    public InferenceModel compile() {
+        return InferenceModel.compile(this);
+    }
+
+    /**
+     * Quantizes a copy of the network to int8 weights for inference
+     * 
+     * @param calibration : samples used to pick the activation scales
+     * @param samples     : most calibration samples to use
+     * @return
+     */
+    public QuantizedModel quantize(DataSource calibration, int samples) {
+        return QuantizedModel.quantize(this, calibration, samples);
+    }
+
     /**
      * Finds the max value in an array and returns the index of the value
      * 
      * @param inputs
      * @return
      */
-    private int arrayMax(Double[] inputs) {
+    private int arrayMax(double[] inputs) {
         int max = 0;
         for (int i = 0; i < inputs.length; i++) {
             if (inputs[i] > inputs[max]) {
@@ -182,11 +1181,88 @@ public class Network {
     class NetworkData {
         public LayerData[] layerData;
 
-        public NetworkData(Layer[] layers) {
+        // Blocks the data points are packed into before being fed through the layers
+        public double[] inputs;
+        public double[] expectedOutputs;
+
+        // Metrics of the worker's share of the current batch
+        public Metrics metrics;
+
+        // Layers per segment when checkpointing, 0 otherwise. Every segment but
+        // the last keeps its outputs in its checkpoint, and the gradient with
+        // respect to them is copied into carry before the segment is
+        // recomputed, since recomputing overwrites the buffers it was in.
+        final int segment;
+        double[][] checkpoints;
+        double[] carry;
+
+        // Float copy of the inputs block the network feeds through in 32-bit
+        // precision, with float checkpoints and carry in place of the double
+        // ones, null otherwise
+        public float[] inputsSingle;
+        float[][] checkpointsSingle;
+        float[] carrySingle;
+
+        // Bytes of the buffers that grow with the block size
+        final long bytes;
+
+        public NetworkData(NetworkLayer[] layers) {
+            this(layers, 0, new BlockBuffers());
+        }
+
+        /**
+         * @param layers
+         * @param segment : layers per checkpointed segment, 0 to keep the
+         *                outputs of every layer
+         * @param buffers : source of the layers' block buffers
+         */
+        NetworkData(NetworkLayer[] layers, int segment, BlockBuffers buffers) {
+            this.segment = segment;
             layerData = new LayerData[layers.length];
             for (int i = 0; i < layers.length; i++) {
-                layerData[i] = new LayerData(layers[i]);
+                // Layers at the same position of different segments share buffers
+                buffers.select(segment > 0 ? i % segment : i);
+                // Nothing needs the gradients of the network's inputs
+                layerData[i] = layers[i].createData(BLOCK_SIZE, i > 0, buffers);
+            }
+
+            boolean single = params.precision != Precision.Double;
+            long checkpointBytes = 0;
+            if (segment > 0) {
+                int segments = (layers.length + segment - 1) / segment;
+                int[] sizes = new int[segments - 1];
+                int width = 0;
+                for (int k = 0; k < segments - 1; k++) {
+                    sizes[k] = BLOCK_SIZE * layers[(k + 1) * segment - 1].outputSize();
+                    width = Math.max(width, sizes[k]);
+                    checkpointBytes += sizes[k];
+                }
+                checkpointBytes += width;
+
+                if (single) {
+                    checkpointsSingle = new float[segments - 1][];
+                    for (int k = 0; k < segments - 1; k++) {
+                        checkpointsSingle[k] = new float[sizes[k]];
+                    }
+                    carrySingle = new float[width];
+                    checkpointBytes *= 4;
+                } else {
+                    checkpoints = new double[segments - 1][];
+                    for (int k = 0; k < segments - 1; k++) {
+                        checkpoints[k] = new double[sizes[k]];
+                    }
+                    carry = new double[width];
+                    checkpointBytes *= 8;
+                }
+            }
+            bytes = buffers.bytes + checkpointBytes;
+
+            inputs = new double[BLOCK_SIZE * layers[0].inputSize()];
+            if (single) {
+                inputsSingle = new float[BLOCK_SIZE * layers[0].inputSize()];
             }
+            expectedOutputs = new double[BLOCK_SIZE * layers[layers.length - 1].outputSize()];
+            metrics = new Metrics(layers.length);
         }
     }
 }
\ No newline at end of file
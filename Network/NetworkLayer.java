@@ -0,0 +1,280 @@
+package Network;
+
+/**
+ * One stage of a network. A network feeds blocks of samples forward through
+ * its layers in order, then feeds the gradient of the cost back through them
+ * in reverse, every layer turning the gradient with respect to its outputs
+ * into the gradient with respect to its inputs and accumulating the
+ * gradients of its own parameters along the way.
+ *
+ * Blocks are [count x size] row-major arrays. Every worker thread owns one
+ * LayerData per layer, created by createData, so the passes keep their state
+ * there and not in the layer. Parameter gradients accumulated in the
+ * LayerData are summed into the layer by accumulateGradients, one thread per
+ * layer, before gradient takes a step.
+ *
+ * In 32-bit precision the network feeds float blocks through the float
+ * passes instead, and the layer data holds float buffers. Layers without
+ * float passes of their own convert the blocks to and from the double passes
+ * through the buffers LayerData.convert adds.
+ */
+public interface NetworkLayer {
+    /**
+     * @return number of values per sample the layer takes
+     */
+    public int inputSize();
+
+    /**
+     * @return number of values per sample the layer produces
+     */
+    public int outputSize();
+
+    /**
+     * Sets the precision of the training passes, before any layer data is
+     * created
+     *
+     * @param precision
+     */
+    public default void setPrecision(Precision precision) {
+    }
+
+    /**
+     * Allocates the buffers of one worker's passes
+     *
+     * @param batchSize : the most samples that are fed through the layer at once
+     * @param propagate : whether backward has to compute the gradient with
+     *                  respect to the inputs, false for the first layer
+     * @return
+     */
+    public default LayerData createData(int batchSize, boolean propagate) {
+        return createData(batchSize, propagate, new BlockBuffers());
+    }
+
+    /**
+     * Allocates the buffers of one worker's passes, taking every buffer that
+     * grows with the block size from buffers. Nothing may be kept in those
+     * between backward and the next forward, other layers may share them.
+     *
+     * @param batchSize
+     * @param propagate
+     * @param buffers
+     * @return
+     */
+    public LayerData createData(int batchSize, boolean propagate, BlockBuffers buffers);
+
+    /**
+     * Allocates the buffers of one worker's inference passes, only what forward
+     * writes when not training
+     *
+     * @param batchSize : the most samples that are fed through the layer at once
+     * @return
+     */
+    public default LayerData createInferenceData(int batchSize) {
+        return createData(batchSize, false);
+    }
+
+    /**
+     * Feeds one sample through the layer for inference
+     *
+     * @param inputs
+     * @return a new array of outputs
+     */
+    public double[] outputs(double[] inputs);
+
+    /**
+     * Feeds a block of samples through the layer, keeping what backward needs
+     * in the layer data
+     *
+     * @param inputs   : [count x inputSize()] block, left untouched until
+     *                 backward is done
+     * @param data
+     * @param count    : number of samples in the block
+     * @param training : whether the block is being learned, which turns on
+     *                 dropout and batch statistics
+     * @return [count x outputSize()] block, owned by data, or the inputs
+     *         themselves for layers that pass them through
+     */
+    public double[] forward(double[] inputs, LayerData data, int count, boolean training);
+
+    /**
+     * Repeats the last learning forward pass over the same inputs, for networks
+     * that don't keep the outputs of every layer and recompute them before
+     * backward. Layers that draw random numbers or collect statistics while
+     * learning must repeat the same pass without collecting twice.
+     *
+     * @param inputs : the block the last forward pass was given
+     * @param data
+     * @param count
+     * @return [count x outputSize()] block
+     */
+    public default double[] recompute(double[] inputs, LayerData data, int count) {
+        return forward(inputs, data, count, true);
+    }
+
+    /**
+     * Backpropagates a block that was just fed forward in training, adding the
+     * gradients of the layer's parameters to the layer data
+     *
+     * @param outputGradients : [count x outputSize()] gradient of the cost with
+     *                        respect to the outputs
+     * @param data
+     * @param count
+     * @return [count x inputSize()] gradient of the cost with respect to the
+     *         inputs, owned by data, or null if the data doesn't propagate
+     */
+    public double[] backward(double[] outputGradients, LayerData data, int count);
+
+    /**
+     * Float version of forward, for layer data created in 32-bit precision
+     *
+     * @param inputs   : [count x inputSize()] block, left untouched until
+     *                 backward is done
+     * @param data
+     * @param count
+     * @param training
+     * @return [count x outputSize()] block, owned by data, or the inputs
+     *         themselves
+     */
+    public default float[] forward(float[] inputs, LayerData data, int count, boolean training) {
+        double[] convertedInputs = data.convertedInputs;
+        for (int i = 0; i < count * inputSize(); i++) {
+            convertedInputs[i] = inputs[i];
+        }
+        return single(forward(convertedInputs, data, count, training), data, count);
+    }
+
+    /**
+     * Float version of recompute
+     *
+     * @param inputs
+     * @param data
+     * @param count
+     * @return [count x outputSize()] block
+     */
+    public default float[] recompute(float[] inputs, LayerData data, int count) {
+        // Layers with float passes of their own don't convert
+        if (data.convertedInputs == null) {
+            return forward(inputs, data, count, true);
+        }
+
+        double[] convertedInputs = data.convertedInputs;
+        for (int i = 0; i < count * inputSize(); i++) {
+            convertedInputs[i] = inputs[i];
+        }
+        return single(recompute(convertedInputs, data, count), data, count);
+    }
+
+    // Converts the outputs of the double pass into the data's float outputs
+    private float[] single(double[] outputs, LayerData data, int count) {
+        float[] outputsSingle = data.activationsSingle;
+        for (int i = 0; i < count * outputSize(); i++) {
+            outputsSingle[i] = (float) outputs[i];
+        }
+        return outputsSingle;
+    }
+
+    /**
+     * Float version of backward
+     *
+     * @param outputGradients : [count x outputSize()] block
+     * @param data
+     * @param count
+     * @return [count x inputSize()] block, owned by data, or null if the data
+     *         doesn't propagate
+     */
+    public default float[] backward(float[] outputGradients, LayerData data, int count) {
+        double[] convertedGradients = data.convertedGradients;
+        for (int i = 0; i < count * outputSize(); i++) {
+            convertedGradients[i] = outputGradients[i];
+        }
+
+        double[] inputGradients = backward(convertedGradients, data, count);
+        float[] inputGradientsSingle = data.inputGradientsSingle;
+        if (inputGradients == null || inputGradientsSingle == null) {
+            return null;
+        }
+        for (int i = 0; i < count * inputSize(); i++) {
+            inputGradientsSingle[i] = (float) inputGradients[i];
+        }
+        return inputGradientsSingle;
+    }
+
+    /**
+     * Adds the parameter gradients accumulated by a worker to this layer's and
+     * clears the worker's
+     *
+     * @param data
+     */
+    public default void accumulateGradients(LayerData data) {
+    }
+
+    /**
+     * Takes a gradient descent step with the accumulated gradients and clears
+     * them
+     *
+     * @param learnRate
+     * @param regularization
+     * @param momentum
+     * @param gradientScale  : factor turning the summed gradients into the
+     *                       average over the batch
+     */
+    public default void gradient(double learnRate, double regularization, double momentum, double gradientScale) {
+    }
+
+    /**
+     * Takes a gradient descent step straight from a worker's gradients without
+     * locking, for asynchronous training
+     *
+     * @param data
+     * @param learnRate
+     * @param regularization
+     * @param momentum
+     * @param gradientScale
+     * @param step           : number of updates including this one
+     */
+    public default void applyGradients(LayerData data, double learnRate, double regularization, double momentum,
+            double gradientScale, long step) {
+    }
+
+    /**
+     * @return the trained parameter arrays, empty for layers without any
+     */
+    public default double[][] parameters() {
+        return new double[0][];
+    }
+
+    /**
+     * @return the accumulated gradient arrays, in the order of parameters()
+     */
+    public default double[][] gradients() {
+        return new double[0][];
+    }
+
+    /**
+     * @return the sums a step collects besides the gradients, which replicas in
+     *         data-parallel training add up along with the gradients
+     */
+    public default double[][] statistics() {
+        return new double[0][];
+    }
+
+    /**
+     * @return the values inference uses besides the parameters, which replicas
+     *         in data-parallel training copy from replica 0 when they start
+     */
+    public default double[][] state() {
+        return new double[0][];
+    }
+
+    /**
+     * Merges this layer into the fully-connected layer before it for inference
+     *
+     * @param previous : the layer before, or the result of folding the layers
+     *                 in between into it
+     * @return a fully-connected layer computing both
+     * @throws UnsupportedOperationException if the layer can't be folded
+     */
+    public default Layer fold(Layer previous) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be folded into a layer");
+    }
+}
@@ -0,0 +1,76 @@
+package Network;
+
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Array of doubles in a native memory segment of an Arena. The kernels run on
+ * heap arrays, so values are copied in and out in bulk a panel at a time.
+ */
+final class OffHeapArray {
+    final MemorySegment segment;
+    final int length;
+
+    OffHeapArray(MemorySegment segment) {
+        this.segment = segment;
+        length = (int) (segment.byteSize() / 8);
+    }
+
+    double get(int index) {
+        return MemoryAccess.getDoubleAtIndex(segment, index);
+    }
+
+    void set(int index, double value) {
+        MemoryAccess.setDoubleAtIndex(segment, index, value);
+    }
+
+    /**
+     * Copies n values into a heap array
+     *
+     * @param index  : first value copied
+     * @param values : receives the values
+     * @param offset : index of values the first value is copied to
+     * @param n
+     */
+    void get(int index, double[] values, int offset, int n) {
+        MemorySegment.ofArray(values).asSlice(offset * 8L, n * 8L).copyFrom(slice(index, n));
+    }
+
+    /**
+     * Copies n values out of a heap array
+     *
+     * @param index  : first value overwritten
+     * @param values
+     * @param offset : index of the first value of values copied
+     * @param n
+     */
+    void put(int index, double[] values, int offset, int n) {
+        slice(index, n).copyFrom(MemorySegment.ofArray(values).asSlice(offset * 8L, n * 8L));
+    }
+
+    // Zeroes n values starting at index
+    void clear(int index, int n) {
+        slice(index, n).fill((byte) 0);
+    }
+
+    /**
+     * @param index
+     * @param n
+     * @return view of n values, for bulk copies into buffers of another byte
+     *         order
+     */
+    DoubleBuffer buffer(int index, int n) {
+        return slice(index, n).asByteBuffer().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    double[] toArray() {
+        return segment.toDoubleArray();
+    }
+
+    MemorySegment slice(int index, int n) {
+        return segment.asSlice(index * 8L, n * 8L);
+    }
+}
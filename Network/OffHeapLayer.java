@@ -0,0 +1,358 @@
+package Network;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import Functions.*;
+
+/**
+ * Fully-connected layer whose weights, weight gradients, velocities and
+ * squared gradient means live in an Arena instead of heap arrays, along with
+ * the weight gradients every worker accumulates.
+ *
+ * The kernels run on heap arrays, so every pass streams the weights through
+ * per-thread panels of whole rows: a panel is copied out in bulk, multiplied
+ * with the block by the same kernels a heap layer uses for the whole matrix,
+ * and copied back if the pass changed it. When a panel fits at least four
+ * rows it holds whole register tiles of the kernels, so the terms of every
+ * sum are added in the same order as in a heap layer.
+ *
+ * The biases and the block buffers stay on the heap, as they grow with the
+ * outputs and the block size rather than the number of weights. Off-heap
+ * layers train in Double precision only.
+ */
+class OffHeapLayer extends Layer {
+    // Doubles in a panel, about the size of an L2 cache. A panel holds at least
+    // one row.
+    static final int PANEL_SIZE = 1 << 15;
+
+    final Arena arena;
+    OffHeapArray offHeapWeights, offHeapGradient, offHeapVelocities, offHeapSquares;
+
+    // Rows of weights in a full panel
+    final int panelRows;
+
+    final ThreadLocal<Panels> panels;
+
+    /**
+     * @param inputNodes
+     * @param outputNodes
+     * @param weightsInit
+     * @param activate
+     * @param initialWeights
+     * @param costFunc
+     * @param optimizerFunc
+     * @param random         : source of the initial weights, null to leave them
+     *                       zero for weights loaded afterwards
+     * @param arena          : holds the weight-sized arrays until it's closed
+     */
+    OffHeapLayer(int inputNodes, int outputNodes, double[] weightsInit, Activation.ActivationFunctionType activate,
+            InitialWeights.InitialWeightsType initialWeights, Cost.CostFunctionType costFunc,
+            OptimizerFunction optimizerFunc, SplittableRandom random, Arena arena) {
+        super(inputNodes, outputNodes, activate, initialWeights, costFunc, optimizerFunc);
+        this.arena = arena;
+
+        int size = inputNodes * outputNodes;
+        offHeapWeights = arena.allocate(size);
+        offHeapGradient = arena.allocate(size);
+        offHeapVelocities = arena.allocate(size);
+        if (optimizer.usesSquares()) {
+            offHeapSquares = arena.allocate(size);
+        }
+
+        // Whole 4-row tiles of the matrix multiplies, unless a row alone fills
+        // most of a panel
+        int rows = Math.max(1, PANEL_SIZE / inputNodes);
+        if (rows > 4) {
+            rows -= rows % 4;
+        }
+        panelRows = Math.min(rows, outputNodes);
+        panels = ThreadLocal.withInitial(() -> new Panels(panelRows));
+
+        // The same weights a heap layer draws from the generator
+        if (random != null) {
+            InitialWeights.initialize(init, size, (int) weightsInit[0], (int) weightsInit[1], random,
+                    (weights, start) -> offHeapWeights.put(start, weights, 0, weights.length));
+        }
+    }
+
+    /**
+     * Heap copies of a panel of rows of the weight-sized arrays, and of a
+     * block's values in the panel's columns
+     */
+    final class Panels {
+        final int rows;
+        final double[] weights, gradient, velocities, squares;
+        double[] columns = new double[0];
+
+        // Panel as long as the last one, which may have fewer rows
+        Panels last;
+
+        Panels(int rows) {
+            this.rows = rows;
+            weights = new double[rows * inNodes];
+            gradient = new double[rows * inNodes];
+            velocities = new double[rows * inNodes];
+            squares = offHeapSquares != null ? new double[rows * inNodes] : null;
+        }
+
+        // Panels exactly as long as the given rows, which the optimizer needs
+        Panels rows(int rows) {
+            if (rows == this.rows) {
+                return this;
+            }
+            if (last == null) {
+                last = new Panels(rows);
+            }
+            return last;
+        }
+
+        double[] columns(int count) {
+            if (columns.length < count * rows) {
+                columns = new double[count * rows];
+            }
+            return columns;
+        }
+    }
+
+    // Copies the columns [first, first + rows) of a [count x outNodes] block
+    // into a [count x rows] block, and back
+    void gather(double[] block, double[] columns, int first, int rows, int count) {
+        for (int sample = 0; sample < count; sample++) {
+            System.arraycopy(block, sample * outNodes + first, columns, sample * rows, rows);
+        }
+    }
+
+    void scatter(double[] columns, double[] block, int first, int rows, int count) {
+        for (int sample = 0; sample < count; sample++) {
+            System.arraycopy(columns, sample * rows, block, sample * outNodes + first, rows);
+        }
+    }
+
+    @Override
+    void addWeightedInputs(double[] inputs, double[] weightedInputs, int count) {
+        Panels panel = panels.get();
+        double[] columns = panel.columns(count);
+        for (int first = 0; first < outNodes; first += panelRows) {
+            int rows = Math.min(panelRows, outNodes - first);
+            offHeapWeights.get(first * inNodes, panel.weights, 0, rows * inNodes);
+
+            gather(weightedInputs, columns, first, rows, count);
+            Matrix.multiplyTransposed(inputs, panel.weights, columns, count, rows, inNodes);
+            scatter(columns, weightedInputs, first, rows, count);
+        }
+    }
+
+    @Override
+    void addInputGradients(double[] nodeValues, double[] inputGradients, int count) {
+        Panels panel = panels.get();
+        double[] columns = panel.columns(count);
+        for (int first = 0; first < outNodes; first += panelRows) {
+            int rows = Math.min(panelRows, outNodes - first);
+            offHeapWeights.get(first * inNodes, panel.weights, 0, rows * inNodes);
+
+            gather(nodeValues, columns, first, rows, count);
+            Matrix.multiplyAdd(columns, rows, 1, panel.weights, inputGradients, count, inNodes, rows);
+        }
+    }
+
+    @Override
+    void addWeightGradients(LayerData layerLearnData, int count) {
+        Panels panel = panels.get();
+        double[] columns = panel.columns(count);
+        OffHeapArray gradient = layerLearnData.offHeapGradient;
+        for (int first = 0; first < outNodes; first += panelRows) {
+            int rows = Math.min(panelRows, outNodes - first);
+            gradient.get(first * inNodes, panel.gradient, 0, rows * inNodes);
+
+            gather(layerLearnData.nodeValues, columns, first, rows, count);
+            Matrix.multiplyAdd(columns, 1, rows, layerLearnData.inputs, panel.gradient, rows, inNodes, count);
+            gradient.put(first * inNodes, panel.gradient, 0, rows * inNodes);
+        }
+    }
+
+    // A sizing pass's data is never fed, so it gets no native memory
+    @Override
+    void allocateWeightGradient(LayerData layerLearnData, BlockBuffers buffers) {
+        if (!buffers.sizing) {
+            layerLearnData.offHeapGradient = arena.allocate(inNodes * outNodes);
+        }
+    }
+
+    @Override
+    double[] weightedInputs(double[] inputs) {
+        Panels panel = panels.get();
+        double[] weightedInputs = new double[outNodes];
+        for (int first = 0; first < outNodes; first += panelRows) {
+            int rows = Math.min(panelRows, outNodes - first);
+            offHeapWeights.get(first * inNodes, panel.weights, 0, rows * inNodes);
+            for (int row = 0; row < rows; row++) {
+                weightedInputs[first + row] = biases[first + row]
+                        + Matrix.dot(inputs, 0, panel.weights, row * inNodes, inNodes);
+            }
+        }
+        return weightedInputs;
+    }
+
+    @Override
+    public void accumulateGradients(LayerData layerLearnData) {
+        Panels panel = panels.get();
+        OffHeapArray workerGradient = layerLearnData.offHeapGradient;
+        for (int first = 0; first < outNodes; first += panelRows) {
+            int offset = first * inNodes;
+            int n = Math.min(panelRows, outNodes - first) * inNodes;
+            workerGradient.get(offset, panel.weights, 0, n);
+            offHeapGradient.get(offset, panel.gradient, 0, n);
+            Matrix.axpy(1, panel.weights, 0, panel.gradient, 0, n);
+            offHeapGradient.put(offset, panel.gradient, 0, n);
+        }
+        workerGradient.clear(0, workerGradient.length);
+
+        Matrix.axpy(1, layerLearnData.biasesGradient, 0, biasesGradient, 0, outNodes);
+        Arrays.fill(layerLearnData.biasesGradient, 0);
+    }
+
+    @Override
+    public void gradient(double learnRate, double regularization, double momentum, double gradientScale) {
+        step++;
+
+        update(offHeapGradient, learnRate, gradientScale, regularization * gradientScale, momentum, step);
+        optimizer.update(biases, biasesGradient, biasesVelocities, biasesSquares,
+                learnRate, gradientScale, 0, momentum, step);
+    }
+
+    @Override
+    public void applyGradients(LayerData layerLearnData, double learnRate, double regularization, double momentum,
+            double gradientScale, long step) {
+        update(layerLearnData.offHeapGradient, learnRate, gradientScale, regularization * gradientScale, momentum,
+                step);
+        optimizer.update(biases, layerLearnData.biasesGradient, biasesVelocities, biasesSquares,
+                learnRate, gradientScale, 0, momentum, step);
+    }
+
+    // Runs the optimizer over the weights a panel at a time and clears the
+    // gradients
+    private void update(OffHeapArray gradient, double learnRate, double gradientScale, double weightDecay,
+            double momentum, long step) {
+        Panels panels = this.panels.get();
+        for (int first = 0; first < outNodes; first += panelRows) {
+            Panels panel = panels.rows(Math.min(panelRows, outNodes - first));
+            int offset = first * inNodes;
+            int n = panel.weights.length;
+
+            offHeapWeights.get(offset, panel.weights, 0, n);
+            gradient.get(offset, panel.gradient, 0, n);
+            offHeapVelocities.get(offset, panel.velocities, 0, n);
+            if (panel.squares != null) {
+                offHeapSquares.get(offset, panel.squares, 0, n);
+            }
+
+            optimizer.update(panel.weights, panel.gradient, panel.velocities, panel.squares,
+                    learnRate, gradientScale, weightDecay, momentum, step);
+
+            offHeapWeights.put(offset, panel.weights, 0, n);
+            offHeapVelocities.put(offset, panel.velocities, 0, n);
+            if (panel.squares != null) {
+                offHeapSquares.put(offset, panel.squares, 0, n);
+            }
+            gradient.clear(offset, n);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException unless precision is Double
+     */
+    @Override
+    public void setPrecision(Precision precision) {
+        if (precision != Precision.Double) {
+            throw new IllegalArgumentException("Off-heap layers train in Double precision, not " + precision);
+        }
+        super.setPrecision(precision);
+    }
+
+    /**
+     * @return a frozen copy of the weights and biases on the heap
+     */
+    @Override
+    Layer onHeap() {
+        return new Layer(inNodes, outNodes, offHeapWeights.toArray(), biases.clone(), activationType);
+    }
+
+    /**
+     * @return heap copies of the weights and the biases themselves, writing to
+     *         the weights' copy doesn't change the layer
+     */
+    @Override
+    public double[][] parameters() {
+        return new double[][] { offHeapWeights.toArray(), biases };
+    }
+
+    /**
+     * @return a heap copy of the weight gradients and the bias gradients
+     *         themselves
+     */
+    @Override
+    public double[][] gradients() {
+        return new double[][] { offHeapGradient.toArray(), biasesGradient };
+    }
+
+    @Override
+    public double getWeight(int input, int output) {
+        return offHeapWeights.get(getIndex(input, output));
+    }
+
+    @Override
+    public double getWeightGradient(int input, int output) {
+        return offHeapGradient.get(getIndex(input, output));
+    }
+
+    @Override
+    public double getWeightVelocity(int input, int output) {
+        return offHeapVelocities.get(getIndex(input, output));
+    }
+
+    @Override
+    public void setWeight(int input, int output, double value) {
+        offHeapWeights.set(getIndex(input, output), value);
+    }
+
+    @Override
+    public void setWeightGradient(int input, int output, double value) {
+        offHeapGradient.set(getIndex(input, output), value);
+    }
+
+    @Override
+    public void setWeightVelocity(int input, int output, double value) {
+        offHeapVelocities.set(getIndex(input, output), value);
+    }
+
+    @Override
+    public void addWeight(int input, int output, double value) {
+        setWeight(input, output, getWeight(input, output) + value);
+    }
+
+    @Override
+    public void addWeightGradient(int input, int output, double value) {
+        setWeightGradient(input, output, getWeightGradient(input, output) + value);
+    }
+
+    @Override
+    public void addWeightVelocity(int input, int output, double value) {
+        setWeightVelocity(input, output, getWeightVelocity(input, output) + value);
+    }
+
+    @Override
+    public void multiplyWeight(int input, int output, double value) {
+        setWeight(input, output, getWeight(input, output) * value);
+    }
+
+    @Override
+    public void multiplyWeightGradient(int input, int output, double value) {
+        setWeightGradient(input, output, getWeightGradient(input, output) * value);
+    }
+
+    @Override
+    public void multiplyWeightVelocity(int input, int output, double value) {
+        setWeightVelocity(input, output, getWeightVelocity(input, output) * value);
+    }
+}
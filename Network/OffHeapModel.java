@@ -0,0 +1,457 @@
+package Network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import Functions.Activation;
+import Functions.ActivationFunction;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Read-only float copy of a trained network whose parameters live outside the
+ * Java heap.
+ *
+ * Like InferenceModel, but the weights and biases are in one native or
+ * file-mapped memory segment instead of float arrays, so very wide layers
+ * aren't giant heap objects for the garbage collector to track. A model
+ * written by write and opened by map is backed by the page cache, so every
+ * process on the host that maps the same file shares one physical copy of the
+ * weights.
+ *
+ * Every weight row and every layer's biases start on a 64-byte boundary, the
+ * width of a cache line and of the widest vector registers; rows are padded
+ * with zeros to a multiple of 16 floats. The segment belongs to a resource
+ * scope that close closes, which frees the memory or unmaps the file right
+ * away; a model used after close throws IllegalStateException.
+ *
+ * A network can also train off-heap, see HyperParameter.setOffHeap. This is
+ * the frozen copy for inference, which works the same for either network.
+ *
+ * Layout (little-endian):
+ *
+ * <pre>
+ *   int    magic number "NNOH"
+ *   int    format version
+ *   int    number of layers
+ *   int[]  layer sizes, one more than the number of layers
+ *   for every layer: activation name as a short length and UTF-8 bytes
+ *   padding to 64 bytes
+ *   for every layer: outNodes rows of weights, padded to 16 floats, then
+ *   the biases, padded to 16 floats
+ * </pre>
+ */
+public final class OffHeapModel implements Classifier, Closeable {
+    static final int MAGIC = 0x4E4E4F48;
+    static final int VERSION = 1;
+
+    static final int ALIGNMENT = 64;
+    static final int ALIGNMENT_FLOATS = ALIGNMENT / 4;
+
+    final int[] layerSizes;
+
+    // Layer l has layerSizes[l + 1] rows of layerSizes[l] weights, rowStrides[l]
+    // floats apart, starting at weightOffsets[l], and its biases start at
+    // biasOffsets[l]. Offsets are float indices into parameters.
+    final int[] rowStrides;
+    final int[] weightOffsets;
+    final int[] biasOffsets;
+
+    final ActivationFunction[] activations;
+
+    final FloatBuffer parameters;
+
+    // Scope the memory was allocated or mapped in, null once close has closed it
+    ResourceScope scope;
+
+    final ThreadLocal<Scratch> scratch;
+
+    OffHeapModel(ResourceScope scope, MemorySegment memory, String source) throws IOException {
+        this.scope = scope;
+        ByteBuffer contents = memory.asByteBuffer();
+
+        ByteBuffer header = contents.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (header.getInt() != MAGIC) {
+                throw new IOException(source + " isn't an off-heap model");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported off-heap model version " + version + " in " + source);
+            }
+
+            int layers = header.getInt();
+            if (layers < 1) {
+                throw new IOException("Malformed off-heap model " + source);
+            }
+            layerSizes = new int[layers + 1];
+            for (int l = 0; l <= layers; l++) {
+                layerSizes[l] = header.getInt();
+            }
+
+            activations = new ActivationFunction[layers];
+            for (int l = 0; l < layers; l++) {
+                byte[] name = new byte[header.getShort()];
+                header.get(name);
+                activations[l] = Activation.getActivationFunction(
+                        Activation.ActivationFunctionType.valueOf(new String(name, StandardCharsets.UTF_8)));
+            }
+
+            rowStrides = new int[layers];
+            weightOffsets = new int[layers];
+            biasOffsets = new int[layers];
+            long end = layout(layerSizes, align(header.position()) / 4, rowStrides, weightOffsets, biasOffsets);
+            if (end * 4 > contents.capacity()) {
+                throw new IOException("Truncated off-heap model " + source);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed off-heap model " + source, e);
+        }
+
+        parameters = contents.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+
+        int width = 0;
+        for (int size : layerSizes) {
+            width = Math.max(width, size);
+        }
+        int scratchSize = width;
+        scratch = ThreadLocal.withInitial(() -> new Scratch(scratchSize, Matrix.N_BLOCK * scratchSize));
+    }
+
+    /**
+     * Copies the network's current parameters into native memory
+     *
+     * @param network
+     * @return the model, to be closed when it's no longer used
+     */
+    public static OffHeapModel compile(Network network) {
+        Layer[] layers = network.foldedLayers();
+        long size = size(layers);
+
+        ResourceScope scope = ResourceScope.newSharedScope();
+        try {
+            MemorySegment memory = MemorySegment.allocateNative(size, ALIGNMENT, scope);
+            encode(layers, memory.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN));
+            return new OffHeapModel(scope, memory, "native memory");
+        } catch (IOException e) {
+            scope.close();
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            scope.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the network's current parameters to a file that map can share
+     * between processes
+     *
+     * @param network
+     * @param path
+     * @throws IOException
+     */
+    public static void write(Network network, String path) throws IOException {
+        Layer[] layers = network.foldedLayers();
+        long size = size(layers);
+        Path target = Paths.get(path);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        // Mapping doesn't create the file, and leftovers of an earlier write are
+        // truncated first; the mapping is unmapped when its scope closes
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            Files.write(temp, new byte[0]);
+            MemorySegment mapping = MemorySegment.mapFile(temp, 0, size, FileChannel.MapMode.READ_WRITE, scope);
+            encode(layers, mapping.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN));
+            mapping.force();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a file written by write read-only. Mappings of the same file share
+     * their pages, within a process and across processes.
+     *
+     * @param path
+     * @return the model, to be closed when it's no longer used
+     * @throws IOException if the file isn't an off-heap model
+     */
+    public static OffHeapModel map(String path) throws IOException {
+        Path file = Paths.get(path);
+        ResourceScope scope = ResourceScope.newSharedScope();
+        try {
+            long size = Files.size(file);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Off-heap model " + path + " is larger than 2 GiB");
+            }
+            // Mappings start on a page boundary, so the file's alignment carries over
+            MemorySegment mapping = MemorySegment.mapFile(file, 0, size, FileChannel.MapMode.READ_ONLY, scope);
+            return new OffHeapModel(scope, mapping, path);
+        } catch (IOException | RuntimeException e) {
+            scope.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Assigns every layer's weights and biases their aligned offsets
+     *
+     * @param layerSizes
+     * @param start         : float index of the first layer's weights
+     * @param rowStrides    : receives the floats between weight rows
+     * @param weightOffsets : receives the float index of every layer's weights
+     * @param biasOffsets   : receives the float index of every layer's biases
+     * @return float index past the last layer's biases
+     */
+    static long layout(int[] layerSizes, long start, int[] rowStrides, int[] weightOffsets, int[] biasOffsets) {
+        long offset = start;
+        for (int l = 0; l < layerSizes.length - 1; l++) {
+            int inNodes = layerSizes[l];
+            int outNodes = layerSizes[l + 1];
+
+            rowStrides[l] = (int) align(inNodes * 4L) / 4;
+            weightOffsets[l] = (int) offset;
+            offset += (long) rowStrides[l] * outNodes;
+            biasOffsets[l] = (int) offset;
+            offset += align(outNodes * 4L) / 4;
+        }
+        return offset;
+    }
+
+    static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    static int headerSize(Layer[] layers) {
+        int size = 12 + 4 * (layers.length + 1);
+        for (Layer layer : layers) {
+            size += 2 + layer.activationType.name().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+
+    // Size of the encoded layers in bytes
+    static long size(Layer[] layers) {
+        int[] layerSizes = sizes(layers);
+        long end = layout(layerSizes, align(headerSize(layers)) / 4, new int[layers.length],
+                new int[layers.length], new int[layers.length]);
+        if (end * 4 > Integer.MAX_VALUE - ALIGNMENT) {
+            throw new IllegalArgumentException("Parameters take " + end * 4 + " bytes, at most 2 GiB are supported");
+        }
+        return end * 4;
+    }
+
+    static int[] sizes(Layer[] layers) {
+        int[] layerSizes = new int[layers.length + 1];
+        layerSizes[0] = layers[0].inNodes;
+        for (int l = 0; l < layers.length; l++) {
+            layerSizes[l + 1] = layers[l].outNodes;
+        }
+        return layerSizes;
+    }
+
+    // Writes the header and the parameters in the layout, padding with zeros
+    static void encode(Layer[] layers, ByteBuffer out) {
+        int[] layerSizes = sizes(layers);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(layers.length);
+        for (int size : layerSizes) {
+            out.putInt(size);
+        }
+        for (Layer layer : layers) {
+            byte[] name = layer.activationType.name().getBytes(StandardCharsets.UTF_8);
+            out.putShort((short) name.length);
+            out.put(name);
+        }
+
+        int[] rowStrides = new int[layers.length];
+        int[] weightOffsets = new int[layers.length];
+        int[] biasOffsets = new int[layers.length];
+        layout(layerSizes, align(out.position()) / 4, rowStrides, weightOffsets, biasOffsets);
+
+        FloatBuffer parameters = out.duplicate().clear().order(out.order()).asFloatBuffer();
+        float[] row = new float[Arrays.stream(layerSizes).max().getAsInt() + ALIGNMENT_FLOATS];
+        for (int l = 0; l < layers.length; l++) {
+            Layer layer = layers[l];
+            int inNodes = layer.inNodes;
+
+            // Rows are converted into a zero-padded buffer and copied in bulk
+            Arrays.fill(row, 0);
+            for (int node = 0; node < layer.outNodes; node++) {
+                for (int i = 0; i < inNodes; i++) {
+                    row[i] = (float) layer.weights[node * inNodes + i];
+                }
+                parameters.put(weightOffsets[l] + node * rowStrides[l], row, 0, rowStrides[l]);
+            }
+
+            Arrays.fill(row, 0);
+            for (int node = 0; node < layer.outNodes; node++) {
+                row[node] = (float) layer.biases[node];
+            }
+            parameters.put(biasOffsets[l], row, 0, (int) align(layer.outNodes * 4L) / 4);
+        }
+    }
+
+    /**
+     * Feeds the inputs through the network
+     *
+     * @param inputs  : inputSize() values
+     * @param outputs : receives the outputSize() output values
+     */
+    public void predict(float[] inputs, float[] outputs) {
+        predict(inputs, outputs, 1);
+    }
+
+    /**
+     * Feeds a block of samples through the network.
+     *
+     * The weights are read in panels of up to Matrix.N_BLOCK rows, copied in
+     * bulk into a per-thread array and multiplied with every sample, so the
+     * same blocked kernel as InferenceModel does the arithmetic and each weight
+     * is read out of the buffer once per block.
+     *
+     * @param inputs  : [count x inputSize()] block of inputs
+     * @param outputs : receives the [count x outputSize()] block of outputs
+     * @param count   : number of samples
+     */
+    @Override
+    public void predict(float[] inputs, float[] outputs, int count) {
+        if (scope == null) {
+            throw new IllegalStateException("Off-heap model is closed");
+        }
+
+        Scratch buffers = scratch.get();
+        buffers.ensureBlock(count);
+        float[] in = inputs;
+        float[] out = buffers.blocks[0];
+        float[] panel = buffers.panel;
+        float[] sums = buffers.sums;
+        double[] weightedInputs = buffers.weightedInputBlock;
+
+        for (int l = 0; l < weightOffsets.length; l++) {
+            int inNodes = layerSizes[l];
+            int outNodes = layerSizes[l + 1];
+
+            for (int first = 0; first < outNodes; first += Matrix.N_BLOCK) {
+                int rows = Math.min(Matrix.N_BLOCK, outNodes - first);
+                for (int row = 0; row < rows; row++) {
+                    parameters.get(weightOffsets[l] + (first + row) * rowStrides[l], panel, row * inNodes, inNodes);
+                }
+
+                Arrays.fill(sums, 0, count * rows, 0);
+                Matrix.multiplyTransposed(in, panel, sums, count, rows, inNodes);
+
+                for (int sample = 0; sample < count; sample++) {
+                    for (int row = 0; row < rows; row++) {
+                        weightedInputs[sample * outNodes + first + row] = sums[sample * rows + row]
+                                + parameters.get(biasOffsets[l] + first + row);
+                    }
+                }
+            }
+
+            for (int sample = 0; sample < count; sample++) {
+                activations[l].apply(weightedInputs, weightedInputs, sample * outNodes, outNodes);
+            }
+
+            if (l == weightOffsets.length - 1) {
+                out = outputs;
+            }
+            for (int i = 0; i < count * outNodes; i++) {
+                out[i] = (float) weightedInputs[i];
+            }
+
+            in = out;
+            out = out == buffers.blocks[0] ? buffers.blocks[1] : buffers.blocks[0];
+        }
+    }
+
+    @Override
+    public int classify(float[] inputs, float[] outputs) {
+        predict(inputs, outputs);
+
+        int max = 0;
+        for (int i = 1; i < outputSize(); i++) {
+            if (outputs[i] > outputs[max]) {
+                max = i;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Per-thread buffers as wide as the widest layer
+     */
+    static class Scratch {
+        final int width;
+
+        // Panel of weight rows copied out of the buffer
+        final float[] panel;
+
+        // Buffers for blocks of samples, grown to the largest block seen
+        float[][] blocks = new float[2][0];
+        float[] sums = new float[0];
+        double[] weightedInputBlock = new double[0];
+
+        Scratch(int width, int panelSize) {
+            this.width = width;
+            panel = new float[panelSize];
+        }
+
+        void ensureBlock(int count) {
+            int size = count * width;
+            if (weightedInputBlock.length < size) {
+                blocks = new float[][] { new float[size], new float[size] };
+                sums = new float[count * Matrix.N_BLOCK];
+                weightedInputBlock = new double[size];
+            }
+        }
+    }
+
+    /**
+     * Frees the memory, or unmaps the file. Predictions running on other
+     * threads must have finished.
+     *
+     * @throws IllegalStateException if a prediction is still reading the
+     *                               memory
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (scope == null) {
+            return;
+        }
+        scope.close();
+        scope = null;
+    }
+
+    /**
+     * @return size of the weights and biases in bytes, including the padding
+     */
+    public long parameterBytes() {
+        int last = weightOffsets.length - 1;
+        return 4 * (biasOffsets[last] + align(outputSize() * 4L) / 4 - weightOffsets[0]);
+    }
+
+    @Override
+    public int inputSize() {
+        return layerSizes[0];
+    }
+
+    @Override
+    public int outputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+}
@@ -0,0 +1,202 @@
+package Network;
+
+import java.util.Arrays;
+
+/**
+ * Downsamples channel-last images by taking the maximum or the average of
+ * every size x size window, separately for every channel. Windows don't
+ * overlap and pixels past the last whole window are dropped.
+ */
+public class Pooling implements NetworkLayer {
+    public enum PoolingType {
+        Max,
+        Average
+    }
+
+    final PoolingType type;
+    final int height, width, channels;
+    final int size;
+    final int outHeight, outWidth;
+    Precision precision = Precision.Double;
+
+    /**
+     * Layer data with the input index every output of a max pool came from
+     */
+    static class Data extends LayerData {
+        final int[] sources;
+
+        Data(Pooling layer, int batchSize, boolean propagate, BlockBuffers buffers) {
+            super(layer.outputSize(), batchSize, buffers);
+            sources = layer.type == PoolingType.Max ? buffers.ints(batchSize * layer.outputSize()) : null;
+            if (propagate) {
+                inputGradients = buffers.doubles(batchSize * layer.inputSize());
+            }
+        }
+
+        // Buffers of blocks fed forward for inference
+        Data(Pooling layer, int batchSize) {
+            activations = new double[batchSize * layer.outputSize()];
+            sources = layer.type == PoolingType.Max ? new int[batchSize * layer.outputSize()] : null;
+        }
+    }
+
+    /**
+     * @param height   : of the input images
+     * @param width
+     * @param channels
+     * @param size     : width and height of the windows
+     * @param type
+     */
+    public Pooling(int height, int width, int channels, int size, PoolingType type) {
+        if (size < 1 || size > height || size > width) {
+            throw new IllegalArgumentException("Invalid pooling window " + size + " for a " + height + "x" + width
+                    + " input");
+        }
+        this.type = type;
+        this.height = height;
+        this.width = width;
+        this.channels = channels;
+        this.size = size;
+        outHeight = height / size;
+        outWidth = width / size;
+    }
+
+    public int getOutputHeight() {
+        return outHeight;
+    }
+
+    public int getOutputWidth() {
+        return outWidth;
+    }
+
+    @Override
+    public int inputSize() {
+        return height * width * channels;
+    }
+
+    @Override
+    public int outputSize() {
+        return outHeight * outWidth * channels;
+    }
+
+    // The passes run on doubles in every precision
+    @Override
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+    }
+
+    @Override
+    public LayerData createData(int batchSize, boolean propagate, BlockBuffers buffers) {
+        Data data = new Data(this, batchSize, propagate, buffers);
+        if (precision != Precision.Double) {
+            data.convert(this, batchSize, propagate, buffers);
+        }
+        return data;
+    }
+
+    @Override
+    public LayerData createInferenceData(int batchSize) {
+        return new Data(this, batchSize);
+    }
+
+    @Override
+    public double[] outputs(double[] inputs) {
+        return forward(inputs, new Data(this, 1), 1, false);
+    }
+
+    @Override
+    public double[] forward(double[] inputs, LayerData layerData, int count, boolean training) {
+        Data data = (Data) layerData;
+        double[] outputs = data.activations;
+        int[] sources = data.sources;
+        double area = size * size;
+
+        for (int sample = 0; sample < count; sample++) {
+            int image = sample * inputSize();
+
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int out = sample * outputSize() + (oy * outWidth + ox) * channels;
+
+                    // The channels of a pixel are contiguous, so every window pixel
+                    // updates all of them in one pass. A max pool starts from the
+                    // window's first pixel, so every output has a source even if
+                    // the window holds only NaN or -Infinity.
+                    if (type == PoolingType.Max) {
+                        int first = image + (oy * size * width + ox * size) * channels;
+                        for (int c = 0; c < channels; c++) {
+                            outputs[out + c] = inputs[first + c];
+                            sources[out + c] = first + c;
+                        }
+                    } else {
+                        Arrays.fill(outputs, out, out + channels, 0);
+                    }
+
+                    for (int ky = 0; ky < size; ky++) {
+                        for (int kx = 0; kx < size; kx++) {
+                            int in = image + ((oy * size + ky) * width + ox * size + kx) * channels;
+
+                            if (type == PoolingType.Max) {
+                                for (int c = 0; c < channels; c++) {
+                                    if (inputs[in + c] > outputs[out + c]) {
+                                        outputs[out + c] = inputs[in + c];
+                                        sources[out + c] = in + c;
+                                    }
+                                }
+                            } else {
+                                for (int c = 0; c < channels; c++) {
+                                    outputs[out + c] += inputs[in + c];
+                                }
+                            }
+                        }
+                    }
+
+                    if (type == PoolingType.Average) {
+                        for (int c = 0; c < channels; c++) {
+                            outputs[out + c] /= area;
+                        }
+                    }
+                }
+            }
+        }
+        return outputs;
+    }
+
+    @Override
+    public double[] backward(double[] outputGradients, LayerData layerData, int count) {
+        Data data = (Data) layerData;
+        double[] inputGradients = data.inputGradients;
+        if (inputGradients == null) {
+            return null;
+        }
+        Arrays.fill(inputGradients, 0, count * inputSize(), 0);
+
+        // The maximum gets the whole gradient, an average spreads it over the window
+        if (type == PoolingType.Max) {
+            int[] sources = data.sources;
+            for (int i = 0; i < count * outputSize(); i++) {
+                inputGradients[sources[i]] += outputGradients[i];
+            }
+            return inputGradients;
+        }
+
+        double scale = 1.0 / (size * size);
+        for (int sample = 0; sample < count; sample++) {
+            int image = sample * inputSize();
+
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int out = sample * outputSize() + (oy * outWidth + ox) * channels;
+
+                    for (int ky = 0; ky < size; ky++) {
+                        for (int kx = 0; kx < size; kx++) {
+                            int in = image + ((oy * size + ky) * width + ox * size + kx) * channels;
+                            Matrix.axpy(scale, outputGradients, out, inputGradients, in, channels);
+                        }
+                    }
+                }
+            }
+        }
+        return inputGradients;
+    }
+}
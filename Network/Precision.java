@@ -0,0 +1,42 @@
+package Network;
+
+/**
+ * Floating point precision the training passes run in.
+ *
+ * The optimizer always updates 64-bit parameters, so every layer keeps its
+ * double parameters and optimizer state. In the 32-bit modes the network
+ * feeds float blocks through its layers: a fully-connected layer multiplies
+ * with a float copy of its weights, and it, the activation and the dropout
+ * layers keep their weighted inputs, activations, derivatives, node values
+ * and gradients in float buffers only, so the passes read and write half the
+ * memory. Convolution, pooling and batch normalization run their passes on
+ * doubles and convert the blocks at their inputs and outputs. Evaluation and
+ * inference run on the double parameters.
+ */
+public enum Precision {
+    // 64-bit storage and compute
+    Double,
+    // 32-bit passes, the parameters are rounded to 32-bit after every step so the
+    // network is a pure float network
+    Single,
+    // 32-bit passes against 64-bit master parameters, so updates smaller than a
+    // float's precision still accumulate
+    Mixed;
+
+    /**
+     * Rounds parameters to the values this precision keeps, which only Single
+     * changes
+     *
+     * @param parameters
+     */
+    void round(double[]... parameters) {
+        if (this != Single) {
+            return;
+        }
+        for (double[] values : parameters) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (float) values[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package Network;
+
+import Functions.ActivationFunction;
+
+/**
+ * Read-only int8 copy of a trained network for inference.
+ *
+ * Every row of weights (the weights into one output node) is scaled into
+ * [-127, 127] by its own scale, the largest absolute weight of the row over
+ * 127. The inputs of every layer are quantized the same way with one scale
+ * per layer, calibrated on sample data, so a weighted input is an integer dot
+ * product multiplied by the row's scale and the layer's input scale. Weights
+ * take a quarter of the space of float weights, and like InferenceModel the
+ * model doesn't allocate when classifying and can be shared between threads.
+ */
+public final class QuantizedModel implements Classifier {
+    static final int MAX_QUANTIZED = 127;
+
+    final int[] layerSizes;
+
+    // Layer l has layerSizes[l + 1] rows of layerSizes[l] weights starting at
+    // weightOffsets[l], and its biases and row scales start at biasOffsets[l]
+    final byte[] weights;
+    final float[] weightScales;
+    final float[] biases;
+    final int[] weightOffsets;
+    final int[] biasOffsets;
+
+    // Scale of the quantized inputs of every layer
+    final float[] inputScales;
+
+    final ActivationFunction[] activations;
+
+    final ThreadLocal<Scratch> scratch;
+
+    QuantizedModel(Network network, DataSource calibration, int samples) {
+        Layer[] layers = network.foldedLayers();
+
+        layerSizes = new int[layers.length + 1];
+        weightOffsets = new int[layers.length];
+        biasOffsets = new int[layers.length];
+
+        int weightCount = 0;
+        int biasCount = 0;
+        int width = layers[0].inNodes;
+        layerSizes[0] = layers[0].inNodes;
+        for (int l = 0; l < layers.length; l++) {
+            layerSizes[l + 1] = layers[l].outNodes;
+            weightOffsets[l] = weightCount;
+            biasOffsets[l] = biasCount;
+            weightCount += layers[l].weights.length;
+            biasCount += layers[l].outNodes;
+            width = Math.max(width, layers[l].outNodes);
+        }
+
+        weights = new byte[weightCount];
+        weightScales = new float[biasCount];
+        biases = new float[biasCount];
+        activations = new ActivationFunction[layers.length];
+        for (int l = 0; l < layers.length; l++) {
+            Layer layer = layers[l];
+            for (int node = 0; node < layer.outNodes; node++) {
+                int row = node * layer.inNodes;
+
+                double max = 0;
+                for (int i = 0; i < layer.inNodes; i++) {
+                    max = Math.max(max, Math.abs(layer.weights[row + i]));
+                }
+                double scale = max == 0 ? 1 : max / MAX_QUANTIZED;
+
+                weightScales[biasOffsets[l] + node] = (float) scale;
+                biases[biasOffsets[l] + node] = (float) layer.biases[node];
+                for (int i = 0; i < layer.inNodes; i++) {
+                    weights[weightOffsets[l] + row + i] = (byte) Math.round(layer.weights[row + i] / scale);
+                }
+            }
+            activations[l] = layer.activation;
+        }
+
+        inputScales = calibrate(layers, calibration, samples);
+
+        int scratchSize = width;
+        scratch = ThreadLocal.withInitial(() -> new Scratch(scratchSize));
+    }
+
+    // Scales every layer's inputs by the largest absolute input seen while
+    // feeding calibration samples through the float network
+    static float[] calibrate(Layer[] layers, DataSource calibration, int samples) {
+        double[] max = new double[layers.length];
+        double[] inputs = new double[calibration.inputSize()];
+        double[] expected = new double[calibration.outputSize()];
+
+        for (int s = 0; s < Math.min(samples, calibration.size()); s++) {
+            calibration.read(s, inputs, 0, expected, 0);
+
+            double[] layerInputs = inputs;
+            for (int l = 0; l < layers.length; l++) {
+                for (double value : layerInputs) {
+                    max[l] = Math.max(max[l], Math.abs(value));
+                }
+                layerInputs = layers[l].outputs(layerInputs);
+            }
+        }
+
+        float[] scales = new float[layers.length];
+        for (int l = 0; l < layers.length; l++) {
+            scales[l] = max[l] == 0 ? 1 : (float) (max[l] / MAX_QUANTIZED);
+        }
+        return scales;
+    }
+
+    /**
+     * Quantizes the network's current parameters
+     *
+     * @param network
+     * @param calibration : samples representative of the inputs the model will
+     *                    see, used to pick the activation scales
+     * @param samples     : most calibration samples to use
+     * @return the quantized model
+     */
+    public static QuantizedModel quantize(Network network, DataSource calibration, int samples) {
+        return new QuantizedModel(network, calibration, samples);
+    }
+
+    /**
+     * Feeds the inputs through the network
+     *
+     * @param inputs  : inputSize() values
+     * @param outputs : receives the outputSize() output values
+     */
+    public void predict(float[] inputs, float[] outputs) {
+        Scratch buffers = scratch.get();
+        byte[] quantized = buffers.quantized;
+        double[] weightedInputs = buffers.weightedInputs;
+        float[] in = inputs;
+
+        for (int l = 0; l < weightOffsets.length; l++) {
+            int inNodes = layerSizes[l];
+            int outNodes = layerSizes[l + 1];
+
+            // Quantize the layer's inputs, clamping values outside the calibrated range
+            float inverseScale = 1 / inputScales[l];
+            for (int i = 0; i < inNodes; i++) {
+                int q = Math.round(in[i] * inverseScale);
+                quantized[i] = (byte) Math.max(-MAX_QUANTIZED, Math.min(MAX_QUANTIZED, q));
+            }
+
+            for (int node = 0; node < outNodes; node++) {
+                int row = biasOffsets[l] + node;
+                // Rows longer than an int can sum are summed in chunks
+                long dot = 0;
+                for (int i = 0; i < inNodes; i += Matrix.MAX_BYTE_DOT) {
+                    dot += Matrix.dot(weights, weightOffsets[l] + node * inNodes + i, quantized, i,
+                            Math.min(Matrix.MAX_BYTE_DOT, inNodes - i));
+                }
+                weightedInputs[node] = biases[row] + (double) dot * weightScales[row] * inputScales[l];
+            }
+
+            // Apply activation function, writing the last layer straight to the outputs
+            activations[l].apply(weightedInputs, weightedInputs, 0, outNodes);
+            float[] out = l == weightOffsets.length - 1 ? outputs : buffers.activations;
+            for (int node = 0; node < outNodes; node++) {
+                out[node] = (float) weightedInputs[node];
+            }
+
+            in = out;
+        }
+    }
+
+    @Override
+    public int classify(float[] inputs, float[] outputs) {
+        predict(inputs, outputs);
+
+        int max = 0;
+        for (int i = 1; i < outputSize(); i++) {
+            if (outputs[i] > outputs[max]) {
+                max = i;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Accuracy lost by quantizing
+     *
+     * @param reference : float model of the same network, e.g. from
+     *                  Network.compile
+     * @param data
+     * @return reference accuracy minus this model's accuracy
+     */
+    public double accuracyDelta(Classifier reference, DataSource data) {
+        return reference.accuracy(data) - accuracy(data);
+    }
+
+    /**
+     * @return size of the weights, biases and scales in bytes
+     */
+    public long parameterBytes() {
+        return weights.length + 4L * (weightScales.length + biases.length + inputScales.length);
+    }
+
+    /**
+     * Per-thread buffers as wide as the widest layer
+     */
+    static class Scratch {
+        // Quantized inputs of the current layer, activations are quantized before
+        // the next layer reads them so one buffer is enough
+        final byte[] quantized;
+        final float[] activations;
+        final double[] weightedInputs;
+
+        Scratch(int width) {
+            quantized = new byte[width];
+            activations = new float[width];
+            weightedInputs = new double[width];
+        }
+    }
+
+    @Override
+    public int inputSize() {
+        return layerSizes[0];
+    }
+
+    @Override
+    public int outputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+}
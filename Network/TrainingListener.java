@@ -0,0 +1,24 @@
+package Network;
+
+/**
+ * Receives the metrics collected while a network learns. Registering a
+ * listener turns the instrumentation on; the callbacks run on the thread
+ * calling learn or endEpoch.
+ */
+public interface TrainingListener {
+    /**
+     * @param network
+     * @param batch   : metrics of the batch that was just learned, reused for
+     *                the next batch
+     */
+    public default void batchCompleted(Network network, Metrics batch) {
+    }
+
+    /**
+     * @param network
+     * @param epoch   : index of the epoch that just ended
+     * @param totals  : metrics summed over the epoch, reused for the next epoch
+     */
+    public default void epochCompleted(Network network, int epoch, Metrics totals) {
+    }
+}
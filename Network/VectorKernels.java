@@ -0,0 +1,273 @@
+package Network;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The Matrix kernels written against the Vector API, which compiles every
+ * vector operation to one SIMD instruction of the widest width the CPU
+ * supports. Only loaded when Kernels.Backend selects the Vector API, since
+ * the module it uses has to be added to the JVM explicitly.
+ *
+ * Reductions keep one accumulator vector per output and reduce its lanes once
+ * at the end, so the results differ from the scalar kernels in the last bits.
+ */
+final class VectorKernels {
+    static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    private VectorKernels() {
+    }
+
+    static double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+        int lanes = DOUBLES.length();
+        DoubleVector s0 = DoubleVector.zero(DOUBLES);
+        DoubleVector s1 = DoubleVector.zero(DOUBLES);
+
+        int i = 0;
+        for (; i + 2 * lanes <= n; i += 2 * lanes) {
+            s0 = DoubleVector.fromArray(DOUBLES, a, aOffset + i)
+                    .fma(DoubleVector.fromArray(DOUBLES, b, bOffset + i), s0);
+            s1 = DoubleVector.fromArray(DOUBLES, a, aOffset + i + lanes)
+                    .fma(DoubleVector.fromArray(DOUBLES, b, bOffset + i + lanes), s1);
+        }
+        for (; i + lanes <= n; i += lanes) {
+            s0 = DoubleVector.fromArray(DOUBLES, a, aOffset + i)
+                    .fma(DoubleVector.fromArray(DOUBLES, b, bOffset + i), s0);
+        }
+
+        double sum = s0.add(s1).reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        int lanes = FLOATS.length();
+        FloatVector s0 = FloatVector.zero(FLOATS);
+        FloatVector s1 = FloatVector.zero(FLOATS);
+
+        int i = 0;
+        for (; i + 2 * lanes <= n; i += 2 * lanes) {
+            s0 = FloatVector.fromArray(FLOATS, a, aOffset + i)
+                    .fma(FloatVector.fromArray(FLOATS, b, bOffset + i), s0);
+            s1 = FloatVector.fromArray(FLOATS, a, aOffset + i + lanes)
+                    .fma(FloatVector.fromArray(FLOATS, b, bOffset + i + lanes), s1);
+        }
+        for (; i + lanes <= n; i += lanes) {
+            s0 = FloatVector.fromArray(FLOATS, a, aOffset + i)
+                    .fma(FloatVector.fromArray(FLOATS, b, bOffset + i), s0);
+        }
+
+        float sum = s0.add(s1).reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int n) {
+        DoubleVector scale = DoubleVector.broadcast(DOUBLES, alpha);
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(n); i < bound; i += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, x, xOffset + i)
+                    .fma(scale, DoubleVector.fromArray(DOUBLES, y, yOffset + i))
+                    .intoArray(y, yOffset + i);
+        }
+        for (; i < n; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    static void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int n) {
+        FloatVector scale = FloatVector.broadcast(FLOATS, alpha);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(n); i < bound; i += FLOATS.length()) {
+            FloatVector.fromArray(FLOATS, x, xOffset + i)
+                    .fma(scale, FloatVector.fromArray(FLOATS, y, yOffset + i))
+                    .intoArray(y, yOffset + i);
+        }
+        for (; i < n; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    /**
+     * Same blocking as Matrix.multiplyTransposed, with the 2x4 tile accumulated
+     * in vectors along the shared dimension
+     */
+    static void multiplyTransposed(double[] a, double[] b, double[] c, int m, int n, int k) {
+        int lanes = DOUBLES.length();
+
+        for (int kk = 0; kk < k; kk += Matrix.K_BLOCK) {
+            int kEnd = Math.min(kk + Matrix.K_BLOCK, k);
+            int vEnd = kk + (kEnd - kk) / lanes * lanes;
+
+            for (int jj = 0; jj < n; jj += Matrix.N_BLOCK) {
+                int jEnd = Math.min(jj + Matrix.N_BLOCK, n);
+
+                int i = 0;
+                for (; i + 2 <= m; i += 2) {
+                    int a0 = i * k, a1 = a0 + k;
+                    int c0 = i * n, c1 = c0 + n;
+
+                    int j = jj;
+                    for (; j + 4 <= jEnd; j += 4) {
+                        int b0 = j * k, b1 = b0 + k, b2 = b1 + k, b3 = b2 + k;
+                        DoubleVector c00 = DoubleVector.zero(DOUBLES), c01 = c00, c02 = c00, c03 = c00;
+                        DoubleVector c10 = c00, c11 = c00, c12 = c00, c13 = c00;
+
+                        int p = kk;
+                        for (; p < vEnd; p += lanes) {
+                            DoubleVector x0 = DoubleVector.fromArray(DOUBLES, a, a0 + p);
+                            DoubleVector x1 = DoubleVector.fromArray(DOUBLES, a, a1 + p);
+                            DoubleVector y0 = DoubleVector.fromArray(DOUBLES, b, b0 + p);
+                            DoubleVector y1 = DoubleVector.fromArray(DOUBLES, b, b1 + p);
+                            DoubleVector y2 = DoubleVector.fromArray(DOUBLES, b, b2 + p);
+                            DoubleVector y3 = DoubleVector.fromArray(DOUBLES, b, b3 + p);
+                            c00 = x0.fma(y0, c00);
+                            c01 = x0.fma(y1, c01);
+                            c02 = x0.fma(y2, c02);
+                            c03 = x0.fma(y3, c03);
+                            c10 = x1.fma(y0, c10);
+                            c11 = x1.fma(y1, c11);
+                            c12 = x1.fma(y2, c12);
+                            c13 = x1.fma(y3, c13);
+                        }
+
+                        double s00 = c00.reduceLanes(VectorOperators.ADD);
+                        double s01 = c01.reduceLanes(VectorOperators.ADD);
+                        double s02 = c02.reduceLanes(VectorOperators.ADD);
+                        double s03 = c03.reduceLanes(VectorOperators.ADD);
+                        double s10 = c10.reduceLanes(VectorOperators.ADD);
+                        double s11 = c11.reduceLanes(VectorOperators.ADD);
+                        double s12 = c12.reduceLanes(VectorOperators.ADD);
+                        double s13 = c13.reduceLanes(VectorOperators.ADD);
+                        for (; p < kEnd; p++) {
+                            double x0 = a[a0 + p], x1 = a[a1 + p];
+                            s00 += x0 * b[b0 + p];
+                            s01 += x0 * b[b1 + p];
+                            s02 += x0 * b[b2 + p];
+                            s03 += x0 * b[b3 + p];
+                            s10 += x1 * b[b0 + p];
+                            s11 += x1 * b[b1 + p];
+                            s12 += x1 * b[b2 + p];
+                            s13 += x1 * b[b3 + p];
+                        }
+
+                        c[c0 + j] += s00;
+                        c[c0 + j + 1] += s01;
+                        c[c0 + j + 2] += s02;
+                        c[c0 + j + 3] += s03;
+                        c[c1 + j] += s10;
+                        c[c1 + j + 1] += s11;
+                        c[c1 + j + 2] += s12;
+                        c[c1 + j + 3] += s13;
+                    }
+
+                    for (; j < jEnd; j++) {
+                        c[c0 + j] += dot(a, a0 + kk, b, j * k + kk, kEnd - kk);
+                        c[c1 + j] += dot(a, a1 + kk, b, j * k + kk, kEnd - kk);
+                    }
+                }
+
+                // Remaining odd row
+                for (; i < m; i++) {
+                    int a0 = i * k;
+                    for (int j = jj; j < jEnd; j++) {
+                        c[i * n + j] += dot(a, a0 + kk, b, j * k + kk, kEnd - kk);
+                    }
+                }
+            }
+        }
+    }
+
+    static void multiplyTransposed(float[] a, float[] b, int bOffset, float[] c, int m, int n, int k) {
+        int lanes = FLOATS.length();
+
+        for (int kk = 0; kk < k; kk += Matrix.K_BLOCK) {
+            int kEnd = Math.min(kk + Matrix.K_BLOCK, k);
+            int vEnd = kk + (kEnd - kk) / lanes * lanes;
+
+            for (int jj = 0; jj < n; jj += Matrix.N_BLOCK) {
+                int jEnd = Math.min(jj + Matrix.N_BLOCK, n);
+
+                int i = 0;
+                for (; i + 2 <= m; i += 2) {
+                    int a0 = i * k, a1 = a0 + k;
+                    int c0 = i * n, c1 = c0 + n;
+
+                    int j = jj;
+                    for (; j + 4 <= jEnd; j += 4) {
+                        int b0 = bOffset + j * k, b1 = b0 + k, b2 = b1 + k, b3 = b2 + k;
+                        FloatVector c00 = FloatVector.zero(FLOATS), c01 = c00, c02 = c00, c03 = c00;
+                        FloatVector c10 = c00, c11 = c00, c12 = c00, c13 = c00;
+
+                        int p = kk;
+                        for (; p < vEnd; p += lanes) {
+                            FloatVector x0 = FloatVector.fromArray(FLOATS, a, a0 + p);
+                            FloatVector x1 = FloatVector.fromArray(FLOATS, a, a1 + p);
+                            FloatVector y0 = FloatVector.fromArray(FLOATS, b, b0 + p);
+                            FloatVector y1 = FloatVector.fromArray(FLOATS, b, b1 + p);
+                            FloatVector y2 = FloatVector.fromArray(FLOATS, b, b2 + p);
+                            FloatVector y3 = FloatVector.fromArray(FLOATS, b, b3 + p);
+                            c00 = x0.fma(y0, c00);
+                            c01 = x0.fma(y1, c01);
+                            c02 = x0.fma(y2, c02);
+                            c03 = x0.fma(y3, c03);
+                            c10 = x1.fma(y0, c10);
+                            c11 = x1.fma(y1, c11);
+                            c12 = x1.fma(y2, c12);
+                            c13 = x1.fma(y3, c13);
+                        }
+
+                        float s00 = c00.reduceLanes(VectorOperators.ADD);
+                        float s01 = c01.reduceLanes(VectorOperators.ADD);
+                        float s02 = c02.reduceLanes(VectorOperators.ADD);
+                        float s03 = c03.reduceLanes(VectorOperators.ADD);
+                        float s10 = c10.reduceLanes(VectorOperators.ADD);
+                        float s11 = c11.reduceLanes(VectorOperators.ADD);
+                        float s12 = c12.reduceLanes(VectorOperators.ADD);
+                        float s13 = c13.reduceLanes(VectorOperators.ADD);
+                        for (; p < kEnd; p++) {
+                            float x0 = a[a0 + p], x1 = a[a1 + p];
+                            s00 += x0 * b[b0 + p];
+                            s01 += x0 * b[b1 + p];
+                            s02 += x0 * b[b2 + p];
+                            s03 += x0 * b[b3 + p];
+                            s10 += x1 * b[b0 + p];
+                            s11 += x1 * b[b1 + p];
+                            s12 += x1 * b[b2 + p];
+                            s13 += x1 * b[b3 + p];
+                        }
+
+                        c[c0 + j] += s00;
+                        c[c0 + j + 1] += s01;
+                        c[c0 + j + 2] += s02;
+                        c[c0 + j + 3] += s03;
+                        c[c1 + j] += s10;
+                        c[c1 + j + 1] += s11;
+                        c[c1 + j + 2] += s12;
+                        c[c1 + j + 3] += s13;
+                    }
+
+                    for (; j < jEnd; j++) {
+                        c[c0 + j] += dot(a, a0 + kk, b, bOffset + j * k + kk, kEnd - kk);
+                        c[c1 + j] += dot(a, a1 + kk, b, bOffset + j * k + kk, kEnd - kk);
+                    }
+                }
+
+                // Remaining odd row
+                for (; i < m; i++) {
+                    int a0 = i * k;
+                    for (int j = jj; j < jEnd; j++) {
+                        c[i * n + j] += dot(a, a0 + kk, b, bOffset + j * k + kk, kEnd - kk);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Network.Classifier;
+
+/**
+ * Embeddable inference server that coalesces concurrent requests into
+ * mini-batches.
+ *
+ * Requests wait in a bounded admission queue. A batcher thread takes the
+ * oldest request and keeps collecting more until it has maxBatchSize requests
+ * or the oldest one has waited maxWait, then feeds the whole block through the
+ * model in one matrix multiply per layer and completes every request's future.
+ *
+ * Requests can be submitted in-process or over a local TCP or Unix domain
+ * socket. On a socket every request is a frame of an int id followed by
+ * inputSize() floats, and every response is a frame of the same id, the
+ * predicted label and outputSize() floats, all big-endian. Responses can come
+ * back in a different order than the requests were sent. A request that's
+ * rejected because the queue is full, or fails, is answered with label -1.
+ * The server stops reading from a client with MAX_PENDING_RESPONSES responses
+ * pending until the client reads some of them.
+ *
+ * Usage:
+ *
+ * <pre>
+ * InferenceServer server = new InferenceServer(network.compile(), 64, 500, 1);
+ * SocketAddress address = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+ * ...
+ * server.close();
+ * </pre>
+ */
+public class InferenceServer implements Closeable {
+    // Capacity of the admission queue, in batches
+    static final int QUEUE_BATCHES = 64;
+
+    // Most responses a connection may have queued or waiting to be written before
+    // the server stops reading its requests, so a client that doesn't read its
+    // responses can't make the server buffer them without bound
+    static final int MAX_PENDING_RESPONSES = 1024;
+
+    final Classifier model;
+    final int maxBatchSize;
+    final long maxWaitNanos;
+
+    final BlockingQueue<Request> admission;
+    final List<Thread> batchers = new ArrayList<>();
+
+    // Socket endpoint, started by listen
+    Selector selector;
+    ServerSocketChannel serverChannel;
+    Thread io;
+    final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    final AtomicLong batches = new AtomicLong();
+    final AtomicLong requests = new AtomicLong();
+
+    volatile boolean closed;
+
+    /**
+     * @param model         : model the requests are fed through
+     * @param maxBatchSize  : most requests fed through the model at once
+     * @param maxWaitMicros : longest a request waits for others to join its
+     *                      batch
+     * @param threads       : number of batcher threads, each running its own
+     *                      batches
+     */
+    public InferenceServer(Classifier model, int maxBatchSize, long maxWaitMicros, int threads) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Max batch size must be at least 1, got " + maxBatchSize);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1, got " + threads);
+        }
+
+        this.model = model;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.admission = new ArrayBlockingQueue<>(maxBatchSize * QUEUE_BATCHES);
+
+        for (int i = 0; i < threads; i++) {
+            Thread batcher = new Thread(this::batch, "InferenceServer-batcher-" + i);
+            batcher.setDaemon(true);
+            batchers.add(batcher);
+            batcher.start();
+        }
+    }
+
+    /**
+     * Queues a request
+     *
+     * @param inputs : inputSize() values, not modified until the request
+     *               completes
+     * @return future completed with the prediction once the request's batch has
+     *         run, or failed with a RejectedExecutionException if the admission
+     *         queue is full
+     */
+    public CompletableFuture<Prediction> submit(float[] inputs) {
+        if (inputs.length != model.inputSize()) {
+            throw new IllegalArgumentException("Expected " + model.inputSize() + " inputs, got " + inputs.length);
+        }
+
+        Request request = new Request(inputs);
+        if (closed) {
+            request.future.completeExceptionally(new RejectedExecutionException("Server is closed"));
+        } else if (!admission.offer(request)) {
+            request.future.completeExceptionally(new RejectedExecutionException("Admission queue is full"));
+        }
+        return request.future;
+    }
+
+    // Runs batches until closed
+    void batch() {
+        int inputSize = model.inputSize();
+        int outputSize = model.outputSize();
+        Request[] batch = new Request[maxBatchSize];
+        float[] inputs = new float[maxBatchSize * inputSize];
+        float[] outputs = new float[maxBatchSize * outputSize];
+
+        try {
+            while (!closed) {
+                // Collect requests until the batch is full or the oldest request's
+                // deadline has passed
+                batch[0] = admission.take();
+                int count = 1;
+                long deadline = batch[0].arrival + maxWaitNanos;
+                while (count < maxBatchSize) {
+                    Request next = admission.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0 || (next = admission.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+                            break;
+                        }
+                    }
+                    batch[count++] = next;
+                }
+
+                for (int i = 0; i < count; i++) {
+                    System.arraycopy(batch[i].inputs, 0, inputs, i * inputSize, inputSize);
+                }
+
+                try {
+                    model.predict(inputs, outputs, count);
+                    for (int i = 0; i < count; i++) {
+                        float[] result = Arrays.copyOfRange(outputs, i * outputSize, (i + 1) * outputSize);
+                        batch[i].future.complete(new Prediction(argmax(result), result));
+                    }
+                } catch (RuntimeException e) {
+                    for (int i = 0; i < count; i++) {
+                        batch[i].future.completeExceptionally(e);
+                    }
+                }
+
+                batches.incrementAndGet();
+                requests.addAndGet(count);
+                Arrays.fill(batch, 0, count, null);
+            }
+        } catch (InterruptedException e) {
+            // Closed while collecting a batch
+            for (Request request : batch) {
+                if (request != null) {
+                    request.future.completeExceptionally(new RejectedExecutionException("Server is closed"));
+                }
+            }
+        }
+    }
+
+    static int argmax(float[] values) {
+        int max = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[max]) {
+                max = i;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Accepts requests on a local socket
+     *
+     * @param address : an InetSocketAddress (port 0 picks a free port) or a
+     *                UnixDomainSocketAddress
+     * @return the bound address
+     * @throws IOException
+     */
+    public synchronized SocketAddress listen(SocketAddress address) throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Server is already listening on " + serverChannel.getLocalAddress());
+        }
+
+        selector = Selector.open();
+        serverChannel = address instanceof UnixDomainSocketAddress
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        io = new Thread(this::serve, "InferenceServer-io");
+        io.setDaemon(true);
+        io.start();
+
+        return serverChannel.getLocalAddress();
+    }
+
+    // Selector loop reading request frames and writing responses
+    void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                for (Connection connection; (connection = pendingWrites.poll()) != null;) {
+                    if (connection.key.isValid()) {
+                        connection.key.interestOps(connection.interestOps());
+                    }
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ((Connection) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Connection) key.attachment()).write();
+                        }
+                    } catch (IOException e) {
+                        // The client went away
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        if (channel.getLocalAddress() instanceof InetSocketAddress) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Stops accepting requests and fails the ones still queued
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Thread batcher : batchers) {
+            batcher.interrupt();
+            try {
+                batcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Request request; (request = admission.poll()) != null;) {
+            request.future.completeExceptionally(new RejectedExecutionException("Server is closed"));
+        }
+
+        synchronized (this) {
+            if (serverChannel != null) {
+                selector.wakeup();
+                try {
+                    io.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                SocketAddress address = serverChannel.getLocalAddress();
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+
+                if (address instanceof UnixDomainSocketAddress) {
+                    Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of batches run so far
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return number of requests completed so far
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public int inputSize() {
+        return model.inputSize();
+    }
+
+    public int outputSize() {
+        return model.outputSize();
+    }
+
+    /**
+     * Result of a request
+     */
+    public static final class Prediction {
+        // Index of the largest output
+        public final int label;
+        public final float[] outputs;
+
+        Prediction(int label, float[] outputs) {
+            this.label = label;
+            this.outputs = outputs;
+        }
+    }
+
+    static final class Request {
+        final float[] inputs;
+        final long arrival = System.nanoTime();
+        final CompletableFuture<Prediction> future = new CompletableFuture<>();
+
+        Request(float[] inputs) {
+            this.inputs = inputs;
+        }
+    }
+
+    /**
+     * State of one client socket
+     */
+    final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+
+        final int requestSize = 4 + 4 * model.inputSize();
+        final int responseSize = 8 + 4 * model.outputSize();
+
+        final ByteBuffer in = ByteBuffer.allocate(requestSize * 16);
+
+        // Responses waiting to be written, guarded by this
+        ByteBuffer out = ByteBuffer.allocate(responseSize * 16);
+
+        // Requests submitted whose responses haven't been queued, guarded by this
+        int inFlight;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Reads what the client sent and submits its request frames
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed");
+            }
+            parse();
+            key.interestOps(interestOps());
+        }
+
+        // Submits the whole request frames read so far, until the connection has
+        // too many pending responses
+        void parse() {
+            in.flip();
+
+            while (in.remaining() >= requestSize && !full()) {
+                int id = in.getInt();
+                float[] inputs = new float[model.inputSize()];
+                in.asFloatBuffer().get(inputs);
+                in.position(in.position() + 4 * inputs.length);
+
+                synchronized (this) {
+                    inFlight++;
+                }
+                submit(inputs).whenComplete((prediction, failure) -> respond(id, prediction));
+            }
+            in.compact();
+        }
+
+        synchronized boolean full() {
+            return inFlight + out.position() / responseSize >= MAX_PENDING_RESPONSES;
+        }
+
+        // Writes while there are responses, reads until there are too many
+        synchronized int interestOps() {
+            int ops = out.position() > 0 ? SelectionKey.OP_WRITE : 0;
+            return full() ? ops : ops | SelectionKey.OP_READ;
+        }
+
+        // Queues a response frame and wakes the selector to write it
+        void respond(int id, Prediction prediction) {
+            synchronized (this) {
+                inFlight--;
+                if (out.remaining() < responseSize) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + responseSize));
+                    out.flip();
+                    larger.put(out);
+                    out = larger;
+                }
+
+                out.putInt(id);
+                if (prediction == null) {
+                    out.putInt(-1);
+                    for (int i = 0; i < model.outputSize(); i++) {
+                        out.putFloat(0);
+                    }
+                } else {
+                    out.putInt(prediction.label);
+                    out.asFloatBuffer().put(prediction.outputs);
+                    out.position(out.position() + 4 * prediction.outputs.length);
+                }
+            }
+
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        void write() throws IOException {
+            synchronized (this) {
+                out.flip();
+                channel.write(out);
+                out.compact();
+            }
+
+            // Requests left unparsed while the connection was full
+            parse();
+            key.interestOps(interestOps());
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+
+import Network.HyperParameter;
+import Network.Layer;
+import Network.Network;
+
+/**
+ * Local load generator for the inference server.
+ *
+ * Starts a server on a randomly initialized network and connects a number of
+ * clients to it. Every client keeps a fixed number of requests in flight and
+ * measures the latency of each one. Running it with --batch 1 gives the
+ * throughput of serving every request on its own.
+ *
+ * Usage: java Server.LoadGenerator [options]
+ *
+ * <pre>
+ *   --clients n      number of client connections (default 16)
+ *   --requests n     requests sent by every client (default 2000)
+ *   --pipeline n     requests every client keeps in flight (default 4)
+ *   --batch n        max batch size of the server (default 64)
+ *   --wait us        max wait of the server in microseconds (default 500)
+ *   --threads n      batcher threads of the server (default 1)
+ *   --unix           use a Unix domain socket instead of TCP
+ * </pre>
+ */
+public class LoadGenerator {
+    static final int[] LAYER_SIZES = { 784, 200, 10 };
+
+    int clients = 16;
+    int requests = 2000;
+    int pipeline = 4;
+    int maxBatchSize = 64;
+    long maxWaitMicros = 500;
+    int threads = 1;
+    boolean unix;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    generator.clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--requests":
+                    generator.requests = Integer.parseInt(args[++i]);
+                    break;
+                case "--pipeline":
+                    generator.pipeline = Integer.parseInt(args[++i]);
+                    break;
+                case "--batch":
+                    generator.maxBatchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--wait":
+                    generator.maxWaitMicros = Long.parseLong(args[++i]);
+                    break;
+                case "--threads":
+                    generator.threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--unix":
+                    generator.unix = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        generator.run();
+    }
+
+    void run() throws Exception {
+        HyperParameter params = new HyperParameter(
+                Activation.ActivationFunctionType.Sigmoid,
+                InitialWeights.InitialWeightsType.Xavier,
+                Cost.CostFunctionType.MeanSquaredError,
+                Layer.initializeWeights(LAYER_SIZES),
+                LAYER_SIZES,
+                0.05,
+                0.075,
+                0.9,
+                0.1);
+        Network network = new Network(params, 1);
+
+        SocketAddress address;
+        Path socketFile = null;
+        if (unix) {
+            socketFile = Files.createTempDirectory("inference").resolve("server.sock");
+            address = UnixDomainSocketAddress.of(socketFile);
+        } else {
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        }
+
+        try (InferenceServer server = new InferenceServer(network.compile(), maxBatchSize, maxWaitMicros, threads)) {
+            SocketAddress bound = server.listen(address);
+
+            Client[] workers = new Client[clients];
+            Thread[] clientThreads = new Thread[clients];
+            for (int c = 0; c < clients; c++) {
+                workers[c] = new Client(bound, server.inputSize(), server.outputSize(), c);
+                clientThreads[c] = new Thread(workers[c], "LoadGenerator-client-" + c);
+            }
+
+            long start = System.nanoTime();
+            for (Thread thread : clientThreads) {
+                thread.start();
+            }
+            for (Thread thread : clientThreads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long[] latencies = new long[clients * requests];
+            int failed = 0;
+            for (int c = 0; c < clients; c++) {
+                if (workers[c].failure != null) {
+                    throw new RuntimeException("Client " + c + " failed", workers[c].failure);
+                }
+                System.arraycopy(workers[c].latencies, 0, latencies, c * requests, requests);
+                failed += workers[c].rejected;
+            }
+            Arrays.sort(latencies);
+
+            System.out.printf("%s, %d clients x %d requests, %d in flight, max batch %d, max wait %d us%n",
+                    unix ? "unix" : "tcp", clients, requests, pipeline, maxBatchSize, maxWaitMicros);
+            System.out.printf("throughput   %12.1f requests/s%n", latencies.length / seconds);
+            System.out.printf("mean batch   %12.1f requests%n",
+                    server.getRequestCount() / (double) Math.max(1, server.getBatchCount()));
+            System.out.printf("latency p50  %12.1f us%n", percentile(latencies, 0.50) / 1e3);
+            System.out.printf("latency p99  %12.1f us%n", percentile(latencies, 0.99) / 1e3);
+            System.out.printf("latency max  %12.1f us%n", latencies[latencies.length - 1] / 1e3);
+            System.out.printf("rejected     %12d%n", failed);
+        } finally {
+            network.shutdown();
+            if (socketFile != null) {
+                Files.deleteIfExists(socketFile);
+                Files.deleteIfExists(socketFile.getParent());
+            }
+        }
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    /**
+     * Blocking client keeping a fixed number of requests in flight
+     */
+    class Client implements Runnable {
+        final SocketAddress address;
+        final int inputSize;
+        final int responseSize;
+        final Random rng;
+
+        final long[] latencies = new long[requests];
+        final long[] sent = new long[requests];
+        int rejected;
+        Throwable failure;
+
+        Client(SocketAddress address, int inputSize, int outputSize, int seed) {
+            this.address = address;
+            this.inputSize = inputSize;
+            this.responseSize = 8 + 4 * outputSize;
+            this.rng = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = address instanceof UnixDomainSocketAddress
+                    ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                    : SocketChannel.open()) {
+                channel.connect(address);
+                if (address instanceof InetSocketAddress) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+
+                ByteBuffer request = ByteBuffer.allocate(4 + 4 * inputSize);
+                ByteBuffer response = ByteBuffer.allocate(responseSize);
+
+                int next = 0;
+                for (; next < Math.min(pipeline, requests); next++) {
+                    send(channel, request, next);
+                }
+
+                for (int received = 0; received < requests; received++) {
+                    response.clear();
+                    while (response.hasRemaining()) {
+                        if (channel.read(response) < 0) {
+                            throw new IOException("Server closed the connection");
+                        }
+                    }
+
+                    int id = response.getInt(0);
+                    latencies[id] = System.nanoTime() - sent[id];
+                    if (response.getInt(4) < 0) {
+                        rejected++;
+                    }
+
+                    if (next < requests) {
+                        send(channel, request, next++);
+                    }
+                }
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        void send(SocketChannel channel, ByteBuffer request, int id) throws IOException {
+            request.clear();
+            request.putInt(id);
+            for (int i = 0; i < inputSize; i++) {
+                request.putFloat(rng.nextFloat());
+            }
+            request.flip();
+
+            sent[id] = System.nanoTime();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+        }
+    }
+}
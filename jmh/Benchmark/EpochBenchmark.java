@@ -0,0 +1,66 @@
+package Benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Network.DataPoint;
+import Network.Network;
+import Network.Precision;
+
+/**
+ * Learning an epoch of Fixtures.EPOCH_SAMPLES random samples in mini-batches,
+ * on every available processor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EpochBenchmark {
+    @Param({ "784-200-10", "784-800-10" })
+    String shape;
+
+    @Param({ "32", "128" })
+    int batch;
+
+    @Param({ "Double", "Single", "Mixed" })
+    Precision precision;
+
+    Network network;
+    DataPoint[][] batches;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] sizes = Fixtures.sizes(shape);
+        network = Fixtures.createNetwork(sizes, Runtime.getRuntime().availableProcessors(), precision);
+        batches = Fixtures.randomBatches(new Random(42), sizes, batch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        network.shutdown();
+    }
+
+    @Benchmark
+    public Network learnEpoch() {
+        for (DataPoint[] b : batches) {
+            network.learn(b, 0.05, 0.1, 0.9);
+        }
+        return network;
+    }
+}
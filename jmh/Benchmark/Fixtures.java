@@ -0,0 +1,101 @@
+package Benchmark;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+
+import Network.DataPoint;
+import Network.HyperParameter;
+import Network.Layer;
+import Network.Network;
+import Network.Precision;
+
+/**
+ * Networks and data shared by the benchmarks. Every benchmark draws its data
+ * from a fixed seed so runs are comparable.
+ */
+final class Fixtures {
+    // Samples learned by one epoch benchmark operation
+    static final int EPOCH_SAMPLES = 2048;
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param shape : layer sizes separated by dashes, e.g. "784-200-10"
+     * @return
+     */
+    static int[] sizes(String shape) {
+        String[] parts = shape.split("-");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i]);
+        }
+        return sizes;
+    }
+
+    static Network createNetwork(int[] sizes, int threads, Precision precision) {
+        HyperParameter params = new HyperParameter(
+                Activation.ActivationFunctionType.Sigmoid,
+                InitialWeights.InitialWeightsType.Xavier,
+                Cost.CostFunctionType.MeanSquaredError,
+                Layer.initializeWeights(sizes),
+                sizes,
+                0.05,
+                0.075,
+                0.9,
+                0.1)
+                .setPrecision(precision)
+                .setSeed(42);
+        return new Network(params, threads);
+    }
+
+    static Layer createLayer(int inputs, int outputs) {
+        return new Layer(inputs, outputs, new double[] { inputs, outputs },
+                Activation.ActivationFunctionType.Sigmoid, InitialWeights.InitialWeightsType.Xavier,
+                Cost.CostFunctionType.MeanSquaredError);
+    }
+
+    static double[] randomInputs(Random rng, int size) {
+        double[] inputs = new double[size];
+        for (int i = 0; i < size; i++) {
+            inputs[i] = rng.nextDouble();
+        }
+        return inputs;
+    }
+
+    static DataPoint[][] randomBatches(Random rng, int[] sizes, int batchSize) {
+        int outputs = sizes[sizes.length - 1];
+        DataPoint[][] batches = new DataPoint[EPOCH_SAMPLES / batchSize][batchSize];
+        for (DataPoint[] batch : batches) {
+            for (int i = 0; i < batchSize; i++) {
+                batch[i] = new DataPoint(randomInputs(rng, sizes[0]), rng.nextInt(outputs), outputs);
+            }
+        }
+        return batches;
+    }
+
+    // Writes a temporary IDX image file of random 28x28 images
+    static File createImageFile(Random rng, int count) throws IOException {
+        File file = File.createTempFile("benchmark-images", ".idx3-ubyte");
+        file.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(2051);
+            out.writeInt(count);
+            out.writeInt(28);
+            out.writeInt(28);
+            byte[] image = new byte[28 * 28];
+            for (int i = 0; i < count; i++) {
+                rng.nextBytes(image);
+                out.write(image);
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,88 @@
+package Benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Network.Layer;
+import Network.LayerData;
+
+/**
+ * A hidden and an output layer on their own: the forward pass of one sample
+ * and of a block, backpropagation through both layers, and the gradient step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayerBenchmark {
+    @Param({ "784-200-10", "784-800-10" })
+    String shape;
+
+    @Param({ "1", "32", "128" })
+    int batch;
+
+    Layer hidden, output;
+    LayerData hiddenData, outputData;
+    double[] sample, block, expected;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] sizes = Fixtures.sizes(shape);
+        Random rng = new Random(42);
+
+        hidden = Fixtures.createLayer(sizes[0], sizes[1]);
+        output = Fixtures.createLayer(sizes[1], sizes[2]);
+        hiddenData = new LayerData(hidden, batch);
+        outputData = new LayerData(output, batch);
+
+        sample = Fixtures.randomInputs(rng, sizes[0]);
+        block = Fixtures.randomInputs(rng, batch * sizes[0]);
+        expected = new double[batch * sizes[2]];
+        for (int s = 0; s < batch; s++) {
+            expected[s * sizes[2] + rng.nextInt(sizes[2])] = 1;
+        }
+
+        // Forward once so the backward pass has activations to work with
+        output.outputs(hidden.outputs(block, hiddenData, batch), outputData, batch);
+    }
+
+    @Benchmark
+    public double[] outputs() {
+        return hidden.outputs(sample);
+    }
+
+    @Benchmark
+    public double[] outputsBlock() {
+        return hidden.outputs(block, hiddenData, batch);
+    }
+
+    @Benchmark
+    public LayerData backprop() {
+        output.calculateOutputLayerNodeValues(outputData, expected, batch);
+        output.updateGradients(outputData, batch);
+        hidden.calculateHiddenLayerNodeValues(hiddenData, output, outputData.nodeValues, batch);
+        hidden.updateGradients(hiddenData, batch);
+        return hiddenData;
+    }
+
+    @Benchmark
+    public Layer gradient() {
+        hidden.gradient(0.01, 0.1, 0.9);
+        return hidden;
+    }
+}
@@ -0,0 +1,76 @@
+package Benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import MNIST.IdxFile;
+import MNIST.MnistImageFile;
+
+/**
+ * Loading MNIST images, one at a time through MnistImageFile and a batch at a
+ * time out of a mapped IdxFile
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MnistBenchmark {
+    static final int IMAGES = 1000;
+    static final int BATCH = 128;
+
+    File images;
+    MnistImageFile imageFile;
+    IdxFile idxFile;
+    float[] batch;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        images = Fixtures.createImageFile(new Random(42), IMAGES);
+        imageFile = new MnistImageFile(images.getPath(), "r");
+        idxFile = new IdxFile(images.getPath());
+        batch = new float[BATCH * idxFile.getEntryLength()];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        imageFile.close();
+        idxFile.close();
+        images.delete();
+    }
+
+    @Benchmark
+    public int[][] readImage() throws IOException {
+        if (imageFile.getCurrentIndex() > imageFile.getCount()) {
+            imageFile.setCurrentIndex(1);
+        }
+        return imageFile.readImage();
+    }
+
+    @Benchmark
+    public float[] idxGetBatch() {
+        if (next + BATCH > idxFile.getCount()) {
+            next = 0;
+        }
+        idxFile.getBatch(next, BATCH, batch, 1 / 255f);
+        next += BATCH;
+        return batch;
+    }
+}
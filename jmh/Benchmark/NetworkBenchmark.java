@@ -0,0 +1,93 @@
+package Benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Network.Data;
+import Network.InferenceModel;
+import Network.Network;
+import Network.Precision;
+import Network.QuantizedModel;
+
+/**
+ * Inference of one sample through a whole network, and through the compiled
+ * float and int8 models of the same network
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkBenchmark {
+    @Param({ "784-200-10", "784-800-10" })
+    String shape;
+
+    Network network;
+    InferenceModel model;
+    QuantizedModel quantized;
+    double[] sample;
+    float[] floatSample, floatOutputs;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] sizes = Fixtures.sizes(shape);
+        Random rng = new Random(42);
+
+        network = Fixtures.createNetwork(sizes, 1, Precision.Double);
+        sample = Fixtures.randomInputs(rng, sizes[0]);
+
+        model = network.compile();
+        floatSample = new float[sizes[0]];
+        floatOutputs = new float[sizes[sizes.length - 1]];
+        for (int i = 0; i < sizes[0]; i++) {
+            floatSample[i] = (float) sample[i];
+        }
+
+        double[][] calibration = new double[100][];
+        for (int i = 0; i < calibration.length; i++) {
+            calibration[i] = Fixtures.randomInputs(rng, sizes[0]);
+        }
+        quantized = network.quantize(
+                new Data(calibration, new double[calibration.length][sizes[sizes.length - 1]]), calibration.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        network.shutdown();
+    }
+
+    @Benchmark
+    public double[] forwardPropogation() {
+        return network.forwardPropogation(sample);
+    }
+
+    @Benchmark
+    public Object[] classify() {
+        return network.classify(sample);
+    }
+
+    @Benchmark
+    public int compiledClassify() {
+        return model.classify(floatSample, floatOutputs);
+    }
+
+    @Benchmark
+    public int quantizedClassify() {
+        return quantized.classify(floatSample, floatOutputs);
+    }
+}
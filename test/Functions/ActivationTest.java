@@ -0,0 +1,160 @@
+package Functions;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Numerical gradient checks of every activation's backward pass, including
+ * the full softmax Jacobian, and of the fused softmax cross-entropy gradient
+ */
+class ActivationTest {
+    // One layer of N values at OFFSET in a longer array, so backward mustn't
+    // touch anything outside it
+    static final int OFFSET = 3;
+    static final int N = 6;
+    static final int LENGTH = 12;
+    static final double H = 1e-6;
+
+    @Test
+    void backwardMatchesNumericalGradient() {
+        for (Activation.ActivationFunctionType type : Activation.ActivationFunctionType.values()) {
+            ActivationFunction function = Activation.getActivationFunction(type);
+            Random random = new Random(type.ordinal());
+
+            // Keep the inputs away from ReLU's kink
+            double[] z = new double[LENGTH];
+            double[] gradients = new double[LENGTH];
+            for (int i = 0; i < LENGTH; i++) {
+                z[i] = random.nextGaussian() * 2;
+                if (Math.abs(z[i]) < 0.1) {
+                    z[i] += 0.5;
+                }
+                gradients[i] = random.nextGaussian();
+            }
+
+            double[] a = new double[LENGTH];
+            function.apply(z, a, OFFSET, N);
+            double[] out = new double[LENGTH];
+            function.backward(a, z, gradients, new double[LENGTH], out, OFFSET, N);
+
+            // The gradient of sum gradients[i] * f(z)[i] with respect to z
+            double[] expected = new double[LENGTH];
+            for (int j = OFFSET; j < OFFSET + N; j++) {
+                double saved = z[j];
+                z[j] = saved + H;
+                double plus = weightedSum(function, z, gradients);
+                z[j] = saved - H;
+                double minus = weightedSum(function, z, gradients);
+                z[j] = saved;
+                expected[j] = (plus - minus) / (2 * H);
+            }
+
+            assertArrayEquals(expected, out, 1e-6, type.name());
+        }
+    }
+
+    @Test
+    void softmaxBackwardIsFullJacobian() {
+        ActivationFunction softmax = Activation.getActivationFunction(Activation.ActivationFunctionType.Softmax);
+        double[] z = { 0.5, -1, 2 };
+        double[] a = new double[3];
+        softmax.apply(z, a, 3);
+
+        // A gradient on one output moves every weighted input
+        double[] gradients = { 1, 0, 0 };
+        double[] out = new double[3];
+        softmax.backward(a, z, gradients, new double[3], out, 0, 3);
+        assertArrayEquals(new double[] { a[0] * (1 - a[0]), -a[0] * a[1], -a[0] * a[2] }, out, 1e-15);
+    }
+
+    @Test
+    void softmaxIsStable() {
+        ActivationFunction softmax = Activation.getActivationFunction(Activation.ActivationFunctionType.Softmax);
+        double[] z = { 1000, 999, -1000 };
+        double[] a = new double[3];
+        softmax.apply(z, a, 3);
+
+        double sum = 0;
+        for (double value : a) {
+            assertTrue(Double.isFinite(value));
+            sum += value;
+        }
+        assertEquals(1, sum, 1e-15);
+        assertEquals(1 / (1 + Math.exp(-1)), a[0], 1e-15);
+    }
+
+    @Test
+    void softmaxCrossEntropyGradient() {
+        ActivationFunction softmax = Activation.getActivationFunction(Activation.ActivationFunctionType.Softmax);
+        double[] z = new double[LENGTH];
+        double[] y = new double[LENGTH];
+        Random random = new Random(4);
+        for (int i = 0; i < LENGTH; i++) {
+            z[i] = random.nextGaussian() * 3;
+        }
+        y[OFFSET + 2] = 1;
+
+        // The fused gradient the output layer uses: softmax(z) - y
+        double[] a = new double[LENGTH];
+        softmax.apply(z, a, OFFSET, N);
+        for (int j = OFFSET; j < OFFSET + N; j++) {
+            double saved = z[j];
+            z[j] = saved + H;
+            double plus = Cost.softmaxCrossEntropy(z, y, OFFSET, N);
+            z[j] = saved - H;
+            double minus = Cost.softmaxCrossEntropy(z, y, OFFSET, N);
+            z[j] = saved;
+
+            assertEquals((plus - minus) / (2 * H), a[j] - y[j], 1e-7, "Input " + j);
+        }
+    }
+
+    @Test
+    void floatPassesMatchDoublePasses() {
+        for (Activation.ActivationFunctionType type : Activation.ActivationFunctionType.values()) {
+            ActivationFunction function = Activation.getActivationFunction(type);
+            Random random = new Random(type.ordinal());
+
+            double[] z = new double[LENGTH];
+            double[] gradients = new double[LENGTH];
+            float[] zSingle = new float[LENGTH];
+            float[] gradientsSingle = new float[LENGTH];
+            for (int i = 0; i < LENGTH; i++) {
+                zSingle[i] = (float) (random.nextGaussian() * 2);
+                gradientsSingle[i] = (float) random.nextGaussian();
+                z[i] = zSingle[i];
+                gradients[i] = gradientsSingle[i];
+            }
+
+            double[] a = new double[LENGTH];
+            function.apply(z, a, OFFSET, N);
+            double[] out = new double[LENGTH];
+            function.backward(a, z, gradients, new double[LENGTH], out, OFFSET, N);
+
+            float[] aSingle = new float[LENGTH];
+            function.apply(zSingle, aSingle, OFFSET, N);
+            float[] outSingle = new float[LENGTH];
+            function.backward(aSingle, zSingle, gradientsSingle, new float[LENGTH], outSingle, OFFSET, N);
+
+            for (int i = 0; i < LENGTH; i++) {
+                assertEquals(a[i], aSingle[i], 1e-6, type + " activation " + i);
+                assertEquals(out[i], outSingle[i], 1e-5, type + " gradient " + i);
+            }
+        }
+    }
+
+    static double weightedSum(ActivationFunction function, double[] z, double[] gradients) {
+        double[] a = new double[LENGTH];
+        function.apply(z, a, OFFSET, N);
+        double sum = 0;
+        for (int i = OFFSET; i < OFFSET + N; i++) {
+            sum += gradients[i] * a[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,154 @@
+package Functions;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every optimizer's update against the textbook form of its rule, over a few
+ * steps of random gradients with weight decay and a gradient scale, and
+ * against a quadratic it has to minimize
+ */
+class OptimizerTest {
+    static final int SIZE = 7;
+    static final int STEPS = 5;
+    static final double LEARN_RATE = 0.05;
+    static final double SCALE = 0.25;
+    static final double DECAY = 0.1;
+    static final double MOMENTUM = 0.9;
+    static final double BETA2 = 0.999;
+    static final double EPSILON = 1e-8;
+
+    @Test
+    void sgd() {
+        check(Optimizer.OptimizerType.SGD, (p, g, v, s, step) -> {
+            for (int i = 0; i < SIZE; i++) {
+                p[i] -= LEARN_RATE * (SCALE * g[i] + DECAY * p[i]);
+            }
+        });
+    }
+
+    @Test
+    void momentum() {
+        check(Optimizer.OptimizerType.Momentum, (p, g, v, s, step) -> {
+            for (int i = 0; i < SIZE; i++) {
+                v[i] = MOMENTUM * v[i] - LEARN_RATE * SCALE * g[i];
+                p[i] += v[i] - LEARN_RATE * DECAY * p[i];
+            }
+        });
+    }
+
+    @Test
+    void nesterov() {
+        // Sutskever's form: step from the look-ahead with the new velocity
+        check(Optimizer.OptimizerType.Nesterov, (p, g, v, s, step) -> {
+            for (int i = 0; i < SIZE; i++) {
+                v[i] = MOMENTUM * v[i] - LEARN_RATE * SCALE * g[i];
+                p[i] += MOMENTUM * v[i] - LEARN_RATE * SCALE * g[i] - LEARN_RATE * DECAY * p[i];
+            }
+        });
+    }
+
+    @Test
+    void rmsProp() {
+        check(Optimizer.OptimizerType.RMSProp, (p, g, v, s, step) -> {
+            for (int i = 0; i < SIZE; i++) {
+                double gradient = SCALE * g[i];
+                s[i] = BETA2 * s[i] + (1 - BETA2) * gradient * gradient;
+                v[i] = MOMENTUM * v[i] - LEARN_RATE * gradient / (Math.sqrt(s[i]) + EPSILON);
+                p[i] += v[i] - LEARN_RATE * DECAY * p[i];
+            }
+        });
+    }
+
+    @Test
+    void adam() {
+        // L2 regularization is added to the gradient
+        check(Optimizer.OptimizerType.Adam, (p, g, v, s, step) -> {
+            for (int i = 0; i < SIZE; i++) {
+                double gradient = SCALE * g[i] + DECAY * p[i];
+                v[i] = MOMENTUM * v[i] + (1 - MOMENTUM) * gradient;
+                s[i] = BETA2 * s[i] + (1 - BETA2) * gradient * gradient;
+                double mean = v[i] / (1 - Math.pow(MOMENTUM, step));
+                double square = s[i] / (1 - Math.pow(BETA2, step));
+                p[i] -= LEARN_RATE * mean / (Math.sqrt(square) + EPSILON);
+            }
+        });
+    }
+
+    @Test
+    void adamW() {
+        // The decay is applied to the weights and left out of the moments
+        check(Optimizer.OptimizerType.AdamW, (p, g, v, s, step) -> {
+            for (int i = 0; i < SIZE; i++) {
+                double gradient = SCALE * g[i];
+                v[i] = MOMENTUM * v[i] + (1 - MOMENTUM) * gradient;
+                s[i] = BETA2 * s[i] + (1 - BETA2) * gradient * gradient;
+                double mean = v[i] / (1 - Math.pow(MOMENTUM, step));
+                double square = s[i] / (1 - Math.pow(BETA2, step));
+                p[i] -= LEARN_RATE * (mean / (Math.sqrt(square) + EPSILON) + DECAY * p[i]);
+            }
+        });
+    }
+
+    @Test
+    void minimizesQuadratic() {
+        for (Optimizer.OptimizerType type : Optimizer.OptimizerType.values()) {
+            OptimizerFunction optimizer = Optimizer.getOptimizerFunction(type, BETA2, EPSILON);
+            double[] params = { 3, -2, 0.5 };
+            double[] gradients = new double[3];
+            double[] velocities = new double[3];
+            double[] squares = optimizer.usesSquares() ? new double[3] : null;
+
+            // f(p) = sum (p - i)^2 has its minimum at p = { 0, 1, 2 }
+            for (long step = 1; step <= 2000; step++) {
+                for (int i = 0; i < params.length; i++) {
+                    gradients[i] = 2 * (params[i] - i);
+                }
+                optimizer.update(params, gradients, velocities, squares, 0.01, 1, 0, MOMENTUM, step);
+            }
+            assertArrayEquals(new double[] { 0, 1, 2 }, params, 1e-2, type.name());
+        }
+    }
+
+    interface Reference {
+        void update(double[] params, double[] gradients, double[] velocities, double[] squares, long step);
+    }
+
+    // Runs the optimizer and the reference side by side and compares their
+    // parameters and state after every step
+    static void check(Optimizer.OptimizerType type, Reference reference) {
+        OptimizerFunction optimizer = Optimizer.getOptimizerFunction(type, BETA2, EPSILON);
+        Random random = new Random(type.ordinal());
+
+        double[] params = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            params[i] = random.nextGaussian();
+        }
+        double[] velocities = new double[SIZE];
+        double[] squares = optimizer.usesSquares() ? new double[SIZE] : null;
+
+        double[] expectedParams = params.clone();
+        double[] expectedVelocities = new double[SIZE];
+        double[] expectedSquares = new double[SIZE];
+
+        for (long step = 1; step <= STEPS; step++) {
+            double[] gradients = new double[SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                gradients[i] = random.nextGaussian();
+            }
+            reference.update(expectedParams, gradients, expectedVelocities, expectedSquares, step);
+            optimizer.update(params, gradients, velocities, squares, LEARN_RATE, SCALE, DECAY, MOMENTUM, step);
+
+            String message = type + " step " + step;
+            assertArrayEquals(expectedParams, params, 1e-12, message);
+            assertArrayEquals(expectedVelocities, velocities, 1e-12, message);
+            assertArrayEquals(new double[SIZE], gradients, message + " clears the gradients");
+            if (squares != null) {
+                assertArrayEquals(expectedSquares, squares, 1e-12, message);
+            }
+        }
+    }
+}
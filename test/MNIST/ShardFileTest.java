@@ -0,0 +1,172 @@
+package MNIST;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import Network.DataSource;
+
+/**
+ * The shard cache converts a source only when its files change, and then
+ * removes the shards of the old contents but not those of other data sets
+ */
+class ShardFileTest {
+    static final double SCALE = 1 / 255.0;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Samples whose raw values are bytes, counting how often they're read
+     */
+    static class Source implements DataSource {
+        final int offset;
+        int reads;
+
+        Source(int offset) {
+            this.offset = offset;
+        }
+
+        public int size() {
+            return 10;
+        }
+
+        public int inputSize() {
+            return 3;
+        }
+
+        public int outputSize() {
+            return 4;
+        }
+
+        public void read(int index, double[] inputs, int inputOffset, double[] expectedOutputs, int expectedOffset) {
+            reads++;
+            for (int i = 0; i < 3; i++) {
+                inputs[inputOffset + i] = (offset + index * 3 + i) % 256;
+            }
+            for (int i = 0; i < 4; i++) {
+                expectedOutputs[expectedOffset + i] = i == index % 4 ? 1 : 0;
+            }
+        }
+    }
+
+    @Test
+    void hitDoesNotReadSource() throws IOException {
+        Path file = write("images", 1);
+        Source source = new Source(0);
+        long checksum = checksum("train", source, ShardFile.Encoding.Float32, file);
+        assertEquals(10, source.reads);
+
+        Source again = new Source(0);
+        assertEquals(checksum, checksum("train", again, ShardFile.Encoding.Float32, file));
+        assertEquals(0, again.reads);
+    }
+
+    @Test
+    void touchedFileKeepsShard() throws IOException {
+        Path file = write("images", 1);
+        long checksum = checksum("train", new Source(0), ShardFile.Encoding.Float32, file);
+
+        // Same contents with a new modification time is checksummed again, but
+        // the shard of those contents is still there
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 5000));
+        Source again = new Source(0);
+        assertEquals(checksum, checksum("train", again, ShardFile.Encoding.Float32, file));
+        assertEquals(0, again.reads);
+    }
+
+    @Test
+    void changedFileReplacesShard() throws IOException {
+        Path file = write("images", 1);
+        long checksum = checksum("train", new Source(0), ShardFile.Encoding.Float32, file);
+        Path old = ShardFile.shardPath(directory, "train", checksum);
+
+        write("images", 2);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 5000));
+        Source changed = new Source(7);
+        long newChecksum = checksum("train", changed, ShardFile.Encoding.Float32, file);
+
+        assertNotEquals(checksum, newChecksum);
+        assertEquals(10, changed.reads);
+        assertFalse(Files.exists(old));
+        assertEquals(List.of(ShardFile.shardPath(directory, "train", newChecksum)), shards());
+
+        try (ShardFile shard = new ShardFile(ShardFile.shardPath(directory, "train", newChecksum))) {
+            double[] inputs = new double[3];
+            double[] expected = new double[4];
+            shard.read(2, inputs, 0, expected, 0);
+            assertEquals((float) (13 * SCALE), inputs[0]);
+            assertEquals(1, expected[2]);
+        }
+    }
+
+    @Test
+    void otherDataSetsAreKept() throws IOException {
+        Path file = write("images", 1);
+        Path small = write("small", 3);
+        long other = checksum("train-small", new Source(0), ShardFile.Encoding.Float32, small);
+        long checksum = checksum("train", new Source(0), ShardFile.Encoding.Float32, file);
+
+        write("images", 2);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 5000));
+        long newChecksum = checksum("train", new Source(0), ShardFile.Encoding.Float32, file);
+
+        List<Path> shards = shards();
+        assertTrue(shards.contains(ShardFile.shardPath(directory, "train-small", other)));
+        assertTrue(shards.contains(ShardFile.shardPath(directory, "train", newChecksum)));
+        assertFalse(shards.contains(ShardFile.shardPath(directory, "train", checksum)));
+    }
+
+    @Test
+    void encodingIsPartOfKey() throws IOException {
+        Path file = write("images", 1);
+        long floats = checksum("train", new Source(0), ShardFile.Encoding.Float32, file);
+        Source bytes = new Source(0);
+        long unsigned = checksum("train", bytes, ShardFile.Encoding.UnsignedByte, file);
+
+        assertNotEquals(floats, unsigned);
+        assertEquals(10, bytes.reads);
+
+        try (ShardFile shard = new ShardFile(ShardFile.shardPath(directory, "train", unsigned))) {
+            double[] inputs = new double[3];
+            shard.read(4, inputs, 0, new double[4], 0);
+            assertEquals(14 * SCALE, inputs[2]);
+        }
+    }
+
+    // Caches the source and returns the checksum its shard is named after
+    long checksum(String name, Source source, ShardFile.Encoding encoding, Path file) throws IOException {
+        try (ShardFile shard = ShardFile.cache(directory, name, source, SCALE, encoding, file)) {
+            assertEquals(10, shard.size());
+            return shard.getChecksum();
+        }
+    }
+
+    Path write(String name, int seed) throws IOException {
+        byte[] bytes = new byte[100];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * seed);
+        }
+        return Files.write(directory.resolve(name), bytes);
+    }
+
+    List<Path> shards() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> shards = new ArrayList<>();
+            files.filter(file -> file.toString().endsWith(".shard")).sorted().forEach(shards::add);
+            return shards;
+        }
+    }
+}
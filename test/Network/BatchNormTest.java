@@ -0,0 +1,121 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import Functions.Optimizer;
+
+/**
+ * Ghost batch normalization and its backward pass
+ */
+class BatchNormTest {
+    static final int SIZE = 5;
+
+    static BatchNorm batchNorm() {
+        return new BatchNorm(SIZE, Optimizer.getOptimizerFunction(Optimizer.OptimizerType.SGD, 0, 0));
+    }
+
+    @Test
+    void normalizesEveryGhostBatchOnItsOwn() {
+        BatchNorm norm = batchNorm();
+        int count = 2 * BatchNorm.GHOST_BATCH_SIZE;
+        Random random = new Random(1);
+
+        // The two ghost batches have different means and spreads
+        double[] inputs = new double[count * SIZE];
+        for (int i = 0; i < inputs.length; i++) {
+            boolean second = i >= BatchNorm.GHOST_BATCH_SIZE * SIZE;
+            inputs[i] = second ? 10 + 3 * random.nextGaussian() : random.nextGaussian();
+        }
+
+        double[] outputs = norm.forward(inputs, norm.createData(count, true), count, true).clone();
+        for (int ghost = 0; ghost < 2; ghost++) {
+            for (int i = 0; i < SIZE; i++) {
+                double mean = 0;
+                double square = 0;
+                for (int sample = 0; sample < BatchNorm.GHOST_BATCH_SIZE; sample++) {
+                    double value = outputs[(ghost * BatchNorm.GHOST_BATCH_SIZE + sample) * SIZE + i];
+                    mean += value;
+                    square += value * value;
+                }
+                mean /= BatchNorm.GHOST_BATCH_SIZE;
+                assertEquals(0, mean, 1e-12, "Mean of ghost batch " + ghost);
+                assertEquals(1, square / BatchNorm.GHOST_BATCH_SIZE - mean * mean, 1e-4,
+                        "Variance of ghost batch " + ghost);
+            }
+        }
+
+        // Changing the second ghost batch leaves the first one's outputs alone
+        for (int i = BatchNorm.GHOST_BATCH_SIZE * SIZE; i < inputs.length; i++) {
+            inputs[i] = -inputs[i];
+        }
+        double[] changed = norm.forward(inputs, norm.createData(count, true), count, true);
+        for (int i = 0; i < BatchNorm.GHOST_BATCH_SIZE * SIZE; i++) {
+            assertEquals(outputs[i], changed[i]);
+        }
+    }
+
+    @Test
+    void runningAveragesMoveTowardsGhostBatchMeans() {
+        BatchNorm norm = batchNorm();
+        int count = 2 * BatchNorm.GHOST_BATCH_SIZE;
+
+        // Every value of the first ghost batch is 1 and of the second 3, so their
+        // means are 1 and 3 and their variances 0
+        double[] inputs = new double[count * SIZE];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = i < BatchNorm.GHOST_BATCH_SIZE * SIZE ? 1 : 3;
+        }
+
+        LayerData data = norm.createData(count, true);
+        norm.forward(inputs, data, count, true);
+        norm.backward(new double[count * SIZE], data, count);
+        norm.accumulateGradients(data);
+        norm.gradient(0, 0, 0, 1.0 / count);
+
+        double[] mean = new double[SIZE];
+        double[] variance = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            mean[i] = (1 - BatchNorm.STATISTICS_MOMENTUM) * 2;
+            variance[i] = BatchNorm.STATISTICS_MOMENTUM;
+        }
+        assertArrayEquals(mean, norm.runningMean, 1e-12);
+        assertArrayEquals(variance, norm.runningVariance, 1e-12);
+    }
+
+    @Test
+    void inferenceUsesRunningAverages() {
+        BatchNorm norm = batchNorm();
+        for (int i = 0; i < SIZE; i++) {
+            norm.runningMean[i] = i;
+            norm.runningVariance[i] = 4;
+            norm.gamma[i] = 2;
+            norm.beta[i] = 1;
+        }
+
+        double[] inputs = { 2, 3, 4, 5, 6 };
+        double[] outputs = norm.forward(inputs, norm.createInferenceData(1), 1, false);
+        double scale = 2 / Math.sqrt(4 + BatchNorm.EPSILON);
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals((inputs[i] - i) * scale + 1, outputs[i], 1e-12);
+        }
+        assertArrayEquals(outputs, norm.outputs(inputs), 1e-12);
+    }
+
+    @Test
+    void gradientsMatchNumericalGradients() {
+        BatchNorm norm = batchNorm();
+        Random random = new Random(2);
+        for (int i = 0; i < SIZE; i++) {
+            norm.gamma[i] = 1 + random.nextGaussian() * 0.5;
+            norm.beta[i] = random.nextGaussian();
+        }
+
+        // A full ghost batch and a partial one
+        GradientCheck.check(norm, BatchNorm.GHOST_BATCH_SIZE + 8, 1e-6, random);
+    }
+}
@@ -0,0 +1,132 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+
+/**
+ * A saved network loads back unchanged, and a file whose lengths are corrupt
+ * but whose checksum matches is rejected with an IOException before anything
+ * is allocated for it
+ */
+class CheckpointTest {
+    static final int[] LAYER_SIZES = { 6, 8, 3 };
+
+    Network network;
+    Path file;
+
+    @BeforeEach
+    void save() throws IOException {
+        HyperParameter params = new HyperParameter(Activation.ActivationFunctionType.ReLU,
+                InitialWeights.InitialWeightsType.He, Cost.CostFunctionType.CrossEntropy,
+                Layer.initializeWeights(LAYER_SIZES), LAYER_SIZES, 0.05, 0.075, 0.9, 0.1)
+                .setOutputActivation(Activation.ActivationFunctionType.Softmax)
+                .setSeed(3);
+        network = new Network(params, 1);
+
+        Random random = new Random(5);
+        DataPoint[] batch = new DataPoint[20];
+        for (int i = 0; i < batch.length; i++) {
+            double[] inputs = new double[LAYER_SIZES[0]];
+            for (int j = 0; j < inputs.length; j++) {
+                inputs[j] = random.nextGaussian();
+            }
+            batch[i] = new DataPoint(inputs, random.nextInt(3), 3);
+        }
+        network.learn(batch, 0.05, 0.0, 0.9);
+
+        file = Files.createTempFile("network", ".ckpt");
+        Checkpoint.save(network, file.toString());
+    }
+
+    @AfterEach
+    void delete() throws IOException {
+        network.shutdown();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    void loadsSavedParameters() throws IOException {
+        Network loaded = Checkpoint.load(file.toString(), 1);
+        try {
+            for (int i = 0; i < network.layers.length; i++) {
+                assertArrayEquals(network.layers[i].weights, loaded.layers[i].weights);
+                assertArrayEquals(network.layers[i].biases, loaded.layers[i].biases);
+                assertArrayEquals(network.layers[i].weightVelocities, loaded.layers[i].weightVelocities);
+            }
+        } finally {
+            loaded.shutdown();
+        }
+    }
+
+    @Test
+    void rejectsOversizedString() throws IOException {
+        // The payload starts with the length of the activation name
+        rewrite(0, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> Checkpoint.load(file.toString(), 1));
+    }
+
+    @Test
+    void rejectsNegativeLength() throws IOException {
+        rewrite(0, -1);
+        assertThrows(IOException.class, () -> Checkpoint.load(file.toString(), 1));
+    }
+
+    @Test
+    void rejectsOversizedLayer() throws IOException {
+        // The first layer size follows the four names and the size count
+        rewrite(layerSizesOffset() + 4, 1 << 30);
+        assertThrows(IOException.class, () -> Checkpoint.load(file.toString(), 1));
+    }
+
+    @Test
+    void rejectsZeroLayer() throws IOException {
+        rewrite(layerSizesOffset() + 8, 0);
+        assertThrows(IOException.class, () -> Checkpoint.load(file.toString(), 1));
+    }
+
+    @Test
+    void rejectsOversizedArrayCount() throws IOException {
+        // The weight initialization value count follows the layer sizes
+        rewrite(layerSizesOffset() + 4 + 4 * LAYER_SIZES.length, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> Checkpoint.load(file.toString(), 1));
+    }
+
+    // Offset in the payload of the layer size count
+    int layerSizesOffset() throws IOException {
+        ByteBuffer payload = ByteBuffer.wrap(Files.readAllBytes(file));
+        payload.position(Checkpoint.HEADER_SIZE);
+        for (int i = 0; i < 4; i++) {
+            int length = payload.getInt();
+            payload.position(payload.position() + length);
+        }
+        return payload.position() - Checkpoint.HEADER_SIZE;
+    }
+
+    // Overwrites an int in the payload and updates the checksum to match, so only
+    // the loader's own checks can catch it
+    void rewrite(int offset, int value) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(Checkpoint.HEADER_SIZE + offset, value);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, Checkpoint.HEADER_SIZE, bytes.length - Checkpoint.HEADER_SIZE);
+        buffer.putInt(16, (int) crc.getValue());
+        Files.write(file, bytes);
+    }
+}
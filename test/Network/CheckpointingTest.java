@@ -0,0 +1,92 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+
+/**
+ * Gradient checkpointing only changes when the forward pass runs, so a seeded
+ * network learns exactly the same parameters with or without it
+ */
+class CheckpointingTest {
+    static final int[] LAYER_SIZES = { 12, 16, 16, 16, 16, 4 };
+    static final int SAMPLES = 256;
+    static final int BATCH_SIZE = 50;
+
+    @Test
+    void dropoutMatchesPlainRun() {
+        double[][] plain = train(0, false);
+        for (int segment : new int[] { 1, 2, 3, 5 }) {
+            assertParametersEqual(plain, train(segment, false), segment);
+        }
+    }
+
+    @Test
+    void dropoutAndBatchNormMatchPlainRun() {
+        double[][] plain = train(0, true);
+        for (int segment : new int[] { 1, 2, 3, 5 }) {
+            assertParametersEqual(plain, train(segment, true), segment);
+        }
+    }
+
+    static void assertParametersEqual(double[][] expected, double[][] actual, int segment) {
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i], "Parameters " + i + " with segments of " + segment);
+        }
+    }
+
+    // Trains two epochs on two workers and returns every parameter array
+    static double[][] train(int segment, boolean batchNorm) {
+        HyperParameter params = new HyperParameter(Activation.ActivationFunctionType.ReLU,
+                InitialWeights.InitialWeightsType.He, Cost.CostFunctionType.CrossEntropy,
+                Layer.initializeWeights(LAYER_SIZES), LAYER_SIZES, 0.05, 0.075, 0.9, 0.1)
+                .setOutputActivation(Activation.ActivationFunctionType.Softmax)
+                .setSeed(42)
+                .setDropout(0.2)
+                .setBatchNorm(batchNorm)
+                .setCheckpointing(segment);
+        Network network = new Network(params, 2);
+
+        try {
+            Random random = new Random(7);
+            DataPoint[] data = new DataPoint[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                int label = random.nextInt(4);
+                double[] inputs = new double[LAYER_SIZES[0]];
+                for (int j = 0; j < inputs.length; j++) {
+                    inputs[j] = random.nextGaussian() + (j / 3 == label ? 1 : 0);
+                }
+                data[i] = new DataPoint(inputs, label, 4);
+            }
+
+            for (int epoch = 0; epoch < 2; epoch++) {
+                for (int start = 0; start < SAMPLES; start += BATCH_SIZE) {
+                    DataPoint[] batch = new DataPoint[Math.min(BATCH_SIZE, SAMPLES - start)];
+                    System.arraycopy(data, start, batch, 0, batch.length);
+                    network.learn(batch, 0.05, 0.0, 0.9);
+                }
+            }
+
+            int count = 0;
+            for (NetworkLayer layer : network.stack) {
+                count += layer.parameters().length;
+            }
+            double[][] parameters = new double[count][];
+            count = 0;
+            for (NetworkLayer layer : network.stack) {
+                for (double[] values : layer.parameters()) {
+                    parameters[count++] = values.clone();
+                }
+            }
+            return parameters;
+        } finally {
+            network.shutdown();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+import Functions.Activation;
+import Functions.InitialWeights;
+import Functions.Optimizer;
+
+/**
+ * The im2col lowering of convolutions and the convolution and pooling
+ * backward passes
+ */
+class Conv2DTest {
+    static Conv2D convolution(int height, int width, int channels, int filters, int kernelSize, int stride,
+            int padding) {
+        return new Conv2D(height, width, channels, filters, kernelSize, stride, padding,
+                Activation.ActivationFunctionType.Tanh, InitialWeights.InitialWeightsType.He,
+                Optimizer.getOptimizerFunction(Optimizer.OptimizerType.SGD, 0, 0), new SplittableRandom(3));
+    }
+
+    @Test
+    void im2colCopiesPatches() {
+        // A 3x3 single channel image, 2x2 patches with stride 1 and no padding
+        Conv2D convolution = convolution(3, 3, 1, 1, 2, 1, 0);
+        double[] image = { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+        double[] columns = new double[4 * 4];
+        convolution.im2col(image, columns, 1);
+
+        assertArrayEquals(new double[] { 1, 2, 4, 5, 2, 3, 5, 6, 4, 5, 7, 8, 5, 6, 8, 9 }, columns);
+    }
+
+    @Test
+    void im2colPadsWithZeros() {
+        // Two channels, 3x3 patches over a 2x2 image padded by 1
+        Conv2D convolution = convolution(2, 2, 2, 1, 3, 1, 1);
+        double[] image = { 1, -1, 2, -2, 3, -3, 4, -4 };
+        double[] columns = new double[4 * 18];
+        convolution.im2col(image, columns, 1);
+
+        // The first patch is centered on the top left pixel
+        assertArrayEquals(new double[] { 0, 0, 0, 0, 0, 0, 0, 0, 1, -1, 2, -2, 0, 0, 3, -3, 4, -4 },
+                Arrays.copyOf(columns, 18));
+    }
+
+    @Test
+    void col2imIsAdjointOfIm2col() {
+        // <im2col(x), c> = <x, col2im(c)> for every shape, with strides and
+        // padding that leave some pixels in no patch and some in several
+        Random random = new Random(5);
+        int[][] shapes = { { 5, 4, 2, 3, 1, 0 }, { 6, 6, 3, 3, 2, 1 }, { 5, 7, 1, 2, 3, 2 }, { 4, 4, 2, 4, 1, 1 } };
+        for (int[] shape : shapes) {
+            Conv2D convolution = convolution(shape[0], shape[1], shape[2], 2, shape[3], shape[4], shape[5]);
+            int count = 3;
+
+            double[] inputs = new double[count * convolution.inputSize()];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = random.nextGaussian();
+            }
+            double[] columnGradients = new double[count * convolution.outHeight * convolution.outWidth
+                    * convolution.patchSize];
+            for (int i = 0; i < columnGradients.length; i++) {
+                columnGradients[i] = random.nextGaussian();
+            }
+
+            double[] columns = new double[columnGradients.length];
+            convolution.im2col(inputs, columns, count);
+            double[] inputGradients = new double[inputs.length];
+            convolution.col2im(columnGradients, inputGradients, count);
+
+            assertEquals(dot(columns, columnGradients), dot(inputs, inputGradients), 1e-10);
+        }
+    }
+
+    @Test
+    void convolutionGradientsMatchNumericalGradients() {
+        Random random = new Random(6);
+        GradientCheck.check(convolution(5, 5, 2, 3, 3, 1, 1), 2, 1e-6, random);
+        GradientCheck.check(convolution(6, 5, 3, 2, 3, 2, 1), 2, 1e-6, random);
+        GradientCheck.check(convolution(4, 4, 1, 2, 2, 2, 0), 3, 1e-6, random);
+    }
+
+    @Test
+    void poolingGradientsMatchNumericalGradients() {
+        Random random = new Random(7);
+        for (Pooling.PoolingType type : Pooling.PoolingType.values()) {
+            // 5x5 leaves the last row and column out of every window
+            GradientCheck.check(new Pooling(5, 5, 3, 2, type), 2, 1e-6, random);
+            GradientCheck.check(new Pooling(6, 6, 2, 3, type), 2, 1e-6, random);
+        }
+    }
+
+    static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
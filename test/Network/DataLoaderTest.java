@@ -0,0 +1,57 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class DataLoaderTest {
+    @Test
+    void nextAfterCloseThrows() {
+        Data data = new Data(new double[][] { { 1 }, { 2 }, { 3 } }, new double[][] { { 1 }, { 0 }, { 1 } });
+        DataLoader loader = new DataLoader(data, 2, true, 1);
+        assertNotNull(loader.next());
+        loader.close();
+
+        assertThrows(IllegalStateException.class, loader::next);
+    }
+
+    @Test
+    void closeWakesWaitingNext() throws InterruptedException {
+        // Never finishes a sample until the loader thread is interrupted
+        DataSource stalled = new DataSource() {
+            public int size() {
+                return 4;
+            }
+
+            public int inputSize() {
+                return 1;
+            }
+
+            public int outputSize() {
+                return 1;
+            }
+
+            public void read(int index, double[] inputs, int inputOffset, double[] expectedOutputs,
+                    int expectedOffset) {
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        DataLoader loader = new DataLoader(stalled, 2, false, 1);
+        CompletableFuture<Batch> next = CompletableFuture.supplyAsync(loader::next);
+        Thread.sleep(100);
+        loader.close();
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> next.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, failure.getCause());
+    }
+}
@@ -0,0 +1,148 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import Distributed.RingAllReduce;
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+import Functions.Optimizer;
+
+/**
+ * Replicas on one host, connected by a ring all-reduce over loopback, learn
+ * the same parameters and batch normalization statistics as one network
+ * learning the combined batches
+ */
+class DistributedTest {
+    static final int[] LAYER_SIZES = { 12, 16, 16, 4 };
+    static final int SAMPLES = 512;
+    static final int BATCH_SIZE = 128;
+    static final int BATCHES = 3;
+
+    @Test
+    void matchesSerialRun() throws Exception {
+        // Three ranks split the batches unevenly
+        double[][] serial = train(1, false);
+        for (double[][] replica : trainReplicas(3, false)) {
+            assertClose(serial, replica);
+        }
+    }
+
+    @Test
+    void batchNormStatisticsMatchSerialRun() throws Exception {
+        // Every share is a whole number of ghost batches
+        double[][] serial = train(1, true);
+        for (double[][] replica : trainReplicas(2, true)) {
+            assertClose(serial, replica);
+        }
+    }
+
+    static void assertClose(double[][] expected, double[][] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i], 1e-9, "Array " + i);
+        }
+    }
+
+    // Trains every rank on its own thread and returns what each one learned
+    static double[][][] trainReplicas(int ranks, boolean batchNorm) throws Exception {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < ranks; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                addresses.add(new InetSocketAddress("127.0.0.1", socket.getLocalPort()));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(ranks);
+        try {
+            List<Future<double[][]>> results = new ArrayList<>();
+            for (int rank = 0; rank < ranks; rank++) {
+                int r = rank;
+                results.add(executor.submit(() -> {
+                    try (RingAllReduce ring = new RingAllReduce(r, addresses, 20000)) {
+                        return train(r, ring, ranks, batchNorm);
+                    }
+                }));
+            }
+
+            double[][][] learned = new double[ranks][][];
+            for (int rank = 0; rank < ranks; rank++) {
+                learned[rank] = results.get(rank).get();
+            }
+            return learned;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static double[][] train(int ranks, boolean batchNorm) throws IOException {
+        return train(0, null, ranks, batchNorm);
+    }
+
+    // Learns this rank's share of every batch and returns the parameters and
+    // the running statistics of every layer
+    static double[][] train(int rank, RingAllReduce ring, int ranks, boolean batchNorm) throws IOException {
+        HyperParameter params = new HyperParameter(Activation.ActivationFunctionType.ReLU,
+                InitialWeights.InitialWeightsType.He, Cost.CostFunctionType.CrossEntropy,
+                Layer.initializeWeights(LAYER_SIZES), LAYER_SIZES, 0.05, 0.075, 0.9, 0.1)
+                .setOutputActivation(Activation.ActivationFunctionType.Softmax)
+                // Every replica starts from its own weights, distribute copies rank 0's
+                .setSeed(17 + rank)
+                .setOptimizer(Optimizer.OptimizerType.Adam)
+                .setBatchNorm(batchNorm);
+        Network network = new Network(params, 1);
+
+        try {
+            if (ring != null) {
+                network.distribute(ring);
+            }
+
+            DataPoint[] data = data();
+            int start = rank * BATCH_SIZE / ranks;
+            int end = (rank + 1) * BATCH_SIZE / ranks;
+            for (int b = 0; b < BATCHES; b++) {
+                DataPoint[] batch = new DataPoint[end - start];
+                System.arraycopy(data, b * BATCH_SIZE + start, batch, 0, batch.length);
+                network.learn(batch, 0.05, 0.0, 0.9);
+            }
+
+            List<double[]> arrays = new ArrayList<>();
+            for (NetworkLayer layer : network.stack) {
+                for (double[] values : layer.parameters()) {
+                    arrays.add(values.clone());
+                }
+                for (double[] values : layer.state()) {
+                    arrays.add(values.clone());
+                }
+            }
+            return arrays.toArray(new double[0][]);
+        } finally {
+            network.shutdown();
+        }
+    }
+
+    static DataPoint[] data() {
+        Random random = new Random(9);
+        DataPoint[] data = new DataPoint[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int label = random.nextInt(4);
+            double[] inputs = new double[LAYER_SIZES[0]];
+            for (int j = 0; j < inputs.length; j++) {
+                inputs[j] = random.nextGaussian() * 2 + (j / 3 == label ? 1 : 0);
+            }
+            data[i] = new DataPoint(inputs, label, 4);
+        }
+        return data;
+    }
+}
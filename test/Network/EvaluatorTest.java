@@ -0,0 +1,83 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+
+/**
+ * The evaluator's forward-only blocks score a network the same as feeding the
+ * samples through one at a time
+ */
+class EvaluatorTest {
+    // 8x8 images, convolved into 3 channels and max pooled down to 4x4
+    static final int INPUTS = 8 * 8;
+    static final int[] LAYER_SIZES = { 4 * 4 * 3, 10, 3 };
+    static final int SAMPLES = 150;
+
+    @Test
+    void matchesSingleSamplePasses() {
+        HyperParameter params = new HyperParameter(Activation.ActivationFunctionType.ReLU,
+                InitialWeights.InitialWeightsType.He, Cost.CostFunctionType.CrossEntropy,
+                Layer.initializeWeights(LAYER_SIZES), LAYER_SIZES, 0.05, 0.075, 0.9, 0.1)
+                .setOutputActivation(Activation.ActivationFunctionType.Softmax)
+                .setSeed(11)
+                .setInputShape(8, 8, 1)
+                .addConvolution(3, 3, 1, 1)
+                .addPooling(Pooling.PoolingType.Max, 2)
+                .setBatchNorm(true)
+                .setDropout(0.25);
+        Network network = new Network(params, 3);
+
+        try {
+            Random random = new Random(2);
+            double[][] inputs = new double[SAMPLES][INPUTS];
+            double[][] expected = new double[SAMPLES][3];
+            DataPoint[] batch = new DataPoint[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                int label = random.nextInt(3);
+                for (int j = 0; j < inputs[i].length; j++) {
+                    inputs[i][j] = random.nextGaussian() + (j % 3 == label ? 1 : 0);
+                }
+                expected[i][label] = 1;
+                batch[i] = new DataPoint(inputs[i], label, 3);
+            }
+            // Moves the batch normalization statistics away from their defaults
+            network.learn(batch, 0.05, 0.0, 0.9);
+
+            double cost = 0;
+            int correct = 0;
+            for (int i = 0; i < SAMPLES; i++) {
+                cost += network.loss(inputs[i], expected[i]);
+                double[] outputs = network.forwardPropogation(inputs[i]);
+                int predicted = 0;
+                for (int j = 1; j < outputs.length; j++) {
+                    if (outputs[j] > outputs[predicted]) {
+                        predicted = j;
+                    }
+                }
+                if (expected[i][predicted] == 1) {
+                    correct++;
+                }
+            }
+
+            Evaluation evaluation = network.evaluate(new Data(inputs, expected));
+            assertEquals(cost / SAMPLES, evaluation.cost(), 1e-9);
+            assertEquals((double) correct / SAMPLES, evaluation.accuracy());
+            assertEquals(evaluation.cost(), network.cost(inputs, expected), 1e-12);
+
+            // cost and evaluate share one evaluator
+            Evaluator evaluator = network.evaluator;
+            network.evaluate(new Data(inputs, expected));
+            assertSame(evaluator, network.evaluator);
+        } finally {
+            network.shutdown();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Random;
+
+/**
+ * Compares a layer's backward pass with central differences of its forward
+ * pass. The cost is the sum of the outputs weighted by fixed random output
+ * gradients, so its gradient is what backward computes from them.
+ */
+final class GradientCheck {
+    static final double H = 1e-6;
+
+    private GradientCheck() {
+    }
+
+    /**
+     * Checks the gradients with respect to a random block of inputs and to
+     * every parameter of the layer
+     *
+     * @param layer
+     * @param count     : samples in the block
+     * @param tolerance : largest difference allowed between the gradients
+     * @param random
+     */
+    static void check(NetworkLayer layer, int count, double tolerance, Random random) {
+        double[] inputs = new double[count * layer.inputSize()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = random.nextGaussian();
+        }
+        double[] outputGradients = new double[count * layer.outputSize()];
+        for (int i = 0; i < outputGradients.length; i++) {
+            outputGradients[i] = random.nextGaussian();
+        }
+
+        LayerData data = layer.createData(count, true);
+        layer.forward(inputs, data, count, true);
+        double[] inputGradients = layer.backward(outputGradients, data, count).clone();
+        layer.accumulateGradients(data);
+
+        double[] expected = new double[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            expected[i] = derivative(layer, inputs, inputs, i, outputGradients, count);
+        }
+        assertArrayEquals(expected, inputGradients, tolerance, "Input gradients");
+
+        double[][] parameters = layer.parameters();
+        double[][] gradients = layer.gradients();
+        for (int p = 0; p < parameters.length; p++) {
+            double[] values = parameters[p];
+            double[] parameterExpected = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                parameterExpected[i] = derivative(layer, inputs, values, i, outputGradients, count);
+            }
+            assertArrayEquals(parameterExpected, gradients[p], tolerance, "Parameter gradients " + p);
+        }
+    }
+
+    // Central difference of the cost in values[index], which is either an input
+    // or a parameter
+    static double derivative(NetworkLayer layer, double[] inputs, double[] values, int index,
+            double[] outputGradients, int count) {
+        double saved = values[index];
+        values[index] = saved + H;
+        double plus = cost(layer, inputs, outputGradients, count);
+        values[index] = saved - H;
+        double minus = cost(layer, inputs, outputGradients, count);
+        values[index] = saved;
+        return (plus - minus) / (2 * H);
+    }
+
+    static double cost(NetworkLayer layer, double[] inputs, double[] outputGradients, int count) {
+        // Fresh data, so nothing the checked pass kept is disturbed
+        double[] outputs = layer.forward(inputs, layer.createData(count, true), count, true);
+        double cost = 0;
+        for (int i = 0; i < count * layer.outputSize(); i++) {
+            cost += outputs[i] * outputGradients[i];
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,164 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+import Functions.Optimizer;
+
+/**
+ * Off-heap layers learn the same weights as heap layers, checkpoints and
+ * frozen models carry them over, and shutting the network down frees them
+ */
+class OffHeapTest {
+    // The hidden layer spans three panels, the last one shorter
+    static final int[] LAYER_SIZES = { 300, 250, 10 };
+    static final int SAMPLES = 96;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void learnsLikeHeapLayers() {
+        for (Optimizer.OptimizerType optimizer : new Optimizer.OptimizerType[] { Optimizer.OptimizerType.Momentum,
+                Optimizer.OptimizerType.Adam }) {
+            Network heap = train(network(false, optimizer));
+            Network offHeap = train(network(true, optimizer));
+            try {
+                for (int l = 0; l < heap.layers.length; l++) {
+                    assertArrayEquals(heap.layers[l].weights, offHeap.layers[l].parameters()[0],
+                            optimizer + " weights " + l);
+                    assertArrayEquals(heap.layers[l].biases, offHeap.layers[l].biases, optimizer + " biases " + l);
+                    assertEquals(heap.layers[l].getWeightVelocity(7, 3), offHeap.layers[l].getWeightVelocity(7, 3));
+                }
+            } finally {
+                heap.shutdown();
+                offHeap.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void checkpointLoadsEitherWay() throws IOException {
+        Network offHeap = train(network(true, Optimizer.OptimizerType.Adam));
+        String file = directory.resolve("network.ckpt").toString();
+        try {
+            Checkpoint.save(offHeap, file);
+            for (boolean loadOffHeap : new boolean[] { false, true }) {
+                Network loaded = Checkpoint.load(file, 2, loadOffHeap);
+                try {
+                    assertEquals(loadOffHeap, loaded.offHeapBytes() > 0);
+                    for (int l = 0; l < offHeap.layers.length; l++) {
+                        OffHeapLayer layer = (OffHeapLayer) offHeap.layers[l];
+                        assertArrayEquals(layer.parameters()[0], loaded.layers[l].parameters()[0]);
+                        assertArrayEquals(layer.offHeapSquares.toArray(), loadOffHeap
+                                ? ((OffHeapLayer) loaded.layers[l]).offHeapSquares.toArray()
+                                : loaded.layers[l].weightSquares);
+                    }
+                } finally {
+                    loaded.shutdown();
+                }
+            }
+        } finally {
+            offHeap.shutdown();
+        }
+    }
+
+    @Test
+    void mappedModelMatchesCompiled() throws IOException {
+        Network network = train(network(true, Optimizer.OptimizerType.Momentum));
+        String file = directory.resolve("network.model").toString();
+        InferenceModel expected;
+        OffHeapModel compiled;
+        try {
+            expected = network.compile();
+            compiled = OffHeapModel.compile(network);
+            OffHeapModel.write(network, file);
+        } finally {
+            network.shutdown();
+        }
+
+        float[] inputs = new float[LAYER_SIZES[0]];
+        Random random = new Random(9);
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = (float) random.nextGaussian();
+        }
+        float[] outputs = new float[LAYER_SIZES[2]];
+        expected.predict(inputs, outputs);
+
+        try (OffHeapModel mapped = OffHeapModel.map(file)) {
+            float[] mappedOutputs = new float[outputs.length];
+            mapped.predict(inputs, mappedOutputs);
+            assertArrayEquals(outputs, mappedOutputs, 1e-5f);
+        }
+
+        float[] compiledOutputs = new float[outputs.length];
+        compiled.predict(inputs, compiledOutputs);
+        assertArrayEquals(outputs, compiledOutputs, 1e-5f);
+        compiled.close();
+        assertThrows(IllegalStateException.class, () -> compiled.predict(inputs, compiledOutputs));
+    }
+
+    @Test
+    void shutdownFreesMemory() {
+        Network network = network(true, Optimizer.OptimizerType.Momentum);
+        // Weights, gradients and velocities, and the gradients of both workers
+        long weights = 8L * (LAYER_SIZES[0] * LAYER_SIZES[1] + LAYER_SIZES[1] * LAYER_SIZES[2]);
+        assertEquals(5 * weights, network.offHeapBytes());
+
+        Layer layer = network.layers[0];
+        assertTrue(layer.getWeight(0, 0) != 0);
+        network.shutdown();
+        assertThrows(IllegalStateException.class, () -> layer.getWeight(0, 0));
+    }
+
+    @Test
+    void rejectsThirtyTwoBitPrecision() {
+        HyperParameter params = hyperParameters(true, Optimizer.OptimizerType.Momentum)
+                .setPrecision(Precision.Mixed);
+        assertThrows(IllegalArgumentException.class, () -> new Network(params, 1));
+    }
+
+    static HyperParameter hyperParameters(boolean offHeap, Optimizer.OptimizerType optimizer) {
+        return new HyperParameter(Activation.ActivationFunctionType.Tanh,
+                InitialWeights.InitialWeightsType.Xavier, Cost.CostFunctionType.CrossEntropy,
+                Layer.initializeWeights(LAYER_SIZES), LAYER_SIZES, 0.05, 0.075, 0.9, 0.01)
+                .setOutputActivation(Activation.ActivationFunctionType.Softmax)
+                .setOptimizer(optimizer)
+                .setSeed(7)
+                .setOffHeap(offHeap);
+    }
+
+    static Network network(boolean offHeap, Optimizer.OptimizerType optimizer) {
+        return new Network(hyperParameters(offHeap, optimizer), 2);
+    }
+
+    // Learns three batches
+    static Network train(Network network) {
+        Random random = new Random(5);
+        DataPoint[] data = new DataPoint[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            double[] inputs = new double[LAYER_SIZES[0]];
+            for (int j = 0; j < inputs.length; j++) {
+                inputs[j] = random.nextGaussian();
+            }
+            data[i] = new DataPoint(inputs, random.nextInt(LAYER_SIZES[2]), LAYER_SIZES[2]);
+        }
+        for (int start = 0; start < SAMPLES; start += 32) {
+            network.learn(Arrays.copyOfRange(data, start, start + 32), 0.05, 0.01, 0.9);
+        }
+        return network;
+    }
+}
@@ -0,0 +1,167 @@
+package Network;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import Functions.Activation;
+import Functions.Cost;
+import Functions.InitialWeights;
+
+/**
+ * The 32-bit passes: parameters stay floats in Single precision, the float
+ * copy of the weights follows every change, and the float pipeline learns
+ * what the double one does
+ */
+class PrecisionTest {
+    static final int SIZE = 4;
+    static final int SAMPLES = 256;
+    static final int BATCH_SIZE = 64;
+
+    @Test
+    void singleKeepsEveryParameterFloat() {
+        Network network = network(Precision.Single, 0);
+        train(network);
+        for (NetworkLayer layer : network.stack) {
+            for (double[] values : layer.parameters()) {
+                assertFloats(values);
+            }
+            for (double[] values : layer.state()) {
+                assertFloats(values);
+            }
+        }
+        for (Layer layer : network.layers) {
+            for (int i = 0; i < layer.weights.length; i++) {
+                assertEquals(layer.weights[i], layer.weightsSingle[i]);
+            }
+        }
+    }
+
+    @Test
+    void weightSettersUpdateFloatCopy() {
+        for (Precision precision : new Precision[] { Precision.Single, Precision.Mixed }) {
+            Layer layer = new Layer(3, 2, new double[6], new double[2], Activation.ActivationFunctionType.Linear);
+            layer.setPrecision(precision);
+
+            layer.setWeight(0, 1, 0.1);
+            layer.addWeight(1, 1, 0.3);
+            layer.addWeight(1, 1, 0.1);
+            layer.multiplyWeight(2, 0, 3);
+            layer.setWeight(2, 0, 1e-9);
+            layer.multiplyWeight(2, 0, 1.1);
+
+            for (int i = 0; i < layer.weights.length; i++) {
+                assertEquals((float) layer.weights[i], layer.weightsSingle[i], precision + " weight " + i);
+            }
+            double expected = precision == Precision.Single ? (float) ((float) 1e-9 * 1.1) : 1e-9 * 1.1;
+            assertEquals(expected, layer.getWeight(2, 0), precision.name());
+        }
+    }
+
+    @Test
+    void thirtyTwoBitDataHasNoDoubleBuffers() {
+        Layer layer = new Layer(3, 2, new double[6], new double[2], Activation.ActivationFunctionType.Tanh);
+        layer.setPrecision(Precision.Mixed);
+        LayerData data = layer.createData(8, true);
+        assertNull(data.activations);
+        assertNull(data.derivatives);
+        assertNull(data.nodeValues);
+        assertNull(data.inputGradients);
+        assertNull(data.weightGradient);
+
+        ActivationLayer activation = new ActivationLayer(2, Activation.ActivationFunctionType.ReLU);
+        activation.setPrecision(Precision.Mixed);
+        assertNull(activation.createData(8, true).activations);
+    }
+
+    @Test
+    void mixedFollowsDouble() {
+        double[][] expected = train(network(Precision.Double, 0));
+        double[][] actual = train(network(Precision.Mixed, 0));
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i], 1e-3, "Parameters " + i);
+        }
+    }
+
+    @Test
+    void checkpointingMatchesPlainRun() {
+        for (Precision precision : new Precision[] { Precision.Single, Precision.Mixed }) {
+            double[][] plain = train(network(precision, 0));
+            for (int segment : new int[] { 1, 3 }) {
+                double[][] checkpointed = train(network(precision, segment));
+                for (int i = 0; i < plain.length; i++) {
+                    assertArrayEquals(plain[i], checkpointed[i],
+                            precision + " parameters " + i + " with segments of " + segment);
+                }
+            }
+        }
+    }
+
+    // Convolution, pooling, batch norm and dropout in front of two dense layers
+    static Network network(Precision precision, int segment) {
+        int[] sizes = { 2 * 2 * 3, 8, 4 };
+        HyperParameter params = new HyperParameter(Activation.ActivationFunctionType.Tanh,
+                InitialWeights.InitialWeightsType.Xavier, Cost.CostFunctionType.CrossEntropy,
+                Layer.initializeWeights(sizes), sizes, 0.05, 0.075, 0.9, 0.1)
+                .setOutputActivation(Activation.ActivationFunctionType.Softmax)
+                .setSeed(11)
+                .setPrecision(precision)
+                .setBatchNorm(true)
+                .setDropout(0.1)
+                .setCheckpointing(segment)
+                .setInputShape(SIZE, SIZE, 1)
+                .addConvolution(3, 3, 1, 1)
+                .addPooling(Pooling.PoolingType.Max, 2);
+        return new Network(params, 2);
+    }
+
+    // Trains two epochs and returns a copy of every parameter array, shutting
+    // the network down
+    static double[][] train(Network network) {
+        try {
+            Random random = new Random(5);
+            DataPoint[] data = new DataPoint[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                int label = random.nextInt(4);
+                double[] inputs = new double[SIZE * SIZE];
+                for (int j = 0; j < inputs.length; j++) {
+                    inputs[j] = random.nextGaussian() * 0.3 + (j % 4 == label ? 1 : 0);
+                }
+                data[i] = new DataPoint(inputs, label, 4);
+            }
+
+            for (int epoch = 0; epoch < 2; epoch++) {
+                for (int start = 0; start < SAMPLES; start += BATCH_SIZE) {
+                    DataPoint[] batch = new DataPoint[BATCH_SIZE];
+                    System.arraycopy(data, start, batch, 0, BATCH_SIZE);
+                    network.learn(batch, 0.05, 0.0, 0.9);
+                }
+            }
+
+            int count = 0;
+            for (NetworkLayer layer : network.stack) {
+                count += layer.parameters().length;
+            }
+            double[][] parameters = new double[count][];
+            count = 0;
+            for (NetworkLayer layer : network.stack) {
+                for (double[] values : layer.parameters()) {
+                    parameters[count++] = values.clone();
+                }
+            }
+            return parameters;
+        } finally {
+            network.shutdown();
+        }
+    }
+
+    static void assertFloats(double[] values) {
+        for (int i = 0; i < values.length; i++) {
+            assertEquals((float) values[i], values[i], "Value " + i);
+        }
+    }
+}